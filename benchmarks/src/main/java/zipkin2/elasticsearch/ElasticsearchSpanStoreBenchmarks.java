@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch;
+
+import com.google.common.io.ByteStreams;
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.server.Server;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.codec.CodecBenchmarks;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.QueryRequest;
+import zipkin2.storage.SpanStore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares trace queries that find trace IDs with a terms aggregation to those that use field
+ * collapsing, against a local stand-in for Elasticsearch which returns canned responses.
+ *
+ * <p>The stand-in doesn't model the cost of the aggregation inside Elasticsearch, so this measures
+ * the client side of each approach: the size of requests and responses, how they are parsed, and
+ * the indices read.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(2)
+public class ElasticsearchSpanStoreBenchmarks {
+  static final Span CLIENT_SPAN = SpanBytesDecoder.JSON_V2.decodeOne(read("/zipkin2-client.json"));
+  static final int TRACE_COUNT = 10, SPANS_PER_TRACE = 5;
+  static final long END_TS = CLIENT_SPAN.timestampAsLong() / 1000L;
+  static final QueryRequest REQUEST = QueryRequest.newBuilder()
+    .serviceName("frontend")
+    .endTs(END_TS)
+    .lookback(TimeUnit.DAYS.toMillis(7))
+    .limit(TRACE_COUNT)
+    .build();
+
+  Server server;
+  ElasticsearchStorage aggregation, collapse;
+  SpanStore aggregationSpanStore, collapseSpanStore;
+
+  @Setup public void setup() {
+    List<Span> spans = new ArrayList<>();
+    StringBuilder buckets = new StringBuilder(), collapsed = new StringBuilder();
+    for (int i = 1; i <= TRACE_COUNT; i++) {
+      String traceId = String.format("%016x", i);
+      if (i > 1) {
+        buckets.append(',');
+        collapsed.append(',');
+      }
+      buckets.append("{\"key\":\"").append(traceId).append("\",\"doc_count\":").append(i)
+        .append(",\"timestamp_millis\":{\"value\":").append(END_TS - i).append("}}");
+      collapsed.append("{\"_index\":\"zipkin-span\",\"_type\":\"_doc\",\"_id\":\"").append(i)
+        .append("\",\"_score\":null,\"fields\":{\"traceId\":[\"").append(traceId)
+        .append("\"]},\"sort\":[").append(END_TS - i).append("]}");
+      for (int j = 1; j <= SPANS_PER_TRACE; j++) {
+        spans.add(CLIENT_SPAN.toBuilder().traceId(traceId).id(j).build());
+      }
+    }
+    String aggregationResponse =
+      "{\"aggregations\":{\"traceId\":{\"buckets\":[" + buckets + "]}}}";
+    String collapseResponse = "{\"hits\":{\"hits\":[" + collapsed + "]}}";
+    String spansResponse = spansResponse(spans);
+
+    server = Server.builder()
+      .http(0)
+      .service("/", (ctx, req) -> HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+        "{\"version\":{\"number\":\"6.7.0\"}}"))
+      .serviceUnder("/", (ctx, req) -> HttpResponse.from(req.aggregate().thenApply(agg -> {
+        if (agg.method() != HttpMethod.POST) return HttpResponse.of(HttpStatus.OK);
+        String body = agg.contentUtf8();
+        String response = body.contains("\"aggs\"") ? aggregationResponse
+          : body.contains("\"collapse\"") ? collapseResponse
+            : spansResponse;
+        return HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, response);
+      })))
+      .build();
+    server.start().join();
+
+    String url = "http://127.0.0.1:" + server.activeLocalPort();
+    aggregation = ElasticsearchStorage.newBuilder(() -> WebClient.of(url))
+      .ensureTemplates(false)
+      .build();
+    collapse = aggregation.toBuilder().collapseTraceIds(true).build();
+    aggregationSpanStore = aggregation.spanStore();
+    collapseSpanStore = collapse.spanStore();
+  }
+
+  @TearDown public void tearDown() {
+    aggregation.close();
+    collapse.close();
+    server.stop().join();
+  }
+
+  @Benchmark public List<List<Span>> getTraces_aggregation() throws IOException {
+    return aggregationSpanStore.getTraces(REQUEST).execute();
+  }
+
+  @Benchmark public List<List<Span>> getTraces_collapse() throws IOException {
+    return collapseSpanStore.getTraces(REQUEST).execute();
+  }
+
+  static String spansResponse(List<Span> spans) {
+    StringBuilder result = new StringBuilder("{\"hits\":{\"total\":").append(spans.size())
+      .append(",\"hits\":[");
+    for (int i = 0; i < spans.size(); i++) {
+      if (i > 0) result.append(',');
+      result.append("{\"_index\":\"zipkin-span\",\"_type\":\"_doc\",\"_id\":\"").append(i)
+        .append("\",\"_score\":0,\"_source\":")
+        .append(new String(SpanBytesEncoder.JSON_V2.encode(spans.get(i)), UTF_8))
+        .append('}');
+    }
+    return result.append("]}}").toString();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + ElasticsearchSpanStoreBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+
+  static byte[] read(String resource) {
+    try {
+      return ByteStreams.toByteArray(CodecBenchmarks.class.getResourceAsStream(resource));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
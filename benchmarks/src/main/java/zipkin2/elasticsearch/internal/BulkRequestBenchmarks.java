@@ -17,6 +17,7 @@ import com.google.common.io.ByteStreams;
 import com.linecorp.armeria.common.HttpRequest;
 import com.linecorp.armeria.common.HttpRequestWriter;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.PooledByteBufAllocator;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
@@ -50,6 +51,12 @@ import zipkin2.elasticsearch.internal.client.HttpCall;
 @Threads(2)
 public class BulkRequestBenchmarks {
   static final Span CLIENT_SPAN = SpanBytesDecoder.JSON_V2.decodeOne(read("/zipkin2-client.json"));
+  /** Writes the same documents as {@link BulkIndexWriter#SPAN}, but via intermediate buffers. */
+  static final BulkIndexWriter<Span> SPAN_GENERIC = new BulkIndexWriter<Span>() {
+    @Override public String writeDocument(Span input, ByteBufOutputStream sink) {
+      return BulkIndexWriter.SPAN.writeDocument(input, sink);
+    }
+  };
 
   final ElasticsearchStorage es = ElasticsearchStorage.newBuilder(() -> null).build();
   final long indexTimestamp = CLIENT_SPAN.timestampAsLong() / 1000L;
@@ -57,26 +64,40 @@ public class BulkRequestBenchmarks {
     es.indexNameFormatter().formatTypeAndTimestampForInsert("span", '-', indexTimestamp);
   final IndexEntry<Span> entry =
     BulkCallBuilder.newIndexEntry(spanIndex, "span", CLIENT_SPAN, BulkIndexWriter.SPAN);
+  final IndexEntry<Span> genericEntry =
+    BulkCallBuilder.newIndexEntry(spanIndex, "span", CLIENT_SPAN, SPAN_GENERIC);
 
   @Benchmark public ByteBuf writeRequest_singleSpan() {
     return BulkCallBuilder.serialize(PooledByteBufAllocator.DEFAULT, entry, true);
   }
 
+  @Benchmark public ByteBuf writeRequest_singleSpan_generic() {
+    return BulkCallBuilder.serialize(PooledByteBufAllocator.DEFAULT, genericEntry, true);
+  }
+
   @Benchmark public HttpRequest buildAndWriteRequest_singleSpan() {
     BulkCallBuilder builder = new BulkCallBuilder(es, 6.7f, "index-span");
     builder.index(spanIndex, "span", CLIENT_SPAN, BulkIndexWriter.SPAN);
-    HttpCall.RequestSupplier supplier =  builder.build().request;
+    HttpCall.RequestSupplier supplier =  builder.newHttpCall(builder.entries).request;
     HttpRequestWriter request = HttpRequest.streaming(supplier.headers());
     supplier.writeBody(request::tryWrite);
     return request;
   }
 
   @Benchmark public HttpRequest buildAndWriteRequest_tenSpans() {
+    return buildAndWriteRequest_tenSpans(BulkIndexWriter.SPAN);
+  }
+
+  @Benchmark public HttpRequest buildAndWriteRequest_tenSpans_generic() {
+    return buildAndWriteRequest_tenSpans(SPAN_GENERIC);
+  }
+
+  HttpRequest buildAndWriteRequest_tenSpans(BulkIndexWriter<Span> writer) {
     BulkCallBuilder builder = new BulkCallBuilder(es, 6.7f, "index-span");
     for (int i = 0; i < 10; i++) {
-      builder.index(spanIndex, "span", CLIENT_SPAN, BulkIndexWriter.SPAN);
+      builder.index(spanIndex, "span", CLIENT_SPAN, writer);
     }
-    HttpCall.RequestSupplier supplier =  builder.build().request;
+    HttpCall.RequestSupplier supplier =  builder.newHttpCall(builder.entries).request;
     HttpRequestWriter request = HttpRequest.streaming(supplier.headers());
     supplier.writeBody(request::tryWrite);
     return request;
@@ -41,6 +41,7 @@ public class DelayLimiterBenchmarks {
 
   final Random rng = new Random();
   final DelayLimiter<Long> limiter = DelayLimiter.create();
+  final HashedDelayLimiter<Long> hashedLimiter = HashedDelayLimiter.create();
 
   @Benchmark public boolean shouldInvoke_randomData() {
     return limiter.shouldInvoke(rng.nextLong());
@@ -50,6 +51,23 @@ public class DelayLimiterBenchmarks {
     return limiter.shouldInvoke(1L);
   }
 
+  /** Ex. 10 site tags with cardinality 4000 each: twice the default cardinality, so churns */
+  @Benchmark public boolean shouldInvoke_highCardinality() {
+    return limiter.shouldInvoke((long) rng.nextInt(10 * 4000));
+  }
+
+  @Benchmark public boolean shouldInvoke_randomData_hashed() {
+    return hashedLimiter.shouldInvoke(rng.nextLong());
+  }
+
+  @Benchmark public boolean shouldInvoke_sameData_hashed() {
+    return hashedLimiter.shouldInvoke(1L);
+  }
+
+  @Benchmark public boolean shouldInvoke_highCardinality_hashed() {
+    return hashedLimiter.shouldInvoke((long) rng.nextInt(10 * 4000));
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt = new OptionsBuilder()
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+/**
+ * Compares reading traces with one multi-partition query to reading them with a query per trace,
+ * against a simulated session.
+ *
+ * <p>Each partition read takes {@link #PARTITION_MICROS} plus random jitter, and is occasionally
+ * slow, as if a replica paused. A multi-partition query additionally pays a hop through a
+ * coordinator, which gathers every partition before responding. Single partition queries are
+ * routed to a replica, so only pay the partition read.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(2)
+public class FanOutCallBenchmarks {
+  static final int TRACE_COUNT = 10; // the default query limit
+  static final long PARTITION_MICROS = 500, COORDINATOR_MICROS = 200, GATHER_MICROS = 20;
+  static final long SLOW_MICROS = 10_000;
+  static final double SLOW_PROBABILITY = 0.01;
+
+  final List<String> traceIds = new ArrayList<>();
+  ScheduledExecutorService replicas;
+
+  @Setup public void setup() {
+    for (int i = 0; i < TRACE_COUNT; i++) traceIds.add(Integer.toHexString(i));
+    replicas = Executors.newScheduledThreadPool(4);
+  }
+
+  @TearDown public void close() {
+    replicas.shutdownNow();
+  }
+
+  @Benchmark public List<String> multiPartitionQuery() throws Exception {
+    long coordinatorMicros = COORDINATOR_MICROS, slowestPartition = 0;
+    for (int i = 0; i < TRACE_COUNT; i++) {
+      slowestPartition = Math.max(slowestPartition, partitionMicros());
+      coordinatorMicros += GATHER_MICROS;
+    }
+    return new SimulatedRead(traceIds, coordinatorMicros + slowestPartition).execute();
+  }
+
+  @Benchmark public List<String> partitionQueries() throws Exception {
+    return new FanOutCall<>(traceIds, this::readPartition, TRACE_COUNT).execute();
+  }
+
+  @Benchmark public List<String> partitionQueries_concurrency4() throws Exception {
+    return new FanOutCall<>(traceIds, this::readPartition, 4).execute();
+  }
+
+  Call<List<String>> readPartition(String traceId) {
+    return new SimulatedRead(Collections.singletonList(traceId), partitionMicros());
+  }
+
+  static long partitionMicros() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (random.nextDouble() < SLOW_PROBABILITY) return SLOW_MICROS;
+    return PARTITION_MICROS + random.nextLong(PARTITION_MICROS / 2);
+  }
+
+  final class SimulatedRead extends Call.Base<List<String>> {
+    final List<String> traceIds;
+    final long micros;
+
+    SimulatedRead(List<String> traceIds, long micros) {
+      this.traceIds = traceIds;
+      this.micros = micros;
+    }
+
+    @Override protected List<String> doExecute() throws IOException {
+      try {
+        return replicas.schedule(() -> traceIds, micros, TimeUnit.MICROSECONDS).get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override protected void doEnqueue(Callback<List<String>> callback) {
+      replicas.schedule(() -> callback.onSuccess(traceIds), micros, TimeUnit.MICROSECONDS);
+    }
+
+    @Override public SimulatedRead clone() {
+      return new SimulatedRead(traceIds, micros);
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + FanOutCallBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.v1;
+
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static zipkin2.storage.cassandra.v1.Tables.ANNOTATIONS_INDEX;
+import static zipkin2.storage.cassandra.v1.Tables.SERVICE_NAME_INDEX;
+import static zipkin2.storage.cassandra.v1.Tables.SERVICE_SPAN_NAME_INDEX;
+
+/**
+ * Compares index dedupe throughput of {@link IndexCache} to the Guava cache it replaced, when
+ * collector threads index spans of the same traces.
+ *
+ * <p>Run with a thread count, ex. {@code -t 64}. The main method runs 1, 4, 16 and 64 threads.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class IndexCacheBenchmarks {
+  static final int TRACE_COUNT = 10_000, MAX_ENTRIES = 100_000, TTL = 60;
+  static final long TIMESTAMP = 1467676800000L;
+
+  final PartitionKeyToTraceId[] keys = new PartitionKeyToTraceId[TRACE_COUNT * 3];
+  final IndexCache indexCache = new IndexCache(MAX_ENTRIES, TTL);
+  final ConcurrentMap<PartitionKeyToTraceId, Pair> guavaCache = CacheBuilder.newBuilder()
+    .maximumSize(MAX_ENTRIES)
+    .expireAfterWrite(TTL, TimeUnit.SECONDS)
+    .<PartitionKeyToTraceId, Pair>build().asMap();
+
+  public IndexCacheBenchmarks() {
+    for (int i = 0, k = 0; i < TRACE_COUNT; i++) {
+      String traceId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+      keys[k++] = new PartitionKeyToTraceId(SERVICE_NAME_INDEX, "frontend", traceId);
+      keys[k++] = new PartitionKeyToTraceId(SERVICE_SPAN_NAME_INDEX, "frontend.get", traceId);
+      keys[k++] = new PartitionKeyToTraceId(ANNOTATIONS_INDEX, "frontend:http.path", traceId);
+    }
+  }
+
+  @Benchmark public boolean widen_indexCache() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return indexCache.widen(keys[random.nextInt(keys.length)], timestamp(random));
+  }
+
+  @Benchmark public boolean widen_guavaCache() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return widen(guavaCache, keys[random.nextInt(keys.length)], timestamp(random));
+  }
+
+  /** Spans of a trace are indexed within a second, at millisecond precision. */
+  static long timestamp(ThreadLocalRandom random) {
+    return TIMESTAMP + random.nextInt(1000);
+  }
+
+  /** The loop {@link Indexer} used before {@link IndexCache} */
+  static boolean widen(ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState,
+    PartitionKeyToTraceId key, long timestamp) {
+    for (; ; ) {
+      Pair oldRange = sharedState.get(key);
+      if (oldRange == null) {
+        oldRange = sharedState.putIfAbsent(key, new Pair(timestamp, timestamp));
+        if (oldRange == null) return true;
+      }
+
+      long first = timestamp < oldRange.left ? timestamp : oldRange.left;
+      long last = timestamp > oldRange.right ? timestamp : oldRange.right;
+
+      Pair newRange = new Pair(first, last);
+      if (oldRange.equals(newRange)) {
+        return false;
+      } else if (sharedState.replace(key, oldRange, newRange)) {
+        return true;
+      }
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : new int[] {1, 4, 16, 64}) {
+      Options opt = new OptionsBuilder()
+        .include(".*" + IndexCacheBenchmarks.class.getSimpleName() + ".*")
+        .threads(threads)
+        .build();
+
+      new Runner(opt).run();
+    }
+  }
+}
@@ -57,6 +57,7 @@ cat /zipkin-schemas/cassandra-schema.cql | /cassandra/bin/cqlsh --debug localhos
 cat /zipkin-schemas/zipkin2-schema.cql | /cassandra/bin/cqlsh --debug localhost
 cat /zipkin-schemas/zipkin2-schema.cql | sed 's/ zipkin2/ zipkin2_udts/g' | /cassandra/bin/cqlsh --debug localhost
 cat /zipkin-schemas/zipkin2-schema-indexes.cql | /cassandra/bin/cqlsh --debug localhost
+cat /zipkin-schemas/zipkin2-schema-upgrade-3.cql | /cassandra/bin/cqlsh --debug localhost
 
 echo "*** Adding custom UDFs to zipkin2 keyspace"
 /cassandra/bin/cqlsh -e "CREATE FUNCTION zipkin2.plus (x bigint, y bigint) RETURNS NULL ON NULL INPUT RETURNS bigint LANGUAGE java AS 'return x+y;';"
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import zipkin2.Span;
+import zipkin2.internal.Nullable;
+
+/**
+ * Holds encoded and gzipped responses of traces which stopped receiving spans, so that repeat views
+ * neither read storage nor compress again.
+ *
+ * <p>A trace is considered quiet when its last span ended more than the quiet period ago. This is
+ * based on span data as opposed to tracking writes, so it works regardless of which collector or
+ * server instance received the spans. Choose a quiet period longer than spans are usually late.
+ *
+ * <p>Entries are evicted least recently used first, when the total size exceeds the maximum.
+ */
+final class TraceResponseCache {
+  static final class Entry {
+    final byte[] gzipped;
+    final String etag;
+
+    Entry(byte[] gzipped, String etag) {
+      this.gzipped = gzipped;
+      this.etag = etag;
+    }
+
+    /** Decompresses the JSON, for the rare client that doesn't accept gzip. */
+    byte[] json() {
+      ByteArrayOutputStream result = new ByteArrayOutputStream(gzipped.length * 4);
+      try (GZIPInputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+        byte[] buffer = new byte[8192];
+        for (int read; (read = gunzip.read(buffer)) != -1; ) result.write(buffer, 0, read);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e); // unexpected reading bytes we compressed
+      }
+      return result.toByteArray();
+    }
+
+    /** Returns true if the If-None-Match header includes this entry, using weak comparison. */
+    boolean matches(@Nullable String ifNoneMatch) {
+      if (ifNoneMatch == null) return false;
+      for (String tag : ifNoneMatch.split(",", 100)) {
+        tag = tag.trim();
+        if (tag.equals("*")) return true;
+        if (tag.startsWith("W/")) tag = tag.substring(2);
+        if (etag.regionMatches(2, tag, 0, tag.length()) && etag.length() - 2 == tag.length()) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  final long quietPeriodMicros;
+  final long maxBytes;
+  final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  long totalBytes; // guarded by this
+
+  TraceResponseCache(long quietPeriodMillis, long maxBytes) {
+    if (quietPeriodMillis < 0) throw new IllegalArgumentException("quietPeriod < 0");
+    if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+    this.quietPeriodMicros = quietPeriodMillis * 1000L;
+    this.maxBytes = maxBytes;
+  }
+
+  @Nullable synchronized Entry get(String traceId) {
+    return entries.get(traceId);
+  }
+
+  /**
+   * Returns a cached entry for the trace if it is quiet, or null if it may still receive spans or
+   * is too large to cache.
+   */
+  @Nullable Entry maybeCache(String traceId, List<Span> trace, byte[] json, long nowMicros) {
+    if (!isQuiet(trace, nowMicros)) return null;
+
+    Entry entry = new Entry(gzip(json), etag(json));
+    if (entry.gzipped.length > maxBytes) return null;
+    synchronized (this) {
+      Entry replaced = entries.put(traceId, entry);
+      if (replaced != null) totalBytes -= replaced.gzipped.length;
+      totalBytes += entry.gzipped.length;
+      for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+        totalBytes > maxBytes && i.hasNext(); ) {
+        totalBytes -= i.next().getValue().gzipped.length;
+        i.remove();
+      }
+    }
+    return entry;
+  }
+
+  boolean isQuiet(List<Span> trace, long nowMicros) {
+    long lastEnd = 0L;
+    for (Span span : trace) {
+      long end = span.timestampAsLong() + span.durationAsLong();
+      if (end > lastEnd) lastEnd = end;
+    }
+    return lastEnd != 0L && lastEnd + quietPeriodMicros < nowMicros;
+  }
+
+  /** Weak as the same tag applies to both the gzipped and identity representations. */
+  static String etag(byte[] json) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(json, 0, json.length);
+    return "W/\"" + Integer.toHexString(json.length) + '-' + Long.toHexString(crc32.getValue())
+      + '"';
+  }
+
+  static byte[] gzip(byte[] json) {
+    ByteArrayOutputStream result = new ByteArrayOutputStream(json.length / 4);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(result)) {
+      gzip.write(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // unexpected writing to a byte array
+    }
+    return result.toByteArray();
+  }
+
+  @Override public synchronized String toString() {
+    return "TraceResponseCache{size=" + entries.size() + ", bytes=" + totalBytes + "}";
+  }
+}
@@ -22,16 +22,19 @@ import org.springframework.beans.factory.BeanFactoryAware;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Condition;
 import org.springframework.context.annotation.ConditionContext;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Import;
+import org.springframework.core.Ordered;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
 import zipkin2.server.internal.brave.TracingStorageComponent;
+import zipkin2.server.internal.coalesce.CoalescingStorageComponent;
 import zipkin2.server.internal.throttle.ThrottledStorageComponent;
 import zipkin2.server.internal.throttle.ZipkinStorageThrottleProperties;
 import zipkin2.storage.InMemoryStorage;
@@ -40,6 +43,7 @@ import zipkin2.storage.StorageComponent;
 /** Base collector and storage configurations needed for higher-level integrations */
 @Import({
   ZipkinConfiguration.InMemoryConfiguration.class,
+  ZipkinConfiguration.CoalescingStorageComponentEnhancer.class,
   ZipkinConfiguration.ThrottledStorageComponentEnhancer.class,
   ZipkinConfiguration.TracingStorageComponentEnhancer.class
 })
@@ -53,6 +57,22 @@ public class ZipkinConfiguration {
     return new MicrometerCollectorMetrics(registry);
   }
 
+  @ConditionalOnProperty(name = "zipkin.storage.coalesce-reads.enabled", matchIfMissing = true)
+  static class CoalescingStorageComponentEnhancer implements BeanPostProcessor, Ordered {
+    /** Apply before other enhancers, so that each caller is still traced or throttled. */
+    @Override public int getOrder() {
+      return Ordered.HIGHEST_PRECEDENCE;
+    }
+
+    /** In-memory reads are cheap, so we don't coalesce them. */
+    @Override public Object postProcessAfterInitialization(Object bean, String beanName) {
+      if (bean instanceof StorageComponent && !(bean instanceof InMemoryStorage)) {
+        return new CoalescingStorageComponent((StorageComponent) bean);
+      }
+      return bean;
+    }
+  }
+
   @EnableConfigurationProperties(ZipkinStorageThrottleProperties.class)
   @ConditionalOnThrottledStorage
   static class ThrottledStorageComponentEnhancer implements BeanPostProcessor, BeanFactoryAware {
@@ -91,7 +91,8 @@ public class ZipkinHttpConfiguration {
       .allowRequestHeaders(HttpHeaderNames.CONTENT_TYPE,
         // Use literals to avoid a runtime dependency on armeria-grpc types
         HttpHeaderNames.of("X-GRPC-WEB"))
-      .exposeHeaders("grpc-status", "grpc-message", "armeria.grpc.ThrowableProto-bin");
+      .exposeHeaders("grpc-status", "grpc-message", "armeria.grpc.ThrowableProto-bin",
+        ZipkinQueryApiV2.NEXT_CURSOR.toString(), ZipkinQueryApiV2.PARTIAL_RESULTS.toString());
     return builder -> builder.decorator(corsBuilder::build);
   }
 
@@ -17,7 +17,10 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.linecorp.armeria.common.AggregatedHttpResponse;
 import com.linecorp.armeria.common.HttpData;
 import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpResponseWriter;
 import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.RequestHeaders;
 import com.linecorp.armeria.common.ResponseHeaders;
 import com.linecorp.armeria.common.ResponseHeadersBuilder;
 import com.linecorp.armeria.server.ServiceRequestContext;
@@ -29,6 +32,7 @@ import com.linecorp.armeria.server.annotation.Param;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufOutputStream;
+import io.netty.util.AsciiString;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
@@ -37,6 +41,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import zipkin2.Call;
@@ -44,17 +49,25 @@ import zipkin2.DependencyLink;
 import zipkin2.Span;
 import zipkin2.codec.DependencyLinkBytesEncoder;
 import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.internal.Nullable;
+import zipkin2.internal.PartialResult;
 import zipkin2.storage.QueryRequest;
 import zipkin2.storage.StorageComponent;
 
 import static com.linecorp.armeria.common.HttpHeaderNames.CACHE_CONTROL;
 import static com.linecorp.armeria.common.HttpStatus.BAD_REQUEST;
 import static com.linecorp.armeria.common.HttpStatus.NOT_FOUND;
+import static com.linecorp.armeria.common.HttpStatus.NOT_MODIFIED;
 import static com.linecorp.armeria.common.MediaType.ANY_TEXT_TYPE;
 
 @ConditionalOnProperty(name = "zipkin.query.enabled", matchIfMissing = true)
 @ExceptionHandler(BodyIsExceptionMessage.class)
 public class ZipkinQueryApiV2 {
+  /** Set on trace search results when there may be more, to pass as the "cursor" parameter. */
+  static final AsciiString NEXT_CURSOR = HttpHeaderNames.of("zipkin-next-cursor");
+  /** Set to "true" on trace search results when storage skipped reads that exceeded a deadline. */
+  static final AsciiString PARTIAL_RESULTS = HttpHeaderNames.of("zipkin-partial-results");
+
   final String storageType;
   final StorageComponent storage; // don't cache spanStore here as it can cause the app to crash!
   final long defaultLookback;
@@ -64,6 +77,7 @@ public class ZipkinQueryApiV2 {
    */
   final int namesMaxAge;
   final List<String> autocompleteKeys;
+  @Nullable final TraceResponseCache traceCache; // null unless enabled
 
   volatile int serviceCount; // used as a threshold to start returning cache-control headers
 
@@ -72,13 +86,18 @@ public class ZipkinQueryApiV2 {
     @Value("${zipkin.storage.type:mem}") String storageType,
     @Value("${zipkin.query.lookback:86400000}") long defaultLookback, // 1 day in millis
     @Value("${zipkin.query.names-max-age:300}") int namesMaxAge, // 5 minutes
-    @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys
+    @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys,
+    @Value("${zipkin.query.trace-cache.enabled:false}") boolean traceCacheEnabled,
+    @Value("${zipkin.query.trace-cache.quiet-period:300000}") long traceCacheQuietPeriod,
+    @Value("${zipkin.query.trace-cache.max-bytes:67108864}") long traceCacheMaxBytes // 64MiB
   ) {
     this.storage = storage;
     this.storageType = storageType;
     this.defaultLookback = defaultLookback;
     this.namesMaxAge = namesMaxAge;
     this.autocompleteKeys = autocompleteKeys;
+    this.traceCache = traceCacheEnabled
+      ? new TraceResponseCache(traceCacheQuietPeriod, traceCacheMaxBytes) : null;
   }
 
   @Get("/api/v2/dependencies")
@@ -120,7 +139,8 @@ public class ZipkinQueryApiV2 {
 
   @Get("/api/v2/traces")
   @Blocking
-  public AggregatedHttpResponse getTraces(
+  public HttpResponse getTraces(
+    ServiceRequestContext ctx,
     @Param("serviceName") Optional<String> serviceName,
     @Param("remoteServiceName") Optional<String> remoteServiceName,
     @Param("spanName") Optional<String> spanName,
@@ -129,7 +149,8 @@ public class ZipkinQueryApiV2 {
     @Param("maxDuration") Optional<Long> maxDuration,
     @Param("endTs") Optional<Long> endTs,
     @Param("lookback") Optional<Long> lookback,
-    @Default("10") @Param("limit") int limit)
+    @Default("10") @Param("limit") int limit,
+    @Param("cursor") Optional<String> cursor)
     throws IOException {
     QueryRequest queryRequest =
       QueryRequest.newBuilder()
@@ -142,44 +163,112 @@ public class ZipkinQueryApiV2 {
         .endTs(endTs.orElse(System.currentTimeMillis()))
         .lookback(lookback.orElse(defaultLookback))
         .limit(limit)
+        .cursor(cursor.orElse(null))
         .build();
 
     List<List<Span>> traces = storage.spanStore().getTraces(queryRequest).execute();
-    return jsonResponse(writeTraces(SpanBytesEncoder.JSON_V2, traces));
+    List<List<Span>> page = queryRequest.page(traces);
+    // When storage returned less than the limit, there are no more results to continue to.
+    String nextCursor = traces.size() < queryRequest.limit() ? null : queryRequest.nextCursor(page);
+    return streamTraces(SpanBytesEncoder.JSON_V2, page, nextCursor,
+      PartialResult.isPartial(traces), ctx.blockingTaskExecutor());
   }
 
   @Get("/api/v2/trace/{traceId}")
   @Blocking
-  public AggregatedHttpResponse getTrace(@Param("traceId") String traceId) throws IOException {
+  public AggregatedHttpResponse getTrace(ServiceRequestContext ctx,
+    @Param("traceId") String traceId) throws IOException {
     traceId = traceId != null ? traceId.trim() : null;
     traceId = Span.normalizeTraceId(traceId);
+    RequestHeaders request = ctx.request().headers();
+    if (traceCache != null) {
+      TraceResponseCache.Entry cached = traceCache.get(traceId);
+      if (cached != null) {
+        if (cached.matches(request.get(HttpHeaderNames.IF_NONE_MATCH))) {
+          return notModified(cached);
+        }
+        if (acceptsGzip(request)) return gzipResponse(cached);
+        // Clients that don't accept gzip are rare enough to decompress for, instead of caching both
+        return jsonResponse(cached.json(), cached);
+      }
+    }
+
     List<Span> trace = storage.traces().getTrace(traceId).execute();
     if (trace.isEmpty()) {
       return AggregatedHttpResponse.of(NOT_FOUND, ANY_TEXT_TYPE, traceId + " not found");
     }
-    return jsonResponse(SpanBytesEncoder.JSON_V2.encodeList(trace));
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(trace);
+    TraceResponseCache.Entry entry = traceCache != null
+      ? traceCache.maybeCache(traceId, trace, json, System.currentTimeMillis() * 1000L)
+      : null;
+    if (entry == null) return jsonResponse(json);
+
+    if (entry.matches(request.get(HttpHeaderNames.IF_NONE_MATCH))) return notModified(entry);
+    if (acceptsGzip(request)) return gzipResponse(entry);
+    return jsonResponse(json, entry);
+  }
+
+  static AggregatedHttpResponse jsonResponse(byte[] json, TraceResponseCache.Entry entry) {
+    return AggregatedHttpResponse.of(ResponseHeaders.builder(200)
+      .contentType(MediaType.JSON)
+      .setInt(HttpHeaderNames.CONTENT_LENGTH, json.length)
+      .set(HttpHeaderNames.ETAG, entry.etag)
+      .set(HttpHeaderNames.VARY, "accept-encoding").build(), HttpData.wrap(json));
+  }
+
+  /** The body is sent as-is: the server doesn't compress responses with a content-encoding. */
+  static AggregatedHttpResponse gzipResponse(TraceResponseCache.Entry entry) {
+    return AggregatedHttpResponse.of(ResponseHeaders.builder(200)
+      .contentType(MediaType.JSON)
+      .set(HttpHeaderNames.CONTENT_ENCODING, "gzip")
+      .setInt(HttpHeaderNames.CONTENT_LENGTH, entry.gzipped.length)
+      .set(HttpHeaderNames.ETAG, entry.etag)
+      .set(HttpHeaderNames.VARY, "accept-encoding").build(), HttpData.wrap(entry.gzipped));
+  }
+
+  static AggregatedHttpResponse notModified(TraceResponseCache.Entry entry) {
+    // Without a content-length, the response is sent chunked, and some clients wait for a body
+    return AggregatedHttpResponse.of(ResponseHeaders.builder(NOT_MODIFIED)
+      .setInt(HttpHeaderNames.CONTENT_LENGTH, 0)
+      .set(HttpHeaderNames.ETAG, entry.etag)
+      .set(HttpHeaderNames.VARY, "accept-encoding").build());
+  }
+
+  static boolean acceptsGzip(RequestHeaders request) {
+    String acceptEncoding = request.get(HttpHeaderNames.ACCEPT_ENCODING);
+    if (acceptEncoding == null) return false;
+    for (String coding : acceptEncoding.split(",", 10)) {
+      int semicolon = coding.indexOf(';');
+      String name = (semicolon == -1 ? coding : coding.substring(0, semicolon)).trim();
+      if (!name.equalsIgnoreCase("gzip")) continue;
+      // Zero quality means "not acceptable", ex. "gzip;q=0" or "gzip;q=0.0"
+      return semicolon == -1 || !coding.substring(semicolon + 1).trim().matches("q=0(\\.0*)?");
+    }
+    return false;
   }
 
   @Get("/api/v2/traceMany")
   @Blocking
-  public AggregatedHttpResponse getTraces(@Param("traceIds") String traceIds) throws IOException {
+  public HttpResponse getTraces(ServiceRequestContext ctx, @Param("traceIds") String traceIds)
+    throws IOException {
     if (traceIds.isEmpty()) {
-      return AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, "traceIds parameter is empty");
+      return HttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, "traceIds parameter is empty");
     }
 
     Set<String> normalized = new LinkedHashSet<>();
     for (String traceId : traceIds.split(",", 1000)) {
       if (normalized.add(Span.normalizeTraceId(traceId))) continue;
-      return AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, "redundant traceId: " + traceId);
+      return HttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, "redundant traceId: " + traceId);
     }
 
     if (normalized.size() == 1) {
-      return AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE,
+      return HttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE,
         "Use /api/v2/trace/{traceId} endpoint to retrieve a single trace");
     }
 
     List<List<Span>> traces = storage.traces().getTraces(normalized).execute();
-    return jsonResponse(writeTraces(SpanBytesEncoder.JSON_V2, traces));
+    return streamTraces(SpanBytesEncoder.JSON_V2, traces, null, false,
+      ctx.blockingTaskExecutor());
   }
 
   static AggregatedHttpResponse jsonResponse(byte[] body) {
@@ -237,31 +326,92 @@ public class ZipkinQueryApiV2 {
     return AggregatedHttpResponse.of(headers.build(), HttpData.wrap(buf));
   }
 
-  // This is inlined here as there isn't enough re-use to warrant it being in the zipkin2 library
-  static byte[] writeTraces(SpanBytesEncoder codec, List<List<zipkin2.Span>> traces) {
-    // Get the encoded size of the nested list so that we don't need to grow the buffer
-    int length = traces.size();
-    int sizeInBytes = 2; // []
-    if (length > 1) sizeInBytes += length - 1; // comma to join elements
+  /**
+   * Writes one trace at a time, only encoding the next when the client consumed the last. This
+   * keeps the encoded size in memory to that of one trace, regardless of the query limit. It also
+   * means the first trace is sent without waiting for all others to encode.
+   */
+  static HttpResponse streamTraces(SpanBytesEncoder codec, List<List<Span>> traces,
+    @Nullable String nextCursor, boolean partial, Executor executor) {
+    ResponseHeadersBuilder headers = ResponseHeaders.builder(200).contentType(MediaType.JSON);
+    if (nextCursor != null) headers.set(NEXT_CURSOR, nextCursor);
+    if (partial) headers.set(PARTIAL_RESULTS, "true");
+    if (traces.isEmpty()) {
+      return HttpResponse.of(headers.setInt(HttpHeaderNames.CONTENT_LENGTH, 2).build(),
+        HttpData.wrap(new byte[] {'[', ']'}));
+    }
+
+    HttpResponseWriter writer = HttpResponse.streaming();
+    writer.write(headers.build());
+    new TracesWriter(codec, traces, writer, executor).run();
+    return writer;
+  }
+
+  static final class TracesWriter implements Runnable {
+    final SpanBytesEncoder codec;
+    final List<List<Span>> traces;
+    final HttpResponseWriter writer;
+    final Executor executor;
+    int i; // index of the next trace to write. Only one thread writes at a time.
+
+    TracesWriter(SpanBytesEncoder codec, List<List<Span>> traces, HttpResponseWriter writer,
+      Executor executor) {
+      this.codec = codec;
+      this.traces = traces;
+      this.writer = writer;
+      this.executor = executor;
+    }
+
+    @Override public void run() {
+      int length = traces.size();
+      boolean last = i + 1 == length;
+      try {
+        byte[] trace = writeTrace(codec, traces.get(i), i == 0, last);
+        if (!writer.tryWrite(HttpData.wrap(trace))) return; // client went away
+      } catch (Throwable t) {
+        Call.propagateIfFatal(t);
+        writer.close(t);
+        return;
+      }
 
-    for (int i = 0; i < length; i++) {
-      List<zipkin2.Span> spans = traces.get(i);
-      int jLength = spans.size();
-      sizeInBytes += 2; // []
-      if (jLength > 1) sizeInBytes += jLength - 1; // comma to join elements
-      for (int j = 0; j < jLength; j++) {
-        sizeInBytes += codec.sizeInBytes(spans.get(j));
+      if (last) {
+        writer.close();
+      } else {
+        i++;
+        writer.whenConsumed().thenRunAsync(this, executor).exceptionally(t -> {
+          writer.close(t); // ex. the client went away, or the executor rejected the next write
+          return null;
+        });
       }
     }
 
+    @Override public String toString() {
+      return "TracesWriter{" + i + "/" + traces.size() + "}";
+    }
+  }
+
+  /**
+   * Encodes a trace as an element of a JSON array, including the array start or end as needed.
+   *
+   * <p>This is inlined here as there isn't enough re-use to warrant it being in the zipkin2
+   * library.
+   */
+  static byte[] writeTrace(
+    SpanBytesEncoder codec, List<zipkin2.Span> spans, boolean first, boolean last) {
+    // Get the encoded size of the list so that we don't need to grow the buffer
+    int length = spans.size();
+    int sizeInBytes = 3; // [] and either the start of the list of traces or a comma
+    if (length > 1) sizeInBytes += length - 1; // comma to join elements
+    for (int j = 0; j < length; j++) {
+      sizeInBytes += codec.sizeInBytes(spans.get(j));
+    }
+    if (last) sizeInBytes++; // end of the list of traces
+
     byte[] out = new byte[sizeInBytes];
     int pos = 0;
-    out[pos++] = '['; // start list of traces
-    for (int i = 0; i < length; i++) {
-      pos += codec.encodeList(traces.get(i), out, pos);
-      if (i + 1 < length) out[pos++] = ',';
-    }
-    out[pos] = ']'; // stop list of traces
+    out[pos++] = (byte) (first ? '[' : ','); // start list of traces or join to the prior trace
+    pos += codec.encodeList(spans, out, pos);
+    if (last) out[pos] = ']'; // stop list of traces
     return out;
   }
 }
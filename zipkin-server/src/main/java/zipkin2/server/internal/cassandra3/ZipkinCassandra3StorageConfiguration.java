@@ -15,6 +15,7 @@ package zipkin2.server.internal.cassandra3;
 
 import brave.Tracing;
 import brave.cassandra.driver.TracingSession;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.util.List;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanFactory;
@@ -55,6 +56,7 @@ public class ZipkinCassandra3StorageConfiguration {
   StorageComponent storage(
       ZipkinCassandra3StorageProperties properties,
       SessionFactory sessionFactory,
+      MeterRegistry meterRegistry,
       @Value("${zipkin.storage.strict-trace-id:true}") boolean strictTraceId,
       @Value("${zipkin.storage.search-enabled:true}") boolean searchEnabled,
       @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys,
@@ -66,6 +68,7 @@ public class ZipkinCassandra3StorageConfiguration {
       .autocompleteKeys(autocompleteKeys)
       .autocompleteTtl(autocompleteTtl)
       .autocompleteCardinality(autocompleteCardinality)
+      .meterRegistry(meterRegistry)
       .sessionFactory(sessionFactory).build();
   }
 
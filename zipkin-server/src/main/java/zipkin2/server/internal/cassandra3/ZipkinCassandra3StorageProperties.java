@@ -31,6 +31,22 @@ class ZipkinCassandra3StorageProperties implements Serializable { // for Spark j
   private String password;
   /** See {@link CassandraStorage.Builder#indexFetchMultiplier(int)} */
   private int indexFetchMultiplier = 3;
+  /** See {@link CassandraStorage.Builder#indexReadTimeout(int)} */
+  private int indexReadTimeout = 0;
+  /** See {@link CassandraStorage.Builder#traceReadConcurrency(int)} */
+  private int traceReadConcurrency = 0;
+  /** See {@link CassandraStorage.Builder#batchPerPartition(boolean)} */
+  private boolean batchPerPartition = false;
+  /** See {@link CassandraStorage.Builder#spanProto3(boolean)} */
+  private boolean spanProto3 = false;
+  /** See {@link CassandraStorage.Builder#indexCacheMax(int)} */
+  private int indexCacheMax = 0;
+  /** See {@link CassandraStorage.Builder#indexCacheTtl(int)} */
+  private int indexCacheTtl = 60;
+  /** See {@link CassandraStorage.Builder#serviceSearchConcurrency(int)} */
+  private int serviceSearchConcurrency = 0;
+  /** See {@link CassandraStorage.Builder#dependencyAggregationInterval(int)} */
+  private int dependencyAggregationInterval = 0;
 
   public String getKeyspace() {
     return keyspace;
@@ -104,6 +120,70 @@ class ZipkinCassandra3StorageProperties implements Serializable { // for Spark j
     this.indexFetchMultiplier = indexFetchMultiplier;
   }
 
+  public int getIndexReadTimeout() {
+    return indexReadTimeout;
+  }
+
+  public void setIndexReadTimeout(int indexReadTimeout) {
+    this.indexReadTimeout = indexReadTimeout;
+  }
+
+  public int getTraceReadConcurrency() {
+    return traceReadConcurrency;
+  }
+
+  public void setTraceReadConcurrency(int traceReadConcurrency) {
+    this.traceReadConcurrency = traceReadConcurrency;
+  }
+
+  public boolean isBatchPerPartition() {
+    return batchPerPartition;
+  }
+
+  public void setBatchPerPartition(boolean batchPerPartition) {
+    this.batchPerPartition = batchPerPartition;
+  }
+
+  public boolean isSpanProto3() {
+    return spanProto3;
+  }
+
+  public void setSpanProto3(boolean spanProto3) {
+    this.spanProto3 = spanProto3;
+  }
+
+  public int getIndexCacheMax() {
+    return indexCacheMax;
+  }
+
+  public void setIndexCacheMax(int indexCacheMax) {
+    this.indexCacheMax = indexCacheMax;
+  }
+
+  public int getIndexCacheTtl() {
+    return indexCacheTtl;
+  }
+
+  public void setIndexCacheTtl(int indexCacheTtl) {
+    this.indexCacheTtl = indexCacheTtl;
+  }
+
+  public int getServiceSearchConcurrency() {
+    return serviceSearchConcurrency;
+  }
+
+  public void setServiceSearchConcurrency(int serviceSearchConcurrency) {
+    this.serviceSearchConcurrency = serviceSearchConcurrency;
+  }
+
+  public int getDependencyAggregationInterval() {
+    return dependencyAggregationInterval;
+  }
+
+  public void setDependencyAggregationInterval(int dependencyAggregationInterval) {
+    this.dependencyAggregationInterval = dependencyAggregationInterval;
+  }
+
   public CassandraStorage.Builder toBuilder() {
     return CassandraStorage.newBuilder()
         .keyspace(keyspace)
@@ -114,6 +194,14 @@ class ZipkinCassandra3StorageProperties implements Serializable { // for Spark j
         .useSsl(useSsl)
         .username(username)
         .password(password)
-        .indexFetchMultiplier(indexFetchMultiplier);
+        .indexFetchMultiplier(indexFetchMultiplier)
+        .indexReadTimeout(indexReadTimeout)
+        .traceReadConcurrency(traceReadConcurrency)
+        .batchPerPartition(batchPerPartition)
+        .spanProto3(spanProto3)
+        .indexCacheMax(indexCacheMax)
+        .indexCacheTtl(indexCacheTtl)
+        .serviceSearchConcurrency(serviceSearchConcurrency)
+        .dependencyAggregationInterval(dependencyAggregationInterval);
   }
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.coalesce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.internal.BlockingCallback;
+
+/**
+ * Joins an in-flight call with the same key, or starts one if there's none. Only the first caller
+ * (the leader) invokes its delegate. Others wait for the leader's result, which they receive as
+ * their own copy, so that callers are free to mutate it (ex. sort).
+ *
+ * <h3>Cancelation</h3>
+ * Canceling one caller only detaches it. The shared delegate is canceled when all callers have
+ * detached. Subsequent callers will start a new flight.
+ *
+ * <h3>Errors</h3>
+ * An error is signaled to all callers of the current flight. Flights are removed as soon as they
+ * complete, so a failure is never cached for later callers.
+ */
+final class CoalescingCall<E> extends Call.Base<List<E>> {
+  final ConcurrentMap<Object, Flight<?>> flights;
+  final Object key;
+  final Call<List<E>> delegate;
+  volatile Subscriber<E> subscriber; // non-null once this call joins a flight
+
+  CoalescingCall(ConcurrentMap<Object, Flight<?>> flights, Object key, Call<List<E>> delegate) {
+    this.flights = flights;
+    this.key = key;
+    this.delegate = delegate;
+  }
+
+  @Override protected List<E> doExecute() throws IOException {
+    BlockingCallback<List<E>> callback = new BlockingCallback<>();
+    Flight<E> leading = subscribe(callback);
+    if (leading != null) {
+      // When leading, invoke the delegate on this thread, as is expected of Call.execute()
+      List<E> result;
+      try {
+        result = delegate.execute();
+      } catch (Throwable t) {
+        propagateIfFatal(t);
+        leading.onError(t);
+        return callback.await();
+      }
+      leading.onSuccess(result);
+    }
+    return callback.await();
+  }
+
+  @Override protected void doEnqueue(Callback<List<E>> callback) {
+    Flight<E> leading = subscribe(callback);
+    if (leading == null) return;
+    try {
+      delegate.enqueue(leading);
+    } catch (Throwable t) { // edge case: error during enqueue!
+      propagateIfFatal(t);
+      leading.onError(t);
+    }
+  }
+
+  /** Returns the flight to invoke if this call is the leader, or null if it joined another. */
+  Flight<E> subscribe(Callback<List<E>> callback) {
+    Subscriber<E> subscriber = new Subscriber<>(callback);
+    Flight<E> flight = new Flight<>(flights, key, delegate);
+    flight.add(subscriber);
+    this.subscriber = subscriber;
+    if (isCanceled()) { // canceled between the check in Call.Base and now
+      subscriber.onError(new IOException("Canceled"));
+      return null;
+    }
+
+    while (true) {
+      @SuppressWarnings("unchecked")
+      Flight<E> existing = (Flight<E>) flights.putIfAbsent(key, flight);
+      if (existing == null) return flight;
+      if (existing.add(subscriber)) return null;
+      // The existing flight was abandoned, and will remove itself. Help it along and retry.
+      flights.remove(key, existing);
+    }
+  }
+
+  @Override protected void doCancel() {
+    Subscriber<E> subscriber = this.subscriber;
+    if (subscriber == null) return;
+    Flight<E> flight = subscriber.flight;
+    if (flight != null) flight.remove(subscriber);
+    subscriber.onError(new IOException("Canceled"));
+  }
+
+  @Override public Call<List<E>> clone() {
+    return new CoalescingCall<>(flights, key, delegate.clone());
+  }
+
+  @Override public String toString() {
+    return "Coalescing(" + delegate + ")";
+  }
+
+  /** One invocation of a delegate, shared by all subscribers until it completes. */
+  static final class Flight<E> implements Callback<List<E>> {
+    final ConcurrentMap<Object, Flight<?>> flights;
+    final Object key;
+    final Call<List<E>> call;
+    List<Subscriber<E>> subscribers = new ArrayList<>(); // guarded by this, null when complete
+    boolean abandoned; // guarded by this
+    List<E> value; // guarded by this
+    Throwable error; // guarded by this
+
+    Flight(ConcurrentMap<Object, Flight<?>> flights, Object key, Call<List<E>> call) {
+      this.flights = flights;
+      this.key = key;
+      this.call = call;
+    }
+
+    /** Returns false if this flight was abandoned, and a new one must be started. */
+    boolean add(Subscriber<E> subscriber) {
+      List<E> value;
+      Throwable error;
+      synchronized (this) {
+        if (abandoned) return false;
+        subscriber.flight = this;
+        if (subscribers != null) {
+          subscribers.add(subscriber);
+          return true;
+        }
+        value = this.value;
+        error = this.error;
+      }
+      // Joined just after completion, but before the flight was removed. Use its result.
+      signal(subscriber, value, error);
+      return true;
+    }
+
+    /** Detaches a canceled subscriber, canceling the call when none remain. */
+    void remove(Subscriber<E> subscriber) {
+      synchronized (this) {
+        if (subscribers == null || !subscribers.remove(subscriber)) return;
+        if (!subscribers.isEmpty()) return;
+        abandoned = true;
+        subscribers = null;
+      }
+      flights.remove(key, this);
+      call.cancel();
+    }
+
+    @Override public void onSuccess(List<E> value) {
+      complete(value, null);
+    }
+
+    @Override public void onError(Throwable t) {
+      complete(null, t);
+    }
+
+    void complete(List<E> value, Throwable error) {
+      List<Subscriber<E>> subscribers;
+      synchronized (this) {
+        subscribers = this.subscribers;
+        if (subscribers == null) return; // abandoned
+        this.subscribers = null;
+        this.value = value;
+        this.error = error;
+      }
+      flights.remove(key, this);
+      for (Subscriber<E> subscriber : subscribers) {
+        signal(subscriber, value, error);
+      }
+    }
+
+    /**
+     * Every subscriber gets a copy, as late joiners copy the value while earlier subscribers may
+     * already be mutating theirs.
+     */
+    static <E> void signal(Subscriber<E> subscriber, List<E> value, Throwable error) {
+      if (error != null) {
+        subscriber.onError(error);
+      } else {
+        subscriber.onSuccess(value != null ? new ArrayList<>(value) : null);
+      }
+    }
+
+    @Override public String toString() {
+      return "Flight{key=" + key + ", call=" + call + "}";
+    }
+  }
+
+  /** Ensures a callback is signaled once, even if it races against cancelation. */
+  static final class Subscriber<E> implements Callback<List<E>> {
+    final Callback<List<E>> delegate;
+    final AtomicBoolean signaled = new AtomicBoolean();
+    volatile Flight<E> flight;
+
+    Subscriber(Callback<List<E>> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public void onSuccess(List<E> value) {
+      if (signaled.compareAndSet(false, true)) delegate.onSuccess(value);
+    }
+
+    @Override public void onError(Throwable t) {
+      if (signaled.compareAndSet(false, true)) delegate.onError(t);
+    }
+
+    @Override public String toString() {
+      return delegate.toString();
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.coalesce;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import zipkin2.Call;
+import zipkin2.DependencyLink;
+import zipkin2.Span;
+import zipkin2.server.internal.coalesce.CoalescingCall.Flight;
+import zipkin2.storage.AutocompleteTags;
+import zipkin2.storage.ForwardingStorageComponent;
+import zipkin2.storage.QueryRequest;
+import zipkin2.storage.ServiceAndSpanNames;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Shares the result of identical concurrent name and dependency reads, so that many users loading
+ * the same screen at the same time result in one storage request.
+ *
+ * <p>Trace queries aren't coalesced as they are rarely identical, and their results are large.
+ *
+ * <p>As this is enabled by default, {@link #toString()} is that of the delegate. This keeps the
+ * component name in health checks the same as before.
+ */
+// public for use in ZipkinConfiguration
+public final class CoalescingStorageComponent extends ForwardingStorageComponent {
+  final StorageComponent delegate;
+  final ConcurrentMap<Object, Flight<?>> flights = new ConcurrentHashMap<>();
+
+  public CoalescingStorageComponent(StorageComponent delegate) {
+    this.delegate = Objects.requireNonNull(delegate);
+  }
+
+  @Override protected StorageComponent delegate() {
+    return delegate;
+  }
+
+  @Override public SpanStore spanStore() {
+    return new CoalescingSpanStore(flights, delegate.spanStore());
+  }
+
+  @Override public ServiceAndSpanNames serviceAndSpanNames() {
+    return new CoalescingServiceAndSpanNames(flights, delegate.serviceAndSpanNames());
+  }
+
+  @Override public AutocompleteTags autocompleteTags() {
+    return new CoalescingAutocompleteTags(flights, delegate.autocompleteTags());
+  }
+
+  /** The key includes the method name, as different methods can have the same parameters. */
+  static <E> Call<List<E>> coalesce(ConcurrentMap<Object, Flight<?>> flights,
+    Call<List<E>> delegate, Object... methodAndParameters) {
+    return new CoalescingCall<>(flights, Arrays.asList(methodAndParameters), delegate);
+  }
+
+  static final class CoalescingSpanStore implements SpanStore {
+    final ConcurrentMap<Object, Flight<?>> flights;
+    final SpanStore delegate;
+
+    CoalescingSpanStore(ConcurrentMap<Object, Flight<?>> flights, SpanStore delegate) {
+      this.flights = flights;
+      this.delegate = delegate;
+    }
+
+    @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
+      return delegate.getTraces(request);
+    }
+
+    @Override @Deprecated public Call<List<Span>> getTrace(String traceId) {
+      return delegate.getTrace(traceId);
+    }
+
+    @Override @Deprecated public Call<List<String>> getServiceNames() {
+      return coalesce(flights, delegate.getServiceNames(), "getServiceNames");
+    }
+
+    @Override @Deprecated public Call<List<String>> getSpanNames(String serviceName) {
+      return coalesce(flights, delegate.getSpanNames(serviceName), "getSpanNames", serviceName);
+    }
+
+    @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
+      return coalesce(flights, delegate.getDependencies(endTs, lookback),
+        "getDependencies", endTs, lookback);
+    }
+
+    @Override public String toString() {
+      return "Coalescing{" + delegate + "}";
+    }
+  }
+
+  static final class CoalescingServiceAndSpanNames implements ServiceAndSpanNames {
+    final ConcurrentMap<Object, Flight<?>> flights;
+    final ServiceAndSpanNames delegate;
+
+    CoalescingServiceAndSpanNames(ConcurrentMap<Object, Flight<?>> flights,
+      ServiceAndSpanNames delegate) {
+      this.flights = flights;
+      this.delegate = delegate;
+    }
+
+    @Override public Call<List<String>> getServiceNames() {
+      return coalesce(flights, delegate.getServiceNames(), "getServiceNames");
+    }
+
+    @Override public Call<List<String>> getRemoteServiceNames(String serviceName) {
+      return coalesce(flights, delegate.getRemoteServiceNames(serviceName),
+        "getRemoteServiceNames", serviceName);
+    }
+
+    @Override public Call<List<String>> getSpanNames(String serviceName) {
+      return coalesce(flights, delegate.getSpanNames(serviceName), "getSpanNames", serviceName);
+    }
+
+    @Override public String toString() {
+      return "Coalescing{" + delegate + "}";
+    }
+  }
+
+  static final class CoalescingAutocompleteTags implements AutocompleteTags {
+    final ConcurrentMap<Object, Flight<?>> flights;
+    final AutocompleteTags delegate;
+
+    CoalescingAutocompleteTags(ConcurrentMap<Object, Flight<?>> flights,
+      AutocompleteTags delegate) {
+      this.flights = flights;
+      this.delegate = delegate;
+    }
+
+    @Override public Call<List<String>> getKeys() {
+      return coalesce(flights, delegate.getKeys(), "getKeys");
+    }
+
+    @Override public Call<List<String>> getValues(String key) {
+      return coalesce(flights, delegate.getValues(key), "getValues", key);
+    }
+
+    @Override public String toString() {
+      return "Coalescing{" + delegate + "}";
+    }
+  }
+}
@@ -129,7 +129,8 @@ public class ZipkinElasticsearchStorageConfiguration {
       .searchEnabled(searchEnabled)
       .autocompleteKeys(autocompleteKeys)
       .autocompleteTtl(autocompleteTtl)
-      .autocompleteCardinality(autocompleteCardinality);
+      .autocompleteCardinality(autocompleteCardinality)
+      .meterRegistry(meterRegistry);
 
     return builder.build();
   }
@@ -169,6 +169,22 @@ class ZipkinElasticsearchStorageProperties implements Serializable { // for Spar
   private Integer indexReplicas;
   /** False disables automatic index template creation. */
   private Boolean ensureTemplates;
+  /** When positive, milliseconds to wait for more spans before sending a shared bulk request. */
+  private Integer bulkLinger;
+  /** When merging, the maximum items in a shared bulk request. */
+  private Integer bulkMaxItems;
+  /** When merging, the maximum bytes in the body of a shared bulk request. */
+  private Integer bulkMaxBytes;
+  /** How many times to resend bulk items rejected due to load. */
+  private Integer bulkMaxRetries;
+  /** When positive, the gzip level (1-9) of bulk and search request bodies. */
+  private Integer compressionLevel;
+  /** When true, trace queries find trace IDs with field collapsing instead of an aggregation. */
+  private Boolean collapseTraceIds;
+  /** When positive, how many recent days of trace IDs to remember, to narrow trace lookups. */
+  private Integer traceIdHintDays;
+  /** When true, spans are written to hourly indices instead of daily ones. */
+  private Boolean hourlySpanIndices;
   /** username used for basic auth. Needed when Shield or X-Pack security is enabled */
   private String username;
   /** password used for basic auth. Needed when Shield or X-Pack security is enabled */
@@ -239,6 +255,73 @@ class ZipkinElasticsearchStorageProperties implements Serializable { // for Spar
     this.ensureTemplates = ensureTemplates;
   }
 
+  public Integer getBulkLinger() {
+    return bulkLinger;
+  }
+
+  public void setBulkLinger(Integer bulkLinger) {
+    this.bulkLinger = bulkLinger;
+  }
+
+  public Integer getBulkMaxItems() {
+    return bulkMaxItems;
+  }
+
+  public void setBulkMaxItems(Integer bulkMaxItems) {
+    this.bulkMaxItems = bulkMaxItems;
+  }
+
+  public Integer getBulkMaxBytes() {
+    return bulkMaxBytes;
+  }
+
+  public void setBulkMaxBytes(Integer bulkMaxBytes) {
+    this.bulkMaxBytes = bulkMaxBytes;
+  }
+
+  public Integer getBulkMaxRetries() {
+    return bulkMaxRetries;
+  }
+
+  public void setBulkMaxRetries(Integer bulkMaxRetries) {
+    this.bulkMaxRetries = bulkMaxRetries;
+  }
+
+  public Integer getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel(Integer compressionLevel) {
+    if (compressionLevel != null && (compressionLevel < 0 || compressionLevel > 9)) {
+      throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+    }
+    this.compressionLevel = compressionLevel;
+  }
+
+  public Boolean isCollapseTraceIds() {
+    return collapseTraceIds;
+  }
+
+  public void setCollapseTraceIds(Boolean collapseTraceIds) {
+    this.collapseTraceIds = collapseTraceIds;
+  }
+
+  public Integer getTraceIdHintDays() {
+    return traceIdHintDays;
+  }
+
+  public void setTraceIdHintDays(Integer traceIdHintDays) {
+    this.traceIdHintDays = traceIdHintDays;
+  }
+
+  public Boolean isHourlySpanIndices() {
+    return hourlySpanIndices;
+  }
+
+  public void setHourlySpanIndices(Boolean hourlySpanIndices) {
+    this.hourlySpanIndices = hourlySpanIndices;
+  }
+
   public String getDateSeparator() {
     return dateSeparator;
   }
@@ -335,6 +418,14 @@ class ZipkinElasticsearchStorageProperties implements Serializable { // for Spar
     if (indexShards != null) builder.indexShards(indexShards);
     if (indexReplicas != null) builder.indexReplicas(indexReplicas);
     if (ensureTemplates != null) builder.ensureTemplates(ensureTemplates);
+    if (bulkLinger != null) builder.bulkLinger(bulkLinger);
+    if (bulkMaxItems != null) builder.bulkMaxItems(bulkMaxItems);
+    if (bulkMaxBytes != null) builder.bulkMaxBytes(bulkMaxBytes);
+    if (bulkMaxRetries != null) builder.bulkMaxRetries(bulkMaxRetries);
+    if (compressionLevel != null) builder.compressionLevel(compressionLevel);
+    if (collapseTraceIds != null) builder.collapseTraceIds(collapseTraceIds);
+    if (traceIdHintDays != null) builder.traceIdHintDays(traceIdHintDays);
+    if (hourlySpanIndices != null) builder.hourlySpanIndices(hourlySpanIndices);
 
     if (maxRequests != null) {
       log.warning("ES_MAX_REQUESTS is no longer honored. Use STORAGE_THROTTLE_ENABLED instead");
@@ -141,6 +141,44 @@ public class ITZipkinServer {
       .isEqualTo("[" + new String(SpanBytesEncoder.JSON_V2.encodeList(TRACE), UTF_8) + "]");
   }
 
+  @Test public void tracesQueryWritesEachTrace() throws Exception {
+    List<Span> trace2 = asList(TestObjects.span(1L));
+    storage.accept(TRACE).execute();
+    storage.accept(trace2).execute();
+
+    String json1 = new String(SpanBytesEncoder.JSON_V2.encodeList(TRACE), UTF_8);
+    String json2 = new String(SpanBytesEncoder.JSON_V2.encodeList(trace2), UTF_8);
+
+    Response response = get("/api/v2/traces");
+    assertThat(response.isSuccessful()).isTrue();
+    assertThat(response.body().string())
+      .isIn("[" + json1 + "," + json2 + "]", "[" + json2 + "," + json1 + "]");
+  }
+
+  @Test public void tracesQueryContinuesWithCursor() throws Exception {
+    Span span1 = TestObjects.span(1L).toBuilder().timestamp((TODAY - 1000L) * 1000L).build();
+    Span span2 = TestObjects.span(2L).toBuilder().timestamp((TODAY - 2000L) * 1000L).build();
+    storage.accept(asList(span1, span2)).execute();
+    String path = "/api/v2/traces?limit=1&endTs=" + TODAY + "&lookback=60000";
+
+    Response page1 = get(path);
+    assertThat(page1.body().string())
+      .isEqualTo("[" + new String(SpanBytesEncoder.JSON_V2.encodeList(asList(span1)), UTF_8) + "]");
+    String cursor = page1.header("zipkin-next-cursor");
+    assertThat(cursor).isNotNull();
+
+    Response page2 = get(path + "&cursor=" + cursor);
+    assertThat(page2.body().string())
+      .isEqualTo("[" + new String(SpanBytesEncoder.JSON_V2.encodeList(asList(span2)), UTF_8) + "]");
+    assertThat(page2.header("zipkin-next-cursor")).isNull(); // no more results
+  }
+
+  @Test public void tracesQueryEmpty() throws Exception {
+    Response response = get("/api/v2/traces");
+    assertThat(response.isSuccessful()).isTrue();
+    assertThat(response.body().string()).isEqualTo("[]");
+  }
+
   @Test public void v2WiresUp() throws Exception {
     assertThat(get("/api/v2/services").isSuccessful())
       .isTrue();
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.Server;
+import java.io.IOException;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.GzipSource;
+import okio.Okio;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.TRACE;
+import static zipkin2.server.internal.ITZipkinServer.url;
+
+/**
+ * Integration test suite for caching trace responses.
+ *
+ * Verifies that "zipkin.query.trace-cache.enabled" serves gzipped and conditional responses.
+ */
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.NONE, // RANDOM_PORT requires spring-web
+  properties = {
+    "server.port=0",
+    "spring.config.name=zipkin-server",
+    "zipkin.query.trace-cache.enabled=true",
+    "zipkin.query.trace-cache.quiet-period=1000"
+  }
+)
+@RunWith(SpringRunner.class)
+public class ITZipkinServerTraceCache {
+  @Autowired InMemoryStorage storage;
+  @Autowired Server server;
+
+  OkHttpClient client = new OkHttpClient.Builder().followRedirects(false).build();
+  String path = "/api/v2/trace/" + TRACE.get(0).traceId();
+
+  @Before public void init() throws IOException {
+    storage.clear();
+    storage.accept(TRACE).execute();
+  }
+
+  @Test public void quietTrace_gzipped() throws IOException {
+    Response response = get(path, "Accept-Encoding", "gzip");
+
+    assertThat(response.code()).isEqualTo(200);
+    assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+    assertThat(response.header("ETag")).startsWith("W/");
+    assertThat(Okio.buffer(new GzipSource(response.body().source())).readByteArray())
+      .containsExactly(SpanBytesEncoder.JSON_V2.encodeList(TRACE));
+  }
+
+  @Test public void quietTrace_servedFromCache() throws IOException {
+    String etag = get(path, "Accept-Encoding", "gzip").header("ETag");
+    storage.clear();
+
+    Response response = get(path, "Accept-Encoding", "gzip");
+    assertThat(response.code()).isEqualTo(200);
+    assertThat(response.header("ETag")).isEqualTo(etag);
+  }
+
+  @Test public void quietTrace_notModified() throws IOException {
+    String etag = get(path, "Accept-Encoding", "gzip").header("ETag");
+
+    Response response = get(path, "If-None-Match", etag);
+    assertThat(response.code()).isEqualTo(304);
+    assertThat(response.header("ETag")).isEqualTo(etag);
+    assertThat(response.body().bytes()).isEmpty();
+  }
+
+  @Test public void quietTrace_identity() throws IOException {
+    Response response = get(path, "Accept-Encoding", "identity");
+
+    assertThat(response.code()).isEqualTo(200);
+    assertThat(response.header("Content-Encoding")).isNull();
+    assertThat(response.header("ETag")).startsWith("W/");
+    assertThat(response.body().bytes())
+      .containsExactly(SpanBytesEncoder.JSON_V2.encodeList(TRACE));
+  }
+
+  @Test public void quietTrace_identityServedFromCache() throws IOException {
+    String etag = get(path, "Accept-Encoding", "gzip").header("ETag");
+    storage.clear();
+
+    Response response = get(path, "Accept-Encoding", "identity");
+    assertThat(response.code()).isEqualTo(200);
+    assertThat(response.header("Content-Encoding")).isNull();
+    assertThat(response.header("ETag")).isEqualTo(etag);
+    assertThat(response.body().bytes())
+      .containsExactly(SpanBytesEncoder.JSON_V2.encodeList(TRACE));
+  }
+
+  @Test public void recentTrace_notCached() throws IOException {
+    Span span = Span.newBuilder().traceId("1").id("2").name("get")
+      .timestamp(System.currentTimeMillis() * 1000L).duration(1L).build();
+    storage.accept(asList(span)).execute();
+
+    Response response = get("/api/v2/trace/" + span.traceId(), "Accept-Encoding", "identity");
+    assertThat(response.code()).isEqualTo(200);
+    assertThat(response.header("ETag")).isNull();
+  }
+
+  Response get(String path, String headerName, String headerValue) throws IOException {
+    return client.newCall(new Request.Builder()
+      .url(url(server, path))
+      .header(headerName, headerValue)
+      .build()).execute();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import okio.BufferedSource;
+import okio.GzipSource;
+import okio.Okio;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.TODAY;
+import static zipkin2.TestObjects.TRACE;
+
+public class TraceResponseCacheTest {
+  static final long NOW = (TODAY + 60_000L) * 1000L; // a minute after TRACE, in microseconds
+
+  TraceResponseCache cache = new TraceResponseCache(10_000L, 1024 * 1024);
+  byte[] json = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+  @Test public void maybeCache_quiet() throws IOException {
+    TraceResponseCache.Entry entry = cache.maybeCache(traceId(), TRACE, json, NOW);
+
+    assertThat(entry).isNotNull();
+    assertThat(cache.get(traceId())).isSameAs(entry);
+    assertThat(gunzip(entry.gzipped)).isEqualTo(json);
+    assertThat(entry.json()).isEqualTo(json);
+    assertThat(entry.etag).startsWith("W/\"").endsWith("\"");
+  }
+
+  @Test public void maybeCache_notQuiet() {
+    long lastEnd = 0L;
+    for (Span span : TRACE) {
+      lastEnd = Math.max(lastEnd, span.timestampAsLong() + span.durationAsLong());
+    }
+
+    assertThat(cache.maybeCache(traceId(), TRACE, json, lastEnd + 5_000_000L)).isNull();
+    assertThat(cache.get(traceId())).isNull();
+  }
+
+  @Test public void maybeCache_noTimestamps() {
+    List<Span> trace = asList(Span.newBuilder().traceId("a").id("b").build());
+
+    assertThat(cache.maybeCache("a", trace, json, NOW)).isNull();
+  }
+
+  @Test public void evictsLeastRecentlyUsed() {
+    int entrySize = cache.maybeCache("1", TRACE, json, NOW).gzipped.length;
+    cache = new TraceResponseCache(10_000L, entrySize * 2);
+
+    cache.maybeCache("1", TRACE, json, NOW);
+    cache.maybeCache("2", TRACE, json, NOW);
+    cache.get("1"); // now "2" is least recently used
+    cache.maybeCache("3", TRACE, json, NOW);
+
+    assertThat(cache.entries).containsOnlyKeys("1", "3");
+    assertThat(cache.totalBytes).isEqualTo(entrySize * 2);
+  }
+
+  @Test public void doesntCacheLargerThanMax() {
+    cache = new TraceResponseCache(10_000L, 10);
+
+    assertThat(cache.maybeCache(traceId(), TRACE, json, NOW)).isNull();
+    assertThat(cache.entries).isEmpty();
+  }
+
+  @Test public void etag_changesWithContent() {
+    byte[] json2 = SpanBytesEncoder.JSON_V2.encodeList(TRACE.subList(0, 1));
+
+    assertThat(TraceResponseCache.etag(json)).isEqualTo(TraceResponseCache.etag(json.clone()))
+      .isNotEqualTo(TraceResponseCache.etag(json2));
+  }
+
+  @Test public void matches() {
+    TraceResponseCache.Entry entry = new TraceResponseCache.Entry(new byte[0], "W/\"1a-2b\"");
+
+    assertThat(entry.matches(null)).isFalse();
+    assertThat(entry.matches("W/\"1a-2c\"")).isFalse();
+    assertThat(entry.matches("W/\"1a-2b\"")).isTrue();
+    assertThat(entry.matches("\"1a-2b\"")).isTrue(); // weak comparison
+    assertThat(entry.matches("\"foo\", W/\"1a-2b\"")).isTrue();
+    assertThat(entry.matches("*")).isTrue();
+  }
+
+  static String traceId() {
+    return TRACE.get(0).traceId();
+  }
+
+  static byte[] gunzip(byte[] gzipped) throws IOException {
+    try (BufferedSource source = Okio.buffer(new GzipSource(Okio.source(
+      new ByteArrayInputStream(gzipped))))) {
+      return source.readByteArray();
+    }
+  }
+}
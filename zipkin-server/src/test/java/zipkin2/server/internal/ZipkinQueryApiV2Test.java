@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.common.AggregatedHttpResponse;
+import com.linecorp.armeria.common.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.TRACE;
+
+public class ZipkinQueryApiV2Test {
+  List<List<Span>> traces = asList(TRACE, TRACE);
+
+  @Test public void streamTraces_writesOneTraceAtATime() {
+    HttpResponse response =
+      ZipkinQueryApiV2.streamTraces(SpanBytesEncoder.JSON_V2, traces, null, false, Runnable::run);
+
+    AggregatedHttpResponse result = response.aggregate().join();
+    String trace = new String(SpanBytesEncoder.JSON_V2.encodeList(TRACE), UTF_8);
+    assertThat(result.status().code()).isEqualTo(200);
+    assertThat(result.contentUtf8()).isEqualTo("[" + trace + "," + trace + "]");
+  }
+
+  @Test public void streamTraces_closesResponseWhenNextWriteIsRejected() {
+    Executor rejecting = command -> {
+      throw new RejectedExecutionException();
+    };
+    HttpResponse response =
+      ZipkinQueryApiV2.streamTraces(SpanBytesEncoder.JSON_V2, traces, null, false, rejecting);
+
+    assertThatThrownBy(() -> response.aggregate().join())
+      .isInstanceOf(CompletionException.class)
+      .hasRootCauseInstanceOf(RejectedExecutionException.class);
+  }
+}
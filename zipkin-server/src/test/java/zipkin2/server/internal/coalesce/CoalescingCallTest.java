@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.coalesce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.server.internal.coalesce.CoalescingCall.Flight;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CoalescingCallTest {
+  ConcurrentMap<Object, Flight<?>> flights = new ConcurrentHashMap<>();
+  AtomicInteger invocations = new AtomicInteger();
+  ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After public void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test public void niceToString() {
+    Call<List<String>> delegate = mock(Call.class);
+    when(delegate.toString()).thenReturn("GetServiceNamesCall{}");
+
+    assertThat(new CoalescingCall<>(flights, "key", delegate))
+      .hasToString("Coalescing(GetServiceNamesCall{})");
+  }
+
+  @Test public void enqueue_sharesInFlightCall() throws Throwable {
+    FakeCall leaderCall = new FakeCall(), followerCall = new FakeCall();
+    TestCallback leader = new TestCallback(), follower = new TestCallback();
+
+    coalesce(leaderCall).enqueue(leader);
+    coalesce(followerCall).enqueue(follower);
+
+    assertThat(invocations).hasValue(1);
+    assertThat(followerCall.callback).isNull(); // only the leader invoked storage
+
+    leaderCall.callback.onSuccess(new ArrayList<>(Arrays.asList("frontend", "backend")));
+    assertThat(leader.await()).containsExactly("frontend", "backend");
+    assertThat(follower.await()).containsExactly("frontend", "backend");
+    assertThat(flights).isEmpty();
+  }
+
+  @Test public void execute_sharesInFlightCall() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Future<List<String>> leader = executor.submit(coalesce(new BlockingCall(release))::execute);
+    awaitFlight();
+
+    Future<List<String>> follower = executor.submit(coalesce(new BlockingCall(release))::execute);
+    Thread.sleep(100L); // let the follower join
+    release.countDown();
+
+    assertThat(leader.get()).containsExactly("frontend", "backend");
+    assertThat(follower.get()).containsExactly("frontend", "backend")
+      .isNotSameAs(leader.get()); // callers can mutate their result
+    assertThat(invocations).hasValue(1);
+    assertThat(flights).isEmpty();
+  }
+
+  @Test public void callersDontSeeEachOthersMutations() throws Throwable {
+    FakeCall leaderCall = new FakeCall();
+    TestCallback leader = new TestCallback() {
+      @Override public void onSuccess(List<String> value) {
+        value.clear(); // mutates before later callers are signaled
+        super.onSuccess(value);
+      }
+    };
+    TestCallback follower = new TestCallback();
+
+    coalesce(leaderCall).enqueue(leader);
+    coalesce(new FakeCall()).enqueue(follower);
+    leaderCall.callback.onSuccess(new ArrayList<>(Arrays.asList("frontend", "backend")));
+
+    assertThat(leader.await()).isEmpty();
+    assertThat(follower.await()).containsExactly("frontend", "backend");
+  }
+
+  @Test public void differentKeysDontShare() {
+    FakeCall call1 = new FakeCall(), call2 = new FakeCall();
+
+    new CoalescingCall<>(flights, "frontend", call1).enqueue(new TestCallback());
+    new CoalescingCall<>(flights, "backend", call2).enqueue(new TestCallback());
+
+    assertThat(invocations).hasValue(2);
+  }
+
+  @Test public void errorSignaledToAllCallers_andNotCached() throws Throwable {
+    FakeCall leaderCall = new FakeCall();
+    TestCallback leader = new TestCallback(), follower = new TestCallback();
+
+    coalesce(leaderCall).enqueue(leader);
+    coalesce(new FakeCall()).enqueue(follower);
+
+    IOException error = new IOException("timeout");
+    leaderCall.callback.onError(error);
+
+    assertThatThrownBy(leader::await).isSameAs(error);
+    assertThatThrownBy(follower::await).isSameAs(error);
+
+    // A later caller retries
+    coalesce(new FakeCall()).enqueue(new TestCallback());
+    assertThat(invocations).hasValue(2);
+  }
+
+  @Test public void cancel_detachesCaller() throws Throwable {
+    FakeCall leaderCall = new FakeCall();
+    TestCallback leader = new TestCallback(), follower = new TestCallback();
+
+    Call<List<String>> leading = coalesce(leaderCall);
+    leading.enqueue(leader);
+    coalesce(new FakeCall()).enqueue(follower);
+
+    leading.cancel();
+    assertThatThrownBy(leader::await).hasMessageContaining("Canceled");
+    assertThat(leaderCall.isCanceled()).isFalse(); // the follower still needs the result
+
+    leaderCall.callback.onSuccess(new ArrayList<>(Arrays.asList("frontend")));
+    assertThat(follower.await()).containsExactly("frontend");
+  }
+
+  @Test public void cancel_cancelsDelegateWhenAllCallersDetach() {
+    FakeCall leaderCall = new FakeCall();
+
+    Call<List<String>> leading = coalesce(leaderCall), following = coalesce(new FakeCall());
+    leading.enqueue(new TestCallback());
+    following.enqueue(new TestCallback());
+
+    leading.cancel();
+    following.cancel();
+
+    assertThat(leaderCall.isCanceled()).isTrue();
+    assertThat(flights).isEmpty();
+
+    // A later caller starts a new flight
+    coalesce(new FakeCall()).enqueue(new TestCallback());
+    assertThat(invocations).hasValue(2);
+  }
+
+  @Test public void clone_coalescesWithOriginal() {
+    Call<List<String>> call = coalesce(new FakeCall());
+    call.enqueue(new TestCallback());
+    call.clone().enqueue(new TestCallback());
+
+    assertThat(invocations).hasValue(1);
+  }
+
+  Call<List<String>> coalesce(Call<List<String>> delegate) {
+    return new CoalescingCall<>(flights, "getServiceNames", delegate);
+  }
+
+  void awaitFlight() throws InterruptedException {
+    while (invocations.get() == 0) Thread.sleep(10L);
+  }
+
+  static class TestCallback implements Callback<List<String>> {
+    final CountDownLatch latch = new CountDownLatch(1);
+    List<String> value;
+    Throwable throwable;
+
+    @Override public void onSuccess(List<String> value) {
+      this.value = value;
+      latch.countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      this.throwable = t;
+      latch.countDown();
+    }
+
+    List<String> await() throws Throwable {
+      latch.await();
+      if (throwable != null) throw throwable;
+      return value;
+    }
+  }
+
+  final class FakeCall extends Call.Base<List<String>> {
+    Callback<List<String>> callback;
+
+    @Override protected List<String> doExecute() {
+      throw new AssertionError("unexpected");
+    }
+
+    @Override protected void doEnqueue(Callback<List<String>> callback) {
+      invocations.incrementAndGet();
+      this.callback = callback;
+    }
+
+    @Override public Call<List<String>> clone() {
+      return new FakeCall();
+    }
+  }
+
+  final class BlockingCall extends Call.Base<List<String>> {
+    final CountDownLatch release;
+
+    BlockingCall(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override protected List<String> doExecute() throws IOException {
+      invocations.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      return new ArrayList<>(Arrays.asList("frontend", "backend"));
+    }
+
+    @Override protected void doEnqueue(Callback<List<String>> callback) {
+      throw new AssertionError("unexpected");
+    }
+
+    @Override public Call<List<String>> clone() {
+      return new BlockingCall(release);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.coalesce;
+
+import org.junit.Test;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.QueryRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.DAY;
+import static zipkin2.TestObjects.TODAY;
+
+public class CoalescingStorageComponentTest {
+  InMemoryStorage delegate = InMemoryStorage.newBuilder().build();
+  CoalescingStorageComponent storage = new CoalescingStorageComponent(delegate);
+
+  @Test public void coalescesNames() {
+    assertThat(storage.serviceAndSpanNames().getServiceNames())
+      .isInstanceOf(CoalescingCall.class);
+    assertThat(storage.serviceAndSpanNames().getRemoteServiceNames("frontend"))
+      .isInstanceOf(CoalescingCall.class);
+    assertThat(storage.serviceAndSpanNames().getSpanNames("frontend"))
+      .isInstanceOf(CoalescingCall.class);
+    assertThat(storage.autocompleteTags().getValues("http.method"))
+      .isInstanceOf(CoalescingCall.class);
+  }
+
+  @Test public void coalescesDependencies() {
+    assertThat(storage.spanStore().getDependencies(TODAY, DAY))
+      .isInstanceOf(CoalescingCall.class);
+  }
+
+  @Test public void doesntCoalesceTraces() {
+    assertThat(storage.spanStore().getTraces(QueryRequest.newBuilder()
+      .endTs(TODAY).lookback(DAY).limit(10).build()))
+      .isNotInstanceOf(CoalescingCall.class);
+    assertThat(storage.traces().getTrace("1"))
+      .isNotInstanceOf(CoalescingCall.class);
+  }
+
+  /** The component name in health checks should be the same as without coalescing */
+  @Test public void toStringIsDelegate() {
+    assertThat(storage).hasToString("InMemoryStorage{}");
+  }
+}
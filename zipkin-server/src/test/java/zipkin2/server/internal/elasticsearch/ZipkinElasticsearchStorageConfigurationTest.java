@@ -407,6 +407,118 @@ public class ZipkinElasticsearchStorageConfigurationTest {
       .isEqualTo(5000);
   }
 
+  @Test public void bulkLinger_disabledByDefault() {
+    TestPropertyValues.of(
+      "zipkin.storage.type:elasticsearch")
+      .applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es()).extracting("bulkLinger")
+      .isEqualTo(0);
+  }
+
+  @Test public void bulkLinger() {
+    TestPropertyValues.of(
+      "zipkin.storage.type:elasticsearch",
+      "zipkin.storage.elasticsearch.bulk-linger:100",
+      "zipkin.storage.elasticsearch.bulk-max-items:500",
+      "zipkin.storage.elasticsearch.bulk-max-bytes:1048576")
+      .applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es()).extracting("bulkLinger", "bulkMaxItems", "bulkMaxBytes")
+      .containsExactly(100, 500, 1048576);
+  }
+
+  @Test public void bulkMaxRetries() {
+    TestPropertyValues.of(
+      "zipkin.storage.type:elasticsearch",
+      "zipkin.storage.elasticsearch.bulk-max-retries:0")
+      .applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().bulkMaxRetries()).isZero();
+  }
+
+  @Test public void compressionLevel_disabledByDefault() {
+    TestPropertyValues.of("zipkin.storage.type:elasticsearch").applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().compressionLevel()).isZero();
+  }
+
+  @Test public void compressionLevel() {
+    TestPropertyValues.of(
+      "zipkin.storage.type:elasticsearch",
+      "zipkin.storage.elasticsearch.compression-level:1")
+      .applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().compressionLevel()).isEqualTo(1);
+  }
+
+  @Test public void collapseTraceIds_disabledByDefault() {
+    TestPropertyValues.of("zipkin.storage.type:elasticsearch").applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().collapseTraceIds()).isFalse();
+  }
+
+  @Test public void collapseTraceIds() {
+    TestPropertyValues.of(
+      "zipkin.storage.type:elasticsearch",
+      "zipkin.storage.elasticsearch.collapse-trace-ids:true")
+      .applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().collapseTraceIds()).isTrue();
+  }
+
+  @Test public void traceIdHintDays_disabledByDefault() {
+    TestPropertyValues.of("zipkin.storage.type:elasticsearch").applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().traceIdHintDays()).isZero();
+  }
+
+  @Test public void traceIdHintDays() {
+    TestPropertyValues.of(
+      "zipkin.storage.type:elasticsearch",
+      "zipkin.storage.elasticsearch.trace-id-hint-days:3")
+      .applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().traceIdHintDays()).isEqualTo(3);
+  }
+
+  @Test public void hourlySpanIndices_disabledByDefault() {
+    TestPropertyValues.of("zipkin.storage.type:elasticsearch").applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().hourlySpanIndices()).isFalse();
+  }
+
+  @Test public void hourlySpanIndices() {
+    TestPropertyValues.of(
+      "zipkin.storage.type:elasticsearch",
+      "zipkin.storage.elasticsearch.hourly-span-indices:true")
+      .applyTo(context);
+    Access.registerElasticsearch(context);
+    context.refresh();
+
+    assertThat(es().hourlySpanIndices()).isTrue();
+  }
+
   ElasticsearchStorage es() {
     return context.getBean(ElasticsearchStorage.class);
   }
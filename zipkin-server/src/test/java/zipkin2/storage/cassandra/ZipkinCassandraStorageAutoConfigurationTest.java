@@ -148,4 +148,101 @@ public class ZipkinCassandraStorageAutoConfigurationTest {
     assertThat(context.getBean(CassandraStorage.class).autocompleteCardinality())
       .isEqualTo(5000);
   }
+
+  @Test
+  public void indexReadTimeout() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:cassandra3",
+      "zipkin.storage.cassandra3.index-read-timeout:500")
+      .applyTo(context);
+    Access.registerCassandra3(context);
+    context.refresh();
+
+    assertThat(context.getBean(CassandraStorage.class).indexReadTimeout())
+      .isEqualTo(500);
+  }
+
+  @Test
+  public void traceReadConcurrency() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:cassandra3",
+      "zipkin.storage.cassandra3.trace-read-concurrency:10")
+      .applyTo(context);
+    Access.registerCassandra3(context);
+    context.refresh();
+
+    assertThat(context.getBean(CassandraStorage.class).traceReadConcurrency())
+      .isEqualTo(10);
+  }
+
+  @Test
+  public void batchPerPartition() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:cassandra3",
+      "zipkin.storage.cassandra3.batch-per-partition:true")
+      .applyTo(context);
+    Access.registerCassandra3(context);
+    context.refresh();
+
+    assertThat(context.getBean(CassandraStorage.class).batchPerPartition()).isTrue();
+  }
+
+  @Test
+  public void indexCache() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:cassandra3",
+      "zipkin.storage.cassandra3.index-cache-max:1000",
+      "zipkin.storage.cassandra3.index-cache-ttl:30")
+      .applyTo(context);
+    Access.registerCassandra3(context);
+    context.refresh();
+
+    CassandraStorage storage = context.getBean(CassandraStorage.class);
+    assertThat(storage.indexCacheMax()).isEqualTo(1000);
+    assertThat(storage.indexCacheTtl()).isEqualTo(30);
+  }
+
+  @Test
+  public void serviceSearchConcurrency() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:cassandra3",
+      "zipkin.storage.cassandra3.service-search-concurrency:4")
+      .applyTo(context);
+    Access.registerCassandra3(context);
+    context.refresh();
+
+    assertThat(context.getBean(CassandraStorage.class).serviceSearchConcurrency()).isEqualTo(4);
+  }
+
+  @Test
+  public void spanProto3() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:cassandra3",
+      "zipkin.storage.cassandra3.span-proto3:true")
+      .applyTo(context);
+    Access.registerCassandra3(context);
+    context.refresh();
+
+    assertThat(context.getBean(CassandraStorage.class).spanProto3()).isTrue();
+  }
+
+  @Test
+  public void dependencyAggregationInterval() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:cassandra3",
+      "zipkin.storage.cassandra3.dependency-aggregation-interval:60")
+      .applyTo(context);
+    Access.registerCassandra3(context);
+    context.refresh();
+
+    assertThat(context.getBean(CassandraStorage.class).dependencyAggregationInterval())
+      .isEqualTo(60);
+  }
 }
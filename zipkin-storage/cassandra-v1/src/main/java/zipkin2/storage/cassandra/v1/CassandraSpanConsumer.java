@@ -15,7 +15,6 @@ package zipkin2.storage.cassandra.v1;
 
 import com.datastax.driver.core.Session;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.cache.CacheBuilderSpec;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
@@ -44,7 +43,7 @@ final class CassandraSpanConsumer implements SpanConsumer {
   @Nullable final CompositeIndexer indexer;
   @Nullable final InsertAutocompleteValue.Factory insertAutocompleteValue;
 
-  CassandraSpanConsumer(CassandraStorage storage, CacheBuilderSpec indexCacheSpec) {
+  CassandraSpanConsumer(CassandraStorage storage) {
     Session session = storage.session();
     Schema.Metadata metadata = storage.metadata();
     searchEnabled = storage.searchEnabled;
@@ -70,7 +69,7 @@ final class CassandraSpanConsumer implements SpanConsumer {
       insertRemoteServiceName = null;
     }
     insertSpanName = new InsertSpanName.Factory(storage, indexTtl);
-    indexer = new CompositeIndexer(storage, indexCacheSpec, indexTtl);
+    indexer = new CompositeIndexer(storage, indexTtl);
     if (metadata.hasAutocompleteTags && !storage.autocompleteKeys.isEmpty()) {
       insertAutocompleteValue = new InsertAutocompleteValue.Factory(storage, indexTtl);
     } else {
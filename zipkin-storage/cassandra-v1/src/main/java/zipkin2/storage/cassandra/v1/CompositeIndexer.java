@@ -13,24 +13,25 @@
  */
 package zipkin2.storage.cassandra.v1;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheBuilderSpec;
 import com.google.common.collect.ImmutableSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
 import zipkin2.Call;
 import zipkin2.Span;
+import zipkin2.internal.Nullable;
 
 final class CompositeIndexer {
 
   private final Set<Indexer> indexers;
   // Shared across all threads as updates can come from any thread.
   // Shared for all indexes to make data management easier (ex. maximumSize)
-  private final ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState;
+  // Null when storage.indexCacheMax or indexCacheTtl is zero.
+  @Nullable private final IndexCache sharedState;
 
-  CompositeIndexer(CassandraStorage storage, CacheBuilderSpec spec, int indexTtl) {
-    this.sharedState = CacheBuilder.from(spec).<PartitionKeyToTraceId, Pair>build().asMap();
+  CompositeIndexer(CassandraStorage storage, int indexTtl) {
+    this.sharedState = storage.indexCacheMax > 0 && storage.indexCacheTtl > 0
+      ? new IndexCache(storage.indexCacheMax, storage.indexCacheTtl)
+      : null;
     Indexer.Factory factory = new Indexer.Factory(storage.session(), indexTtl, sharedState);
     ImmutableSet.Builder<Indexer> indexers = ImmutableSet.builder();
     indexers.add(factory.create(new InsertTraceIdByServiceName(storage.bucketCount)));
@@ -47,6 +48,6 @@ final class CompositeIndexer {
   }
 
   public void clear() {
-    sharedState.clear();
+    if (sharedState != null) sharedState.clear();
   }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.v1;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import zipkin2.internal.Nullable;
+
+/**
+ * Holds the first and last timestamp indexed per {@link PartitionKeyToTraceId}, shared by all
+ * threads and indexes, so that {@link Indexer} can skip rows between them.
+ *
+ * <p>Entries are held in a fixed-size, lock-free hash table like {@link
+ * zipkin2.internal.HashedDelayLimiter}: each key can only be held in a small neighborhood of slots,
+ * and when that is full, the entry expiring soonest is replaced. Unlike a Guava cache, updates
+ * don't take segment locks, which contend when many threads index spans. Slots are compared by the
+ * key's precomputed hash code before its strings.
+ */
+class IndexCache { // not final for testing
+  static final int PROBES = 8;
+
+  final long ttlNanos;
+  final AtomicReferenceArray<Entry> table;
+  final int mask;
+
+  /**
+   * @param maxEntries see {@link CassandraStorage.Builder#indexCacheMax(int)}
+   * @param ttl seconds, see {@link CassandraStorage.Builder#indexCacheTtl(int)}
+   */
+  IndexCache(int maxEntries, int ttl) {
+    if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries <= 0");
+    if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0");
+    ttlNanos = TimeUnit.SECONDS.toNanos(ttl);
+    int size = Math.max(PROBES, Integer.highestOneBit(Math.min(maxEntries, 1 << 30) - 1) << 1);
+    table = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+  }
+
+  /**
+   * Returns true if the timestamp widened the interval indexed for this key, or the key was new.
+   * Returns false when the timestamp is between the first and last already indexed.
+   */
+  boolean widen(PartitionKeyToTraceId key, long timestamp) {
+    int hash = key.hashCode(), start = spread(hash);
+    while (true) {
+      long now = nanoTime();
+      int victim = -1;
+      Entry replaced = null;
+      boolean victimIsFree = false;
+      for (int i = 0; i < PROBES; i++) {
+        int slot = (start + i) & mask;
+        Entry entry = table.get(slot);
+        if (entry == null || entry.expiration - now <= 0) {
+          if (!victimIsFree) { // the first free slot wins, so racing callers pick the same one
+            victim = slot;
+            replaced = entry;
+            victimIsFree = true;
+          }
+          continue;
+        }
+        if (entry.matches(hash, key)) {
+          victim = slot;
+          replaced = entry;
+          break;
+        }
+        if (!victimIsFree && (replaced == null || entry.expiration - replaced.expiration < 0)) {
+          victim = slot;
+          replaced = entry;
+        }
+      }
+
+      Pair interval;
+      if (replaced != null && replaced.matches(hash, key) && replaced.expiration - now > 0) {
+        long first = Math.min(timestamp, replaced.interval.left);
+        long last = Math.max(timestamp, replaced.interval.right);
+        if (first == replaced.interval.left && last == replaced.interval.right) {
+          return false; // the current timestamp is contained
+        }
+        interval = new Pair(first, last);
+      } else {
+        interval = new Pair(timestamp, timestamp);
+      }
+      if (table.compareAndSet(victim, replaced, new Entry(key, hash, interval, now + ttlNanos))) {
+        return true;
+      }
+      // lost a race: look again, as the winner may have indexed the same timestamp
+    }
+  }
+
+  /** Returns the first and last timestamp indexed for this key, or null if not cached. */
+  @Nullable Pair get(PartitionKeyToTraceId key) {
+    int hash = key.hashCode(), start = spread(hash);
+    long now = nanoTime();
+    for (int i = 0; i < PROBES; i++) {
+      Entry entry = table.get((start + i) & mask);
+      if (entry != null && entry.expiration - now > 0 && entry.matches(hash, key)) {
+        return entry.interval;
+      }
+    }
+    return null;
+  }
+
+  void clear() {
+    for (int i = 0, length = table.length(); i < length; i++) {
+      table.set(i, null);
+    }
+  }
+
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  /** Mixes the hash code as sequential ones, such as small numbers, would otherwise cluster. */
+  int spread(int hashCode) {
+    int h = hashCode * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  static final class Entry {
+    final PartitionKeyToTraceId key;
+    final int hash;
+    final Pair interval;
+    final long expiration;
+
+    Entry(PartitionKeyToTraceId key, int hash, Pair interval, long expiration) {
+      this.key = key;
+      this.hash = hash;
+      this.interval = interval;
+      this.expiration = expiration;
+    }
+
+    boolean matches(int hash, PartitionKeyToTraceId key) {
+      return this.hash == hash && this.key.equals(key);
+    }
+  }
+}
@@ -27,7 +27,6 @@ import com.google.common.collect.ImmutableSetMultimap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.Call;
@@ -55,12 +54,12 @@ final class Indexer {
    * Shared across all threads, as updates to indexes can come from any thread. Null disables
    * optimization.
    */
-  @Nullable private final ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState;
+  @Nullable private final IndexCache sharedState;
 
   Indexer(
       Session session,
       int indexTtl,
-      @Nullable ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState,
+      @Nullable IndexCache sharedState,
       IndexSupport index) {
     this.index = index;
     Insert insert =
@@ -164,38 +163,13 @@ final class Indexer {
 
   @VisibleForTesting
   static ImmutableSetMultimap<PartitionKeyToTraceId, Long> entriesThatIncreaseGap(
-      ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState,
+      IndexCache sharedState,
       ImmutableSetMultimap<PartitionKeyToTraceId, Long> updates) {
     ImmutableSet.Builder<PartitionKeyToTraceId> toUpdate = ImmutableSet.builder();
 
-    // Enter a loop that affects shared state when an update widens the time interval for a key.
+    // Affect shared state when an update widens the time interval for a key.
     for (Map.Entry<PartitionKeyToTraceId, Long> input : updates.entries()) {
-      PartitionKeyToTraceId key = input.getKey();
-      long timestamp = input.getValue();
-      for (; ; ) {
-        Pair oldRange = sharedState.get(key);
-        if (oldRange == null) {
-          // Initial state is where this key has a single timestamp.
-          oldRange = sharedState.putIfAbsent(key, new Pair(timestamp, timestamp));
-
-          // If there was no previous value, we need to update the index
-          if (oldRange == null) {
-            toUpdate.add(key);
-            break;
-          }
-        }
-
-        long first = timestamp < oldRange.left ? timestamp : oldRange.left;
-        long last = timestamp > oldRange.right ? timestamp : oldRange.right;
-
-        Pair newRange = new Pair(first, last);
-        if (oldRange.equals(newRange)) {
-          break; // the current timestamp is contained
-        } else if (sharedState.replace(key, oldRange, newRange)) {
-          toUpdate.add(key); // The range was extended
-          break;
-        }
-      }
+      if (sharedState.widen(input.getKey(), input.getValue())) toUpdate.add(input.getKey());
     }
 
     // When the loop completes, we'll know one of our updates widened the interval of a trace, if
@@ -205,6 +179,10 @@ final class Indexer {
       ImmutableSetMultimap.builder();
     for (PartitionKeyToTraceId needsUpdate : toUpdate.build()) {
       Pair firstLast = sharedState.get(needsUpdate);
+      if (firstLast == null) { // evicted by another key: write all to be safe
+        result.putAll(needsUpdate, updates.get(needsUpdate));
+        continue;
+      }
       if (updates.containsEntry(needsUpdate, firstLast.left)) {
         result.put(needsUpdate, firstLast.left);
       }
@@ -230,12 +208,12 @@ final class Indexer {
 
     private final Session session;
     private final int indexTtl;
-    private final ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState;
+    private final IndexCache sharedState;
 
     public Factory(
         Session session,
         int indexTtl,
-        @Nullable ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState) {
+        @Nullable IndexCache sharedState) {
       this.session = session;
       this.indexTtl = indexTtl;
       this.sharedState = sharedState;
@@ -18,11 +18,20 @@ final class PartitionKeyToTraceId {
   final String table;
   final String partitionKey; // ends up as a partition key, ignoring bucketing
   final String traceId; // clustering key
+  final int hashCode; // precomputed as keys are hashed into several collections
 
   PartitionKeyToTraceId(String table, String partitionKey, String traceId) {
     this.table = table;
     this.partitionKey = partitionKey;
     this.traceId = lowerTraceId(traceId); // cassandra trace ID is lower 64 bits
+    int h = 1;
+    h *= 1000003;
+    h ^= table.hashCode();
+    h *= 1000003;
+    h ^= partitionKey.hashCode();
+    h *= 1000003;
+    h ^= this.traceId.hashCode();
+    this.hashCode = h;
   }
 
   static String lowerTraceId(String traceId) {
@@ -39,7 +48,8 @@ final class PartitionKeyToTraceId {
     if (o == this) return true;
     if (o instanceof PartitionKeyToTraceId) {
       PartitionKeyToTraceId that = (PartitionKeyToTraceId) o;
-      return this.table.equals(that.table)
+      return this.hashCode == that.hashCode
+          && this.table.equals(that.table)
           && this.partitionKey.equals(that.partitionKey)
           && this.traceId.equals(that.traceId);
     }
@@ -48,13 +58,6 @@ final class PartitionKeyToTraceId {
 
   @Override
   public int hashCode() {
-    int h = 1;
-    h *= 1000003;
-    h ^= table.hashCode();
-    h *= 1000003;
-    h ^= partitionKey.hashCode();
-    h *= 1000003;
-    h ^= traceId.hashCode();
-    return h;
+    return hashCode;
   }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.v1;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.storage.cassandra.v1.Tables.SERVICE_NAME_INDEX;
+import static zipkin2.storage.cassandra.v1.Tables.SERVICE_SPAN_NAME_INDEX;
+
+public class IndexCacheTest {
+  static final long TS = 1467676800000L;
+  PartitionKeyToTraceId key = new PartitionKeyToTraceId(SERVICE_NAME_INDEX, "app", "a");
+
+  long nanoTime;
+  IndexCache cache = new IndexCache(1000, 60) {
+    @Override long nanoTime() {
+      return nanoTime;
+    }
+  };
+
+  @Test public void widensOnFirstTimestamp() {
+    assertThat(cache.widen(key, TS)).isTrue();
+
+    assertThat(cache.get(key)).isEqualTo(new Pair(TS, TS));
+  }
+
+  @Test public void doesntWidenWithinInterval() {
+    cache.widen(key, TS);
+    cache.widen(key, TS + 100);
+
+    assertThat(cache.widen(key, TS + 50)).isFalse();
+    assertThat(cache.widen(key, TS)).isFalse();
+    assertThat(cache.get(key)).isEqualTo(new Pair(TS, TS + 100));
+  }
+
+  @Test public void widensBothWays() {
+    cache.widen(key, TS);
+
+    assertThat(cache.widen(key, TS - 1)).isTrue();
+    assertThat(cache.widen(key, TS + 1)).isTrue();
+    assertThat(cache.get(key)).isEqualTo(new Pair(TS - 1, TS + 1));
+  }
+
+  @Test public void keysAreIndependent() {
+    cache.widen(key, TS);
+
+    assertThat(cache.widen(new PartitionKeyToTraceId(SERVICE_SPAN_NAME_INDEX, "app", "a"), TS))
+      .isTrue();
+    assertThat(cache.widen(new PartitionKeyToTraceId(SERVICE_NAME_INDEX, "app", "b"), TS))
+      .isTrue();
+  }
+
+  /** Cassandra trace IDs are the lower 64 bits */
+  @Test public void keyUsesLowerTraceId() {
+    cache.widen(new PartitionKeyToTraceId(SERVICE_NAME_INDEX, "app", "463ac35c9f6413ad"), TS);
+
+    assertThat(cache.widen(
+      new PartitionKeyToTraceId(SERVICE_NAME_INDEX, "app", "48485a3953bb6124463ac35c9f6413ad"), TS))
+      .isFalse();
+  }
+
+  @Test public void expires() {
+    cache.widen(key, TS);
+
+    nanoTime = TimeUnit.SECONDS.toNanos(60);
+
+    assertThat(cache.get(key)).isNull();
+    assertThat(cache.widen(key, TS)).isTrue();
+  }
+
+  @Test public void evictsWhenFull() {
+    cache = new IndexCache(1, 60);
+    for (int i = 0; i < IndexCache.PROBES * 2; i++) {
+      cache.widen(new PartitionKeyToTraceId(SERVICE_NAME_INDEX, "app", Integer.toHexString(i)), TS);
+    }
+
+    int cached = 0;
+    for (int i = 0; i < IndexCache.PROBES * 2; i++) {
+      PartitionKeyToTraceId key =
+        new PartitionKeyToTraceId(SERVICE_NAME_INDEX, "app", Integer.toHexString(i));
+      if (cache.get(key) != null) cached++;
+    }
+    assertThat(cached).isEqualTo(IndexCache.PROBES);
+  }
+
+  @Test public void clear() {
+    cache.widen(key, TS);
+    cache.clear();
+
+    assertThat(cache.get(key)).isNull();
+  }
+
+  @Test public void maxEntries_mustBePositive() {
+    assertThatThrownBy(() -> new IndexCache(0, 60))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -14,8 +14,6 @@
 package zipkin2.storage.cassandra.v1;
 
 import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Maps;
-import java.util.concurrent.ConcurrentMap;
 import org.junit.Test;
 
 import static org.assertj.guava.api.Assertions.assertThat;
@@ -26,7 +24,7 @@ public class IndexerTest {
 
   @Test
   public void entriesThatIncreaseGap_filtersEntriesWithinTraceInterval() {
-    ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState = Maps.newConcurrentMap();
+    IndexCache sharedState = new IndexCache(1000, 60);
 
     ImmutableSetMultimap<PartitionKeyToTraceId, Long> parsed = // intentionally shuffled
         ImmutableSetMultimap.<PartitionKeyToTraceId, Long>builder()
@@ -63,7 +61,7 @@ public class IndexerTest {
    */
   @Test
   public void entriesThatIncreaseGap_treatsIndexesSeparately() {
-    ConcurrentMap<PartitionKeyToTraceId, Pair> sharedState = Maps.newConcurrentMap();
+    IndexCache sharedState = new IndexCache(1000, 60);
 
     // If indexes were not implemented properly, the span index app.foo would be mistaken as the
     // first service index
@@ -21,6 +21,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import zipkin2.Annotation;
 import zipkin2.Call;
 import zipkin2.Span;
@@ -31,14 +33,20 @@ import zipkin2.storage.SpanConsumer;
 import static zipkin2.storage.cassandra.CassandraUtil.durationIndexBucket;
 
 class CassandraSpanConsumer implements SpanConsumer { // not final for testing
+  static final Logger LOG = LoggerFactory.getLogger(CassandraSpanConsumer.class);
+
   final Session session;
   final boolean strictTraceId, searchEnabled;
   final InsertSpan.Factory insertSpan;
   final Set<String> autocompleteKeys;
+  @Nullable final InsertBatch.Factory insertBatch; // null unless batching per partition
+  @Nullable final DependencyAggregator dependencyAggregator; // null unless aggregating
 
   // Everything below here is null when search is disabled
   @Nullable final InsertTraceByServiceRemoteService.Factory insertTraceByServiceRemoteService;
   @Nullable final InsertTraceByServiceSpan.Factory insertTraceByServiceSpan;
+  @Nullable final IndexCache indexCache; // also null when the index cache is disabled
+  @Nullable final ServiceRanking serviceRanking; // also null when services aren't ranked
   @Nullable final InsertServiceSpan.Factory insertServiceSpan;
   @Nullable final InsertServiceRemoteService.Factory insertServiceRemoteService;
   @Nullable final InsertAutocompleteValue.Factory insertAutocompleteValue;
@@ -50,7 +58,16 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
     searchEnabled = storage.searchEnabled();
     autocompleteKeys = new LinkedHashSet<>(storage.autocompleteKeys());
 
-    insertSpan = new InsertSpan.Factory(session, strictTraceId, searchEnabled);
+    boolean spanProto3 = storage.spanProto3();
+    if (spanProto3 && !metadata.hasSpanProto3) {
+      LOG.warn("schema lacks span_proto3: apply {}, or set CassandraStorage.ensureSchema=true",
+        Schema.UPGRADE_3);
+      spanProto3 = false;
+    }
+    insertSpan = new InsertSpan.Factory(session, strictTraceId, searchEnabled, spanProto3);
+    insertBatch = storage.batchPerPartition() ? new InsertBatch.Factory(session) : null;
+    dependencyAggregator =
+      storage.dependencyAggregationInterval() > 0 ? storage.dependencyAggregator() : null;
 
     if (!searchEnabled) {
       insertTraceByServiceRemoteService = null;
@@ -58,9 +75,15 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
       insertServiceRemoteService = null;
       insertServiceSpan = null;
       insertAutocompleteValue = null;
+      indexCache = null;
+      serviceRanking = null;
       return;
     }
 
+    indexCache = storage.indexCacheMax() > 0
+      ? new IndexCache(storage.indexCacheMax(), storage.indexCacheTtl(), storage.meterRegistry())
+      : null;
+    serviceRanking = storage.serviceSearchConcurrency() > 0 ? storage.serviceRanking() : null;
     insertTraceByServiceSpan = new InsertTraceByServiceSpan.Factory(session, strictTraceId);
     if (metadata.hasRemoteService) {
       insertTraceByServiceRemoteService =
@@ -79,11 +102,13 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
   }
 
   /**
-   * This fans out into many requests, last count was 2 * spans.size. If any of these fail, the
-   * returned future will fail. Most callers drop or log the result.
+   * This fans out into many requests, last count was 2 * spans.size, unless batching inserts per
+   * partition or caching index rows. If any of these fail, the returned future will fail. Most
+   * callers drop or log the result.
    */
   @Override public Call<Void> accept(List<Span> input) {
     if (input.isEmpty()) return Call.create(null);
+    if (dependencyAggregator != null) dependencyAggregator.accept(input);
 
     Set<InsertSpan.Input> spans = new LinkedHashSet<>();
     Set<InsertServiceRemoteService.Input> serviceRemoteServices = new LinkedHashSet<>();
@@ -115,6 +140,7 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
         null != s.name() ? s.name() : ""; // Empty value allows for api queries without span name
 
       if (null == s.localServiceName()) continue; // don't index further w/o a service name
+      if (serviceRanking != null) serviceRanking.record(service);
 
       // service span and remote service indexes is refreshed regardless of timestamp
       String remoteService = s.remoteServiceName();
@@ -145,27 +171,48 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
       }
     }
     List<Call<Void>> calls = new ArrayList<>();
+    List<InsertSpan> spanCalls = new ArrayList<>(spans.size());
     for (InsertSpan.Input span : spans) {
-      calls.add(insertSpan.create(span));
+      spanCalls.add(insertSpan.create(span));
     }
+    addCalls(spanCalls, calls);
     for (InsertServiceSpan.Input serviceSpan : serviceSpans) {
       insertServiceSpan.maybeAdd(serviceSpan, calls);
     }
     for (InsertServiceRemoteService.Input serviceRemoteService : serviceRemoteServices) {
       insertServiceRemoteService.maybeAdd(serviceRemoteService, calls);
     }
+    List<InsertTraceByServiceSpan> traceByServiceSpanCalls =
+      new ArrayList<>(traceByServiceSpans.size());
     for (InsertTraceByServiceSpan.Input serviceSpan : traceByServiceSpans) {
-      calls.add(insertTraceByServiceSpan.create(serviceSpan));
+      if (indexCache != null && !indexCache.shouldWrite(serviceSpan)) continue;
+      traceByServiceSpanCalls.add(insertTraceByServiceSpan.create(serviceSpan));
     }
+    addCalls(traceByServiceSpanCalls, calls);
+    List<InsertTraceByServiceRemoteService> traceByServiceRemoteServiceCalls =
+      new ArrayList<>(traceByServiceRemoteServices.size());
     for (InsertTraceByServiceRemoteService.Input serviceRemoteService : traceByServiceRemoteServices) {
-      calls.add(insertTraceByServiceRemoteService.create(serviceRemoteService));
+      if (indexCache != null && !indexCache.shouldWrite(serviceRemoteService)) continue;
+      traceByServiceRemoteServiceCalls.add(
+        insertTraceByServiceRemoteService.create(serviceRemoteService));
     }
+    addCalls(traceByServiceRemoteServiceCalls, calls);
     for (Map.Entry<String, String> autocompleteTag : autocompleteTags) {
       insertAutocompleteValue.maybeAdd(autocompleteTag, calls);
     }
     return calls.isEmpty() ? Call.create(null) : AggregateCall.newVoidCall(calls);
   }
 
+  /** Adds the inserts as is, or batched by partition when enabled. */
+  <C extends Call<Void> & InsertBatch.Partitioned> void addCalls(List<C> inserts,
+    List<Call<Void>> calls) {
+    if (insertBatch != null) {
+      insertBatch.addCalls(inserts, calls);
+    } else {
+      calls.addAll(inserts);
+    }
+  }
+
   static long guessTimestamp(Span span) {
     assert 0L == span.timestampAsLong() : "method only for when span has no timestamp";
     for (Annotation annotation : span.annotations()) {
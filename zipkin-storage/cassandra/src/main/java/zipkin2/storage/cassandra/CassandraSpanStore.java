@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.IntFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.Call;
@@ -32,18 +33,23 @@ import zipkin2.storage.QueryRequest;
 import zipkin2.storage.ServiceAndSpanNames;
 import zipkin2.storage.SpanStore;
 import zipkin2.storage.Traces;
-import zipkin2.storage.cassandra.internal.call.IntersectKeySets;
+import zipkin2.storage.cassandra.internal.call.AccumulateTraceIds;
 import zipkin2.storage.cassandra.internal.call.IntersectMaps;
+import zipkin2.storage.cassandra.internal.call.IntersectUntilLimit;
+import zipkin2.storage.cassandra.internal.call.LazyAggregateIntoMap;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static zipkin2.storage.cassandra.CassandraUtil.traceIdsSortedByDescTimestamp;
 import static zipkin2.storage.cassandra.Schema.TABLE_SERVICE_REMOTE_SERVICES;
 import static zipkin2.storage.cassandra.Schema.TABLE_TRACE_BY_SERVICE_SPAN;
 
 class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //not final for testing
   static final Logger LOG = LoggerFactory.getLogger(CassandraSpanStore.class);
+  /** When intersecting indexes, they are read up to 3 more times, each doubling the fetch size. */
+  static final int MAX_INDEX_REFETCH_FACTOR = 8;
 
-  final int indexFetchMultiplier;
+  final int indexFetchMultiplier, serviceSearchConcurrency;
   final boolean searchEnabled;
   final SelectFromSpan.Factory spans;
   final SelectDependencies.Factory dependencies;
@@ -56,16 +62,20 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
   @Nullable final SelectTraceIdsFromSpan.Factory spanTable;
   @Nullable final SelectTraceIdsFromServiceSpan.Factory traceIdsFromServiceSpan;
   @Nullable final SelectTraceIdsFromServiceRemoteService.Factory traceIdsFromServiceRemoteService;
+  @Nullable final ServiceRanking serviceRanking; // also null when services aren't ranked
 
   CassandraSpanStore(CassandraStorage storage) {
     Session session = storage.session();
     Schema.Metadata metadata = storage.metadata();
     int maxTraceCols = storage.maxTraceCols();
     indexFetchMultiplier = storage.indexFetchMultiplier();
+    serviceSearchConcurrency = storage.serviceSearchConcurrency();
     boolean strictTraceId = storage.strictTraceId();
     searchEnabled = storage.searchEnabled();
 
-    spans = new SelectFromSpan.Factory(session, strictTraceId, maxTraceCols);
+    // Spans written as a blob are readable regardless of CassandraStorage.spanProto3
+    spans = new SelectFromSpan.Factory(session, strictTraceId, maxTraceCols,
+      storage.traceReadConcurrency(), metadata.hasSpanProto3);
     dependencies = new SelectDependencies.Factory(session);
 
     if (!searchEnabled) {
@@ -76,23 +86,30 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
       spanTable = null;
       traceIdsFromServiceSpan = null;
       traceIdsFromServiceRemoteService = null;
+      serviceRanking = null;
       return;
     }
 
+    AccumulateTraceIds.Metrics indexScanMetrics =
+      new AccumulateTraceIds.Metrics(storage.meterRegistry());
     KeyspaceMetadata md = Schema.ensureKeyspaceMetadata(session, storage.keyspace());
     indexTtl = md.getTable(TABLE_TRACE_BY_SERVICE_SPAN).getOptions().getDefaultTimeToLive();
     serviceNames = new SelectServiceNames.Factory(session).create();
     if (metadata.hasRemoteService) {
       remoteServiceNames = new SelectRemoteServiceNames.Factory(session);
       traceIdsFromServiceRemoteService =
-        new SelectTraceIdsFromServiceRemoteService.Factory(session);
+        new SelectTraceIdsFromServiceRemoteService.Factory(session, storage.indexReadTimeout(),
+          indexFetchMultiplier, indexScanMetrics);
     } else {
       remoteServiceNames = null;
       traceIdsFromServiceRemoteService = null;
     }
     spanNames = new SelectSpanNames.Factory(session);
-    traceIdsFromServiceSpan = new SelectTraceIdsFromServiceSpan.Factory(session);
-    spanTable = initialiseSelectTraceIdsFromSpan(session);
+    traceIdsFromServiceSpan =
+      new SelectTraceIdsFromServiceSpan.Factory(session, storage.indexReadTimeout(),
+        indexFetchMultiplier, indexScanMetrics);
+    spanTable = initialiseSelectTraceIdsFromSpan(session, indexFetchMultiplier, indexScanMetrics);
+    serviceRanking = serviceSearchConcurrency > 0 ? storage.serviceRanking() : null;
   }
 
   /**
@@ -100,9 +117,10 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
    *
    * <p>If dropped, trying to search by annotation in the UI will throw an IllegalStateException.
    */
-  static SelectTraceIdsFromSpan.Factory initialiseSelectTraceIdsFromSpan(Session session) {
+  static SelectTraceIdsFromSpan.Factory initialiseSelectTraceIdsFromSpan(Session session,
+    int indexFetchMultiplier, AccumulateTraceIds.Metrics metrics) {
     try {
-      return new SelectTraceIdsFromSpan.Factory(session);
+      return new SelectTraceIdsFromSpan.Factory(session, indexFetchMultiplier, metrics);
     } catch (DriverException ex) {
       LOG.warn("failed to prepare annotation_query index statements: " + ex.getMessage());
       return null;
@@ -118,7 +136,8 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
    * limit of traces requested. For example, a query like "http.path=/foo and error" will be two
    * select statements for the expression, possibly follow-up calls for pagination (when over 5K
    * rows match). Once IDs are parsed, there's one call for each 5K rows of span data. This means
-   * "http.path=/foo and error" is minimally 3 network calls, the first two in parallel.
+   * "http.path=/foo and error" is minimally 3 network calls, the first two in parallel. When
+   * fewer trace IDs than the limit are in common, those two are repeated with a larger fetch size.
    */
   @Override
   public Call<List<List<Span>>> getTraces(QueryRequest request) {
@@ -128,7 +147,7 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
     // If we have to make multiple queries, over fetch on indexes as they don't return distinct
     // (trace id, timestamp) rows. This mitigates intersection resulting in < limit traces
     final int traceIndexFetchSize = request.limit() * indexFetchMultiplier;
-    List<Call<Map<String, Long>>> callsToIntersect = new ArrayList<>();
+    List<IntFunction<Call<Map<String, Long>>>> callsToIntersect = new ArrayList<>();
 
     List<String> annotationKeys = CassandraUtil.annotationKeys(request);
     for (String annotationKey : annotationKeys) {
@@ -136,8 +155,8 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
         throw new IllegalArgumentException(request.annotationQueryString()
           + " query unsupported due to missing annotation_query index");
       }
-      callsToIntersect.add(
-        spanTable.newCall(request.serviceName(), annotationKey, timestampRange, traceIndexFetchSize)
+      callsToIntersect.add(fetchSize ->
+        spanTable.newCall(request.serviceName(), annotationKey, timestampRange, fetchSize)
       );
     }
 
@@ -146,20 +165,36 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
       || request.spanName() != null
       || request.minDuration() != null
       || callsToIntersect.isEmpty()) {
-      callsToIntersect.add(newBucketedTraceIdCall(request, timestampRange, traceIndexFetchSize));
+      // Older days only need to be read when the result isn't intersected with other queries
+      boolean lazy = callsToIntersect.isEmpty();
+      callsToIntersect.add(fetchSize ->
+        newBucketedTraceIdCall(request, timestampRange, fetchSize, lazy));
     }
 
     if (callsToIntersect.size() == 1) {
       return callsToIntersect
         .get(0)
+        .apply(traceIndexFetchSize)
         .map(traceIdsSortedByDescTimestamp())
         .flatMap(spans.newFlatMapper(request));
     }
 
-    // We achieve the AND goal, by intersecting each of the key sets.
-    IntersectKeySets intersectedTraceIds = new IntersectKeySets(callsToIntersect);
-    // @xxx the sorting by timestamp desc is broken here^
-    return intersectedTraceIds.flatMap(spans.newFlatMapper(request));
+    // We achieve the AND goal, by intersecting each of the trace ID maps. The indexes are only read
+    // again, with a larger fetch size, when fewer than the limit of trace IDs are in common.
+    IntersectUntilLimit<String, Long> intersectedTraceIds = new IntersectUntilLimit<>(
+      fetchSize -> {
+        List<Call<Map<String, Long>>> calls = new ArrayList<>(callsToIntersect.size());
+        for (IntFunction<Call<Map<String, Long>>> call : callsToIntersect) {
+          calls.add(call.apply(fetchSize));
+        }
+        return calls;
+      },
+      request.limit(), traceIndexFetchSize,
+      (int) Math.min(Integer.MAX_VALUE, (long) traceIndexFetchSize * MAX_INDEX_REFETCH_FACTOR)
+    );
+    return intersectedTraceIds
+      .map(traceIdsSortedByDescTimestamp())
+      .flatMap(spans.newFlatMapper(request));
   }
 
   /**
@@ -170,14 +205,18 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
    * and remote service name are supplied, or there's more than one day of data in the timestamp
    * range.
    *
+   * <p>When {@code lazy} is true, days are read newest first, and older days are only read when
+   * younger ones found less than {@link QueryRequest#limit()} trace IDs. Otherwise, all days are
+   * read at the same time, as is needed when the result is intersected with other queries.
+   *
    * <p>Note that when {@link QueryRequest#serviceName()} is null, the returned query composes over
    * {@link #getServiceNames()}. This means that if you have 1000 service names, you will end up
-   * with a composition of at least 1000 calls.
+   * with a composition of at least 1000 calls. When {@code lazy} and services are ranked, see
+   * {@link CassandraStorage.Builder#serviceSearchConcurrency(int)}, the most active services are
+   * read first, and the rest are only read when they didn't find enough trace IDs.
    */
-  // TODO: smartly handle when serviceName is null. For example, rank recently written serviceNames
-  // and speculatively query those first.
-  Call<Map<String, Long>> newBucketedTraceIdCall(
-    QueryRequest request, TimestampRange timestampRange, int traceIndexFetchSize) {
+  Call<Map<String, Long>> newBucketedTraceIdCall(QueryRequest request,
+    TimestampRange timestampRange, int traceIndexFetchSize, boolean lazy) {
     // trace_by_service_span adds special empty-string span name in order to search by all
     String spanName = null != request.spanName() ? request.spanName() : "";
     Long minDuration = request.minDuration(), maxDuration = request.maxDuration();
@@ -191,19 +230,25 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
     // "" isn't a real value. it is used to template bucketed calls and replaced later
     String serviceName = null != request.serviceName() ? request.serviceName() : "";
 
-    // TODO: ideally, the buckets are traversed backwards, only spawning queries for older buckets
-    // if younger buckets are empty. This will be an async continuation, punted for now.
-    List<SelectTraceIdsFromServiceSpan.Input> serviceSpans = new ArrayList<>();
-    List<SelectTraceIdsFromServiceRemoteService.Input> serviceRemoteServices = new ArrayList<>();
+    // Inputs are grouped by bucket, youngest first
+    List<List<SelectTraceIdsFromServiceSpan.Input>> serviceSpans = new ArrayList<>();
+    List<List<SelectTraceIdsFromServiceRemoteService.Input>> serviceRemoteServices =
+      new ArrayList<>();
     String remoteService = request.remoteServiceName();
     for (int bucket = endBucket; bucket >= startBucket; bucket--) {
+      List<SelectTraceIdsFromServiceSpan.Input> bucketServiceSpans = new ArrayList<>(1);
+      List<SelectTraceIdsFromServiceRemoteService.Input> bucketServiceRemoteServices =
+        new ArrayList<>(1);
+      serviceSpans.add(bucketServiceSpans);
+      serviceRemoteServices.add(bucketServiceRemoteServices);
+
       boolean addSpanQuery = true;
       if (remoteService != null) {
         if (traceIdsFromServiceRemoteService == null) {
           throw new IllegalArgumentException("remoteService=" + remoteService
             + " unsupported due to missing table " + TABLE_SERVICE_REMOTE_SERVICES);
         }
-        serviceRemoteServices.add(
+        bucketServiceRemoteServices.add(
           traceIdsFromServiceRemoteService.newInput(
             serviceName,
             remoteService,
@@ -215,7 +260,7 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
       }
       if (!addSpanQuery) continue;
 
-      serviceSpans.add(
+      bucketServiceSpans.add(
         traceIdsFromServiceSpan.newInput(
           serviceName,
           spanName,
@@ -226,20 +271,61 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
           traceIndexFetchSize));
     }
 
+    if (!lazy || serviceSpans.size() == 1) {
+      serviceSpans = singletonList(flatten(serviceSpans));
+      serviceRemoteServices = singletonList(flatten(serviceRemoteServices));
+    }
+    boolean skipTimeouts = traceIdsFromServiceSpan.readTimeout > 0;
+
     if ("".equals(serviceName)) {
       // If we have no service name, we have to lookup service names before running trace ID queries
       Call<List<String>> serviceNames = getServiceNames();
-      if (serviceRemoteServices.isEmpty()) {
-        return serviceNames.flatMap(traceIdsFromServiceSpan.newFlatMapper(serviceSpans));
-      } else if (serviceSpans.isEmpty()) {
-        return serviceNames.flatMap(
-          traceIdsFromServiceRemoteService.newFlatMapper(serviceRemoteServices));
+      // A trace must match both the span and remote service name, possibly in different services,
+      // so ranking is limited to searches by one or the other.
+      boolean rankServices = lazy && serviceRanking != null
+        && (serviceRemoteServices.get(0).isEmpty() || serviceSpans.get(0).isEmpty());
+      if (rankServices) serviceNames = serviceNames.map(serviceRanking);
+
+      List<FlatMapper<List<String>, Map<String, Long>>> bucketedMappers = new ArrayList<>();
+      for (int i = 0; i < serviceSpans.size(); i++) {
+        FlatMapper<List<String>, Map<String, Long>> mapper =
+          newFlatMapper(serviceSpans.get(i), serviceRemoteServices.get(i));
+        if (rankServices) {
+          mapper = new RankedServicesFlatMapper(
+            mapper, request.limit(), serviceSearchConcurrency, skipTimeouts);
+        }
+        bucketedMappers.add(mapper);
       }
-      return serviceNames.flatMap(new AggregateFlatMapper<>(
-        traceIdsFromServiceSpan.newFlatMapper(serviceSpans),
-        traceIdsFromServiceRemoteService.newFlatMapper(serviceRemoteServices)
-      ));
+      if (bucketedMappers.size() == 1) return serviceNames.flatMap(bucketedMappers.get(0));
+      return serviceNames.flatMap(
+        new LazyBucketsFlatMapper(bucketedMappers, request.limit(), skipTimeouts));
+    }
+
+    List<Call<Map<String, Long>>> bucketedCalls = new ArrayList<>();
+    for (int i = 0; i < serviceSpans.size(); i++) {
+      bucketedCalls.add(newCall(serviceSpans.get(i), serviceRemoteServices.get(i)));
     }
+    if (bucketedCalls.size() == 1) return bucketedCalls.get(0);
+    return new LazyAggregateIntoMap<>(bucketedCalls, request.limit(), skipTimeouts);
+  }
+
+  FlatMapper<List<String>, Map<String, Long>> newFlatMapper(
+    List<SelectTraceIdsFromServiceSpan.Input> serviceSpans,
+    List<SelectTraceIdsFromServiceRemoteService.Input> serviceRemoteServices) {
+    if (serviceRemoteServices.isEmpty()) {
+      return traceIdsFromServiceSpan.newFlatMapper(serviceSpans);
+    } else if (serviceSpans.isEmpty()) {
+      return traceIdsFromServiceRemoteService.newFlatMapper(serviceRemoteServices);
+    }
+    return new AggregateFlatMapper<>(
+      traceIdsFromServiceSpan.newFlatMapper(serviceSpans),
+      traceIdsFromServiceRemoteService.newFlatMapper(serviceRemoteServices)
+    );
+  }
+
+  Call<Map<String, Long>> newCall(
+    List<SelectTraceIdsFromServiceSpan.Input> serviceSpans,
+    List<SelectTraceIdsFromServiceRemoteService.Input> serviceRemoteServices) {
     if (serviceRemoteServices.isEmpty()) {
       return traceIdsFromServiceSpan.newCall(serviceSpans);
     } else if (serviceSpans.isEmpty()) {
@@ -252,6 +338,68 @@ class CassandraSpanStore implements SpanStore, Traces, ServiceAndSpanNames { //n
     }
   }
 
+  static <E> List<E> flatten(List<List<E>> lists) {
+    List<E> result = new ArrayList<>();
+    for (List<E> list : lists) result.addAll(list);
+    return result;
+  }
+
+  /** Reads buckets of all service names, youngest first, until the limit is satisfied. */
+  static final class LazyBucketsFlatMapper
+    implements FlatMapper<List<String>, Map<String, Long>> {
+    final List<FlatMapper<List<String>, Map<String, Long>>> bucketedMappers;
+    final int limit;
+    final boolean skipTimeouts;
+
+    LazyBucketsFlatMapper(List<FlatMapper<List<String>, Map<String, Long>>> bucketedMappers,
+      int limit, boolean skipTimeouts) {
+      this.bucketedMappers = bucketedMappers;
+      this.limit = limit;
+      this.skipTimeouts = skipTimeouts;
+    }
+
+    @Override public Call<Map<String, Long>> map(List<String> serviceNames) {
+      List<Call<Map<String, Long>>> bucketedCalls = new ArrayList<>(bucketedMappers.size());
+      for (FlatMapper<List<String>, Map<String, Long>> mapper : bucketedMappers) {
+        bucketedCalls.add(mapper.map(serviceNames));
+      }
+      return new LazyAggregateIntoMap<>(bucketedCalls, limit, skipTimeouts);
+    }
+
+    @Override public String toString() {
+      return "LazyBucketsFlatMapper{" + bucketedMappers + ", limit=" + limit + "}";
+    }
+  }
+
+  /** Reads services in ranked order, a few at a time, until the limit is satisfied. */
+  static final class RankedServicesFlatMapper
+    implements FlatMapper<List<String>, Map<String, Long>> {
+    final FlatMapper<List<String>, Map<String, Long>> delegate;
+    final int limit, concurrency;
+    final boolean skipTimeouts;
+
+    RankedServicesFlatMapper(FlatMapper<List<String>, Map<String, Long>> delegate, int limit,
+      int concurrency, boolean skipTimeouts) {
+      this.delegate = delegate;
+      this.limit = limit;
+      this.concurrency = concurrency;
+      this.skipTimeouts = skipTimeouts;
+    }
+
+    @Override public Call<Map<String, Long>> map(List<String> rankedServiceNames) {
+      List<Call<Map<String, Long>>> calls = new ArrayList<>(rankedServiceNames.size());
+      for (String serviceName : rankedServiceNames) {
+        calls.add(delegate.map(singletonList(serviceName)));
+      }
+      return new LazyAggregateIntoMap<>(calls, limit, concurrency, skipTimeouts);
+    }
+
+    @Override public String toString() {
+      return "RankedServicesFlatMapper{" + delegate + ", limit=" + limit
+        + ", concurrency=" + concurrency + "}";
+    }
+  }
+
   static class AggregateFlatMapper<K, V> implements FlatMapper<List<K>, Map<K, V>> {
     final FlatMapper<List<K>, Map<K, V>> left, right;
 
@@ -19,6 +19,8 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.auto.value.AutoValue;
 import com.google.auto.value.extension.memoized.Memoized;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -67,6 +69,15 @@ public abstract class CassandraStorage extends StorageComponent {
         .useSsl(false)
         .maxTraceCols(100000)
         .indexFetchMultiplier(3)
+        .indexReadTimeout(0)
+        .traceReadConcurrency(0)
+        .batchPerPartition(false)
+        .spanProto3(false)
+        .indexCacheMax(0)
+        .serviceSearchConcurrency(0)
+        .dependencyAggregationInterval(0)
+        .indexCacheTtl(60)
+        .meterRegistry(Metrics.globalRegistry)
         .sessionFactory(SessionFactory.DEFAULT)
         .autocompleteKeys(Collections.emptyList())
         .autocompleteTtl((int) TimeUnit.HOURS.toMillis(1))
@@ -142,6 +153,9 @@ public abstract class CassandraStorage extends StorageComponent {
      * the same span id. When searching for spans by id, the amount of results may be larger than
      * the ids. This defines a threshold which accommodates this situation, without looking for an
      * unbounded number of results.
+     *
+     * <p>This bounds the spans of all traces in one read. When {@link #traceReadConcurrency(int)}
+     * is positive, each trace is limited to an equal share of it.
      */
     public abstract Builder maxTraceCols(int maxTraceCols);
 
@@ -154,9 +168,122 @@ public abstract class CassandraStorage extends StorageComponent {
      * <p>Indexing in cassandra will usually have more rows than trace identifiers due to factors
      * including table design and collection implementation. As there's no way to DISTINCT out
      * duplicates server-side, this over-fetches client-side when {@code indexFetchMultiplier} > 1.
+     * Rows are read in pages sized by the trace IDs still needed, and paging stops early once
+     * enough distinct trace IDs are read.
+     *
+     * <p>When a query intersects several indexes, and fewer traces than the limit are in common,
+     * the indexes are read again with double the fetch size, up to 8 times the first.
      */
     public abstract Builder indexFetchMultiplier(int indexFetchMultiplier);
 
+    /**
+     * When positive, the deadline in milliseconds of each index read in a trace search. Defaults
+     * to 0, which uses the driver's read timeout and fails the search on any error.
+     *
+     * <p>Searches over several days, or without a service name, fan out into many index reads.
+     * When set, reads that exceed this deadline are skipped, and the search returns the traces
+     * found by the others as a {@link zipkin2.internal.PartialResult}. This bounds search latency
+     * when a replica is slow, at the cost of possibly missing traces. These reads are not retried,
+     * as a retry would restart the deadline.
+     */
+    public abstract Builder indexReadTimeout(int indexReadTimeout);
+
+    /**
+     * When positive, traces are read with one single-partition query each, with at most this many
+     * in flight per request. Defaults to 0, which reads traces with one multi-partition query.
+     *
+     * <p>A multi-partition query makes one coordinator wait on the replicas of every trace. Single
+     * partition queries are routed to a replica by the token-aware load balancing policy, and
+     * spans are grouped into a trace as each arrives. A higher value lowers latency when reading
+     * many traces, at the cost of more requests. Each query is limited to an equal share of
+     * {@link #maxTraceCols(int)}.
+     */
+    public abstract Builder traceReadConcurrency(int traceReadConcurrency);
+
+    /**
+     * When true, inserts of spans and trace indexes into the same partition, such as spans of the
+     * same trace, are written as one UNLOGGED batch. Defaults to false, which writes each row with
+     * a separate request.
+     *
+     * <p>Batches only include one partition, so they are routed to a replica without the
+     * coordinator cost of multi-partition batches. This reduces requests per accepted list of
+     * spans, most when reporters send many spans of the same trace or service.
+     */
+    public abstract Builder batchPerPartition(boolean batchPerPartition);
+
+    /**
+     * When true, spans are written as one PROTO3-encoded {@code span_proto3} blob, instead of a
+     * column per field. Defaults to false.
+     *
+     * <p>Only the columns needed for primary key and search, including {@code ts} and {@code
+     * duration}, are written alongside the blob. This avoids encoding and decoding endpoint and
+     * annotation UDTs, and the tags map, per span. Either format is read, so this can be switched on without migrating existing data.
+     *
+     * <p>Requires {@code zipkin2-schema-upgrade-3.cql}, applied when {@link #ensureSchema} is
+     * true. Note that tools reading the span columns directly, such as the zipkin-dependencies
+     * Spark job, will not see the fields of spans written this way.
+     */
+    public abstract Builder spanProto3(boolean spanProto3);
+
+    /**
+     * When positive, the maximum trace index entries to cache in order to skip redundant index
+     * rows. Defaults to 0, which writes an index row per span.
+     *
+     * <p>Each span of a trace adds rows to {@code trace_by_service_span} and {@code
+     * trace_by_service_remote_service}, even when rows of earlier spans already make the trace
+     * findable. When enabled, a row is only written when it widens the timestamps, or durations,
+     * already written for the same partition key and trace ID. This reduces writes most for traces
+     * with many spans of the same service and name, at the cost of searches that combine minimum
+     * and maximum duration possibly missing a trace.
+     *
+     * <p>Corresponds to the count of partition key and trace ID combinations written between
+     * {@link #indexCacheTtl} and now. Written and skipped rows are counted by the metric {@code
+     * zipkin_storage.cassandra.index_rows}.
+     */
+    public abstract Builder indexCacheMax(int indexCacheMax);
+
+    /**
+     * Indicates how long in seconds to cache trace index metadata. Defaults to 1 minute. This is
+     * only read when {@link #indexCacheMax} is greater than zero.
+     *
+     * <p>You should pick a value that is longer than the gap between the root span's timestamp and
+     * its latest descendant span's timestamp. More simply, if 95% of your trace durations are under
+     * 1 minute, use 1 minute.
+     */
+    public abstract Builder indexCacheTtl(int indexCacheTtl);
+
+    /**
+     * When positive, searches without a service name query services most written by this process
+     * first, with at most this many in flight, and stop once enough trace IDs are found. Defaults
+     * to 0, which queries all services at the same time.
+     *
+     * <p>Searches without a service name fan out into a query per service, so 1000 services
+     * result in at least 1000 queries. When set, the span consumer ranks services by how many spans
+     * it wrote in the last minute or two, and the search stops once {@link QueryRequest#limit()}
+     * trace IDs are found. This means results favor active services over the most recent traces of
+     * quiet ones. Services not written by this process, for example when it only serves queries,
+     * are queried last in name order.
+     */
+    public abstract Builder serviceSearchConcurrency(int serviceSearchConcurrency);
+
+    /**
+     * When positive, seconds between adding links of spans accepted by this process to the {@code
+     * dependency} table. Defaults to 0, which leaves that table to the zipkin-dependencies Spark
+     * job.
+     *
+     * <p>Spans are buffered until no span of their trace was accepted for this interval, then
+     * linked, and their link counts added to those stored for the day. This makes the dependency
+     * graph near real-time without a batch job, but it is approximate: spans of one trace accepted
+     * by different servers are linked separately, and servers writing the same link at the same
+     * time can lose counts. Do not run the Spark job for the same keyspace, as it replaces the
+     * counts. Buffered and dropped spans are counted by the metric {@code
+     * zipkin_storage.cassandra.dependency_spans}.
+     */
+    public abstract Builder dependencyAggregationInterval(int dependencyAggregationInterval);
+
+    /** Where to record metrics, such as index cache hits. Defaults to the global registry. */
+    public abstract Builder meterRegistry(MeterRegistry meterRegistry);
+
     @Override
     public abstract CassandraStorage build();
 
@@ -186,6 +313,24 @@ public abstract class CassandraStorage extends StorageComponent {
 
   abstract int indexFetchMultiplier();
 
+  abstract int indexReadTimeout();
+
+  abstract int traceReadConcurrency();
+
+  abstract boolean batchPerPartition();
+
+  abstract boolean spanProto3();
+
+  abstract int indexCacheMax();
+
+  abstract int indexCacheTtl();
+
+  abstract int serviceSearchConcurrency();
+
+  abstract int dependencyAggregationInterval();
+
+  abstract MeterRegistry meterRegistry();
+
   abstract boolean strictTraceId();
 
   abstract boolean searchEnabled();
@@ -199,7 +344,7 @@ public abstract class CassandraStorage extends StorageComponent {
   abstract SessionFactory sessionFactory();
 
   /** session and close are typically called from different threads */
-  volatile boolean provisioned, closeCalled;
+  volatile boolean provisioned, aggregatorProvisioned, closeCalled;
 
   /** Lazy initializes or returns the session in use by this storage component. */
   @Memoized
@@ -238,6 +383,20 @@ public abstract class CassandraStorage extends StorageComponent {
     return new CassandraSpanConsumer(this);
   }
 
+  /** Shared by the span consumer, which ranks services, and the span store, which reads them. */
+  @Memoized ServiceRanking serviceRanking() {
+    return new ServiceRanking();
+  }
+
+  /** Flushes on a background thread until {@link #close()}. */
+  @Memoized DependencyAggregator dependencyAggregator() {
+    DependencyAggregator result = new DependencyAggregator(session(), strictTraceId(),
+      dependencyAggregationInterval(), meterRegistry());
+    result.start();
+    aggregatorProvisioned = true;
+    return result;
+  }
+
   @Memoized Schema.Metadata metadata() { // warn only once when schema problems exist
     return Schema.readMetadata(session());
   }
@@ -265,6 +424,7 @@ public abstract class CassandraStorage extends StorageComponent {
   @Override
   public synchronized void close() {
     if (closeCalled) return;
+    if (aggregatorProvisioned) dependencyAggregator().close(); // flushes before the session closes
     if (provisioned) session().close();
     closeCalled = true;
   }
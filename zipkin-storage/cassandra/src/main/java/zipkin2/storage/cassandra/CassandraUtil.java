@@ -30,6 +30,7 @@ import zipkin2.Call;
 import zipkin2.Span;
 import zipkin2.internal.DateUtil;
 import zipkin2.internal.Nullable;
+import zipkin2.internal.PartialResult;
 import zipkin2.internal.Platform;
 import zipkin2.storage.QueryRequest;
 
@@ -109,6 +110,8 @@ final class CassandraUtil {
             .add(BigInteger.valueOf(RAND.nextInt() & Integer.MAX_VALUE));
         sorted.put(uncollided, entry.getKey());
       }
+      // Retain the partial marker, so that the query API can flag incomplete search results
+      if (PartialResult.isPartial(map)) return PartialResult.set(sorted.values());
       return new LinkedHashSet<>(sorted.values());
     }
 
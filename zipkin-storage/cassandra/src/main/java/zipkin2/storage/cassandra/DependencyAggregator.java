@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import com.datastax.driver.core.LocalDate;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Call;
+import zipkin2.DependencyLink;
+import zipkin2.Span;
+import zipkin2.internal.DependencyLinker;
+import zipkin2.internal.Nullable;
+
+import static zipkin2.storage.cassandra.Schema.TABLE_DEPENDENCY;
+
+/**
+ * Links spans as they pass {@link CassandraSpanConsumer#accept(List)}, and periodically adds the
+ * resulting link counts to {@link Schema#TABLE_DEPENDENCY}. This is an alternative to the
+ * zipkin-dependencies Spark job, which overwrites the same rows, so shouldn't also run.
+ *
+ * <p>Spans are buffered per trace ID until no span of that trace was accepted for an interval.
+ * Then, the trace is linked with {@link DependencyLinker}, and its links are added to those of the
+ * UTC day of its earliest timestamp. Each flush reads the row of each link and writes it back with
+ * the new counts added, so that several servers can aggregate into the same rows. Counts can be
+ * lost when servers flush the same link at the same time, and spans of one trace accepted by
+ * different servers are linked separately.
+ *
+ * <p>At most {@link #MAX_PENDING_SPANS} are buffered, and spans accepted beyond that are dropped.
+ */
+class DependencyAggregator implements Closeable { // not final for testing
+  static final Logger LOG = LoggerFactory.getLogger(DependencyAggregator.class);
+  static final int MAX_PENDING_SPANS = 100_000;
+  static final String NAME = "zipkin_storage.cassandra.dependency_spans";
+
+  final Session session;
+  final PreparedStatement select, insert;
+  final boolean strictTraceId;
+  final int interval;
+  final long intervalNanos;
+  final ConcurrentMap<String, PendingTrace> pending = new ConcurrentHashMap<>();
+  final AtomicInteger pendingSpans = new AtomicInteger();
+  final Counter buffered, dropped;
+  @Nullable ScheduledExecutorService scheduler; // guarded by this
+  @Nullable ScheduledFuture<?> flushes; // guarded by this
+
+  /** @param interval seconds, see {@link CassandraStorage.Builder#dependencyAggregationInterval} */
+  DependencyAggregator(Session session, boolean strictTraceId, int interval,
+    MeterRegistry registry) {
+    if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+    this.session = session;
+    this.select = session.prepare(QueryBuilder.select("calls", "errors")
+      .from(TABLE_DEPENDENCY)
+      .where(QueryBuilder.eq("day", QueryBuilder.bindMarker("day")))
+      .and(QueryBuilder.eq("parent", QueryBuilder.bindMarker("parent")))
+      .and(QueryBuilder.eq("child", QueryBuilder.bindMarker("child"))));
+    this.insert = session.prepare(QueryBuilder.insertInto(TABLE_DEPENDENCY)
+      .value("day", QueryBuilder.bindMarker("day"))
+      .value("parent", QueryBuilder.bindMarker("parent"))
+      .value("child", QueryBuilder.bindMarker("child"))
+      .value("calls", QueryBuilder.bindMarker("calls"))
+      .value("errors", QueryBuilder.bindMarker("errors")));
+    this.strictTraceId = strictTraceId;
+    this.interval = interval;
+    this.intervalNanos = TimeUnit.SECONDS.toNanos(interval);
+    buffered = Counter.builder(NAME)
+      .description("cumulative amount of spans buffered for dependency linking")
+      .tag("result", "buffered")
+      .register(registry);
+    dropped = Counter.builder(NAME)
+      .description("cumulative amount of spans dropped as too many were buffered")
+      .tag("result", "dropped")
+      .register(registry);
+  }
+
+  void accept(List<Span> spans) {
+    long now = nanoTime();
+    for (Span span : spans) {
+      // Unless we are strict, spans of a trace can have 64 or 128-bit trace IDs
+      String traceId = span.traceId();
+      if (!strictTraceId && traceId.length() == 32) traceId = traceId.substring(16);
+      while (true) {
+        if (pendingSpans.get() >= MAX_PENDING_SPANS) {
+          dropped.increment();
+          break;
+        }
+        PendingTrace trace = pending.get(traceId);
+        if (trace == null) {
+          trace = new PendingTrace();
+          PendingTrace existing = pending.putIfAbsent(traceId, trace);
+          if (existing != null) trace = existing;
+        }
+        if (trace.add(span, now)) {
+          pendingSpans.incrementAndGet();
+          buffered.increment();
+          break;
+        }
+        pending.remove(traceId, trace); // the trace was drained concurrently, so start another
+      }
+    }
+  }
+
+  /**
+   * Links traces that are quiet for at least an interval, or all traces when {@code all} is true.
+   * Returns the links by day.
+   */
+  Map<LocalDate, List<DependencyLink>> drain(boolean all) {
+    long now = nanoTime();
+    Map<LocalDate, DependencyLinker> linkers = new LinkedHashMap<>();
+    for (Iterator<Map.Entry<String, PendingTrace>> i = pending.entrySet().iterator();
+      i.hasNext(); ) {
+      Map.Entry<String, PendingTrace> entry = i.next();
+      List<Span> spans = entry.getValue().drain(now, all ? 0L : intervalNanos);
+      if (spans == null) continue;
+      pending.remove(entry.getKey(), entry.getValue());
+      pendingSpans.addAndGet(-spans.size());
+      linkers.computeIfAbsent(day(spans), d -> new DependencyLinker()).putTrace(spans);
+    }
+    Map<LocalDate, List<DependencyLink>> result = new LinkedHashMap<>();
+    for (Map.Entry<LocalDate, DependencyLinker> entry : linkers.entrySet()) {
+      List<DependencyLink> links = entry.getValue().link();
+      if (!links.isEmpty()) result.put(entry.getKey(), links);
+    }
+    return result;
+  }
+
+  /** Adds the links of drained traces to the counts already stored. */
+  void flush(boolean all) {
+    for (Map.Entry<LocalDate, List<DependencyLink>> entry : drain(all).entrySet()) {
+      LocalDate day = entry.getKey();
+      for (DependencyLink link : entry.getValue()) {
+        try {
+          addCounts(day, link);
+        } catch (RuntimeException e) {
+          LOG.warn("failed to add counts of {} on {}: {}", link, day, e.getMessage());
+        }
+      }
+    }
+  }
+
+  void addCounts(LocalDate day, DependencyLink link) {
+    Row row = session.execute(select.bind()
+      .setDate("day", day)
+      .setString("parent", link.parent())
+      .setString("child", link.child())).one();
+    long calls = link.callCount(), errors = link.errorCount();
+    if (row != null) {
+      calls += row.getLong("calls");
+      errors += row.getLong("errors");
+    }
+    session.execute(insert.bind()
+      .setDate("day", day)
+      .setString("parent", link.parent())
+      .setString("child", link.child())
+      .setLong("calls", calls)
+      .setLong("errors", errors));
+  }
+
+  /** Schedules a flush every interval. */
+  synchronized void start() {
+    if (scheduler != null) return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "zipkin-cassandra-dependencies");
+      thread.setDaemon(true);
+      return thread;
+    });
+    flushes = scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        flush(false);
+      } catch (Throwable e) {
+        Call.propagateIfFatal(e);
+        LOG.warn("failed to flush dependency links: {}", e.getMessage(), e);
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /** Stops scheduling, and flushes all buffered traces. */
+  @Override public synchronized void close() {
+    if (scheduler == null) return;
+    flushes.cancel(false);
+    flushes = null;
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(interval, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    scheduler = null;
+    flush(true);
+  }
+
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  /** The UTC day of the earliest timestamp, or today if no span has a timestamp. */
+  static LocalDate day(List<Span> spans) {
+    long timestamp = 0L;
+    for (Span span : spans) {
+      long spanTimestamp = span.timestampAsLong();
+      if (spanTimestamp != 0L && (timestamp == 0L || spanTimestamp < timestamp)) {
+        timestamp = spanTimestamp;
+      }
+    }
+    long epochMillis = timestamp != 0L ? timestamp / 1000L : System.currentTimeMillis();
+    return LocalDate.fromMillisSinceEpoch(epochMillis);
+  }
+
+  static final class PendingTrace {
+    final List<Span> spans = new ArrayList<>();
+    long lastNanos; // guarded by this
+    boolean drained; // guarded by this
+
+    synchronized boolean add(Span span, long now) {
+      if (drained) return false;
+      spans.add(span);
+      lastNanos = now;
+      return true;
+    }
+
+    /** Returns the spans if none were added for the given duration, or null. */
+    @Nullable synchronized List<Span> drain(long now, long quietNanos) {
+      if (quietNanos > 0L && now - lastNanos < quietNanos) return null;
+      drained = true;
+      return spans;
+    }
+  }
+}
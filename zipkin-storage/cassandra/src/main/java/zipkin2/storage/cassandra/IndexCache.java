@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import com.datastax.driver.core.utils.UUIDs;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static zipkin2.storage.cassandra.Schema.TABLE_TRACE_BY_SERVICE_REMOTE_SERVICE;
+import static zipkin2.storage.cassandra.Schema.TABLE_TRACE_BY_SERVICE_SPAN;
+
+/**
+ * Skips trace index rows that don't change search results, across all calls to {@link
+ * CassandraSpanConsumer#accept(java.util.List)}.
+ *
+ * <p>Index rows are clustered by timestamp, so each span of a trace adds a row to the same
+ * partition, even when an earlier span already made the trace findable. Like the legacy
+ * "cassandra" storage, this remembers the first and last timestamp written per partition key and
+ * trace ID, and only writes rows that widen that interval. Rows in {@code trace_by_service_span}
+ * are also written when they widen the interval of durations, so that searches by minimum or
+ * maximum duration find the same traces. Searches combining both duration bounds can miss a trace
+ * whose only matching span was skipped.
+ *
+ * <p>Entries are held in a fixed-size, lock-free hash table like {@link
+ * zipkin2.internal.HashedDelayLimiter}: each key can only be held in a small neighborhood of slots,
+ * and when that is full, the entry expiring soonest is replaced.
+ */
+class IndexCache { // not final for testing
+  static final int PROBES = 8;
+  static final String NAME = "zipkin_storage.cassandra.index_rows";
+
+  final long ttlNanos;
+  final AtomicReferenceArray<Entry> table;
+  final int mask;
+  final Counter written, skipped;
+
+  /**
+   * @param maxEntries see {@link CassandraStorage.Builder#indexCacheMax(int)}
+   * @param ttl seconds, see {@link CassandraStorage.Builder#indexCacheTtl(int)}
+   */
+  IndexCache(int maxEntries, int ttl, MeterRegistry registry) {
+    if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries <= 0");
+    if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0");
+    ttlNanos = TimeUnit.SECONDS.toNanos(ttl);
+    int size = Math.max(PROBES, Integer.highestOneBit(Math.min(maxEntries, 1 << 30) - 1) << 1);
+    table = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+    written = Counter.builder(NAME)
+      .description("cumulative amount of trace index rows written")
+      .tag("result", "written")
+      .register(registry);
+    skipped = Counter.builder(NAME)
+      .description("cumulative amount of trace index rows skipped as they wouldn't change results")
+      .tag("result", "skipped")
+      .register(registry);
+  }
+
+  boolean shouldWrite(InsertTraceByServiceSpan.Input input) {
+    return shouldWrite(Arrays.asList(TABLE_TRACE_BY_SERVICE_SPAN,
+      input.service(), input.span(), input.bucket(), input.trace_id()),
+      input.ts(), input.duration());
+  }
+
+  boolean shouldWrite(InsertTraceByServiceRemoteService.Input input) {
+    return shouldWrite(Arrays.asList(TABLE_TRACE_BY_SERVICE_REMOTE_SERVICE,
+      input.service(), input.remote_service(), input.bucket(), input.trace_id()),
+      input.ts(), 0L);
+  }
+
+  boolean shouldWrite(Object key, UUID ts, long duration) {
+    long timestamp = UUIDs.unixTimestamp(ts); // index precision is millis
+    int start = spread(key.hashCode());
+    while (true) {
+      long now = nanoTime();
+      int victim = -1;
+      Entry replaced = null;
+      boolean victimIsFree = false;
+      for (int i = 0; i < PROBES; i++) {
+        int slot = (start + i) & mask;
+        Entry entry = table.get(slot);
+        if (entry == null || entry.expiration - now <= 0) {
+          if (!victimIsFree) { // the first free slot wins, so racing callers pick the same one
+            victim = slot;
+            replaced = entry;
+            victimIsFree = true;
+          }
+          continue;
+        }
+        if (entry.key.equals(key)) {
+          victim = slot;
+          replaced = entry;
+          break;
+        }
+        if (!victimIsFree && (replaced == null || entry.expiration - replaced.expiration < 0)) {
+          victim = slot;
+          replaced = entry;
+        }
+      }
+
+      Entry update;
+      if (replaced != null && replaced.key.equals(key) && replaced.expiration - now > 0) {
+        update = replaced.widen(timestamp, duration, now + ttlNanos);
+        if (update == null) {
+          skipped.increment();
+          return false;
+        }
+      } else {
+        update = new Entry(key, timestamp, timestamp, duration, duration, now + ttlNanos);
+      }
+      if (table.compareAndSet(victim, replaced, update)) {
+        written.increment();
+        return true;
+      }
+      // lost a race: look again, as the winner may have written the same row
+    }
+  }
+
+  void clear() {
+    for (int i = 0, length = table.length(); i < length; i++) {
+      table.set(i, null);
+    }
+  }
+
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  /** Mixes the hash code as sequential ones, such as small numbers, would otherwise cluster. */
+  int spread(int hashCode) {
+    int h = hashCode * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  static final class Entry {
+    final Object key;
+    final long firstTimestamp, lastTimestamp, minDuration, maxDuration, expiration;
+
+    Entry(Object key, long firstTimestamp, long lastTimestamp, long minDuration, long maxDuration,
+      long expiration) {
+      this.key = key;
+      this.firstTimestamp = firstTimestamp;
+      this.lastTimestamp = lastTimestamp;
+      this.minDuration = minDuration;
+      this.maxDuration = maxDuration;
+      this.expiration = expiration;
+    }
+
+    /** Returns null if a row with this timestamp and duration wouldn't change search results. */
+    Entry widen(long timestamp, long duration, long expiration) {
+      if (timestamp >= firstTimestamp && timestamp <= lastTimestamp
+        && duration >= minDuration && duration <= maxDuration) {
+        return null;
+      }
+      return new Entry(key,
+        Math.min(firstTimestamp, timestamp), Math.max(lastTimestamp, timestamp),
+        Math.min(minDuration, duration), Math.max(maxDuration, duration), expiration);
+    }
+  }
+}
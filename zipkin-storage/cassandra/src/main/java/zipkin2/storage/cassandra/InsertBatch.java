@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import zipkin2.Call;
+import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
+
+/**
+ * Writes inserts into the same partition as one UNLOGGED batch. As the batch has one partition
+ * key, it is routed to a replica like a single insert, and there's no coordinator cost of a
+ * multi-partition batch. Cassandra doesn't apply batch size thresholds to single partition
+ * batches.
+ */
+final class InsertBatch extends ResultSetFutureCall<Void> {
+  /** Bounds the size of a request when a reporter sends many spans of the same trace. */
+  static final int MAX_STATEMENTS = 100;
+
+  /** An insert that can be batched with others into the same partition. */
+  interface Partitioned {
+    /** Inserts into the same table with equal keys write the same partition. */
+    Object partitionKey();
+
+    Statement newStatement();
+  }
+
+  static class Factory {
+    final Session session;
+
+    Factory(Session session) {
+      this.session = session;
+    }
+
+    /** Adds a call per partition of the given inserts, which must be for the same table. */
+    <C extends Call<Void> & Partitioned> void addCalls(Collection<C> inserts,
+      List<Call<Void>> calls) {
+      Map<Object, List<C>> partitions = new LinkedHashMap<>();
+      for (C insert : inserts) {
+        partitions.computeIfAbsent(insert.partitionKey(), k -> new ArrayList<>()).add(insert);
+      }
+      for (List<C> partition : partitions.values()) {
+        for (int i = 0, length = partition.size(); i < length; i += MAX_STATEMENTS) {
+          List<C> batch = partition.subList(i, Math.min(length, i + MAX_STATEMENTS));
+          calls.add(batch.size() == 1 ? batch.get(0) : new InsertBatch(this, batch));
+        }
+      }
+    }
+  }
+
+  final Factory factory;
+  final List<? extends Partitioned> inserts;
+
+  InsertBatch(Factory factory, List<? extends Partitioned> inserts) {
+    this.factory = factory;
+    this.inserts = inserts;
+  }
+
+  @Override protected ResultSetFuture newFuture() {
+    BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+    for (Partitioned insert : inserts) batch.add(insert.newStatement());
+    return factory.session.executeAsync(batch);
+  }
+
+  @Override public Void map(ResultSet input) {
+    return null;
+  }
+
+  @Override public String toString() {
+    return "InsertBatch{inserts=" + inserts + "}";
+  }
+
+  @Override public InsertBatch clone() {
+    return new InsertBatch(factory, inserts);
+  }
+}
@@ -21,12 +21,13 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.auto.value.AutoValue;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
-import zipkin2.Call;
+import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.internal.Nullable;
 import zipkin2.storage.cassandra.Schema.AnnotationUDT;
 import zipkin2.storage.cassandra.Schema.EndpointUDT;
@@ -34,7 +35,7 @@ import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
 import static zipkin2.storage.cassandra.Schema.TABLE_SPAN;
 
-final class InsertSpan extends ResultSetFutureCall<Void> {
+final class InsertSpan extends ResultSetFutureCall<Void> implements InsertBatch.Partitioned {
 
   @AutoValue
   abstract static class Input {
@@ -70,38 +71,51 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
 
     abstract Map<String, String> tags();
 
+    @Nullable
+    abstract String l_service();
+
     @Nullable
     abstract String annotation_query();
 
     abstract boolean shared();
 
     abstract boolean debug();
+
+    @Nullable
+    abstract ByteBuffer span_proto3();
   }
 
   static class Factory {
     final Session session;
     final PreparedStatement preparedStatement;
-    final boolean strictTraceId, searchEnabled;
+    final boolean strictTraceId, searchEnabled, spanProto3;
 
-    Factory(Session session, boolean strictTraceId, boolean searchEnabled) {
+    /** @param spanProto3 when true, span fields are written as one PROTO3-encoded blob */
+    Factory(Session session, boolean strictTraceId, boolean searchEnabled, boolean spanProto3) {
       this.session = session;
       Insert insertQuery =
           QueryBuilder.insertInto(TABLE_SPAN)
               .value("trace_id", QueryBuilder.bindMarker("trace_id"))
               .value("trace_id_high", QueryBuilder.bindMarker("trace_id_high"))
               .value("ts_uuid", QueryBuilder.bindMarker("ts_uuid"))
-              .value("parent_id", QueryBuilder.bindMarker("parent_id"))
               .value("id", QueryBuilder.bindMarker("id"))
-              .value("kind", QueryBuilder.bindMarker("kind"))
-              .value("span", QueryBuilder.bindMarker("span"))
               .value("ts", QueryBuilder.bindMarker("ts"))
-              .value("duration", QueryBuilder.bindMarker("duration"))
-              .value("l_ep", QueryBuilder.bindMarker("l_ep"))
-              .value("r_ep", QueryBuilder.bindMarker("r_ep"))
-              .value("annotations", QueryBuilder.bindMarker("annotations"))
-              .value("tags", QueryBuilder.bindMarker("tags"))
-              .value("shared", QueryBuilder.bindMarker("shared"))
-              .value("debug", QueryBuilder.bindMarker("debug"));
+              .value("duration", QueryBuilder.bindMarker("duration"));
+
+      if (spanProto3) {
+        insertQuery.value("span_proto3", QueryBuilder.bindMarker("span_proto3"));
+      } else {
+        insertQuery
+            .value("parent_id", QueryBuilder.bindMarker("parent_id"))
+            .value("kind", QueryBuilder.bindMarker("kind"))
+            .value("span", QueryBuilder.bindMarker("span"))
+            .value("l_ep", QueryBuilder.bindMarker("l_ep"))
+            .value("r_ep", QueryBuilder.bindMarker("r_ep"))
+            .value("annotations", QueryBuilder.bindMarker("annotations"))
+            .value("tags", QueryBuilder.bindMarker("tags"))
+            .value("shared", QueryBuilder.bindMarker("shared"))
+            .value("debug", QueryBuilder.bindMarker("debug"));
+      }
 
       if (searchEnabled) {
         insertQuery.value("l_service", QueryBuilder.bindMarker("l_service"));
@@ -111,10 +125,34 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
       this.preparedStatement = session.prepare(insertQuery);
       this.strictTraceId = strictTraceId;
       this.searchEnabled = searchEnabled;
+      this.spanProto3 = spanProto3;
     }
 
     Input newInput(zipkin2.Span span, UUID ts_uuid) {
       boolean traceIdHigh = !strictTraceId && span.traceId().length() == 32;
+      String l_service = searchEnabled ? span.localServiceName() : null;
+      String annotation_query = searchEnabled ? CassandraUtil.annotationQuery(span) : null;
+      if (spanProto3) { // search columns, including ts and duration, are written beside the blob
+        return new AutoValue_InsertSpan_Input(
+            ts_uuid,
+            traceIdHigh ? span.traceId().substring(0, 16) : null,
+            traceIdHigh ? span.traceId().substring(16) : span.traceId(),
+            null,
+            span.id(),
+            null,
+            null,
+            span.timestampAsLong(),
+            span.durationAsLong(),
+            null,
+            null,
+            Collections.emptyList(),
+            Collections.emptyMap(),
+            l_service,
+            annotation_query,
+            false,
+            false,
+            ByteBuffer.wrap(SpanBytesEncoder.PROTO3.encode(span)));
+      }
       List<AnnotationUDT> annotations;
       if (!span.annotations().isEmpty()) {
         annotations =
@@ -122,7 +160,6 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
       } else {
         annotations = Collections.emptyList();
       }
-      String annotation_query = searchEnabled ? CassandraUtil.annotationQuery(span) : null;
       return new AutoValue_InsertSpan_Input(
           ts_uuid,
           traceIdHigh ? span.traceId().substring(0, 16) : null,
@@ -137,12 +174,14 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
           span.remoteEndpoint() != null ? new EndpointUDT(span.remoteEndpoint()) : null,
           annotations,
           span.tags(),
+          l_service,
           annotation_query,
           Boolean.TRUE.equals(span.debug()),
-          Boolean.TRUE.equals(span.shared()));
+          Boolean.TRUE.equals(span.shared()),
+          null);
     }
 
-    Call<Void> create(Input span) {
+    InsertSpan create(Input span) {
       return new InsertSpan(this, span);
     }
   }
@@ -182,6 +221,14 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
    */
   @Override
   protected ResultSetFuture newFuture() {
+    return factory.session.executeAsync(newStatement());
+  }
+
+  @Override public Object partitionKey() {
+    return input.trace_id();
+  }
+
+  @Override public BoundStatement newStatement() {
     BoundStatement bound =
         factory
             .preparedStatement
@@ -203,14 +250,15 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
     if (!input.tags().isEmpty()) bound.setMap("tags", input.tags());
     if (input.shared()) bound.setBool("shared", true);
     if (input.debug()) bound.setBool("debug", true);
+    if (null != input.span_proto3()) bound.setBytes("span_proto3", input.span_proto3());
 
     if (factory.searchEnabled) {
-      if (null != input.l_ep()) bound.setString("l_service", input.l_ep().getService());
+      if (null != input.l_service()) bound.setString("l_service", input.l_service());
       if (null != input.annotation_query()) {
         bound.setString("annotation_query", input.annotation_query());
       }
     }
-    return factory.session.executeAsync(bound);
+    return bound;
   }
 
   @Override public Void map(ResultSet input) {
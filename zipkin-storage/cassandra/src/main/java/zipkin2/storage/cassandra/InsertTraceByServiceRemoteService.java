@@ -13,19 +13,21 @@
  */
 package zipkin2.storage.cassandra;
 
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.auto.value.AutoValue;
+import java.util.Arrays;
 import java.util.UUID;
-import zipkin2.Call;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
 import static zipkin2.storage.cassandra.Schema.TABLE_TRACE_BY_SERVICE_REMOTE_SERVICE;
 
-final class InsertTraceByServiceRemoteService extends ResultSetFutureCall<Void> {
+final class InsertTraceByServiceRemoteService extends ResultSetFutureCall<Void>
+  implements InsertBatch.Partitioned {
 
   @AutoValue abstract static class Input {
     abstract String service();
@@ -65,7 +67,7 @@ final class InsertTraceByServiceRemoteService extends ResultSetFutureCall<Void>
         !strictTraceId && trace_id.length() == 32 ? trace_id.substring(16) : trace_id);
     }
 
-    Call<Void> create(Input input) {
+    InsertTraceByServiceRemoteService create(Input input) {
       return new InsertTraceByServiceRemoteService(this, input);
     }
   }
@@ -79,12 +81,20 @@ final class InsertTraceByServiceRemoteService extends ResultSetFutureCall<Void>
   }
 
   @Override protected ResultSetFuture newFuture() {
-    return factory.session.executeAsync(factory.preparedStatement.bind()
+    return factory.session.executeAsync(newStatement());
+  }
+
+  @Override public Object partitionKey() {
+    return Arrays.asList(input.service(), input.remote_service(), input.bucket());
+  }
+
+  @Override public BoundStatement newStatement() {
+    return factory.preparedStatement.bind()
       .setString("service", input.service())
       .setString("remote_service", input.remote_service())
       .setInt("bucket", input.bucket())
       .setUUID("ts", input.ts())
-      .setString("trace_id", input.trace_id()));
+      .setString("trace_id", input.trace_id());
   }
 
   @Override public Void map(ResultSet input) {
@@ -53,6 +53,7 @@ final class Schema {
   static final String INDEX_RESOURCE = "/zipkin2-schema-indexes.cql";
   static final String UPGRADE_1 = "/zipkin2-schema-upgrade-1.cql";
   static final String UPGRADE_2 = "/zipkin2-schema-upgrade-2.cql";
+  static final String UPGRADE_3 = "/zipkin2-schema-upgrade-3.cql";
 
   Schema() {
   }
@@ -90,18 +91,22 @@ final class Schema {
         UPGRADE_2);
     }
 
-    return new Metadata(compactionClass, hasAutocompleteTags, hasRemoteService);
+    // Only needed when CassandraStorage.spanProto3, so the span consumer warns instead
+    boolean hasSpanProto3 = hasUpgrade3_spanProto3(keyspaceMetadata);
+
+    return new Metadata(compactionClass, hasAutocompleteTags, hasRemoteService, hasSpanProto3);
   }
 
   static final class Metadata {
     final String compactionClass;
-    final boolean hasAutocompleteTags, hasRemoteService;
+    final boolean hasAutocompleteTags, hasRemoteService, hasSpanProto3;
 
     Metadata(String compactionClass, boolean hasAutocompleteTags,
-      boolean hasRemoteService) {
+      boolean hasRemoteService, boolean hasSpanProto3) {
       this.compactionClass = compactionClass;
       this.hasAutocompleteTags = hasAutocompleteTags;
       this.hasRemoteService = hasRemoteService;
+      this.hasSpanProto3 = hasSpanProto3;
     }
   }
 
@@ -148,6 +153,10 @@ final class Schema {
       LOG.info("Upgrading schema {}", UPGRADE_2);
       applyCqlFile(keyspace, session, UPGRADE_2);
     }
+    if (!hasUpgrade3_spanProto3(result)) {
+      LOG.info("Upgrading schema {}", UPGRADE_3);
+      applyCqlFile(keyspace, session, UPGRADE_3);
+    }
     return result;
   }
 
@@ -159,6 +168,10 @@ final class Schema {
     return keyspaceMetadata.getTable(TABLE_SERVICE_REMOTE_SERVICES) != null;
   }
 
+  static boolean hasUpgrade3_spanProto3(KeyspaceMetadata keyspaceMetadata) {
+    return keyspaceMetadata.getTable(TABLE_SPAN).getColumn("span_proto3") != null;
+  }
+
   static void applyCqlFile(String keyspace, Session session, String resource) {
     try (Reader reader = new InputStreamReader(Schema.class.getResourceAsStream(resource), UTF_8)) {
       for (String cmd : CharStreams.toString(reader).split(";", 100)) {
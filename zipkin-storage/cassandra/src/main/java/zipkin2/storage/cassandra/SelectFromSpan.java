@@ -19,6 +19,7 @@ import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.datastax.driver.core.querybuilder.Select;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -30,12 +31,15 @@ import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 import zipkin2.Call;
 import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.internal.FilterTraces;
 import zipkin2.internal.Nullable;
+import zipkin2.internal.PartialResult;
 import zipkin2.storage.GroupByTraceId;
 import zipkin2.storage.QueryRequest;
 import zipkin2.storage.StrictTraceId;
 import zipkin2.storage.cassandra.internal.call.AccumulateAllResults;
+import zipkin2.storage.cassandra.internal.call.FanOutCall;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -50,36 +54,83 @@ final class SelectFromSpan extends ResultSetFutureCall<ResultSet> {
     final Call.Mapper<List<Span>, List<List<Span>>> groupByTraceId;
     final boolean strictTraceId;
     final int maxTraceCols;
+    final int traceReadConcurrency;
+    @Nullable final PreparedStatement partitionPreparedStatement;
 
-    Factory(Session session, boolean strictTraceId, int maxTraceCols) {
+    /** @param spanProto3 true when the schema includes the {@code span_proto3} column */
+    Factory(Session session, boolean strictTraceId, int maxTraceCols, int traceReadConcurrency,
+      boolean spanProto3) {
       this.session = session;
-      this.readSpans = new ReadSpans();
-      this.preparedStatement =
-          session.prepare(
-              QueryBuilder.select(
-                      "trace_id_high",
-                      "trace_id",
-                      "parent_id",
-                      "id",
-                      "kind",
-                      "span",
-                      "ts",
-                      "duration",
-                      "l_ep",
-                      "r_ep",
-                      "annotations",
-                      "tags",
-                      "shared",
-                      "debug")
-                  .from(TABLE_SPAN)
-                  // when reading on the partition key, clustering keys are optional
-                  .where(QueryBuilder.in("trace_id", QueryBuilder.bindMarker("trace_id")))
-                  .limit(QueryBuilder.bindMarker("limit_")));
+      this.readSpans = new ReadSpans(spanProto3);
+      this.preparedStatement = session.prepare(select(spanProto3)
+        // when reading on the partition key, clustering keys are optional
+        .where(QueryBuilder.in("trace_id", QueryBuilder.bindMarker("trace_id")))
+        .limit(QueryBuilder.bindMarker("limit_")));
+      if (traceReadConcurrency > 0) {
+        // Binding the whole partition key allows the driver to route the read to a replica
+        this.partitionPreparedStatement = session.prepare(select(spanProto3)
+          .where(QueryBuilder.eq("trace_id", QueryBuilder.bindMarker("trace_id")))
+          .limit(QueryBuilder.bindMarker("limit_")));
+      } else {
+        this.partitionPreparedStatement = null;
+      }
       this.strictTraceId = strictTraceId;
       this.maxTraceCols = maxTraceCols;
+      this.traceReadConcurrency = traceReadConcurrency;
       this.groupByTraceId = GroupByTraceId.create(strictTraceId);
     }
 
+    static Select select(boolean spanProto3) {
+      Select.Selection selection = QueryBuilder.select();
+      if (spanProto3) selection.column("span_proto3");
+      return selection.column("trace_id_high")
+        .column("trace_id")
+        .column("parent_id")
+        .column("id")
+        .column("kind")
+        .column("span")
+        .column("ts")
+        .column("duration")
+        .column("l_ep")
+        .column("r_ep")
+        .column("annotations")
+        .column("tags")
+        .column("shared")
+        .column("debug")
+        .from(TABLE_SPAN);
+    }
+
+    /**
+     * Reads the spans of the given trace IDs. When {@link #traceReadConcurrency} is
+     * positive, this reads each trace as a separate query, instead of a multi-partition one.
+     */
+    Call<List<Span>> readSpans(Set<String> traceIds) {
+      if (partitionPreparedStatement == null) {
+        return new SelectFromSpan(this, traceIds, maxTraceCols).flatMap(readSpans);
+      }
+      int limit = partitionLimit(traceIds);
+      return new FanOutCall<>(new ArrayList<>(traceIds),
+        traceId -> new SelectPartition(this, traceId, limit).flatMap(readSpans),
+        traceReadConcurrency);
+    }
+
+    /** Like {@link #readSpans(Set)}, except grouping spans by trace ID. */
+    Call<List<List<Span>>> readTraces(Set<String> traceIds) {
+      if (partitionPreparedStatement == null) {
+        return readSpans(traceIds).map(groupByTraceId);
+      }
+      // A partition never holds spans of another 64-bit trace ID, so each is grouped on arrival.
+      int limit = partitionLimit(traceIds);
+      return new FanOutCall<>(new ArrayList<>(traceIds),
+        traceId -> new SelectPartition(this, traceId, limit).flatMap(readSpans).map(groupByTraceId),
+        traceReadConcurrency);
+    }
+
+    /** Divides {@link #maxTraceCols} across partitions, so it still bounds the whole read. */
+    int partitionLimit(Set<String> traceIds) {
+      return Math.max(1, maxTraceCols / traceIds.size());
+    }
+
     Call<List<Span>> newCall(String hexTraceId) {
       checkNotNull(hexTraceId, "hexTraceId");
       // Unless we are strict, truncate the trace ID to 64bit (encoded as 16 characters)
@@ -92,7 +143,7 @@ final class SelectFromSpan extends ResultSetFutureCall<ResultSet> {
         traceIds = Collections.singleton(hexTraceId);
       }
 
-      Call<List<Span>> result = new SelectFromSpan(this, traceIds, maxTraceCols).flatMap(readSpans);
+      Call<List<Span>> result = readSpans(traceIds);
       return strictTraceId ? result.map(StrictTraceId.filterSpans(hexTraceId)) : result;
     }
 
@@ -107,10 +158,7 @@ final class SelectFromSpan extends ResultSetFutureCall<ResultSet> {
       }
 
       if (normalizedTraceIds.isEmpty()) return Call.emptyList();
-      Call<List<List<Span>>> result = new SelectFromSpan(this,
-        normalizedTraceIds,
-        maxTraceCols)
-        .flatMap(readSpans).map(groupByTraceId);
+      Call<List<List<Span>>> result = readTraces(normalizedTraceIds);
       return strictTraceId ? result.map(StrictTraceId.filterTraces(normalizedTraceIds)) : result;
     }
 
@@ -150,6 +198,37 @@ final class SelectFromSpan extends ResultSetFutureCall<ResultSet> {
     return new SelectFromSpan(factory, trace_id, limit_);
   }
 
+  /** Reads one partition, so that a token-aware load balancing policy can route to a replica. */
+  static final class SelectPartition extends ResultSetFutureCall<ResultSet> {
+    final Factory factory;
+    final String trace_id;
+    final int limit_;
+
+    SelectPartition(Factory factory, String trace_id, int limit_) {
+      this.factory = factory;
+      this.trace_id = trace_id;
+      this.limit_ = limit_;
+    }
+
+    @Override protected ResultSetFuture newFuture() {
+      return factory.session.executeAsync(factory.partitionPreparedStatement.bind()
+        .setString("trace_id", trace_id)
+        .setInt("limit_", limit_));
+    }
+
+    @Override public ResultSet map(ResultSet input) {
+      return input;
+    }
+
+    @Override public String toString() {
+      return "SelectPartition{trace_id=" + trace_id + ", limit_=" + limit_ + "}";
+    }
+
+    @Override public SelectPartition clone() {
+      return new SelectPartition(factory, trace_id, limit_);
+    }
+  }
+
   static final class SelectSpansByTraceIds implements FlatMapper<Set<String>, List<List<Span>>> {
     final Factory factory;
     final int limit;
@@ -176,11 +255,10 @@ final class SelectFromSpan extends ResultSetFutureCall<ResultSet> {
       } else {
         traceIds = input;
       }
-      Call<List<List<Span>>> result =
-          new SelectFromSpan(factory, traceIds, factory.maxTraceCols)
-              .flatMap(factory.readSpans)
-              .map(factory.groupByTraceId);
-      return filter != null ? result.map(filter) : result;
+      Call<List<List<Span>>> result = factory.readTraces(traceIds);
+      if (filter != null) result = result.map(filter);
+      // Flag the traces as partial when some of the index reads that found them were skipped
+      return PartialResult.isPartial(input) ? result.map(PartialResult::list) : result;
     }
 
     @Override
@@ -190,6 +268,11 @@ final class SelectFromSpan extends ResultSetFutureCall<ResultSet> {
   }
 
   static final class ReadSpans extends AccumulateAllResults<List<Span>> {
+    final boolean spanProto3;
+
+    ReadSpans(boolean spanProto3) {
+      this.spanProto3 = spanProto3;
+    }
 
     @Override
     protected Supplier<List<Span>> supplier() {
@@ -199,6 +282,12 @@ final class SelectFromSpan extends ResultSetFutureCall<ResultSet> {
     @Override
     protected BiConsumer<Row, List<Span>> accumulator() {
       return (row, result) -> {
+        // Rows written with CassandraStorage.spanProto3 hold the whole span in one blob
+        if (spanProto3 && !row.isNull("span_proto3")) {
+          Span span = SpanBytesDecoder.PROTO3.decodeOne(row.getBytes("span_proto3"));
+          if (span != null) result.add(span);
+          return;
+        }
         String traceId = row.getString("trace_id");
         String traceIdHigh = row.getString("trace_id_high");
         if (traceIdHigh != null) traceId = traceIdHigh + traceId;
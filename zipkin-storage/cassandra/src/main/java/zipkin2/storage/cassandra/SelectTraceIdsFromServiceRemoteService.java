@@ -18,6 +18,7 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.FallthroughRetryPolicy;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.auto.value.AutoValue;
 import java.util.ArrayList;
@@ -28,6 +29,7 @@ import java.util.UUID;
 import zipkin2.Call;
 import zipkin2.storage.cassandra.CassandraSpanStore.TimestampRange;
 import zipkin2.storage.cassandra.internal.call.AccumulateTraceIdTsUuid;
+import zipkin2.storage.cassandra.internal.call.AccumulateTraceIds;
 import zipkin2.storage.cassandra.internal.call.AggregateIntoMap;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
@@ -61,9 +63,16 @@ final class SelectTraceIdsFromServiceRemoteService extends ResultSetFutureCall<R
   static class Factory {
     final Session session;
     final PreparedStatement preparedStatement;
+    final int readTimeout; // when positive, bucketed reads that time out are skipped
+    final int indexFetchMultiplier;
+    final AccumulateTraceIds.Metrics metrics;
 
-    Factory(Session session) {
+    Factory(Session session, int readTimeout, int indexFetchMultiplier,
+      AccumulateTraceIds.Metrics metrics) {
       this.session = session;
+      this.readTimeout = readTimeout;
+      this.indexFetchMultiplier = indexFetchMultiplier;
+      this.metrics = metrics;
       this.preparedStatement = session.prepare(QueryBuilder.select("ts", "trace_id")
         .from(TABLE_TRACE_BY_SERVICE_REMOTE_SERVICE)
         .where(QueryBuilder.eq("service", QueryBuilder.bindMarker("service")))
@@ -97,12 +106,14 @@ final class SelectTraceIdsFromServiceRemoteService extends ResultSetFutureCall<R
       for (SelectTraceIdsFromServiceRemoteService.Input input : inputs) {
         bucketedTraceIdCalls.add(newCall(input));
       }
-      return new AggregateIntoMap<>(bucketedTraceIdCalls);
+      return new AggregateIntoMap<>(bucketedTraceIdCalls, readTimeout > 0);
     }
 
     Call<Map<String, Long>> newCall(Input input) {
       return new SelectTraceIdsFromServiceRemoteService(this, preparedStatement, input)
-        .flatMap(new AccumulateTraceIdTsUuid());
+        .flatMap(new AccumulateTraceIdTsUuid(
+          AccumulateTraceIds.maxTraceIds(input.limit_(), indexFetchMultiplier), input.limit_(),
+          metrics));
     }
 
     /** Applies all deferred service names to all input templates */
@@ -130,7 +141,7 @@ final class SelectTraceIdsFromServiceRemoteService extends ResultSetFutureCall<R
 
         if (bucketedTraceIdCalls.isEmpty()) return Call.create(Collections.emptyMap());
         if (bucketedTraceIdCalls.size() == 1) return bucketedTraceIdCalls.get(0);
-        return new AggregateIntoMap<>(bucketedTraceIdCalls);
+        return new AggregateIntoMap<>(bucketedTraceIdCalls, readTimeout > 0);
       }
 
       @Override public String toString() {
@@ -162,7 +173,12 @@ final class SelectTraceIdsFromServiceRemoteService extends ResultSetFutureCall<R
       .setUUID("start_ts", input.start_ts())
       .setUUID("end_ts", input.end_ts())
       .setInt("limit_", input.limit_())
-      .setFetchSize(input.limit_());
+      .setFetchSize(
+        AccumulateTraceIds.maxTraceIds(input.limit_(), factory.indexFetchMultiplier));
+    if (factory.readTimeout > 0) { // fail fast, so that a timed-out read can be skipped
+      bound.setReadTimeoutMillis(factory.readTimeout);
+      bound.setRetryPolicy(FallthroughRetryPolicy.INSTANCE);
+    }
     return factory.session.executeAsync(bound);
   }
 
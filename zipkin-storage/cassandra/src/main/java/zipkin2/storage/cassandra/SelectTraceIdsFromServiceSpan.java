@@ -18,6 +18,7 @@ import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.policies.FallthroughRetryPolicy;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.auto.value.AutoValue;
 import java.util.ArrayList;
@@ -29,6 +30,7 @@ import zipkin2.Call;
 import zipkin2.internal.Nullable;
 import zipkin2.storage.cassandra.CassandraSpanStore.TimestampRange;
 import zipkin2.storage.cassandra.internal.call.AccumulateTraceIdTsUuid;
+import zipkin2.storage.cassandra.internal.call.AccumulateTraceIds;
 import zipkin2.storage.cassandra.internal.call.AggregateIntoMap;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
@@ -72,9 +74,16 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
     final Session session;
     final PreparedStatement selectTraceIdsByServiceSpanName;
     final PreparedStatement selectTraceIdsByServiceSpanNameAndDuration;
+    final int readTimeout; // when positive, bucketed reads that time out are skipped
+    final int indexFetchMultiplier;
+    final AccumulateTraceIds.Metrics metrics;
 
-    Factory(Session session) {
+    Factory(Session session, int readTimeout, int indexFetchMultiplier,
+      AccumulateTraceIds.Metrics metrics) {
       this.session = session;
+      this.readTimeout = readTimeout;
+      this.indexFetchMultiplier = indexFetchMultiplier;
+      this.metrics = metrics;
       // separate to avoid: "Unsupported unset value for column duration" maybe SASI related
       // TODO: revisit on next driver update
       this.selectTraceIdsByServiceSpanName =
@@ -133,7 +142,7 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
       for (SelectTraceIdsFromServiceSpan.Input input : inputs) {
         bucketedTraceIdCalls.add(newCall(input));
       }
-      return new AggregateIntoMap<>(bucketedTraceIdCalls);
+      return new AggregateIntoMap<>(bucketedTraceIdCalls, readTimeout > 0);
     }
 
     Call<Map<String, Long>> newCall(Input input) {
@@ -143,7 +152,9 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
                   ? selectTraceIdsByServiceSpanNameAndDuration
                   : selectTraceIdsByServiceSpanName,
               input)
-          .flatMap(new AccumulateTraceIdTsUuid());
+          .flatMap(new AccumulateTraceIdTsUuid(
+          AccumulateTraceIds.maxTraceIds(input.limit_(), indexFetchMultiplier), input.limit_(),
+          metrics));
     }
 
     /** Applies all deferred service names to all input templates */
@@ -171,7 +182,7 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
 
         if (bucketedTraceIdCalls.isEmpty()) return Call.create(Collections.emptyMap());
         if (bucketedTraceIdCalls.size() == 1) return bucketedTraceIdCalls.get(0);
-        return new AggregateIntoMap<>(bucketedTraceIdCalls);
+        return new AggregateIntoMap<>(bucketedTraceIdCalls, readTimeout > 0);
       }
 
       @Override public String toString() {
@@ -208,7 +219,12 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
         .setUUID("start_ts", input.start_ts())
         .setUUID("end_ts", input.end_ts())
         .setInt("limit_", input.limit_())
-        .setFetchSize(input.limit_());
+        .setFetchSize(
+          AccumulateTraceIds.maxTraceIds(input.limit_(), factory.indexFetchMultiplier));
+    if (factory.readTimeout > 0) { // fail fast, so that a timed-out read can be skipped
+      bound.setReadTimeoutMillis(factory.readTimeout);
+      bound.setRetryPolicy(FallthroughRetryPolicy.INSTANCE);
+    }
     return factory.session.executeAsync(bound);
   }
 
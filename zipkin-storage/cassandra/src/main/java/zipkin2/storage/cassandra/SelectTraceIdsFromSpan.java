@@ -22,15 +22,13 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.querybuilder.Select;
 import com.google.auto.value.AutoValue;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.function.BiConsumer;
-import java.util.function.Supplier;
 import zipkin2.Call;
 import zipkin2.internal.Nullable;
 import zipkin2.storage.cassandra.CassandraSpanStore.TimestampRange;
-import zipkin2.storage.cassandra.internal.call.AccumulateAllResults;
+import zipkin2.storage.cassandra.internal.call.AccumulateTraceIds;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
 import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
@@ -69,9 +67,13 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
   static class Factory {
     final Session session;
     final PreparedStatement withAnnotationQuery, withServiceAndAnnotationQuery;
+    final int indexFetchMultiplier;
+    final AccumulateTraceIds.Metrics metrics;
 
-    Factory(Session session) {
+    Factory(Session session, int indexFetchMultiplier, AccumulateTraceIds.Metrics metrics) {
       this.session = session;
+      this.indexFetchMultiplier = indexFetchMultiplier;
+      this.metrics = metrics;
       // separate to avoid: "Unsupported unset value for column duration" maybe SASI related
       // TODO: revisit on next driver update
       this.withAnnotationQuery =
@@ -111,7 +113,8 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
               this,
               serviceName != null ? withServiceAndAnnotationQuery : withAnnotationQuery,
               input)
-          .flatMap(new AccumulateTraceIdTsLong());
+          .flatMap(new AccumulateTraceIdTsLong(
+            AccumulateTraceIds.maxTraceIds(limit, indexFetchMultiplier), limit, metrics));
     }
   }
 
@@ -136,7 +139,8 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
         .setUUID("start_ts", input.start_ts())
         .setUUID("end_ts", input.end_ts())
         .setInt("limit_", input.limit_())
-        .setFetchSize(input.limit_());
+        .setFetchSize(
+          AccumulateTraceIds.maxTraceIds(input.limit_(), factory.indexFetchMultiplier));
     return factory.session.executeAsync(bound);
   }
 
@@ -154,10 +158,10 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
     return input.toString().replace("Input", "SelectTraceIdsFromSpan");
   }
 
-  static final class AccumulateTraceIdTsLong extends AccumulateAllResults<Map<String, Long>> {
+  static final class AccumulateTraceIdTsLong extends AccumulateTraceIds {
 
-    @Override protected Supplier<Map<String, Long>> supplier() {
-      return LinkedHashMap::new; // because results are not distinct
+    AccumulateTraceIdTsLong(int maxTraceIds, int maxRows, Metrics metrics) {
+      super(maxTraceIds, maxRows, metrics);
     }
 
     @Override protected BiConsumer<Row, Map<String, Long>> accumulator() {
@@ -168,7 +172,7 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
     }
 
     @Override public String toString() {
-      return "AccumulateTraceIdTsLong{}";
+      return "AccumulateTraceIdTsLong{maxTraceIds=" + maxTraceIds + "}";
     }
   }
 }
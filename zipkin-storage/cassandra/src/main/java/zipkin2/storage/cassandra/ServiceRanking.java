@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import zipkin2.Call;
+
+/**
+ * Ranks service names by how many spans this process recently wrote for them, so that searches
+ * without a service name can query the most active services first.
+ *
+ * <p>Counts roll over every minute, and a service is scored by its count in the current and the
+ * previous minute. Services this process didn't write, for example when it only serves queries,
+ * keep their original order after ranked ones.
+ */
+class ServiceRanking implements Call.Mapper<List<String>, List<String>> { // not final for testing
+  static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+  static final int MAX_SERVICES = 10000; // guards against accidentally unlimited cardinality
+
+  final AtomicReference<Window> current = new AtomicReference<>(new Window(nanoTime()));
+  volatile Window previous = new Window(0L);
+
+  void record(String serviceName) {
+    Window window = currentWindow();
+    LongAdder count = window.counts.get(serviceName);
+    if (count == null) {
+      if (window.counts.size() >= MAX_SERVICES) return;
+      count = window.counts.computeIfAbsent(serviceName, k -> new LongAdder());
+    }
+    count.increment();
+  }
+
+  /** Returns the service names, most recently written first. */
+  @Override public List<String> map(List<String> serviceNames) {
+    Window current = currentWindow(), previous = this.previous;
+    List<Ranked> ranked = new ArrayList<>(serviceNames.size());
+    for (String serviceName : serviceNames) {
+      ranked.add(new Ranked(serviceName, current.count(serviceName) + previous.count(serviceName)));
+    }
+    Collections.sort(ranked, (left, right) -> Long.compare(right.score, left.score)); // stable
+    List<String> result = new ArrayList<>(ranked.size());
+    for (Ranked r : ranked) result.add(r.serviceName);
+    return result;
+  }
+
+  Window currentWindow() {
+    long now = nanoTime();
+    Window window = current.get();
+    if (now - window.startNanos < WINDOW_NANOS) return window;
+    Window next = new Window(now);
+    if (current.compareAndSet(window, next)) {
+      // When no spans were written for a whole window, the last counts are too old to use
+      previous = now - window.startNanos < 2 * WINDOW_NANOS ? window : new Window(0L);
+      return next;
+    }
+    return current.get();
+  }
+
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  @Override public String toString() {
+    return "ServiceRanking{}";
+  }
+
+  static final class Window {
+    final long startNanos;
+    final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    Window(long startNanos) {
+      this.startNanos = startNanos;
+    }
+
+    long count(String serviceName) {
+      LongAdder count = counts.get(serviceName);
+      return count != null ? count.sum() : 0L;
+    }
+  }
+
+  static final class Ranked {
+    final String serviceName;
+    final long score;
+
+    Ranked(String serviceName, long score) {
+      this.serviceName = serviceName;
+      this.score = score;
+    }
+  }
+}
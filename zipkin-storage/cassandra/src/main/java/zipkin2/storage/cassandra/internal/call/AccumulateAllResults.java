@@ -15,6 +15,7 @@ package zipkin2.storage.cassandra.internal.call;
 
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
 import com.google.auto.value.AutoValue;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.function.BiConsumer;
@@ -33,12 +34,29 @@ public abstract class AccumulateAllResults<T> implements FlatMapper<ResultSet, T
     return Function.identity();
   }
 
+  /**
+   * Returns true when no more rows are needed, for example when enough distinct values were read.
+   * Remaining rows of the current page are skipped, and no more pages are fetched. Defaults to
+   * false, which reads all rows.
+   */
+  protected boolean isDone(T result) {
+    return false;
+  }
+
+  /**
+   * Returns the fetch size of the next page, given the count of rows accumulated so far. Defaults
+   * to {@code fetchSize}, the fetch size of the previous page, or zero if that was the default.
+   */
+  protected int nextFetchSize(T result, int rowCount, int fetchSize) {
+    return fetchSize;
+  }
+
+  /** Called once all needed rows are read, with the count fetched and the count accumulated. */
+  protected void recordRows(T result, int fetched, int accumulated) {
+  }
+
   @Override public Call<T> map(ResultSet rs) {
-    return new AutoValue_AccumulateAllResults_AccumulateNextResults<>(
-      supplier().get(),
-      accumulator(),
-      finisher()
-    ).map(rs);
+    return new AccumulateNextResults(supplier().get(), accumulator()).map(rs);
   }
 
   @AutoValue
@@ -62,23 +80,41 @@ public abstract class AccumulateAllResults<T> implements FlatMapper<ResultSet, T
     }
   }
 
-  @AutoValue
-  static abstract class AccumulateNextResults<T> implements FlatMapper<ResultSet, T> {
-    abstract T pendingResults();
+  final class AccumulateNextResults implements FlatMapper<ResultSet, T> {
+    final T pendingResults;
+    final BiConsumer<Row, T> accumulator;
+    int fetched, accumulated; // only accessed by one page callback at a time
 
-    abstract BiConsumer<Row, T> accumulator();
-
-    abstract Function<T, T> finisher();
+    AccumulateNextResults(T pendingResults, BiConsumer<Row, T> accumulator) {
+      this.pendingResults = pendingResults;
+      this.accumulator = accumulator;
+    }
 
     /** Iterates through the rows in each page, flatmapping on more results until exhausted */
     @Override public Call<T> map(ResultSet rs) {
-      while (rs.getAvailableWithoutFetching() > 0) {
-        accumulator().accept(rs.one(), pendingResults());
+      int available = rs.getAvailableWithoutFetching();
+      fetched += available;
+      for (int i = 0; i < available && !isDone(pendingResults); i++) {
+        accumulator.accept(rs.one(), pendingResults);
+        accumulated++;
+      }
+      // Return collected results if there are no more pages, or no more are needed
+      if (isDone(pendingResults)
+        || (rs.getExecutionInfo().getPagingState() == null && rs.isExhausted())) {
+        recordRows(pendingResults, fetched, accumulated);
+        return Call.create(finisher().apply(pendingResults));
       }
-      // Return collected results if there are no more pages
-      return rs.getExecutionInfo().getPagingState() == null && rs.isExhausted()
-        ? Call.create(finisher().apply(pendingResults()))
-        : FetchMoreResults.create(rs).flatMap(this);
+      Statement statement = rs.getExecutionInfo().getStatement();
+      if (statement != null) { // the driver re-uses the statement to fetch the next page
+        int fetchSize = statement.getFetchSize();
+        int nextFetchSize = nextFetchSize(pendingResults, accumulated, fetchSize);
+        if (nextFetchSize > 0 && nextFetchSize != fetchSize) statement.setFetchSize(nextFetchSize);
+      }
+      return FetchMoreResults.create(rs).flatMap(this);
+    }
+
+    @Override public String toString() {
+      return "AccumulateNextResults{" + AccumulateAllResults.this + "}";
     }
   }
 }
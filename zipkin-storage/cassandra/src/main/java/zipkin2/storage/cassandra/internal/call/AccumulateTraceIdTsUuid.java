@@ -15,16 +15,13 @@ package zipkin2.storage.cassandra.internal.call;
 
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.utils.UUIDs;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.BiConsumer;
-import java.util.function.Supplier;
 
-public final class AccumulateTraceIdTsUuid
-  extends AccumulateAllResults<Map<String, Long>> {
+public final class AccumulateTraceIdTsUuid extends AccumulateTraceIds {
 
-  @Override protected Supplier<Map<String, Long>> supplier() {
-    return LinkedHashMap::new; // because results are not distinct
+  public AccumulateTraceIdTsUuid(int maxTraceIds, int maxRows, Metrics metrics) {
+    super(maxTraceIds, maxRows, metrics);
   }
 
   @Override protected BiConsumer<Row, Map<String, Long>> accumulator() {
@@ -33,6 +30,6 @@ public final class AccumulateTraceIdTsUuid
   }
 
   @Override public String toString() {
-    return "AccumulateTraceIdTsUuid{}";
+    return "AccumulateTraceIdTsUuid{maxTraceIds=" + maxTraceIds + "}";
   }
 }
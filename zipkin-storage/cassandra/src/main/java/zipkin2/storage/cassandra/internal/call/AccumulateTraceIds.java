@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Accumulates trace IDs and their timestamps from index rows, stopping once {@code maxTraceIds}
+ * distinct trace IDs are read.
+ *
+ * <p>Index rows repeat trace IDs, for example one row per span, so queries are limited to more
+ * rows than trace IDs needed. Instead of fetching all those rows in one page, the first page is
+ * sized to the trace IDs needed. Later pages are sized to the remaining trace IDs times the rows
+ * per distinct trace ID read so far, within the remaining query limit.
+ */
+public abstract class AccumulateTraceIds extends AccumulateAllResults<Map<String, Long>> {
+  protected final int maxTraceIds, maxRows;
+  final Metrics metrics;
+
+  /**
+   * @param maxTraceIds stop reading once this many distinct trace IDs are read
+   * @param maxRows the query limit
+   */
+  protected AccumulateTraceIds(int maxTraceIds, int maxRows, Metrics metrics) {
+    if (maxTraceIds <= 0) throw new IllegalArgumentException("maxTraceIds <= 0");
+    this.maxTraceIds = maxTraceIds;
+    this.maxRows = maxRows;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns the distinct trace IDs to read from a query limited to {@code limit} rows. This is
+   * also the fetch size of the first page, which is enough when no trace IDs repeat.
+   */
+  public static int maxTraceIds(int limit, int indexFetchMultiplier) {
+    return Math.max(1, limit / Math.max(1, indexFetchMultiplier));
+  }
+
+  @Override protected final Supplier<Map<String, Long>> supplier() {
+    return LinkedHashMap::new; // because results are not distinct
+  }
+
+  @Override protected final boolean isDone(Map<String, Long> result) {
+    return result.size() >= maxTraceIds;
+  }
+
+  @Override
+  protected final int nextFetchSize(Map<String, Long> result, int rowCount, int fetchSize) {
+    int remainingRows = maxRows - rowCount;
+    if (remainingRows <= 0) return fetchSize; // the query limit ends paging
+    if (result.isEmpty()) return remainingRows;
+    int remainingTraceIds = maxTraceIds - result.size();
+    // estimate the rows needed, assuming later rows repeat trace IDs as often as earlier ones
+    long estimate = ((long) remainingTraceIds * rowCount + result.size() - 1) / result.size();
+    return (int) Math.min(Math.max(estimate, remainingTraceIds), remainingRows);
+  }
+
+  @Override
+  protected final void recordRows(Map<String, Long> result, int fetched, int accumulated) {
+    metrics.distinct.increment(result.size());
+    metrics.duplicate.increment(accumulated - result.size());
+    metrics.unread.increment(fetched - accumulated);
+  }
+
+  /** Counts index rows fetched, by whether they added a trace ID. */
+  public static final class Metrics {
+    static final String NAME = "zipkin_storage.cassandra.index_scan_rows";
+
+    final Counter distinct, duplicate, unread;
+
+    public Metrics(MeterRegistry registry) {
+      distinct = Counter.builder(NAME)
+        .description("cumulative amount of index rows fetched that added a trace ID")
+        .tag("result", "distinct")
+        .register(registry);
+      duplicate = Counter.builder(NAME)
+        .description("cumulative amount of index rows fetched that repeated a trace ID")
+        .tag("result", "duplicate")
+        .register(registry);
+      unread = Counter.builder(NAME)
+        .description("cumulative amount of index rows fetched after enough trace IDs were read")
+        .tag("result", "unread")
+        .register(registry);
+    }
+  }
+}
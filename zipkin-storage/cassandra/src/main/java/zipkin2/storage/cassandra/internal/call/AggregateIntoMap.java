@@ -18,10 +18,22 @@ import java.util.List;
 import java.util.Map;
 import zipkin2.Call;
 import zipkin2.internal.AggregateCall;
+import zipkin2.internal.PartialResult;
 
 public final class AggregateIntoMap<K, V> extends AggregateCall<Map<K, V>, Map<K, V>> {
+  final boolean skipTimeouts;
+
   public AggregateIntoMap(List<Call<Map<K, V>>> calls) {
+    this(calls, false);
+  }
+
+  /**
+   * @param skipTimeouts when true, calls that time out are skipped, and the result is a {@link
+   * PartialResult} of the others.
+   */
+  public AggregateIntoMap(List<Call<Map<K, V>>> calls, boolean skipTimeouts) {
     super(calls);
+    this.skipTimeouts = skipTimeouts;
   }
 
   @Override protected Map<K, V> newOutput() {
@@ -36,7 +48,15 @@ public final class AggregateIntoMap<K, V> extends AggregateCall<Map<K, V>, Map<K
     return output.isEmpty();
   }
 
+  @Override protected boolean isSkippable(Throwable error) {
+    return skipTimeouts && ResultSetFutureCall.isTimeout(error);
+  }
+
+  @Override protected Map<K, V> partial(Map<K, V> output) {
+    return PartialResult.map(output);
+  }
+
   @Override public AggregateIntoMap<K, V> clone() {
-    return new AggregateIntoMap<>(cloneCalls());
+    return new AggregateIntoMap<>(cloneCalls(), skipTimeouts);
   }
 }
@@ -17,13 +17,13 @@ import java.io.IOException;
 import java.util.List;
 import zipkin2.Call;
 import zipkin2.Callback;
-import zipkin2.internal.DelayLimiter;
+import zipkin2.internal.HashedDelayLimiter;
 
 public abstract class DeduplicatingVoidCallFactory<I> {
-  final DelayLimiter<I> delayLimiter;
+  final HashedDelayLimiter<I> delayLimiter;
 
   protected DeduplicatingVoidCallFactory(int ttl, int cardinality) {
-    delayLimiter = DelayLimiter.newBuilder().ttl(ttl).cardinality(cardinality).build();
+    delayLimiter = HashedDelayLimiter.newBuilder().ttl(ttl).cardinality(cardinality).build();
   }
 
   protected abstract Call<Void> newCall(I input);
@@ -40,10 +40,10 @@ public abstract class DeduplicatingVoidCallFactory<I> {
 
   public static final class InvalidatingVoidCall<I> extends Call.Base<Void> {
     final Call<Void> delegate;
-    final DelayLimiter<I> delayLimiter;
+    final HashedDelayLimiter<I> delayLimiter;
     final I input;
 
-    InvalidatingVoidCall(Call<Void> delegate, DelayLimiter<I> delayLimiter, I input) {
+    InvalidatingVoidCall(Call<Void> delegate, HashedDelayLimiter<I> delayLimiter, I input) {
       this.delegate = delegate;
       this.delayLimiter = delayLimiter;
       this.input = input;
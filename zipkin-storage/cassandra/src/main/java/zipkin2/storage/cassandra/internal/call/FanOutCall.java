@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.internal.BlockingCallback;
+
+/**
+ * Invokes a call per input, with at most {@code concurrency} in flight, and adds each result to a
+ * shared list as it arrives. This lets requests route to the replicas of each partition, and
+ * avoids one coordinator gathering all partitions for a multi-partition query.
+ *
+ * <p>The first error fails the call and cancels the others.
+ */
+public final class FanOutCall<I, E> extends Call.Base<List<E>> {
+  final List<I> inputs;
+  final Function<I, Call<List<E>>> newCall;
+  final int concurrency;
+  volatile Flight flight;
+
+  public FanOutCall(List<I> inputs, Function<I, Call<List<E>>> newCall, int concurrency) {
+    if (concurrency <= 0) throw new IllegalArgumentException("concurrency <= 0");
+    this.inputs = inputs;
+    this.newCall = newCall;
+    this.concurrency = concurrency;
+  }
+
+  @Override protected List<E> doExecute() throws IOException {
+    BlockingCallback<List<E>> callback = new BlockingCallback<>();
+    doEnqueue(callback);
+    return callback.await();
+  }
+
+  @Override protected void doEnqueue(Callback<List<E>> callback) {
+    if (inputs.isEmpty()) {
+      callback.onSuccess(new ArrayList<>());
+      return;
+    }
+    Flight flight = new Flight(callback);
+    this.flight = flight;
+    flight.drain();
+  }
+
+  @Override protected void doCancel() {
+    Flight flight = this.flight;
+    if (flight != null) flight.cancel();
+  }
+
+  @Override public FanOutCall<I, E> clone() {
+    return new FanOutCall<>(inputs, newCall, concurrency);
+  }
+
+  @Override public String toString() {
+    return "FanOutCall{inputs=" + inputs.size() + ", concurrency=" + concurrency + "}";
+  }
+
+  final class Flight {
+    final Callback<List<E>> callback;
+    final AtomicInteger wip = new AtomicInteger();
+    final List<E> result = new ArrayList<>(); // guarded by this
+    final List<Call<List<E>>> inFlight = new ArrayList<>(); // guarded by this
+    int next, completed; // guarded by this
+    boolean done; // guarded by this
+
+    Flight(Callback<List<E>> callback) {
+      this.callback = callback;
+    }
+
+    /** Starts calls until at the concurrency limit, without recursing on synchronous completion */
+    void drain() {
+      if (wip.getAndIncrement() != 0) return;
+      do {
+        Call<List<E>> call;
+        while ((call = nextCall()) != null) {
+          Call<List<E>> started = call;
+          started.enqueue(new Callback<List<E>>() {
+            @Override public void onSuccess(List<E> value) {
+              complete(started, value, null);
+            }
+
+            @Override public void onError(Throwable t) {
+              complete(started, null, t);
+            }
+          });
+        }
+      } while (wip.decrementAndGet() != 0);
+    }
+
+    synchronized Call<List<E>> nextCall() {
+      if (done || next == inputs.size() || inFlight.size() == concurrency) return null;
+      Call<List<E>> call = newCall.apply(inputs.get(next++));
+      inFlight.add(call);
+      return call;
+    }
+
+    void complete(Call<List<E>> call, List<E> value, Throwable error) {
+      List<Call<List<E>>> toCancel = null;
+      boolean success = false;
+      synchronized (this) {
+        if (done) return;
+        inFlight.remove(call);
+        if (error != null) {
+          done = true;
+          toCancel = new ArrayList<>(inFlight);
+        } else {
+          result.addAll(value);
+          success = done = ++completed == inputs.size();
+        }
+      }
+      if (toCancel != null) {
+        for (Call<List<E>> other : toCancel) other.cancel();
+        callback.onError(error);
+      } else if (success) {
+        callback.onSuccess(result);
+      } else {
+        drain();
+      }
+    }
+
+    void cancel() {
+      List<Call<List<E>>> toCancel;
+      synchronized (this) {
+        if (done) return;
+        done = true;
+        toCancel = new ArrayList<>(inFlight);
+      }
+      for (Call<List<E>> call : toCancel) call.cancel();
+    }
+  }
+}
@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 import zipkin2.Call;
 import zipkin2.internal.AggregateCall;
+import zipkin2.internal.PartialResult;
 
 public final class IntersectMaps<K, V> extends AggregateCall<Map<K, V>, Map<K, V>> {
 
@@ -44,6 +45,10 @@ public final class IntersectMaps<K, V> extends AggregateCall<Map<K, V>, Map<K, V
     return output.isEmpty();
   }
 
+  @Override protected Map<K, V> partial(Map<K, V> output) {
+    return PartialResult.map(output);
+  }
+
   @Override public IntersectMaps<K, V> clone() {
     return new IntersectMaps<>(cloneCalls());
   }
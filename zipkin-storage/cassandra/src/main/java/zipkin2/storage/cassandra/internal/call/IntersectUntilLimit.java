@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.internal.AggregateCall;
+import zipkin2.internal.BlockingCallback;
+import zipkin2.internal.PartialResult;
+
+/**
+ * Like {@link IntersectMaps}, except the calls are re-created with a larger fetch size when fewer
+ * than {@code limit} keys are in common. The value of each key is the largest of the inputs, for
+ * example the newest timestamp a trace ID was indexed at.
+ *
+ * <p>This is used to intersect trace index queries, which return at most the fetch size rows each.
+ * Instead of over-fetching every query by a large factor up front, a larger fetch is only made
+ * when the intersection runs short. Fetching stops once {@code maxFetchSize} is reached, any call
+ * returned nothing, or a larger fetch found no new keys.
+ */
+public final class IntersectUntilLimit<K, V extends Comparable<V>> extends Call.Base<Map<K, V>> {
+  final IntFunction<List<Call<Map<K, V>>>> newCalls;
+  final int limit, fetchSize, maxFetchSize;
+  final List<Call<Map<K, V>>> calls; // the first round, created eagerly for toString
+  volatile Call<List<Map<K, V>>> round;
+
+  /**
+   * @param newCalls creates the calls to intersect, given a fetch size
+   * @param limit the amount of keys which avoids fetching again
+   * @param fetchSize the fetch size of the first round of calls
+   * @param maxFetchSize the largest fetch size to pass to {@code newCalls}
+   */
+  public IntersectUntilLimit(IntFunction<List<Call<Map<K, V>>>> newCalls, int limit,
+    int fetchSize, int maxFetchSize) {
+    if (limit <= 0) throw new IllegalArgumentException("limit <= 0");
+    if (fetchSize <= 0) throw new IllegalArgumentException("fetchSize <= 0");
+    if (maxFetchSize < fetchSize) throw new IllegalArgumentException("maxFetchSize < fetchSize");
+    this.newCalls = newCalls;
+    this.limit = limit;
+    this.fetchSize = fetchSize;
+    this.maxFetchSize = maxFetchSize;
+    this.calls = newCalls.apply(fetchSize);
+  }
+
+  @Override protected Map<K, V> doExecute() throws IOException {
+    BlockingCallback<Map<K, V>> callback = new BlockingCallback<>();
+    doEnqueue(callback);
+    return callback.await();
+  }
+
+  @Override protected void doEnqueue(Callback<Map<K, V>> callback) {
+    enqueueRound(calls, fetchSize, -1, callback);
+  }
+
+  void enqueueRound(List<Call<Map<K, V>>> calls, int fetchSize, int previousKeyCount,
+    Callback<Map<K, V>> callback) {
+    Call<List<Map<K, V>>> round = new CollectInputs<>(calls);
+    this.round = round;
+    round.enqueue(new Callback<List<Map<K, V>>>() {
+      @Override public void onSuccess(List<Map<K, V>> inputs) {
+        Map<K, V> result = intersect(inputs);
+        int keyCount = keyCount(inputs);
+        int nextFetchSize = nextFetchSize(result.size(), keyCount, previousKeyCount, fetchSize);
+        if (nextFetchSize == 0 || isCanceled()) {
+          callback.onSuccess(PartialResult.isPartial(inputs) ? PartialResult.map(result) : result);
+          return;
+        }
+        List<Call<Map<K, V>>> nextCalls;
+        try {
+          nextCalls = newCalls.apply(nextFetchSize);
+        } catch (RuntimeException | Error e) {
+          callback.onError(e);
+          return;
+        }
+        enqueueRound(nextCalls, nextFetchSize, keyCount, callback);
+      }
+
+      @Override public void onError(Throwable t) {
+        callback.onError(t);
+      }
+    });
+  }
+
+  /** Returns zero when the intersection shouldn't be fetched again. */
+  int nextFetchSize(int resultSize, int keyCount, int previousKeyCount, int fetchSize) {
+    if (resultSize >= limit || fetchSize >= maxFetchSize) return 0;
+    if (keyCount == -1 || keyCount <= previousKeyCount) return 0; // no more keys to find
+    return (int) Math.min((long) fetchSize * 2, maxFetchSize);
+  }
+
+  /** Returns the count of keys in all inputs, or -1 if any input is empty. */
+  static int keyCount(List<? extends Map<?, ?>> inputs) {
+    int result = 0;
+    for (Map<?, ?> input : inputs) {
+      if (input.isEmpty()) return -1;
+      result += input.size();
+    }
+    return result;
+  }
+
+  static <K, V extends Comparable<V>> Map<K, V> intersect(List<Map<K, V>> inputs) {
+    Map<K, V> result = new LinkedHashMap<>(inputs.get(0));
+    for (int i = 1, length = inputs.size(); i < length; i++) {
+      Map<K, V> input = inputs.get(i);
+      for (Iterator<Map.Entry<K, V>> entries = result.entrySet().iterator(); entries.hasNext(); ) {
+        Map.Entry<K, V> entry = entries.next();
+        V value = input.get(entry.getKey());
+        if (value == null) {
+          entries.remove();
+        } else if (value.compareTo(entry.getValue()) > 0) {
+          entry.setValue(value);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override protected void doCancel() {
+    Call<List<Map<K, V>>> round = this.round;
+    if (round != null) round.cancel();
+  }
+
+  @Override public IntersectUntilLimit<K, V> clone() {
+    return new IntersectUntilLimit<>(newCalls, limit, fetchSize, maxFetchSize);
+  }
+
+  @Override public String toString() {
+    return "IntersectUntilLimit{calls=" + calls + ", limit=" + limit + ", fetchSize=" + fetchSize
+      + ", maxFetchSize=" + maxFetchSize + "}";
+  }
+
+  /** Collects the inputs in completion order. */
+  static final class CollectInputs<K, V> extends AggregateCall<Map<K, V>, List<Map<K, V>>> {
+    CollectInputs(List<Call<Map<K, V>>> calls) {
+      super(calls);
+    }
+
+    @Override protected List<Map<K, V>> newOutput() {
+      return new ArrayList<>();
+    }
+
+    @Override protected void append(Map<K, V> input, List<Map<K, V>> output) {
+      output.add(input);
+    }
+
+    @Override protected boolean isEmpty(List<Map<K, V>> output) {
+      return output.isEmpty();
+    }
+
+    @Override protected List<Map<K, V>> partial(List<Map<K, V>> output) {
+      return PartialResult.list(output);
+    }
+
+    @Override public CollectInputs<K, V> clone() {
+      return new CollectInputs<>(cloneCalls());
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.internal.BlockingCallback;
+import zipkin2.internal.PartialResult;
+
+/**
+ * Like {@link AggregateIntoMap}, except calls are invoked in order, at most {@code concurrency} at
+ * a time, until the result has at least {@code minSize} entries. The remaining calls are never
+ * invoked, and any still in flight are canceled.
+ *
+ * <p>This is used to read time buckets newest first, so that older buckets are only read when the
+ * younger ones don't satisfy the query limit. It is also used to read the most likely services
+ * first, when a search doesn't include a service name.
+ *
+ * <p>When skipping timeouts, the call still fails if every invoked call timed out.
+ */
+public final class LazyAggregateIntoMap<K, V> extends Call.Base<Map<K, V>> {
+  final List<Call<Map<K, V>>> calls;
+  final int minSize, concurrency;
+  final boolean skipTimeouts;
+  volatile Flight flight;
+
+  /** Invokes one call at a time. */
+  public LazyAggregateIntoMap(List<Call<Map<K, V>>> calls, int minSize, boolean skipTimeouts) {
+    this(calls, minSize, 1, skipTimeouts);
+  }
+
+  /**
+   * @param skipTimeouts when true, calls that time out are skipped, and the result is a {@link
+   * PartialResult} of the others.
+   */
+  public LazyAggregateIntoMap(List<Call<Map<K, V>>> calls, int minSize, int concurrency,
+    boolean skipTimeouts) {
+    if (minSize <= 0) throw new IllegalArgumentException("minSize <= 0");
+    if (concurrency <= 0) throw new IllegalArgumentException("concurrency <= 0");
+    this.calls = calls;
+    this.minSize = minSize;
+    this.concurrency = concurrency;
+    this.skipTimeouts = skipTimeouts;
+  }
+
+  @Override protected Map<K, V> doExecute() throws IOException {
+    BlockingCallback<Map<K, V>> callback = new BlockingCallback<>();
+    doEnqueue(callback);
+    return callback.await();
+  }
+
+  @Override protected void doEnqueue(Callback<Map<K, V>> callback) {
+    if (calls.isEmpty()) {
+      callback.onSuccess(new LinkedHashMap<>());
+      return;
+    }
+    Flight flight = new Flight(callback);
+    this.flight = flight;
+    flight.drain();
+  }
+
+  @Override protected void doCancel() {
+    Flight flight = this.flight;
+    if (flight != null) flight.cancel();
+  }
+
+  boolean isSkippable(Throwable error) {
+    return skipTimeouts && ResultSetFutureCall.isTimeout(error);
+  }
+
+  @Override public LazyAggregateIntoMap<K, V> clone() {
+    List<Call<Map<K, V>>> clones = new ArrayList<>(calls.size());
+    for (Call<Map<K, V>> call : calls) clones.add(call.clone());
+    return new LazyAggregateIntoMap<>(clones, minSize, concurrency, skipTimeouts);
+  }
+
+  @Override public String toString() {
+    return "LazyAggregateIntoMap{calls=" + calls + ", minSize=" + minSize
+      + (concurrency > 1 ? ", concurrency=" + concurrency : "") + "}";
+  }
+
+  final class Flight {
+    final Callback<Map<K, V>> callback;
+    final AtomicInteger wip = new AtomicInteger();
+    final Map<K, V> output = new LinkedHashMap<>(); // guarded by this
+    final List<Call<Map<K, V>>> inFlight = new ArrayList<>(); // guarded by this
+    int next, completed; // guarded by this
+    boolean done, partial, succeeded; // guarded by this
+
+    Flight(Callback<Map<K, V>> callback) {
+      this.callback = callback;
+    }
+
+    /** Starts calls until at the concurrency limit, without recursing on synchronous completion */
+    void drain() {
+      if (wip.getAndIncrement() != 0) return;
+      do {
+        Call<Map<K, V>> call;
+        while ((call = nextCall()) != null) {
+          Call<Map<K, V>> started = call;
+          started.enqueue(new Callback<Map<K, V>>() {
+            @Override public void onSuccess(Map<K, V> value) {
+              complete(started, value, null);
+            }
+
+            @Override public void onError(Throwable t) {
+              complete(started, null, t);
+            }
+          });
+        }
+      } while (wip.decrementAndGet() != 0);
+    }
+
+    synchronized Call<Map<K, V>> nextCall() {
+      if (done || next == calls.size() || inFlight.size() == concurrency) return null;
+      Call<Map<K, V>> call = calls.get(next++);
+      inFlight.add(call);
+      return call;
+    }
+
+    void complete(Call<Map<K, V>> call, Map<K, V> value, Throwable error) {
+      List<Call<Map<K, V>>> toCancel = null; // non-null when this completes the flight
+      Map<K, V> result = null;
+      synchronized (this) {
+        if (done) return;
+        inFlight.remove(call);
+        completed++;
+        if (error == null) {
+          if (PartialResult.isPartial(value)) partial = true;
+          output.putAll(value);
+          succeeded = true;
+        } else if (isSkippable(error) && (succeeded || completed < calls.size())) {
+          partial = true;
+          error = null;
+        }
+
+        if (error != null || output.size() >= minSize || completed == calls.size()) {
+          done = true;
+          toCancel = new ArrayList<>(inFlight);
+          if (error == null) result = partial ? PartialResult.map(output) : output;
+        }
+      }
+      if (toCancel == null) {
+        drain();
+        return;
+      }
+      for (Call<Map<K, V>> other : toCancel) other.cancel();
+      if (error != null) {
+        callback.onError(error);
+      } else {
+        callback.onSuccess(result);
+      }
+    }
+
+    void cancel() {
+      List<Call<Map<K, V>>> toCancel;
+      synchronized (this) {
+        if (done) return;
+        done = true;
+        toCancel = new ArrayList<>(inFlight);
+      }
+      for (Call<Map<K, V>> call : toCancel) call.cancel();
+    }
+  }
+}
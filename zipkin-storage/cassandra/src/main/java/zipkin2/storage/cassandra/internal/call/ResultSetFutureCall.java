@@ -19,7 +19,9 @@ import com.datastax.driver.core.exceptions.BusyConnectionException;
 import com.datastax.driver.core.exceptions.BusyPoolException;
 import com.datastax.driver.core.exceptions.DriverException;
 import com.datastax.driver.core.exceptions.DriverInternalError;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
 import com.datastax.driver.core.exceptions.QueryConsistencyException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Uninterruptibles;
 import java.util.concurrent.ExecutionException;
@@ -85,6 +87,11 @@ public abstract class ResultSetFutureCall<V> extends Call.Base<V>
       e instanceof BusyPoolException;
   }
 
+  /** Returns true if a read exceeded the client's read timeout or the coordinator's. */
+  public static boolean isTimeout(Throwable e) {
+    return e instanceof OperationTimedOutException || e instanceof ReadTimeoutException;
+  }
+
   static ResultSet getUninterruptibly(ListenableFuture<ResultSet> future) {
     if (future instanceof ResultSetFuture) {
       return ((ResultSetFuture) future).getUninterruptibly();
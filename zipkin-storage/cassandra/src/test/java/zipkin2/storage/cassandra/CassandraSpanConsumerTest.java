@@ -13,6 +13,7 @@
  */
 package zipkin2.storage.cassandra;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import org.assertj.core.api.AbstractListAssert;
@@ -21,9 +22,11 @@ import org.junit.Test;
 import org.mockito.Mockito;
 import zipkin2.Call;
 import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.storage.cassandra.internal.call.DeduplicatingVoidCallFactory;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.tuple;
@@ -251,6 +254,125 @@ public class CassandraSpanConsumerTest {
       .isInstanceOf(ResultSetFutureCall.class);
   }
 
+  @Test public void batchPerPartition_groupsSpansOfTheSameTrace() {
+    consumer = spanConsumer(CassandraStorage.newBuilder().batchPerPartition(true));
+
+    Span span = spanWithoutAnnotationsOrTags;
+    Call<Void> call = consumer.accept(asList(span, span.toBuilder().id("2").build(),
+      span.toBuilder().traceId("b").build()));
+
+    assertEnclosedCalls(call)
+      .filteredOn(c -> c instanceof InsertBatch && c.toString().contains("InsertSpan"))
+      .flatExtracting("inserts")
+      .extracting("input.trace_id", "input.id")
+      .containsExactly(tuple("000000000000000a", "0000000000000001"),
+        tuple("000000000000000a", "0000000000000002"));
+
+    assertEnclosedCalls(call)
+      .filteredOn(c -> c instanceof InsertSpan)
+      .extracting("input.trace_id")
+      .containsExactly("000000000000000b");
+  }
+
+  /** The same service and span name in the same bucket is the same index partition. */
+  @Test public void batchPerPartition_groupsTraceByServiceSpan() {
+    consumer = spanConsumer(CassandraStorage.newBuilder().batchPerPartition(true));
+
+    Span span = spanWithoutAnnotationsOrTags;
+    Call<Void> call = consumer.accept(asList(span, span.toBuilder().traceId("b").build()));
+
+    // one batch with the span name, and another without it
+    assertEnclosedCalls(call)
+      .filteredOn(c -> c instanceof InsertBatch && c.toString().contains("ByServiceSpan"))
+      .extracting(c -> ((InsertBatch) c).inserts.size())
+      .containsExactly(2, 2);
+  }
+
+  @Test public void batchPerPartition_boundsStatements() {
+    consumer = spanConsumer(CassandraStorage.newBuilder().batchPerPartition(true)
+      .searchEnabled(false));
+
+    List<Span> spans = new ArrayList<>();
+    for (int i = 1; i <= InsertBatch.MAX_STATEMENTS + 1; i++) {
+      spans.add(spanWithoutAnnotationsOrTags.toBuilder().id(i).build());
+    }
+
+    assertEnclosedCalls(consumer.accept(spans))
+      .extracting(c -> c instanceof InsertBatch ? ((InsertBatch) c).inserts.size() : 1)
+      .containsExactly(InsertBatch.MAX_STATEMENTS, 1);
+  }
+
+  @Test public void indexCache_skipsRedundantTraceIndexRowsAcrossCalls() {
+    consumer = spanConsumer(CassandraStorage.newBuilder().indexCacheMax(1000));
+
+    consumer.accept(singletonList(spanWithoutAnnotationsOrTags));
+    Span child = spanWithoutAnnotationsOrTags.toBuilder().id("2")
+      .timestamp(spanWithoutAnnotationsOrTags.timestampAsLong() + 1000L)
+      .duration(100000L)
+      .build();
+    Call<Void> call = consumer.accept(singletonList(child));
+
+    // the child is within the duration of the first span, but widens the timestamp interval
+    assertEnclosedCalls(call)
+      .filteredOn(c -> c instanceof InsertTraceByServiceSpan)
+      .hasSize(2);
+
+    // names were also written, so only the span remains
+    call = consumer.accept(singletonList(child.toBuilder().id("3").build()));
+
+    assertThat(call).isInstanceOf(InsertSpan.class);
+  }
+
+  @Test public void indexCache_disabledByDefault() {
+    assertThat(consumer.indexCache).isNull();
+  }
+
+  @Test public void serviceSearchConcurrency_ranksServices() {
+    consumer = spanConsumer(CassandraStorage.newBuilder().serviceSearchConcurrency(4));
+
+    consumer.accept(asList(spanWithoutAnnotationsOrTags,
+      spanWithoutAnnotationsOrTags.toBuilder().localEndpoint(BACKEND).build(),
+      spanWithoutAnnotationsOrTags.toBuilder().id("2").localEndpoint(BACKEND).build()));
+
+    assertThat(consumer.serviceRanking.map(asList("frontend", "backend")))
+      .containsExactly("backend", "frontend");
+  }
+
+  @Test public void serviceSearchConcurrency_disabledByDefault() {
+    assertThat(consumer.serviceRanking).isNull();
+  }
+
+  @Test public void dependencyAggregation_disabledByDefault() {
+    assertThat(consumer.dependencyAggregator).isNull();
+  }
+
+  @Test public void spanProto3_disabledByDefault() {
+    Call<Void> call = consumer.accept(singletonList(spanWithoutAnnotationsOrTags));
+
+    assertEnclosedCalls(call)
+      .filteredOn(c -> c instanceof InsertSpan)
+      .extracting("input.span_proto3")
+      .containsExactly((Object) null);
+  }
+
+  @Test public void spanProto3_writesBlobAndSearchColumns() {
+    consumer = spanConsumer(CassandraStorage.newBuilder().spanProto3(true));
+    Span span = spanWithoutAnnotationsOrTags.toBuilder().putTag("error", "").build();
+
+    Call<Void> call = consumer.accept(singletonList(span));
+
+    InsertSpan.Input input = ((List<? extends Call<Void>>) EXTRACTION.getValueOf("calls", call))
+      .stream().filter(InsertSpan.class::isInstance).map(c -> ((InsertSpan) c).input)
+      .findFirst().get();
+    assertThat(SpanBytesDecoder.PROTO3.decodeOne(input.span_proto3())).isEqualTo(span);
+    assertThat(input.l_ep()).isNull();
+    assertThat(input.tags()).isEmpty();
+    assertThat(input.l_service()).isEqualTo(FRONTEND.serviceName());
+    assertThat(input.annotation_query()).contains("error");
+    assertThat(input.ts()).isEqualTo(span.timestampAsLong());
+    assertThat(input.duration()).isEqualTo(span.durationAsLong());
+  }
+
   static AbstractListAssert<?, List<? extends Call<Void>>, Call<Void>, ObjectAssert<Call<Void>>>
   assertEnclosedCalls(Call<Void> call) {
     return
@@ -13,15 +13,22 @@
  */
 package zipkin2.storage.cassandra;
 
+import com.datastax.driver.core.utils.UUIDs;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import org.junit.Test;
 import org.mockito.Mockito;
 import zipkin2.Call;
 import zipkin2.Span;
 import zipkin2.storage.QueryRequest;
 import zipkin2.storage.cassandra.SelectTraceIdsFromServiceSpan.Factory.FlatMapServicesToInputs;
+import zipkin2.storage.cassandra.internal.call.FanOutCall;
+import zipkin2.storage.cassandra.internal.call.AggregateIntoMap;
+import zipkin2.storage.cassandra.internal.call.LazyAggregateIntoMap;
 
+import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static zipkin2.TestObjects.DAY;
@@ -107,6 +114,78 @@ public class CassandraSpanStoreTest {
       .contains("service=frontend, span=get,");
   }
 
+  @Test public void getTraces_withTagAndSpanName_intersectsUntilLimit() {
+    Call<List<List<Span>>> call = spanStore.getTraces(queryBuilder.serviceName("frontend")
+      .spanName("get").annotationQuery(Collections.singletonMap("error", "")).build());
+
+    assertThat(call.toString())
+      .contains("IntersectUntilLimit{")
+      .contains("annotation_query=error")
+      .contains("service=frontend, span=get,")
+      .contains("limit=5, fetchSize=15, maxFetchSize=120}");
+  }
+
+  @Test public void newBucketedTraceIdCall_readsOlderDaysLazily() {
+    Call<Map<String, Long>> call = spanStore.newBucketedTraceIdCall(
+      queryBuilder.serviceName("frontend").build(), sevenDays(), 15, true);
+
+    assertThat(call.toString())
+      .contains(LazyAggregateIntoMap.class.getSimpleName())
+      .contains("minSize=5");
+  }
+
+  @Test public void newBucketedTraceIdCall_readsOlderDaysLazily_withoutServiceName() {
+    Call<Map<String, Long>> call = spanStore.newBucketedTraceIdCall(
+      queryBuilder.build(), sevenDays(), 15, true);
+
+    assertThat(call.toString())
+      .contains(FlatMapServicesToInputs.class.getSimpleName())
+      .contains("LazyBucketsFlatMapper");
+  }
+
+  @Test public void newBucketedTraceIdCall_readsAllDaysWhenNotLazy() {
+    Call<Map<String, Long>> call = spanStore.newBucketedTraceIdCall(
+      queryBuilder.serviceName("frontend").build(), sevenDays(), 15, false);
+
+    assertThat(call).isInstanceOf(AggregateIntoMap.class);
+  }
+
+  @Test public void newBucketedTraceIdCall_ranksServices() {
+    CassandraSpanStore spanStore =
+      spanStore(CassandraStorage.newBuilder().serviceSearchConcurrency(4));
+
+    Call<Map<String, Long>> call =
+      spanStore.newBucketedTraceIdCall(queryBuilder.build(), sevenDays(), 15, true);
+
+    assertThat(call.toString())
+      .contains(ServiceRanking.class.getSimpleName())
+      .contains("RankedServicesFlatMapper")
+      .contains("concurrency=4");
+  }
+
+  @Test public void newBucketedTraceIdCall_ranksServices_notWhenIntersecting() {
+    CassandraSpanStore spanStore =
+      spanStore(CassandraStorage.newBuilder().serviceSearchConcurrency(4));
+
+    Call<Map<String, Long>> call =
+      spanStore.newBucketedTraceIdCall(queryBuilder.build(), sevenDays(), 15, false);
+
+    assertThat(call.toString())
+      .doesNotContain(ServiceRanking.class.getSimpleName())
+      .doesNotContain("RankedServicesFlatMapper");
+  }
+
+  @Test public void newBucketedTraceIdCall_ranksServices_notWithSpanAndRemoteServiceName() {
+    CassandraSpanStore spanStore =
+      spanStore(CassandraStorage.newBuilder().serviceSearchConcurrency(4));
+
+    Call<Map<String, Long>> call = spanStore.newBucketedTraceIdCall(
+      queryBuilder.spanName("get").remoteServiceName("backend").build(), sevenDays(), 15, true);
+
+    assertThat(call.toString())
+      .doesNotContain("RankedServicesFlatMapper");
+  }
+
   @Test public void searchDisabled_doesntMakeRemoteQueryRequests() {
     CassandraSpanStore spanStore = spanStore(CassandraStorage.newBuilder().searchEnabled(false));
 
@@ -116,6 +195,40 @@ public class CassandraSpanStoreTest {
     assertThat(spanStore.getSpanNames("icecream")).hasToString("ConstantCall{value=[]}");
   }
 
+  @Test public void getTraces_byIds_multiPartitionQueryByDefault() {
+    assertThat(spanStore.getTraces(asList("1", "2")).toString())
+      .contains(SelectFromSpan.class.getSimpleName())
+      .doesNotContain(FanOutCall.class.getSimpleName());
+  }
+
+  @Test public void getTraces_byIds_traceReadConcurrency() {
+    CassandraSpanStore spanStore =
+      spanStore(CassandraStorage.newBuilder().traceReadConcurrency(2));
+
+    assertThat(spanStore.getTraces(asList("1", "2", "3")).toString())
+      .contains("FanOutCall{inputs=3, concurrency=2}");
+  }
+
+  /** maxTraceCols bounds the whole read, even when each trace is a separate query. */
+  @Test public void traceReadConcurrency_dividesMaxTraceCols() {
+    CassandraSpanStore spanStore =
+      spanStore(CassandraStorage.newBuilder().traceReadConcurrency(2).maxTraceCols(100));
+
+    assertThat(spanStore.spans.partitionLimit(new LinkedHashSet<>(asList("1", "2", "3"))))
+      .isEqualTo(33);
+    assertThat(spanStore.spans.partitionLimit(Collections.singleton("1")))
+      .isEqualTo(100);
+  }
+
+  static CassandraSpanStore.TimestampRange sevenDays() {
+    CassandraSpanStore.TimestampRange result = new CassandraSpanStore.TimestampRange();
+    result.startMillis = TODAY - 7 * DAY;
+    result.startUUID = UUIDs.startOf(result.startMillis);
+    result.endMillis = TODAY;
+    result.endUUID = UUIDs.endOf(result.endMillis);
+    return result;
+  }
+
   static CassandraSpanStore spanStore(CassandraStorage.Builder builder) {
     return new CassandraSpanStore(
       builder
@@ -23,6 +23,7 @@ import org.junit.rules.ExpectedException;
 import zipkin2.Span;
 import zipkin2.TestObjects;
 import zipkin2.internal.DateUtil;
+import zipkin2.internal.PartialResult;
 import zipkin2.storage.QueryRequest;
 
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -149,6 +150,15 @@ public class CassandraUtilTest {
     }
   }
 
+  @Test
+  public void traceIdsSortedByDescTimestamp_retainsPartial() {
+    Set<String> sortedTraceIds = CassandraUtil.traceIdsSortedByDescTimestamp()
+      .map(PartialResult.map(ImmutableMap.of("a", 1L, "c", 2L)));
+
+    assertThat(sortedTraceIds).containsExactly("c", "a");
+    assertThat(PartialResult.isPartial(sortedTraceIds)).isTrue();
+  }
+
   @Test
   public void getDays_consistentWithDateUtil() {
     assertThat(CassandraUtil.getDays(DAYS.toMillis(2), DAYS.toMillis(1)))
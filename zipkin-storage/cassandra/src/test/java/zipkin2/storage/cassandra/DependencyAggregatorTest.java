@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.LocalDate;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.DependencyLink;
+import zipkin2.Span;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.BACKEND;
+import static zipkin2.TestObjects.DAY;
+import static zipkin2.TestObjects.FRONTEND;
+import static zipkin2.TestObjects.TODAY;
+
+public class DependencyAggregatorTest {
+  static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  Span client = Span.newBuilder().traceId("7180c278b62e8f6a216a2aea45d08fc9").id("1")
+    .kind(Span.Kind.CLIENT).localEndpoint(FRONTEND).remoteEndpoint(BACKEND)
+    .timestamp(TODAY * 1000L).duration(10L).build();
+  Span server = Span.newBuilder().traceId("216a2aea45d08fc9").id("1").shared(true)
+    .kind(Span.Kind.SERVER).localEndpoint(BACKEND).remoteEndpoint(FRONTEND)
+    .timestamp(TODAY * 1000L + 1).duration(8L).build();
+
+  Session session = mock(Session.class);
+  BoundStatement select = mock(BoundStatement.class, RETURNS_SELF);
+  BoundStatement insert = mock(BoundStatement.class, RETURNS_SELF);
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  long nanoTime;
+  DependencyAggregator aggregator = newAggregator(true);
+
+  @Test public void drain_waitsForQuietTraces() {
+    aggregator.accept(asList(client));
+
+    nanoTime += INTERVAL_NANOS - 1;
+    assertThat(aggregator.drain(false)).isEmpty();
+
+    nanoTime += 1;
+    assertThat(aggregator.drain(false))
+      .containsOnlyKeys(LocalDate.fromMillisSinceEpoch(TODAY));
+    assertThat(aggregator.pending).isEmpty();
+    assertThat(aggregator.pendingSpans).hasValue(0);
+  }
+
+  @Test public void drain_laterSpanDelaysTrace() {
+    aggregator.accept(asList(client));
+    nanoTime += INTERVAL_NANOS - 1;
+    aggregator.accept(asList(server.toBuilder().traceId(client.traceId()).build()));
+
+    nanoTime += 1;
+    assertThat(aggregator.drain(false)).isEmpty();
+    assertThat(aggregator.drain(true)).isNotEmpty();
+  }
+
+  @Test public void drain_linksByDayOfEarliestTimestamp() {
+    Span yesterday = client.toBuilder().traceId("1").timestamp((TODAY - DAY) * 1000L).build();
+    aggregator.accept(asList(client, yesterday));
+
+    assertThat(aggregator.drain(true)).containsOnlyKeys(
+      LocalDate.fromMillisSinceEpoch(TODAY), LocalDate.fromMillisSinceEpoch(TODAY - DAY));
+  }
+
+  @Test public void drain_strictTraceId_linksTraceIdsSeparately() {
+    aggregator.accept(asList(client, server));
+
+    assertThat(aggregator.drain(true).get(LocalDate.fromMillisSinceEpoch(TODAY)))
+      .extracting(DependencyLink::callCount)
+      .containsExactly(2L); // the client and server spans each count as a call
+  }
+
+  @Test public void drain_strictTraceIdFalse_linksTraceIdsTogether() {
+    aggregator = newAggregator(false);
+    aggregator.accept(asList(client, server));
+
+    assertThat(aggregator.drain(true).get(LocalDate.fromMillisSinceEpoch(TODAY)))
+      .containsExactly(DependencyLink.newBuilder()
+        .parent(FRONTEND.serviceName()).child(BACKEND.serviceName()).callCount(1L).build());
+  }
+
+  @Test public void accept_countsBufferedSpans() {
+    aggregator.accept(asList(client, server));
+
+    assertThat(registry.get(DependencyAggregator.NAME).tag("result", "buffered").counter()
+      .count()).isEqualTo(2);
+  }
+
+  @Test public void flush_addsToStoredCounts() {
+    ResultSet resultSet = mock(ResultSet.class);
+    Row row = mock(Row.class);
+    when(session.execute(select)).thenReturn(resultSet);
+    when(resultSet.one()).thenReturn(row);
+    when(row.getLong("calls")).thenReturn(3L);
+    when(row.getLong("errors")).thenReturn(1L);
+
+    aggregator.accept(asList(client));
+    aggregator.flush(true);
+
+    verify(insert).setLong("calls", 4L);
+    verify(insert).setLong("errors", 1L);
+    verify(session).execute(insert);
+  }
+
+  @Test public void flush_insertsNewCounts() {
+    when(session.execute(select)).thenReturn(mock(ResultSet.class));
+
+    aggregator.accept(asList(client));
+    aggregator.flush(true);
+
+    verify(insert).setLong("calls", 1L);
+    verify(insert).setLong("errors", 0L);
+  }
+
+  DependencyAggregator newAggregator(boolean strictTraceId) {
+    PreparedStatement selectStatement = mock(PreparedStatement.class);
+    PreparedStatement insertStatement = mock(PreparedStatement.class);
+    when(selectStatement.bind()).thenReturn(select);
+    when(insertStatement.bind()).thenReturn(insert);
+    when(session.prepare(any(RegularStatement.class))) // prepared in this order
+      .thenReturn(selectStatement, insertStatement);
+    return new DependencyAggregator(session, strictTraceId, 10, registry) {
+      @Override long nanoTime() {
+        return nanoTime;
+      }
+    };
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import zipkin2.internal.Nullable;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Speaks enough of the CQL native protocol (v4) for the driver to connect to one node and execute
+ * prepared statements. This allows tests to exercise the driver's retry and error paths, such as
+ * read timeouts, which are impractical to trigger on a real server.
+ */
+final class FakeCassandra implements Closeable {
+  /** Decides how to answer an execution of a prepared statement. */
+  interface Executor {
+    /** Returns the response, or null to never respond. */
+    @Nullable Response execute(String query, Map<String, ByteBuffer> values);
+  }
+
+  static final int VARCHAR = 0x000D, INT = 0x0009, BIGINT = 0x0002, UUID_TYPE = 0x000C,
+    TIMEUUID = 0x000F, INET = 0x0010, SET = 0x0022;
+  static final Pattern BIND_MARKER = Pattern.compile(":(\\w+)");
+
+  final Executor executor;
+  final ServerSocket serverSocket;
+  final List<Socket> sockets = new CopyOnWriteArrayList<>();
+  final Map<String, String> preparedQueries = new ConcurrentHashMap<>();
+
+  FakeCassandra(Executor executor) throws IOException {
+    this.executor = executor;
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "fake-cassandra");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  String contactPoint() {
+    return "127.0.0.1:" + serverSocket.getLocalPort();
+  }
+
+  void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        sockets.add(socket);
+        Thread connection = new Thread(() -> serve(socket), "fake-cassandra-connection");
+        connection.setDaemon(true);
+        connection.start();
+      } catch (IOException e) {
+        return; // closed
+      }
+    }
+  }
+
+  void serve(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      while (true) {
+        int version = in.readUnsignedByte() & 0x7F;
+        in.readUnsignedByte(); // flags
+        short stream = in.readShort();
+        int opcode = in.readUnsignedByte();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        Response response = version != 4
+          ? Response.error(0x000A, "Invalid or unsupported protocol version")
+          : respond(opcode, ByteBuffer.wrap(body));
+        if (response == null) continue;
+        synchronized (out) {
+          out.writeByte(0x80 | version);
+          out.writeByte(0);
+          out.writeShort(stream);
+          out.writeByte(response.opcode);
+          out.writeInt(response.body.length);
+          out.write(response.body);
+          out.flush();
+        }
+      }
+    } catch (IOException e) {
+      // connection closed
+    }
+  }
+
+  @Nullable Response respond(int opcode, ByteBuffer body) {
+    switch (opcode) {
+      case 0x01: // STARTUP
+      case 0x0B: // REGISTER
+        return new Response(0x02, new byte[0]); // READY
+      case 0x05: // OPTIONS
+        return new Response(0x06, write(out -> { // SUPPORTED
+          out.writeShort(1);
+          writeString(out, "CQL_VERSION");
+          out.writeShort(1);
+          writeString(out, "3.4.4");
+        }));
+      case 0x07: // QUERY
+        return query(readLongString(body));
+      case 0x09: // PREPARE
+        return prepare(readLongString(body));
+      case 0x0A: // EXECUTE
+        return execute(body);
+      default:
+        return Response.error(0x000A, "Unsupported opcode " + opcode);
+    }
+  }
+
+  /** Answers the driver's queries of system tables, when it connects. */
+  static Response query(String query) {
+    if (query.contains("system.local")) {
+      InetAddress localhost = InetAddress.getLoopbackAddress();
+      UUID id = new UUID(1L, 1L);
+      return Response.rows(
+        asList("key", "cluster_name", "data_center", "rack", "release_version", "partitioner",
+          "tokens", "host_id", "schema_version", "rpc_address", "broadcast_address",
+          "listen_address"),
+        asList(VARCHAR, VARCHAR, VARCHAR, VARCHAR, VARCHAR, VARCHAR, SET, UUID_TYPE, UUID_TYPE,
+          INET, INET, INET),
+        Collections.singletonList(asList("local", "Test Cluster", "datacenter1", "rack1",
+          "3.11.4", "org.apache.cassandra.dht.Murmur3Partitioner", Collections.singleton("0"),
+          id, id, localhost, localhost, localhost)));
+    }
+    if (query.contains("system.peers_v2")) return Response.error(0x2200, "unconfigured table");
+    return Response.rows(Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+  }
+
+  Response prepare(String query) {
+    String id = Integer.toHexString(query.hashCode());
+    preparedQueries.put(id, query);
+    List<String> names = bindMarkers(query);
+    return new Response(0x08, write(out -> { // RESULT
+      out.writeInt(0x0004); // PREPARED
+      writeShortBytes(out, id.getBytes(StandardCharsets.UTF_8));
+      out.writeInt(0x0001); // global table spec
+      out.writeInt(names.size());
+      out.writeInt(0); // no partition key indexes
+      writeString(out, "zipkin2");
+      writeString(out, "fake");
+      for (String name : names) {
+        writeString(out, name);
+        out.writeShort(bindMarkerType(name));
+      }
+      out.writeInt(0x0004); // no result metadata: it is sent with each result instead
+      out.writeInt(0);
+    }));
+  }
+
+  @Nullable Response execute(ByteBuffer body) {
+    byte[] id = new byte[body.getShort()];
+    body.get(id);
+    String query = preparedQueries.get(new String(id, StandardCharsets.UTF_8));
+    if (query == null) return Response.error(0x2500, "Unprepared"); // UNPREPARED
+    body.getShort(); // consistency
+    int flags = body.get();
+    Map<String, ByteBuffer> values = new LinkedHashMap<>();
+    if ((flags & 0x01) != 0) {
+      List<String> names = bindMarkers(query);
+      for (int i = 0, length = body.getShort(); i < length; i++) {
+        int size = body.getInt();
+        if (size < 0) continue; // null
+        ByteBuffer value = body.slice();
+        value.limit(size);
+        body.position(body.position() + size);
+        values.put(names.get(i), value);
+      }
+    }
+    return executor.execute(query, values);
+  }
+
+  static List<String> bindMarkers(String query) {
+    List<String> result = new ArrayList<>();
+    Matcher matcher = BIND_MARKER.matcher(query);
+    while (matcher.find()) result.add(matcher.group(1));
+    return result;
+  }
+
+  static int bindMarkerType(String name) {
+    switch (name) {
+      case "bucket":
+      case "limit_":
+        return INT;
+      case "start_ts":
+      case "end_ts":
+        return TIMEUUID;
+      case "start_duration":
+      case "end_duration":
+        return BIGINT;
+      default:
+        return VARCHAR;
+    }
+  }
+
+  @Override public void close() throws IOException {
+    serverSocket.close();
+    for (Socket socket : sockets) socket.close();
+  }
+
+  static final class Response {
+    /** Rows of a single page, where each value is a String, Integer, UUID, InetAddress or Set. */
+    static Response rows(List<String> names, List<Integer> types, List<List<Object>> rows) {
+      return new Response(0x08, write(out -> { // RESULT
+        out.writeInt(0x0002); // ROWS
+        out.writeInt(0x0001); // global table spec
+        out.writeInt(names.size());
+        writeString(out, "zipkin2");
+        writeString(out, "fake");
+        for (int i = 0; i < names.size(); i++) {
+          writeString(out, names.get(i));
+          out.writeShort(types.get(i));
+          if (types.get(i) == SET) out.writeShort(VARCHAR);
+        }
+        out.writeInt(rows.size());
+        for (List<Object> row : rows) {
+          for (Object value : row) writeBytes(out, encode(value));
+        }
+      }));
+    }
+
+    /** The coordinator timed out waiting for replicas to respond. */
+    static Response readTimeout() {
+      return new Response(0x00, write(out -> { // ERROR
+        out.writeInt(0x1200); // READ_TIMEOUT
+        writeString(out, "Operation timed out - received only 0 responses.");
+        out.writeShort(0x0001); // ONE
+        out.writeInt(0); // received
+        out.writeInt(1); // blockfor
+        out.writeByte(0); // data_present
+      }));
+    }
+
+    static Response error(int code, String message) {
+      return new Response(0x00, write(out -> {
+        out.writeInt(code);
+        writeString(out, message);
+      }));
+    }
+
+    final int opcode;
+    final byte[] body;
+
+    Response(int opcode, byte[] body) {
+      this.opcode = opcode;
+      this.body = body;
+    }
+  }
+
+  static byte[] encode(Object value) {
+    if (value instanceof String) return ((String) value).getBytes(StandardCharsets.UTF_8);
+    if (value instanceof Integer) return ByteBuffer.allocate(4).putInt((Integer) value).array();
+    if (value instanceof InetAddress) return ((InetAddress) value).getAddress();
+    if (value instanceof UUID) {
+      UUID uuid = (UUID) value;
+      return ByteBuffer.allocate(16)
+        .putLong(uuid.getMostSignificantBits())
+        .putLong(uuid.getLeastSignificantBits())
+        .array();
+    }
+    if (value instanceof Set) {
+      return write(out -> {
+        out.writeInt(((Set<?>) value).size());
+        for (Object element : (Set<?>) value) writeBytes(out, encode(element));
+      });
+    }
+    throw new IllegalArgumentException("unsupported value: " + value);
+  }
+
+  interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  static byte[] write(Writer writer) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      writer.write(new DataOutputStream(bytes));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  static void writeString(DataOutputStream out, String value) throws IOException {
+    writeShortBytes(out, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  static void writeShortBytes(DataOutputStream out, byte[] value) throws IOException {
+    out.writeShort(value.length);
+    out.write(value);
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  static String readLongString(ByteBuffer body) {
+    byte[] bytes = new byte[body.getInt()];
+    body.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
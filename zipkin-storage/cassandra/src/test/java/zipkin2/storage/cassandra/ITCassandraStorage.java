@@ -70,6 +70,30 @@ class ITCassandraStorage {
     }
   }
 
+  @Nested
+  class ITTracesSpanProto3 extends zipkin2.storage.ITTraces<CassandraStorage> {
+    @Override protected boolean initializeStoragePerTest() {
+      return true;
+    }
+
+    @Override protected StorageComponent.Builder newStorageBuilder(TestInfo testInfo) {
+      return backend.computeStorageBuilder().keyspace(InternalForTests.keyspace(testInfo))
+        .spanProto3(true);
+    }
+
+    @Override @Test @Disabled("No consumer-side span deduplication")
+    public void getTrace_deduplicates() {
+    }
+
+    @Override protected void blockWhileInFlight() {
+      ITCassandraStorage.blockWhileInFlight(storage);
+    }
+
+    @Override public void clear() {
+      // Just let the data pile up to prevent warnings and slowness.
+    }
+  }
+
   @Nested
   class ITSpanStore extends zipkin2.storage.ITSpanStore<CassandraStorage> {
     @Override protected boolean initializeStoragePerTest() {
@@ -151,6 +175,26 @@ class ITCassandraStorage {
     }
   }
 
+  @Nested
+  class ITSpanStoreSpanProto3 extends zipkin2.storage.ITSpanStore<CassandraStorage> {
+    @Override protected boolean initializeStoragePerTest() {
+      return true;
+    }
+
+    @Override protected StorageComponent.Builder newStorageBuilder(TestInfo testInfo) {
+      return backend.computeStorageBuilder().keyspace(InternalForTests.keyspace(testInfo))
+        .spanProto3(true);
+    }
+
+    @Override public void clear() {
+      // Just let the data pile up to prevent warnings and slowness.
+    }
+
+    @Override protected void blockWhileInFlight() {
+      ITCassandraStorage.blockWhileInFlight(storage);
+    }
+  }
+
   @Nested
   class ITSearchEnabledFalse extends zipkin2.storage.ITSearchEnabledFalse<CassandraStorage> {
 
@@ -86,6 +86,19 @@ abstract class ITEnsureSchema {
     assertThat(Schema.hasUpgrade2_remoteService(metadata)).isTrue();
   }
 
+  @Test void upgradesOldSchema_spanProto3() {
+    Schema.applyCqlFile(keyspace(), session(), "/zipkin2-schema.cql");
+    Schema.applyCqlFile(keyspace(), session(), "/zipkin2-schema-indexes-original.cql");
+    Schema.applyCqlFile(keyspace(), session(), "/zipkin2-schema-upgrade-1.cql");
+    Schema.applyCqlFile(keyspace(), session(), "/zipkin2-schema-upgrade-2.cql");
+
+    Schema.ensureExists(keyspace(), true, session());
+
+    KeyspaceMetadata metadata = session().getCluster().getMetadata().getKeyspace(keyspace());
+    assertThat(metadata).isNotNull();
+    assertThat(Schema.hasUpgrade3_spanProto3(metadata)).isTrue();
+  }
+
   /** This tests we don't accidentally rely on new indexes such as autocomplete tags */
   @Test void worksWithOldSchema() throws Exception {
     Schema.applyCqlFile(keyspace(), session(), "/zipkin2-schema.cql");
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import com.datastax.driver.core.utils.UUIDs;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.TODAY;
+
+public class IndexCacheTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  long nanoTime;
+  IndexCache cache = new IndexCache(1000, 60, registry) {
+    @Override long nanoTime() {
+      return nanoTime;
+    }
+  };
+
+  @Test public void writesFirstRow() {
+    assertThat(cache.shouldWrite("key", ts(TODAY), 10L)).isTrue();
+
+    assertThat(count("written")).isEqualTo(1);
+    assertThat(count("skipped")).isZero();
+  }
+
+  @Test public void skipsRowWithinInterval() {
+    cache.shouldWrite("key", ts(TODAY), 10L);
+    cache.shouldWrite("key", ts(TODAY + 100), 30L);
+
+    assertThat(cache.shouldWrite("key", ts(TODAY + 50), 20L)).isFalse();
+    assertThat(cache.shouldWrite("key", ts(TODAY), 10L)).isFalse();
+
+    assertThat(count("written")).isEqualTo(2);
+    assertThat(count("skipped")).isEqualTo(2);
+  }
+
+  @Test public void writesRowThatWidensTimestamps() {
+    cache.shouldWrite("key", ts(TODAY), 10L);
+
+    assertThat(cache.shouldWrite("key", ts(TODAY - 1), 10L)).isTrue();
+    assertThat(cache.shouldWrite("key", ts(TODAY + 1), 10L)).isTrue();
+  }
+
+  @Test public void writesRowThatWidensDurations() {
+    cache.shouldWrite("key", ts(TODAY), 10L);
+
+    assertThat(cache.shouldWrite("key", ts(TODAY), 9L)).isTrue();
+    assertThat(cache.shouldWrite("key", ts(TODAY), 11L)).isTrue();
+  }
+
+  @Test public void keysAreIndependent() {
+    cache.shouldWrite("key", ts(TODAY), 10L);
+
+    assertThat(cache.shouldWrite("other", ts(TODAY), 10L)).isTrue();
+  }
+
+  @Test public void expires() {
+    cache.shouldWrite("key", ts(TODAY), 10L);
+
+    nanoTime = TimeUnit.SECONDS.toNanos(60);
+
+    assertThat(cache.shouldWrite("key", ts(TODAY), 10L)).isTrue();
+  }
+
+  @Test public void writeRefreshesExpiration() {
+    cache.shouldWrite("key", ts(TODAY), 10L);
+    nanoTime = TimeUnit.SECONDS.toNanos(30);
+    cache.shouldWrite("key", ts(TODAY + 1), 10L);
+    nanoTime = TimeUnit.SECONDS.toNanos(60);
+
+    assertThat(cache.shouldWrite("key", ts(TODAY), 10L)).isFalse();
+  }
+
+  @Test public void evictsWhenFull() {
+    cache = new IndexCache(1, 60, registry);
+    for (int i = 0; i < IndexCache.PROBES * 2; i++) {
+      cache.shouldWrite(i, ts(TODAY), 10L);
+    }
+
+    int cached = 0;
+    for (int i = 0; i < IndexCache.PROBES * 2; i++) {
+      if (!cache.shouldWrite(i, ts(TODAY), 10L)) cached++;
+    }
+    assertThat(cached).isLessThanOrEqualTo(IndexCache.PROBES);
+  }
+
+  @Test public void clear() {
+    cache.shouldWrite("key", ts(TODAY), 10L);
+    cache.clear();
+
+    assertThat(cache.shouldWrite("key", ts(TODAY), 10L)).isTrue();
+  }
+
+  @Test public void maxEntries_mustBePositive() {
+    assertThatThrownBy(() -> new IndexCache(0, 60, registry))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  static UUID ts(long epochMillis) {
+    return UUIDs.startOf(epochMillis);
+  }
+
+  double count(String result) {
+    return registry.get(IndexCache.NAME).tag("result", result).counter().count();
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.utils.UUIDs;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import zipkin2.internal.PartialResult;
+import zipkin2.storage.cassandra.CassandraSpanStore.TimestampRange;
+import zipkin2.storage.cassandra.FakeCassandra.Response;
+import zipkin2.storage.cassandra.internal.call.AccumulateTraceIds;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.storage.cassandra.FakeCassandra.TIMEUUID;
+import static zipkin2.storage.cassandra.FakeCassandra.VARCHAR;
+
+/** Reads go through the driver, so that its retry policy and exceptions apply. */
+public class SelectTraceIdsFromServiceSpanTest {
+  static final int READ_TIMEOUT = 200;
+
+  /** The response to reads of bucket 1, or null to never respond. */
+  static volatile Response slowBucketResponse;
+  static final AtomicInteger slowBucketReads = new AtomicInteger();
+
+  static FakeCassandra cassandra;
+  static Cluster cluster; // shared, as closing takes seconds
+  static Session session;
+
+  @BeforeClass public static void connect() throws IOException {
+    cassandra = new FakeCassandra(SelectTraceIdsFromServiceSpanTest::execute);
+    cluster = DefaultSessionFactory.buildCluster(
+      CassandraStorage.newBuilder().contactPoints(cassandra.contactPoint()).build());
+    session = cluster.connect();
+  }
+
+  @AfterClass public static void close() throws IOException {
+    cluster.close();
+    cassandra.close();
+  }
+
+  static Response execute(String query, Map<String, ByteBuffer> values) {
+    if (values.get("bucket").getInt() == 0) {
+      return Response.rows(asList("ts", "trace_id"), asList(TIMEUUID, VARCHAR),
+        Collections.singletonList(asList(UUIDs.startOf(1000L), "a")));
+    }
+    slowBucketReads.incrementAndGet();
+    return slowBucketResponse;
+  }
+
+  SelectTraceIdsFromServiceSpan.Factory factory = new SelectTraceIdsFromServiceSpan.Factory(
+    session, READ_TIMEOUT, 3, new AccumulateTraceIds.Metrics(new SimpleMeterRegistry()));
+
+  @Before public void resetReads() {
+    slowBucketReads.set(0);
+  }
+
+  @Test public void skipsBucketWhenClientTimesOut() throws IOException {
+    slowBucketResponse = null;
+
+    assertPartialWithoutRetry(factory.newCall(inputs()).execute());
+  }
+
+  @Test public void skipsBucketWhenCoordinatorTimesOut() throws IOException {
+    slowBucketResponse = Response.readTimeout();
+
+    assertPartialWithoutRetry(factory.newCall(inputs()).execute());
+  }
+
+  void assertPartialWithoutRetry(Map<String, Long> traceIds) {
+    assertThat(traceIds).containsOnlyKeys("a");
+    assertThat(PartialResult.isPartial(traceIds)).isTrue();
+    assertThat(slowBucketReads).hasValue(1);
+  }
+
+  List<SelectTraceIdsFromServiceSpan.Input> inputs() {
+    TimestampRange range = new TimestampRange();
+    range.startUUID = UUIDs.startOf(0L);
+    range.endUUID = UUIDs.endOf(2000L);
+    return asList(
+      factory.newInput("frontend", "get", 0, null, null, range, 10),
+      factory.newInput("frontend", "get", 1, null, null, range, 10));
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ServiceRankingTest {
+  long nanoTime;
+  ServiceRanking ranking = new ServiceRanking() {
+    @Override long nanoTime() {
+      return nanoTime;
+    }
+  };
+
+  @Test public void mostWrittenFirst() {
+    ranking.record("frontend");
+    ranking.record("backend");
+    ranking.record("backend");
+
+    assertThat(ranking.map(asList("a", "backend", "frontend", "z")))
+      .containsExactly("backend", "frontend", "a", "z");
+  }
+
+  @Test public void unrankedKeepOrder() {
+    assertThat(ranking.map(asList("c", "a", "b")))
+      .containsExactly("c", "a", "b");
+  }
+
+  @Test public void ignoresUnknownServices() {
+    ranking.record("db");
+
+    assertThat(ranking.map(asList("backend", "frontend")))
+      .containsExactly("backend", "frontend");
+  }
+
+  @Test public void includesPreviousWindow() {
+    ranking.record("backend");
+    ranking.record("backend");
+    nanoTime += ServiceRanking.WINDOW_NANOS;
+    ranking.record("frontend");
+
+    assertThat(ranking.map(asList("frontend", "backend")))
+      .containsExactly("backend", "frontend");
+  }
+
+  @Test public void forgetsOlderWindows() {
+    ranking.record("backend");
+    ranking.record("backend");
+    nanoTime += ServiceRanking.WINDOW_NANOS;
+    ranking.record("frontend");
+    nanoTime += ServiceRanking.WINDOW_NANOS;
+    ranking.record("frontend");
+
+    assertThat(ranking.map(asList("backend", "frontend")))
+      .containsExactly("frontend", "backend");
+  }
+
+  @Test public void forgetsWhenIdle() {
+    ranking.record("backend");
+    nanoTime += 2 * ServiceRanking.WINDOW_NANOS;
+    ranking.record("frontend");
+    ranking.record("frontend");
+    ranking.record("backend");
+    nanoTime += ServiceRanking.WINDOW_NANOS;
+
+    // the first count of backend would tie it with frontend, if it weren't dropped
+    assertThat(ranking.map(asList("backend", "frontend")))
+      .containsExactly("frontend", "backend");
+  }
+}
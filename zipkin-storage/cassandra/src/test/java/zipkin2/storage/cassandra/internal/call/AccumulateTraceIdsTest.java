@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.util.concurrent.Futures;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import org.junit.Test;
+import zipkin2.Call;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AccumulateTraceIdsTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  AccumulateTraceIds.Metrics metrics = new AccumulateTraceIds.Metrics(registry);
+  Statement statement = new SimpleStatement("SELECT ts,trace_id FROM trace_by_service_span");
+  List<Integer> pageSizes = new ArrayList<>();
+
+  @Test public void maxTraceIds() {
+    assertThat(AccumulateTraceIds.maxTraceIds(30, 3)).isEqualTo(10);
+    assertThat(AccumulateTraceIds.maxTraceIds(2, 3)).isEqualTo(1);
+    assertThat(AccumulateTraceIds.maxTraceIds(10, 0)).isEqualTo(10);
+  }
+
+  @Test public void singlePage_whenTraceIdsDontRepeat() throws Exception {
+    Map<String, Long> result = accumulate(3, 9, "a", "b", "c", "d", "e");
+
+    assertThat(result).containsOnlyKeys("a", "b", "c");
+    assertThat(pageSizes).containsExactly(3);
+    assertThat(rowCount("distinct")).isEqualTo(3.0);
+    assertThat(rowCount("duplicate")).isZero();
+    assertThat(rowCount("unread")).isZero();
+  }
+
+  @Test public void sizesNextPageByDuplicateRate() throws Exception {
+    Map<String, Long> result = accumulate(4, 12, "a", "a", "b", "b", "c", "c", "d", "d", "e");
+
+    assertThat(result).containsOnlyKeys("a", "b", "c", "d");
+    // 2 trace IDs in 4 rows, so 4 rows are needed for the remaining 2 trace IDs
+    assertThat(pageSizes).containsExactly(4, 4);
+    assertThat(rowCount("distinct")).isEqualTo(4.0);
+    assertThat(rowCount("duplicate")).isEqualTo(3.0);
+    assertThat(rowCount("unread")).isEqualTo(1.0);
+  }
+
+  @Test public void stopsReadingPageWhenDone() throws Exception {
+    Map<String, Long> result = accumulate(2, 6, "a", "a", "b", "c", "d");
+
+    assertThat(result).containsOnlyKeys("a", "b");
+    // 1 trace ID in 2 rows, so 2 rows are needed for the remaining trace ID
+    assertThat(pageSizes).containsExactly(2, 2);
+    assertThat(rowCount("duplicate")).isEqualTo(1.0);
+    assertThat(rowCount("unread")).isEqualTo(1.0);
+  }
+
+  @Test public void readsRemainingRowsWhenNoTraceIds() throws Exception {
+    AccumulateTraceIds accumulator = new AccumulateTraceIds(2, 6, metrics) {
+      @Override protected BiConsumer<Row, Map<String, Long>> accumulator() {
+        return (row, result) -> { // ignore rows without a timestamp, like AccumulateTraceIdTsLong
+          if (!row.getString("trace_id").equals("-")) result.put(row.getString("trace_id"), 1L);
+        };
+      }
+    };
+
+    Map<String, Long> result = resultSet(2, "-", "-", "a", "b").flatMap(accumulator).execute();
+
+    assertThat(result).containsOnlyKeys("a", "b");
+    assertThat(pageSizes).containsExactly(2, 4);
+  }
+
+  @Test public void neverExceedsQueryLimit() throws Exception {
+    Map<String, Long> result = accumulate(3, 4, "a", "a", "a", "b");
+
+    assertThat(result).containsOnlyKeys("a", "b");
+    assertThat(pageSizes).containsExactly(3, 1);
+  }
+
+  Map<String, Long> accumulate(int maxTraceIds, int maxRows, String... traceIds)
+    throws Exception {
+    int fetchSize = Math.min(maxTraceIds, maxRows);
+    return resultSet(fetchSize, traceIds)
+      .flatMap(new AccumulateTraceIdTsUuid(maxTraceIds, maxRows, metrics))
+      .execute();
+  }
+
+  double rowCount(String result) {
+    return registry.get(AccumulateTraceIds.Metrics.NAME).tag("result", result).counter().count();
+  }
+
+  /** Fakes driver paging, where the statement's fetch size controls the next page size. */
+  Call<ResultSet> resultSet(int fetchSize, String... traceIds) {
+    Deque<Row> remaining = new ArrayDeque<>();
+    long ts = 1000L;
+    for (String traceId : traceIds) {
+      Row row = mock(Row.class);
+      when(row.getString("trace_id")).thenReturn(traceId);
+      when(row.getUUID("ts")).thenReturn(UUIDs.startOf(ts--));
+      remaining.add(row);
+    }
+    statement.setFetchSize(fetchSize);
+
+    Deque<Row> page = new ArrayDeque<>();
+    ResultSet rs = mock(ResultSet.class);
+    ExecutionInfo info = mock(ExecutionInfo.class);
+    when(rs.getExecutionInfo()).thenReturn(info);
+    when(info.getStatement()).thenReturn(statement);
+    when(info.getPagingState()).then(i -> remaining.isEmpty() ? null : mock(PagingState.class));
+    when(rs.getAvailableWithoutFetching()).then(i -> page.size());
+    when(rs.one()).then(i -> page.poll());
+    when(rs.isExhausted()).then(i -> page.isEmpty() && remaining.isEmpty());
+    when(rs.fetchMoreResults()).then(i -> {
+      int size = statement.getFetchSize();
+      pageSizes.add(size);
+      for (int j = 0; j < size && !remaining.isEmpty(); j++) page.add(remaining.poll());
+      return Futures.immediateFuture(rs);
+    });
+    return Call.create(rs).map(input -> {
+      input.fetchMoreResults(); // load the first page
+      return input;
+    });
+  }
+}
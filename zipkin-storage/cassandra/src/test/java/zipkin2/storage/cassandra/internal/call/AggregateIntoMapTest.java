@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.internal.PartialResult;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AggregateIntoMapTest {
+  InetSocketAddress sa = InetSocketAddress.createUnresolved("host", 9042);
+  Call<Map<String, Long>> a = Call.create(Collections.singletonMap("a", 1L));
+  Call<Map<String, Long>> timeout = Call.create(Collections.<String, Long>emptyMap()).map(m -> {
+    throw new OperationTimedOutException(() -> sa);
+  });
+
+  @Test public void timeoutFailsByDefault() {
+    assertThatThrownBy(new AggregateIntoMap<>(asList(a, timeout))::execute)
+      .isInstanceOf(OperationTimedOutException.class);
+  }
+
+  @Test public void skipTimeouts_partial() throws Exception {
+    Map<String, Long> result = new AggregateIntoMap<>(asList(a, timeout), true).execute();
+
+    assertThat(result).containsOnlyKeys("a");
+    assertThat(PartialResult.isPartial(result)).isTrue();
+  }
+
+  @Test public void skipTimeouts_completeNotPartial() throws Exception {
+    Map<String, Long> result = new AggregateIntoMap<>(asList(a, a.clone()), true).execute();
+
+    assertThat(PartialResult.isPartial(result)).isFalse();
+  }
+
+  @Test public void skipTimeouts_failsWhenAllTimeout() {
+    assertThatThrownBy(new AggregateIntoMap<>(asList(timeout, timeout.clone()), true)::execute)
+      .isInstanceOf(OperationTimedOutException.class);
+  }
+}
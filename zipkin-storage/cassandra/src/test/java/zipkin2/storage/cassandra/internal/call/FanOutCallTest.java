@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FanOutCallTest {
+  List<PendingCall> pending = new ArrayList<>();
+  AtomicInteger maxInFlight = new AtomicInteger(), inFlight = new AtomicInteger();
+  ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @After public void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test public void empty() throws Exception {
+    assertThat(new FanOutCall<String, String>(new ArrayList<>(), this::pending, 2).execute())
+      .isEmpty();
+  }
+
+  @Test public void addsResultsInCompletionOrder() throws Throwable {
+    TestCallback callback = new TestCallback();
+    new FanOutCall<>(asList("a", "b", "c"), this::pending, 3).enqueue(callback);
+
+    pending.get(2).complete();
+    pending.get(0).complete();
+    pending.get(1).complete();
+
+    assertThat(callback.await()).containsExactly("c", "a", "b");
+  }
+
+  @Test public void boundsConcurrency() throws Throwable {
+    TestCallback callback = new TestCallback();
+    new FanOutCall<>(asList("a", "b", "c", "d", "e"), this::pending, 2).enqueue(callback);
+
+    assertThat(pending).hasSize(2);
+    pending.get(1).complete();
+    assertThat(pending).hasSize(3);
+    pending.get(0).complete();
+    pending.get(2).complete();
+    assertThat(pending).hasSize(5);
+    pending.get(3).complete();
+    pending.get(4).complete();
+
+    assertThat(callback.await()).containsExactly("b", "a", "c", "d", "e");
+    assertThat(maxInFlight).hasValue(2);
+  }
+
+  /** Synchronous completion, such as a constant call, shouldn't recurse per input. */
+  @Test public void synchronousCompletion() throws Exception {
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 100_000; i++) inputs.add(i);
+
+    List<Integer> result =
+      new FanOutCall<Integer, Integer>(inputs, i -> Call.create(singletonList(i)), 10).execute();
+
+    assertThat(result).hasSize(100_000);
+  }
+
+  @Test public void execute_concurrent() throws Exception {
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 100; i++) inputs.add(i);
+
+    List<Integer> result = new FanOutCall<>(inputs, this::async, 3).execute();
+
+    assertThat(result).containsExactlyInAnyOrderElementsOf(inputs);
+    assertThat(maxInFlight.get()).isLessThanOrEqualTo(3);
+  }
+
+  @Test public void error_cancelsOthersAndStops() {
+    TestCallback callback = new TestCallback();
+    new FanOutCall<>(asList("a", "b", "c"), this::pending, 2).enqueue(callback);
+
+    IOException error = new IOException("timeout");
+    pending.get(0).callback.onError(error);
+
+    assertThatThrownBy(callback::await).isSameAs(error);
+    assertThat(pending.get(1).isCanceled()).isTrue();
+    assertThat(pending).hasSize(2); // didn't start the last
+  }
+
+  @Test public void cancel_cancelsInFlight() {
+    Call<List<String>> call = new FanOutCall<>(asList("a", "b", "c"), this::pending, 2);
+    call.enqueue(new TestCallback());
+
+    call.cancel();
+
+    assertThat(pending).extracting(PendingCall::isCanceled).containsExactly(true, true);
+    assertThat(call.isCanceled()).isTrue();
+  }
+
+  @Test public void clone_startsOver() throws Throwable {
+    Call<List<String>> call = new FanOutCall<>(asList("a"), this::pending, 2);
+    call.enqueue(new TestCallback());
+    TestCallback callback = new TestCallback();
+    call.clone().enqueue(callback);
+
+    pending.get(1).complete();
+    assertThat(callback.await()).containsExactly("a");
+  }
+
+  @Test public void concurrency_mustBePositive() {
+    assertThatThrownBy(() -> new FanOutCall<>(asList("a"), this::pending, 0))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  Call<List<Integer>> async(Integer input) {
+    return new Call.Base<List<Integer>>() {
+      @Override protected List<Integer> doExecute() {
+        throw new AssertionError("unexpected");
+      }
+
+      @Override protected void doEnqueue(Callback<List<Integer>> callback) {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        executor.execute(() -> {
+          inFlight.decrementAndGet();
+          callback.onSuccess(singletonList(input));
+        });
+      }
+
+      @Override public Call<List<Integer>> clone() {
+        throw new AssertionError("unexpected");
+      }
+    };
+  }
+
+  PendingCall pending(String input) {
+    PendingCall call = new PendingCall(input);
+    pending.add(call);
+    return call;
+  }
+
+  final class PendingCall extends Call.Base<List<String>> {
+    final String input;
+    Callback<List<String>> callback;
+
+    PendingCall(String input) {
+      this.input = input;
+    }
+
+    void complete() {
+      inFlight.decrementAndGet();
+      callback.onSuccess(new ArrayList<>(singletonList(input)));
+    }
+
+    @Override protected List<String> doExecute() {
+      throw new AssertionError("unexpected");
+    }
+
+    @Override protected void doEnqueue(Callback<List<String>> callback) {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      this.callback = callback;
+    }
+
+    @Override public Call<List<String>> clone() {
+      return new PendingCall(input);
+    }
+  }
+
+  static final class TestCallback implements Callback<List<String>> {
+    final CountDownLatch latch = new CountDownLatch(1);
+    List<String> value;
+    Throwable throwable;
+
+    @Override public void onSuccess(List<String> value) {
+      this.value = value;
+      latch.countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      this.throwable = t;
+      latch.countDown();
+    }
+
+    List<String> await() throws Throwable {
+      latch.await();
+      if (throwable != null) throw throwable;
+      return value;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class IntersectUntilLimitTest {
+  List<Integer> fetchSizes = new ArrayList<>();
+
+  @Test public void keepsNewestValue() throws Exception {
+    Map<String, Long> result = intersect(2, 10, 10, asList("a:1", "b:5"), asList("b:3", "a:2"));
+
+    assertThat(result).containsOnly(entry("a", 2L), entry("b", 5L));
+  }
+
+  @Test public void doesntFetchAgainWhenLimitReached() throws Exception {
+    intersect(1, 1, 8, asList("a:1", "b:1"), asList("a:1", "b:1"));
+
+    assertThat(fetchSizes).containsExactly(1);
+  }
+
+  @Test public void fetchesAgainWhenShort() throws Exception {
+    Map<String, Long> result =
+      intersect(2, 1, 8, asList("a:1", "b:1", "c:1", "d:1"), asList("d:1", "c:1"));
+
+    assertThat(result).containsOnlyKeys("c", "d");
+    assertThat(fetchSizes).containsExactly(1, 2, 4);
+  }
+
+  @Test public void enqueue_fetchesAgainWhenShort() throws Exception {
+    IntersectUntilLimit<String, Long> call =
+      newCall(2, 1, 8, asList("a:1", "b:1", "c:1", "d:1"), asList("d:1", "c:1"));
+
+    assertThat(enqueue(call)).containsOnlyKeys("c", "d");
+    assertThat(fetchSizes).containsExactly(1, 2, 4);
+  }
+
+  @Test public void stopsAtMaxFetchSize() throws Exception {
+    Map<String, Long> result =
+      intersect(2, 1, 3, asList("a:1", "b:1", "c:1", "d:1"), asList("d:1", "c:1"));
+
+    assertThat(result).containsOnlyKeys("c");
+    assertThat(fetchSizes).containsExactly(1, 2, 3);
+  }
+
+  @Test public void stopsWhenNoNewKeysFound() throws Exception {
+    Map<String, Long> result = intersect(5, 2, 64, asList("a:1", "b:1"), asList("b:1"));
+
+    assertThat(result).containsOnlyKeys("b");
+    assertThat(fetchSizes).containsExactly(2, 4);
+  }
+
+  @Test public void stopsWhenAnInputIsEmpty() throws Exception {
+    Map<String, Long> result = intersect(5, 2, 64, asList("a:1", "b:1"), asList());
+
+    assertThat(result).isEmpty();
+    assertThat(fetchSizes).containsExactly(2);
+  }
+
+  @Test public void clone_fetchesAgain() throws Exception {
+    IntersectUntilLimit<String, Long> call = newCall(1, 1, 8, asList("a:1"), asList("a:1"));
+    call.execute();
+
+    assertThat(call.clone().execute()).containsOnlyKeys("a");
+    assertThat(fetchSizes).containsExactly(1, 1); // each instance creates its first round
+  }
+
+  Map<String, Long> intersect(int limit, int fetchSize, int maxFetchSize, List<String>... indexes)
+    throws IOException {
+    return newCall(limit, fetchSize, maxFetchSize, indexes).execute();
+  }
+
+  /** Each index returns up to the fetch size of its "key:value" entries. */
+  IntersectUntilLimit<String, Long> newCall(int limit, int fetchSize, int maxFetchSize,
+    List<String>... indexes) {
+    return new IntersectUntilLimit<>(size -> {
+      fetchSizes.add(size);
+      List<Call<Map<String, Long>>> calls = new ArrayList<>();
+      for (List<String> index : indexes) {
+        Map<String, Long> rows = new LinkedHashMap<>();
+        for (String entry : index.subList(0, Math.min(size, index.size()))) {
+          String[] keyValue = entry.split(":");
+          rows.put(keyValue[0], Long.parseLong(keyValue[1]));
+        }
+        calls.add(Call.create(rows));
+      }
+      return calls;
+    }, limit, fetchSize, maxFetchSize);
+  }
+
+  static Map<String, Long> enqueue(Call<Map<String, Long>> call) throws Exception {
+    AtomicReference<Object> result = new AtomicReference<>();
+    call.enqueue(new Callback<Map<String, Long>>() {
+      @Override public void onSuccess(Map<String, Long> value) {
+        result.set(value);
+      }
+
+      @Override public void onError(Throwable t) {
+        result.set(t);
+      }
+    });
+    if (result.get() instanceof Throwable) throw new IOException((Throwable) result.get());
+    return (Map<String, Long>) result.get();
+  }
+}
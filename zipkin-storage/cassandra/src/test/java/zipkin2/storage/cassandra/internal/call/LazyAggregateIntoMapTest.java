@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.internal.BlockingCallback;
+import zipkin2.internal.PartialResult;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LazyAggregateIntoMapTest {
+  InetSocketAddress sa = InetSocketAddress.createUnresolved("host", 9042);
+  AtomicInteger invocations = new AtomicInteger();
+  Call<Map<String, Long>> ab = counted(map("a", "b"));
+  Call<Map<String, Long>> c = counted(map("c"));
+  Call<Map<String, Long>> timeout = counted(Collections.emptyMap()).map(m -> {
+    throw new OperationTimedOutException(() -> sa);
+  });
+
+  @Test public void stopsWhenMinSizeReached() throws Exception {
+    Map<String, Long> result = new LazyAggregateIntoMap<>(asList(ab, c), 2, false).execute();
+
+    assertThat(result).containsOnlyKeys("a", "b");
+    assertThat(invocations).hasValue(1);
+  }
+
+  @Test public void continuesUntilMinSizeReached() throws Exception {
+    Map<String, Long> result = new LazyAggregateIntoMap<>(asList(c, ab), 2, false).execute();
+
+    assertThat(result).containsOnlyKeys("c", "a", "b");
+    assertThat(invocations).hasValue(2);
+  }
+
+  @Test public void returnsAllWhenMinSizeNotReached() throws Exception {
+    Map<String, Long> result = new LazyAggregateIntoMap<>(asList(ab, c), 10, false).execute();
+
+    assertThat(result).containsOnlyKeys("a", "b", "c");
+    assertThat(PartialResult.isPartial(result)).isFalse();
+  }
+
+  @Test public void enqueue_stopsWhenMinSizeReached() throws Exception {
+    Map<String, Long> result = enqueue(new LazyAggregateIntoMap<>(asList(c, ab, c), 2, false));
+
+    assertThat(result).containsOnlyKeys("c", "a", "b");
+    assertThat(invocations).hasValue(2);
+  }
+
+  @Test public void concurrency_startsSeveralCalls() throws Exception {
+    LazyAggregateIntoMap<String, Long> call =
+      new LazyAggregateIntoMap<>(asList(pending(), pending(), pending()), 1, 2, false);
+    call.enqueue(new BlockingCallback<>());
+
+    assertThat(started).hasValue(2);
+  }
+
+  @Test public void concurrency_cancelsOthersWhenMinSizeReached() throws Exception {
+    PendingCall slow = pending();
+    Map<String, Long> result =
+      enqueue(new LazyAggregateIntoMap<>(asList(slow, ab, pending()), 2, 2, false));
+
+    assertThat(result).containsOnlyKeys("a", "b");
+    assertThat(slow.isCanceled()).isTrue();
+    assertThat(started).hasValue(1); // the third call was never started
+  }
+
+  @Test public void concurrency_continuesUntilMinSizeReached() throws Exception {
+    Map<String, Long> result =
+      enqueue(new LazyAggregateIntoMap<>(asList(c, ab, c.clone()), 3, 2, false));
+
+    assertThat(result).containsOnlyKeys("c", "a", "b");
+    assertThat(invocations).hasValue(2);
+  }
+
+  @Test public void timeoutFailsByDefault() {
+    assertThatThrownBy(new LazyAggregateIntoMap<>(asList(timeout, c), 2, false)::execute)
+      .isInstanceOf(OperationTimedOutException.class);
+    assertThat(invocations).hasValue(1);
+  }
+
+  @Test public void skipTimeouts_partial() throws Exception {
+    Map<String, Long> result = new LazyAggregateIntoMap<>(asList(timeout, c), 2, true).execute();
+
+    assertThat(result).containsOnlyKeys("c");
+    assertThat(PartialResult.isPartial(result)).isTrue();
+  }
+
+  @Test public void enqueue_skipTimeouts_partial() throws Exception {
+    Map<String, Long> result = enqueue(new LazyAggregateIntoMap<>(asList(timeout, c), 2, true));
+
+    assertThat(result).containsOnlyKeys("c");
+    assertThat(PartialResult.isPartial(result)).isTrue();
+  }
+
+  @Test public void skipTimeouts_failsWhenAllTimeout() {
+    assertThatThrownBy(
+      new LazyAggregateIntoMap<>(asList(timeout, timeout.clone()), 2, true)::execute)
+      .isInstanceOf(OperationTimedOutException.class);
+  }
+
+  @Test public void clone_invokesAgain() throws Exception {
+    LazyAggregateIntoMap<String, Long> call = new LazyAggregateIntoMap<>(asList(ab, c), 2, false);
+    call.execute();
+
+    assertThat(call.clone().execute()).containsOnlyKeys("a", "b");
+    assertThat(invocations).hasValue(2);
+  }
+
+  AtomicInteger started = new AtomicInteger();
+
+  PendingCall pending() {
+    return new PendingCall();
+  }
+
+  /** A call that never completes */
+  final class PendingCall extends Call.Base<Map<String, Long>> {
+    @Override protected Map<String, Long> doExecute() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override protected void doEnqueue(Callback<Map<String, Long>> callback) {
+      started.incrementAndGet();
+    }
+
+    @Override public PendingCall clone() {
+      return new PendingCall();
+    }
+  }
+
+  Call<Map<String, Long>> counted(Map<String, Long> value) {
+    return Call.create(value).map(m -> {
+      invocations.incrementAndGet();
+      return m;
+    });
+  }
+
+  static Map<String, Long> map(String... keys) {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (String key : keys) result.put(key, 1L);
+    return result;
+  }
+
+  static Map<String, Long> enqueue(Call<Map<String, Long>> call) throws Exception {
+    AtomicReference<Object> result = new AtomicReference<>();
+    call.enqueue(new Callback<Map<String, Long>>() {
+      @Override public void onSuccess(Map<String, Long> value) {
+        result.set(value);
+      }
+
+      @Override public void onError(Throwable t) {
+        result.set(t);
+      }
+    });
+    if (result.get() instanceof Throwable) throw new IOException((Throwable) result.get());
+    return (Map<String, Long>) result.get();
+  }
+}
@@ -14,24 +14,41 @@
 package zipkin2.elasticsearch;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
 import zipkin2.elasticsearch.internal.JsonSerializers;
 import zipkin2.elasticsearch.internal.client.HttpCall.BodyConverter;
 import zipkin2.elasticsearch.internal.client.SearchResultConverter;
+import zipkin2.elasticsearch.internal.client.StreamingSearchResultConverter;
 import zipkin2.internal.DependencyLinker;
+import zipkin2.internal.Nullable;
 
 import static zipkin2.elasticsearch.internal.JsonReaders.collectValuesNamed;
+import static zipkin2.elasticsearch.internal.JsonReaders.enterPath;
 
 final class BodyConverters {
   static final BodyConverter<Object> NULL = (parser, contentString) -> null;
   static final BodyConverter<List<String>> KEYS =
     (parser, contentString) -> collectValuesNamed(parser, "key");
+  /** Trace IDs in the order found, mapped to the timestamp their hit was sorted on. */
+  static final BodyConverter<Map<String, Long>> COLLAPSED_TRACE_IDS =
+    (parser, contentString) -> collapsedTraceIds(parser);
   static final BodyConverter<List<Span>> SPANS =
-    SearchResultConverter.create(JsonSerializers.SPAN_PARSER);
+    StreamingSearchResultConverter.create(JsonSerializers.SPAN_PARSER, Collectors.toList());
+  static final BodyConverter<List<List<Span>>> TRACES =
+    StreamingSearchResultConverter.create(JsonSerializers.SPAN_PARSER, groupByTraceId(false));
+  static final BodyConverter<List<List<Span>>> TRACES_STRICT =
+    StreamingSearchResultConverter.create(JsonSerializers.SPAN_PARSER, groupByTraceId(true));
   static final BodyConverter<List<DependencyLink>> DEPENDENCY_LINKS =
     new SearchResultConverter<DependencyLink>(JsonSerializers.DEPENDENCY_LINK_PARSER) {
       @Override
@@ -41,4 +58,71 @@ final class BodyConverters {
         return result.isEmpty() ? result : DependencyLinker.merge(result);
       }
     };
+
+  /** Groups spans by trace ID as they are parsed. */
+  static BodyConverter<List<List<Span>>> traces(boolean strictTraceId) {
+    return strictTraceId ? TRACES_STRICT : TRACES;
+  }
+
+  /** Same as {@link zipkin2.storage.GroupByTraceId} */
+  static Collector<Span, ?, List<List<Span>>> groupByTraceId(boolean strictTraceId) {
+    Function<Span, String> traceId = strictTraceId
+      ? Span::traceId
+      : span -> span.traceId().length() == 32 ? span.traceId().substring(16) : span.traceId();
+    return Collectors.collectingAndThen(
+      Collectors.groupingBy(traceId, LinkedHashMap::new, Collectors.toList()),
+      // Modifiable so that StrictTraceId can filter without allocating a new list
+      grouped -> new ArrayList<>(grouped.values()));
+  }
+
+  /**
+   * Reads hits of a search collapsed on trace ID, where each hit has the trace ID in its fields and
+   * the timestamp in its sort values.
+   */
+  static Map<String, Long> collapsedTraceIds(JsonParser parser) throws IOException {
+    Map<String, Long> result = new LinkedHashMap<>();
+    if (enterPath(parser, "hits", "hits") == null) return result;
+    if (parser.currentToken() != JsonToken.START_ARRAY) return result;
+
+    JsonToken token;
+    while ((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY) {
+      if (token != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+      String traceId = null, timestamp = null;
+      JsonToken value;
+      while ((value = parser.nextValue()) != null && value != JsonToken.END_OBJECT) {
+        String field = parser.getCurrentName();
+        if (value == JsonToken.START_ARRAY && field.equals("sort")) {
+          timestamp = firstScalar(parser);
+        } else if (value == JsonToken.START_OBJECT && field.equals("fields")) {
+          while ((value = parser.nextValue()) != null && value != JsonToken.END_OBJECT) {
+            if (value == JsonToken.START_ARRAY && parser.getCurrentName().equals("traceId")) {
+              traceId = firstScalar(parser);
+            } else {
+              parser.skipChildren();
+            }
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+      if (traceId != null && timestamp != null) {
+        result.putIfAbsent(traceId, Long.parseLong(timestamp));
+      }
+    }
+    return result;
+  }
+
+  /** Returns the first scalar in the current array, leaving the parser at the end of it. */
+  @Nullable static String firstScalar(JsonParser parser) throws IOException {
+    String result = null;
+    JsonToken token;
+    while ((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY) {
+      if (result == null && token.isScalarValue()) result = parser.getText();
+      parser.skipChildren();
+    }
+    return result;
+  }
 }
@@ -22,8 +22,10 @@ import zipkin2.Call;
 import zipkin2.Span;
 import zipkin2.elasticsearch.internal.BulkCallBuilder;
 import zipkin2.elasticsearch.internal.BulkIndexWriter;
+import zipkin2.elasticsearch.internal.BulkProcessor;
 import zipkin2.elasticsearch.internal.IndexNameFormatter;
-import zipkin2.internal.DelayLimiter;
+import zipkin2.internal.HashedDelayLimiter;
+import zipkin2.internal.Nullable;
 import zipkin2.storage.SpanConsumer;
 
 import static zipkin2.elasticsearch.VersionSpecificTemplates.TYPE_AUTOCOMPLETE;
@@ -34,25 +36,29 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
 
   final ElasticsearchStorage es;
   final Set<String> autocompleteKeys;
-  final IndexNameFormatter indexNameFormatter;
+  final IndexNameFormatter indexNameFormatter, spanIndexNameFormatter;
   final char indexTypeDelimiter;
   final boolean searchEnabled;
-  final DelayLimiter<AutocompleteContext> delayLimiter;
+  final HashedDelayLimiter<AutocompleteContext> delayLimiter;
+  @Nullable final TraceIdDayHints hints;
 
   ElasticsearchSpanConsumer(ElasticsearchStorage es) {
     this.es = es;
     this.autocompleteKeys = new LinkedHashSet<>(es.autocompleteKeys());
     this.indexNameFormatter = es.indexNameFormatter();
+    this.spanIndexNameFormatter = es.spanIndexNameFormatter();
     this.indexTypeDelimiter = es.indexTypeDelimiter();
     this.searchEnabled = es.searchEnabled();
-    this.delayLimiter = DelayLimiter.newBuilder()
+    this.delayLimiter = HashedDelayLimiter.newBuilder()
       .ttl(es.autocompleteTtl())
       .cardinality(es.autocompleteCardinality()).build();
+    this.hints = es.traceIdDayHints();
   }
 
   String formatTypeAndTimestampForInsert(String type, long timestampMillis) {
-    return indexNameFormatter.formatTypeAndTimestampForInsert(type, indexTypeDelimiter,
-      timestampMillis);
+    IndexNameFormatter formatter = TYPE_SPAN.equals(type) ? spanIndexNameFormatter
+      : indexNameFormatter;
+    return formatter.formatTypeAndTimestampForInsert(type, indexTypeDelimiter, timestampMillis);
   }
 
   @Override public Call<Void> accept(List<Span> spans) {
@@ -75,6 +81,7 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
         indexTimestamp = System.currentTimeMillis();
       }
       indexer.add(indexTimestamp, span);
+      if (hints != null) hints.record(span.traceId(), indexTimestamp);
       if (searchEnabled && !span.tags().isEmpty()) {
         indexer.addAutocompleteValues(indexTimestamp, span);
       }
@@ -119,7 +126,10 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
     }
 
     Call<Void> newCall() {
-      Call<Void> storeCall = bulkCallBuilder.build();
+      BulkProcessor bulkProcessor = consumer.es.bulkProcessor();
+      Call<Void> storeCall = bulkProcessor != null
+        ? bulkProcessor.newCall(bulkCallBuilder)
+        : bulkCallBuilder.build();
       if (pendingAutocompleteContexts.isEmpty()) return storeCall;
       return storeCall.handleError((error, callback) -> {
         for (AutocompleteContext context : pendingAutocompleteContexts) {
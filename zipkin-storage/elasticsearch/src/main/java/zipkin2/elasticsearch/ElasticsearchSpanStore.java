@@ -13,20 +13,25 @@
  */
 package zipkin2.elasticsearch;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import zipkin2.Call;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
 import zipkin2.elasticsearch.internal.IndexNameFormatter;
 import zipkin2.elasticsearch.internal.client.Aggregation;
 import zipkin2.elasticsearch.internal.client.HttpCall;
+import zipkin2.elasticsearch.internal.client.HttpCall.BodyConverter;
 import zipkin2.elasticsearch.internal.client.SearchCallFactory;
 import zipkin2.elasticsearch.internal.client.SearchRequest;
-import zipkin2.storage.GroupByTraceId;
+import zipkin2.internal.Nullable;
 import zipkin2.storage.QueryRequest;
 import zipkin2.storage.ServiceAndSpanNames;
 import zipkin2.storage.SpanStore;
@@ -41,22 +46,29 @@ final class ElasticsearchSpanStore implements SpanStore, Traces, ServiceAndSpanN
 
   /** To not produce unnecessarily long queries, we don't look back further than first ES support */
   static final long EARLIEST_MS = 1456790400000L; // March 2016
+  /** Fields added to span documents for search, which aren't needed to read spans back. */
+  static final String[] SEARCH_ONLY_FIELDS = {"timestamp_millis"};
 
   final SearchCallFactory search;
-  final Call.Mapper<List<Span>, List<List<Span>>> groupByTraceId;
+  final BodyConverter<List<List<Span>>> traces;
   final String[] allSpanIndices;
-  final IndexNameFormatter indexNameFormatter;
-  final boolean strictTraceId, searchEnabled;
+  final IndexNameFormatter indexNameFormatter, spanIndexNameFormatter;
+  final boolean strictTraceId, searchEnabled, collapseTraceIds;
   final int namesLookback;
+  @Nullable final TraceIdDayHints hints;
 
   ElasticsearchSpanStore(ElasticsearchStorage es) {
     this.search = new SearchCallFactory(es.http());
-    this.groupByTraceId = GroupByTraceId.create(es.strictTraceId());
+    this.traces = BodyConverters.traces(es.strictTraceId());
     this.allSpanIndices = new String[] {es.indexNameFormatter().formatType(TYPE_SPAN)};
     this.indexNameFormatter = es.indexNameFormatter();
+    this.spanIndexNameFormatter = es.spanIndexNameFormatter();
     this.strictTraceId = es.strictTraceId();
     this.searchEnabled = es.searchEnabled();
+    // Field collapsing was added in Elasticsearch 5.3
+    this.collapseTraceIds = es.collapseTraceIds() && es.version() >= 5.3f;
     this.namesLookback = es.namesLookback();
+    this.hints = es.traceIdDayHints();
   }
 
   @Override
@@ -99,23 +111,38 @@ final class ElasticsearchSpanStore implements SpanStore, Traces, ServiceAndSpanN
     // So we fudge and order on the first span among the filtered spans - in practice, there should
     // be no significant difference in user experience since span start times are usually very
     // close to each other in human time.
-    Aggregation traceIdTimestamp =
-      Aggregation.terms("traceId", request.limit())
-        .addSubAggregation(Aggregation.min("timestamp_millis"))
-        .orderBy("timestamp_millis", "desc");
-
-    List<String> indices = indexNameFormatter.formatTypeAndRange(TYPE_SPAN, beginMillis, endMillis);
+    List<String> indices = spanIndexNameFormatter.formatTypeAndRange(TYPE_SPAN, beginMillis, endMillis);
     if (indices.isEmpty()) return Call.emptyList();
 
-    SearchRequest esRequest =
-      SearchRequest.create(indices).filters(filters).addAggregation(traceIdTimestamp);
+    Call<List<List<Span>>> result;
+    if (collapseTraceIds) {
+      // Collapsing returns the most recent matching span of each trace, so the order is by the
+      // last filtered span instead of the first. In exchange, there are no per-trace buckets to
+      // build, and we know which days to read the traces from.
+      SearchRequest esRequest = SearchRequest.create(indices).filters(filters)
+        .collapse("traceId").sort("timestamp_millis", "desc").size(request.limit());
+
+      HttpCall<Map<String, Long>> traceIdsCall =
+        search.newCall(esRequest, BodyConverters.COLLAPSED_TRACE_IDS);
+
+      result = traceIdsCall.flatMap(new GetSpansByCollapsedTraceId(search, spanIndexNameFormatter,
+        beginMillis, endMillis, traces));
+    } else {
+      Aggregation traceIdTimestamp =
+        Aggregation.terms("traceId", request.limit())
+          .addSubAggregation(Aggregation.min("timestamp_millis"))
+          .orderBy("timestamp_millis", "desc");
 
-    HttpCall<List<String>> traceIdsCall = search.newCall(esRequest, BodyConverters.KEYS);
+      SearchRequest esRequest =
+        SearchRequest.create(indices).filters(filters).addAggregation(traceIdTimestamp);
 
-    Call<List<List<Span>>> result =
-      traceIdsCall.flatMap(new GetSpansByTraceId(search, indices)).map(groupByTraceId);
+      HttpCall<List<String>> traceIdsCall = search.newCall(esRequest, BodyConverters.KEYS);
+
+      result = traceIdsCall.flatMap(new GetSpansByTraceId(search, indices, traces));
+    }
     // Elasticsearch lookup by trace ID is by the full 128-bit length, but there's still a chance of
     // clash on lower-64 bit. When strict trace ID is enabled, we only filter client-side on clash.
+    if (hints != null) result = result.map(hints.new RecordTraces());
     return strictTraceId ? result.map(StrictTraceId.filterTraces(request)) : result;
   }
 
@@ -127,7 +154,19 @@ final class ElasticsearchSpanStore implements SpanStore, Traces, ServiceAndSpanN
     // Unless we are strict, truncate the trace ID to 64bit (encoded as 16 characters)
     if (!strictTraceId && traceId.length() == 32) traceId = traceId.substring(16);
 
-    SearchRequest request = SearchRequest.create(asList(allSpanIndices)).term("traceId", traceId);
+    Call<List<Span>> result = getTrace(asList(allSpanIndices), traceId);
+    if (hints == null) return result;
+
+    List<String> hinted = hints.indices(Collections.singletonList(traceId));
+    if (!hinted.isEmpty()) {
+      result = getTrace(hinted, traceId).flatMap(new ReadAllIndicesIfMissing<>(result, 1));
+    }
+    return result.map(hints.new RecordTrace());
+  }
+
+  Call<List<Span>> getTrace(List<String> indices, String traceId) {
+    SearchRequest request = SearchRequest.create(indices).term("traceId", traceId)
+      .sourceExcludes(SEARCH_ONLY_FIELDS);
     return search.newCall(request, BodyConverters.SPANS);
   }
 
@@ -144,9 +183,22 @@ final class ElasticsearchSpanStore implements SpanStore, Traces, ServiceAndSpanN
     }
 
     if (normalizedTraceIds.isEmpty()) return Call.emptyList();
-    SearchRequest request =
-      SearchRequest.create(asList(allSpanIndices)).terms("traceId", normalizedTraceIds);
-    return search.newCall(request, BodyConverters.SPANS).map(groupByTraceId);
+    Call<List<List<Span>>> result = getTraces(asList(allSpanIndices), normalizedTraceIds);
+    if (hints == null) return result;
+
+    List<String> hinted = hints.indices(normalizedTraceIds);
+    if (!hinted.isEmpty()) {
+      result = getTraces(hinted, normalizedTraceIds)
+        .flatMap(new ReadAllIndicesIfMissing<>(result, normalizedTraceIds.size()));
+    }
+    return result.map(hints.new RecordTraces());
+  }
+
+  Call<List<List<Span>>> getTraces(List<String> indices, Set<String> traceIds) {
+    SearchRequest request = SearchRequest.create(indices)
+      .terms("traceId", traceIds)
+      .sourceExcludes(SEARCH_ONLY_FIELDS);
+    return search.newCall(request, traces);
   }
 
   @Override public Call<List<String>> getServiceNames() {
@@ -155,7 +207,7 @@ final class ElasticsearchSpanStore implements SpanStore, Traces, ServiceAndSpanN
     long endMillis = System.currentTimeMillis();
     long beginMillis = endMillis - namesLookback;
 
-    List<String> indices = indexNameFormatter.formatTypeAndRange(TYPE_SPAN, beginMillis, endMillis);
+    List<String> indices = spanIndexNameFormatter.formatTypeAndRange(TYPE_SPAN, beginMillis, endMillis);
     if (indices.isEmpty()) return Call.emptyList();
 
     SearchRequest request = SearchRequest.create(indices)
@@ -178,7 +230,7 @@ final class ElasticsearchSpanStore implements SpanStore, Traces, ServiceAndSpanN
     long endMillis = System.currentTimeMillis();
     long beginMillis = endMillis - namesLookback;
 
-    List<String> indices = indexNameFormatter.formatTypeAndRange(TYPE_SPAN, beginMillis, endMillis);
+    List<String> indices = spanIndexNameFormatter.formatTypeAndRange(TYPE_SPAN, beginMillis, endMillis);
     if (indices.isEmpty()) return Call.emptyList();
 
     // A span name is only valid on a local endpoint, as a span name is defined locally
@@ -208,21 +260,26 @@ final class ElasticsearchSpanStore implements SpanStore, Traces, ServiceAndSpanN
     return search.newCall(SearchRequest.create(indices), BodyConverters.DEPENDENCY_LINKS);
   }
 
-  static final class GetSpansByTraceId implements Call.FlatMapper<List<String>, List<Span>> {
+  static final class GetSpansByTraceId
+    implements Call.FlatMapper<List<String>, List<List<Span>>> {
     final SearchCallFactory search;
     final List<String> indices;
+    final BodyConverter<List<List<Span>>> traces;
 
-    GetSpansByTraceId(SearchCallFactory search, List<String> indices) {
+    GetSpansByTraceId(SearchCallFactory search, List<String> indices,
+      BodyConverter<List<List<Span>>> traces) {
       this.search = search;
       this.indices = indices;
+      this.traces = traces;
     }
 
     @Override
-    public Call<List<Span>> map(List<String> input) {
+    public Call<List<List<Span>>> map(List<String> input) {
       if (input.isEmpty()) return Call.emptyList();
 
-      SearchRequest getTraces = SearchRequest.create(indices).terms("traceId", input);
-      return search.newCall(getTraces, BodyConverters.SPANS);
+      SearchRequest getTraces = SearchRequest.create(indices).terms("traceId", input)
+        .sourceExcludes(SEARCH_ONLY_FIELDS);
+      return search.newCall(getTraces, traces);
     }
 
     @Override
@@ -230,4 +287,80 @@ final class ElasticsearchSpanStore implements SpanStore, Traces, ServiceAndSpanN
       return "GetSpansByTraceId{indices=" + indices + "}";
     }
   }
+
+  /**
+   * Reads spans of trace IDs found by collapsing, only from the days they were found. As a trace
+   * can cross midnight, this includes adjacent days within the query range.
+   */
+  static final class GetSpansByCollapsedTraceId
+    implements Call.FlatMapper<Map<String, Long>, List<List<Span>>> {
+    static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    final SearchCallFactory search;
+    final IndexNameFormatter indexNameFormatter;
+    final long beginDay, endDay;
+    final BodyConverter<List<List<Span>>> traces;
+
+    GetSpansByCollapsedTraceId(SearchCallFactory search, IndexNameFormatter indexNameFormatter,
+      long beginMillis, long endMillis, BodyConverter<List<List<Span>>> traces) {
+      this.search = search;
+      this.indexNameFormatter = indexNameFormatter;
+      this.beginDay = Math.floorDiv(beginMillis, DAY_MILLIS);
+      this.endDay = Math.floorDiv(endMillis, DAY_MILLIS);
+      this.traces = traces;
+    }
+
+    @Override
+    public Call<List<List<Span>>> map(Map<String, Long> input) {
+      if (input.isEmpty()) return Call.emptyList();
+
+      SearchRequest getTraces = SearchRequest.create(indices(input.values()))
+        .terms("traceId", input.keySet())
+        .sourceExcludes(SEARCH_ONLY_FIELDS);
+      return search.newCall(getTraces, traces);
+    }
+
+    List<String> indices(Iterable<Long> timestamps) {
+      Set<Long> days = new TreeSet<>();
+      for (long timestamp : timestamps) {
+        long day = Math.floorDiv(timestamp, DAY_MILLIS);
+        for (long d = Math.max(day - 1, beginDay), last = Math.min(day + 1, endDay); d <= last;) {
+          days.add(d++);
+        }
+      }
+      List<String> result = new ArrayList<>(days.size());
+      for (long day : days) {
+        result.add(indexNameFormatter.formatTypeAndDay(TYPE_SPAN, day));
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "GetSpansByCollapsedTraceId{beginDay=" + beginDay + ", endDay=" + endDay + "}";
+    }
+  }
+
+  /**
+   * Hinted indices may be missing a trace, for example when its spans were written by another
+   * process to a day not hinted. In this case, we read all indices.
+   */
+  static final class ReadAllIndicesIfMissing<V extends List<?>> implements Call.FlatMapper<V, V> {
+    final Call<V> readAllIndices;
+    final int traceCount;
+
+    ReadAllIndicesIfMissing(Call<V> readAllIndices, int traceCount) {
+      this.readAllIndices = readAllIndices;
+      this.traceCount = traceCount;
+    }
+
+    @Override public Call<V> map(V input) {
+      // When reading a single trace, the input is its spans, so this is the same as empty
+      return input.size() < traceCount ? readAllIndices.clone() : Call.create(input);
+    }
+
+    @Override public String toString() {
+      return "ReadAllIndicesIfMissing{" + readAllIndices + "}";
+    }
+  }
 }
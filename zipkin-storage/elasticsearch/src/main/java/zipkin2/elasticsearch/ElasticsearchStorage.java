@@ -21,6 +21,8 @@ import com.linecorp.armeria.client.WebClient;
 import com.linecorp.armeria.client.endpoint.EndpointGroup;
 import com.linecorp.armeria.common.AggregatedHttpRequest;
 import com.linecorp.armeria.common.HttpMethod;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -33,9 +35,12 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import zipkin2.Call;
 import zipkin2.CheckResult;
+import zipkin2.elasticsearch.internal.BulkMetrics;
+import zipkin2.elasticsearch.internal.BulkProcessor;
 import zipkin2.elasticsearch.internal.IndexNameFormatter;
 import zipkin2.elasticsearch.internal.Internal;
 import zipkin2.elasticsearch.internal.client.HttpCall;
+import zipkin2.elasticsearch.internal.client.RequestCompression;
 import zipkin2.elasticsearch.internal.client.HttpCall.BodyConverter;
 import zipkin2.internal.Nullable;
 import zipkin2.storage.AutocompleteTags;
@@ -88,7 +93,16 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
       .flushOnWrites(false)
       .autocompleteKeys(Collections.emptyList())
       .autocompleteTtl((int) TimeUnit.HOURS.toMillis(1))
-      .autocompleteCardinality(5 * 4000); // Ex. 5 site tags with cardinality 4000 each
+      .autocompleteCardinality(5 * 4000) // Ex. 5 site tags with cardinality 4000 each
+      .bulkLinger(0)
+      .bulkMaxItems(1000)
+      .bulkMaxBytes(5 * 1024 * 1024)
+      .bulkMaxRetries(3)
+      .compressionLevel(0)
+      .collapseTraceIds(false)
+      .traceIdHintDays(0)
+      .hourlySpanIndices(false)
+      .meterRegistry(Metrics.globalRegistry);
   }
 
   abstract Builder toBuilder();
@@ -136,6 +150,19 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
       return this;
     }
 
+    /**
+     * When true, span indices are hourly instead of daily. Ex. 'zipkin-span-2016-03-19-13'. This
+     * keeps shards a healthy size at high volume, and lets queries of short lookbacks read only the
+     * hours they need. As there are 24 times as many span indices, consider fewer {@link
+     * #indexShards(int) shards}. Autocomplete and dependency indices remain daily. Defaults to
+     * false.
+     *
+     * <p>Reads still include daily span indices, so data written before switching remains
+     * readable. However, the zipkin-dependencies job reads daily span indices by name, so it won't
+     * see spans written to hourly ones.
+     */
+    public abstract Builder hourlySpanIndices(boolean hourlySpanIndices);
+
     /**
      * The number of shards to split the index into. Each shard and its replicas are assigned to a
      * machine in the cluster. Increasing the number of shards and machines in the cluster will
@@ -162,6 +189,65 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
     /** False disables automatic index template installation. */
     public abstract Builder ensureTemplates(boolean ensureTemplates);
 
+    /**
+     * When positive, spans from different calls to {@link SpanConsumer#accept(List)} are merged
+     * into shared bulk requests, sent after waiting at most this amount of milliseconds. This
+     * reduces request overhead when there are many small messages, at the cost of latency. Each
+     * call completes when its own spans are acknowledged. Defaults to 0, which disables merging.
+     *
+     * @see #bulkMaxItems(int)
+     * @see #bulkMaxBytes(int)
+     */
+    public abstract Builder bulkLinger(int bulkLinger);
+
+    /**
+     * When {@link #bulkLinger(int) merging}, a bulk request is sent as soon as it has this many
+     * items. Defaults to 1000.
+     */
+    public abstract Builder bulkMaxItems(int bulkMaxItems);
+
+    /**
+     * When {@link #bulkLinger(int) merging}, a bulk request is sent as soon as its body is this
+     * many bytes. Defaults to 5MiB.
+     */
+    public abstract Builder bulkMaxBytes(int bulkMaxBytes);
+
+    /**
+     * Bulk items rejected by Elasticsearch due to load (status 429) are sent again up to this many
+     * times, after a jittered exponential backoff starting at 100ms. Only rejected items are sent
+     * again, not the whole request. Defaults to 3. Zero disables retries.
+     */
+    public abstract Builder bulkMaxRetries(int bulkMaxRetries);
+
+    /**
+     * When positive, the bodies of bulk and search requests are gzipped at this level, from 1
+     * (fastest) to 9 (smallest). This trades CPU for less network transfer, which is usually
+     * worthwhile for span json. Defaults to 0, which disables compression.
+     */
+    public abstract Builder compressionLevel(int compressionLevel);
+
+    /**
+     * When true, trace queries find trace IDs with field collapsing, sorted by span timestamp,
+     * instead of a terms aggregation. Spans are then only read from the days where those trace IDs
+     * were found, and the days adjacent. This is cheaper when there are many distinct trace IDs in
+     * the lookback. Ignored on Elasticsearch versions before 5.3. Defaults to false.
+     */
+    public abstract Builder collapseTraceIds(boolean collapseTraceIds);
+
+    /**
+     * When positive, remembers the days trace IDs were written or read by this process, for this
+     * many recent days. Lookups by trace ID then read the indices of those days, and adjacent days,
+     * instead of all span indices. When the trace isn't found there, all indices are read. Uses
+     * about 1MiB of memory per day. Defaults to 0, which disables hints.
+     */
+    public abstract Builder traceIdHintDays(int traceIdHintDays);
+
+    /**
+     * Registry for metrics about requests, such as the outcome of bulk items. Defaults to {@link
+     * Metrics#globalRegistry}.
+     */
+    public abstract Builder meterRegistry(MeterRegistry meterRegistry);
+
     /** {@inheritDoc} */
     @Override public abstract Builder strictTraceId(boolean strictTraceId);
 
@@ -209,10 +295,71 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
 
   public abstract IndexNameFormatter indexNameFormatter();
 
+  /** Internal use only */
+  public abstract boolean hourlySpanIndices();
+
+  /** Formats span index names, which are hourly when {@link #hourlySpanIndices()}. */
+  @Memoized IndexNameFormatter spanIndexNameFormatter() {
+    if (!hourlySpanIndices()) return indexNameFormatter();
+    return indexNameFormatter().toBuilder().hourly(true).build();
+  }
+
   abstract boolean ensureTemplates();
 
   public abstract int namesLookback();
 
+  abstract int bulkLinger();
+
+  abstract int bulkMaxItems();
+
+  abstract int bulkMaxBytes();
+
+  /** Internal use only */
+  public abstract int bulkMaxRetries();
+
+  /** Internal use only */
+  public abstract int compressionLevel();
+
+  /** Internal use only */
+  public abstract boolean collapseTraceIds();
+
+  /** Internal use only */
+  public abstract int traceIdHintDays();
+
+  abstract MeterRegistry meterRegistry();
+
+  volatile BulkProcessor bulkProcessor; // lazy, as there's no need when only reading
+  volatile boolean closeCalled;
+  volatile TraceIdDayHints traceIdDayHints; // lazy, as it allocates per day
+
+  /** Returns null unless hinting the days of trace IDs, shared by the span consumer and store. */
+  @Nullable TraceIdDayHints traceIdDayHints() {
+    if (traceIdHintDays() <= 0) return null;
+    TraceIdDayHints result = traceIdDayHints;
+    if (result != null) return result;
+    synchronized (this) {
+      if (traceIdDayHints == null) {
+        traceIdDayHints = new TraceIdDayHints(spanIndexNameFormatter(), traceIdHintDays());
+      }
+      return traceIdDayHints;
+    }
+  }
+
+  /** Returns null unless spans are merged into shared bulk requests. */
+  @Nullable BulkProcessor bulkProcessor() {
+    if (bulkLinger() <= 0) return null;
+    BulkProcessor result = bulkProcessor;
+    if (result != null) return result;
+    synchronized (this) {
+      if (closeCalled) throw new IllegalStateException("closed");
+      if (bulkProcessor == null) {
+        bulkProcessor = new BulkProcessor(
+          this, version(), "index-span", bulkMaxItems(), bulkMaxBytes(), bulkLinger());
+      }
+      return bulkProcessor;
+    }
+  }
+
   @Override public SpanStore spanStore() {
     ensureIndexTemplates();
     return new ElasticsearchSpanStore(this);
@@ -356,14 +503,31 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
       @Override public HttpCall.Factory http(ElasticsearchStorage storage) {
         return storage.http();
       }
+
+      @Override public BulkMetrics bulkMetrics(ElasticsearchStorage storage) {
+        return storage.bulkMetrics();
+      }
     };
   }
 
   @Memoized HttpCall.Factory http() {
-    return new HttpCall.Factory(lazyHttpClient().get());
+    RequestCompression compression = compressionLevel() > 0
+      ? new RequestCompression(compressionLevel(), meterRegistry())
+      : null;
+    return new HttpCall.Factory(lazyHttpClient().get(), compression);
+  }
+
+  @Memoized BulkMetrics bulkMetrics() {
+    return new BulkMetrics(meterRegistry());
   }
 
   @Override public void close() {
+    BulkProcessor bulkProcessor;
+    synchronized (this) {
+      closeCalled = true;
+      bulkProcessor = this.bulkProcessor;
+    }
+    if (bulkProcessor != null) bulkProcessor.close(); // flush before closing the client
     lazyHttpClient().close();
   }
 
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.elasticsearch.internal.IndexNameFormatter;
+
+import static zipkin2.elasticsearch.VersionSpecificTemplates.TYPE_SPAN;
+
+/**
+ * Remembers which days trace IDs were seen on, so that a lookup by trace ID can read the indices of
+ * those days instead of all span indices.
+ *
+ * <p>Each recent day has a bloom filter of the lower 64 bits of trace IDs. A false positive only
+ * adds indices to a lookup. Hints are local to this process: they include spans written by it, and
+ * spans it read by trace query, such as the search a user made before clicking a trace. Callers
+ * must read all indices when there is no hint, or when the hinted indices don't have the trace.
+ */
+final class TraceIdDayHints {
+  static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+  static final int BITS_PER_DAY = 1 << 23; // 1MiB, or a 2% false positive rate at 1M traces a day
+  static final int HASH_COUNT = 4;
+
+  final IndexNameFormatter indexNameFormatter;
+  final AtomicReferenceArray<Day> days;
+
+  TraceIdDayHints(IndexNameFormatter indexNameFormatter, int dayCount) {
+    if (dayCount <= 0) throw new IllegalArgumentException("dayCount <= 0");
+    this.indexNameFormatter = indexNameFormatter;
+    this.days = new AtomicReferenceArray<>(dayCount);
+  }
+
+  /** Records the day of each span which has a timestamp. */
+  void record(List<Span> spans) {
+    for (Span span : spans) {
+      long timestamp = span.timestampAsLong();
+      if (timestamp == 0L && !span.annotations().isEmpty()) {
+        timestamp = span.annotations().get(0).timestamp();
+      }
+      if (timestamp != 0L) record(span.traceId(), timestamp / 1000L);
+    }
+  }
+
+  void record(String traceId, long timestampMillis) {
+    long epochDay = Math.floorDiv(timestampMillis, DAY_MILLIS);
+    Day day = day(epochDay);
+    if (day == null) return; // older than the days we keep
+
+    long hash = hash(traceId);
+    int h1 = (int) hash, h2 = (int) (hash >>> 32);
+    for (int i = 0; i < HASH_COUNT; i++) {
+      int bit = (h1 + i * h2) & (BITS_PER_DAY - 1);
+      long mask = 1L << bit;
+      int word = bit >>> 6;
+      if ((day.bits.get(word) & mask) == 0L) day.bits.accumulateAndGet(word, mask, (a, b) -> a | b);
+    }
+  }
+
+  /** Returns the day to record into, replacing an older day in the same slot. */
+  Day day(long epochDay) {
+    int slot = (int) Math.floorMod(epochDay, (long) days.length());
+    while (true) {
+      Day existing = days.get(slot);
+      if (existing != null && existing.epochDay >= epochDay) {
+        return existing.epochDay == epochDay ? existing : null;
+      }
+      Day day = new Day(epochDay);
+      if (days.compareAndSet(slot, existing, day)) return day;
+    }
+  }
+
+  /**
+   * Returns the span indices of days hinted for all of the trace IDs, including adjacent days as a
+   * trace can cross midnight. Returns an empty list if any trace ID has no hint.
+   */
+  List<String> indices(Collection<String> traceIds) {
+    TreeSet<Long> epochDays = new TreeSet<>();
+    for (String traceId : traceIds) {
+      long hash = hash(traceId);
+      boolean hinted = false;
+      for (int i = 0, length = days.length(); i < length; i++) {
+        Day day = days.get(i);
+        if (day == null || !day.mightContain(hash)) continue;
+        hinted = true;
+        epochDays.add(day.epochDay - 1);
+        epochDays.add(day.epochDay);
+        epochDays.add(day.epochDay + 1);
+      }
+      if (!hinted) return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<>(epochDays.size());
+    for (long epochDay : epochDays) {
+      result.add(indexNameFormatter.formatTypeAndDay(TYPE_SPAN, epochDay));
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /** Hashes the lower 64 bits of the trace ID, as lookups aren't always strict. */
+  static long hash(String traceId) {
+    long lowerTraceId = 0L;
+    for (int i = Math.max(0, traceId.length() - 16), length = traceId.length(); i < length; i++) {
+      lowerTraceId = (lowerTraceId << 4) | Character.digit(traceId.charAt(i), 16);
+    }
+    // murmur3 finalizer, as trace IDs aren't necessarily random in all bits
+    lowerTraceId ^= lowerTraceId >>> 33;
+    lowerTraceId *= 0xff51afd7ed558ccdL;
+    lowerTraceId ^= lowerTraceId >>> 33;
+    lowerTraceId *= 0xc4ceb9fe1a85ec53L;
+    return lowerTraceId ^ (lowerTraceId >>> 33);
+  }
+
+  static final class Day {
+    final long epochDay;
+    final AtomicLongArray bits = new AtomicLongArray(BITS_PER_DAY / 64);
+
+    Day(long epochDay) {
+      this.epochDay = epochDay;
+    }
+
+    boolean mightContain(long hash) {
+      int h1 = (int) hash, h2 = (int) (hash >>> 32);
+      for (int i = 0; i < HASH_COUNT; i++) {
+        int bit = (h1 + i * h2) & (BITS_PER_DAY - 1);
+        if ((bits.get(bit >>> 6) & (1L << bit)) == 0L) return false;
+      }
+      return true;
+    }
+  }
+
+  /** Records the days of a trace read, so that the next lookup of it is narrower. */
+  final class RecordTrace implements Call.Mapper<List<Span>, List<Span>> {
+    @Override public List<Span> map(List<Span> input) {
+      record(input);
+      return input;
+    }
+
+    @Override public String toString() {
+      return "RecordTraceIdDayHints";
+    }
+  }
+
+  /** Records the days of traces read, so that the next lookup of them is narrower. */
+  final class RecordTraces implements Call.Mapper<List<List<Span>>, List<List<Span>>> {
+    @Override public List<List<Span>> map(List<List<Span>> input) {
+      for (List<Span> trace : input) record(trace);
+      return input;
+    }
+
+    @Override public String toString() {
+      return "RecordTraceIdDayHints";
+    }
+  }
+}
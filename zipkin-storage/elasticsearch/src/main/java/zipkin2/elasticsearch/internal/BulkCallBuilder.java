@@ -13,9 +13,8 @@
  */
 package zipkin2.elasticsearch.internal;
 
-import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonToken;
 import com.google.auto.value.AutoValue;
 import com.linecorp.armeria.common.HttpData;
 import com.linecorp.armeria.common.HttpHeaderNames;
@@ -23,10 +22,8 @@ import com.linecorp.armeria.common.HttpMethod;
 import com.linecorp.armeria.common.MediaType;
 import com.linecorp.armeria.common.RequestContext;
 import com.linecorp.armeria.common.RequestHeaders;
-import com.linecorp.armeria.common.util.Exceptions;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.handler.codec.http.QueryStringEncoder;
 import java.io.IOException;
@@ -34,52 +31,147 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
+import zipkin2.Call;
 import zipkin2.elasticsearch.ElasticsearchStorage;
 import zipkin2.elasticsearch.internal.client.HttpCall;
 import zipkin2.elasticsearch.internal.client.HttpCall.BodyConverter;
-
-import static zipkin2.Call.propagateIfFatal;
-import static zipkin2.elasticsearch.internal.JsonSerializers.OBJECT_MAPPER;
+import zipkin2.internal.Nullable;
 
 // See https://www.elastic.co/guide/en/elasticsearch/reference/current/docs-bulk.html
 // exposed to re-use for testing writes of dependency links
 public final class BulkCallBuilder {
-  // This mapper is invoked under the assumption that bulk requests return errors even when the http
-  // status is success. The status codes expected to be returned were undocumented as of version 7.2
-  // https://www.elastic.co/guide/en/elasticsearch/reference/current/docs-bulk.html
-  static final BodyConverter<Void> CHECK_FOR_ERRORS = new BodyConverter<Void>() {
-    @Override public Void convert(JsonParser parser, Supplier<String> contentString) {
-      RuntimeException toThrow = null;
-      try {
-        JsonNode root = OBJECT_MAPPER.readTree(parser);
-        // only throw when we know it is an error
-        if (!root.at("/errors").booleanValue() && !root.at("/error").isObject()) return null;
-
-        String message = root.findPath("reason").textValue();
-        if (message == null) message = contentString.get();
-        Number status = root.findPath("status").numberValue();
-        if (status != null && status.intValue() == 429) {
-          toThrow = new RejectedExecutionException(message);
+  /**
+   * Returns the errors of bulk items by position, or null when all succeeded. Throws when the
+   * request failed as a whole.
+   *
+   * <p>This is invoked under the assumption that bulk requests return errors even when the http
+   * status is success. The status codes expected to be returned were undocumented as of version
+   * 7.2 https://www.elastic.co/guide/en/elasticsearch/reference/current/docs-bulk.html
+   *
+   * <p>The response is parsed in streaming mode, as it includes a result per item, and most items
+   * usually succeed. When the response says there are no errors, items aren't parsed at all.
+   */
+  static final BodyConverter<RuntimeException[]> ITEM_ERRORS =
+    new BodyConverter<RuntimeException[]>() {
+      @Override public RuntimeException[] convert(JsonParser parser,
+        Supplier<String> contentString) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) return null; // ex. empty response
+
+        boolean errors = true; // until we know otherwise
+        int status = 0;
+        String[] requestError = null;
+        RuntimeException[] itemErrors = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.getCurrentName();
+          JsonToken value = parser.nextToken();
+          if ("errors".equals(field)) {
+            errors = value == JsonToken.VALUE_TRUE;
+          } else if ("items".equals(field) && value == JsonToken.START_ARRAY && errors) {
+            itemErrors = readItemErrors(parser);
+          } else if ("error".equals(field) && value == JsonToken.START_OBJECT) {
+            requestError = readTypeAndReason(parser);
+          } else if ("status".equals(field) && value.isNumeric()) {
+            status = parser.getIntValue();
+          } else {
+            parser.skipChildren();
+          }
+        }
+
+        if (requestError != null) {
+          String message = requestError[1] != null ? requestError[1] : contentString.get();
+          throw bulkError(status, requestError[0], message);
+        }
+        return itemErrors;
+      }
+
+      @Override public String toString() {
+        return "ItemErrors";
+      }
+    };
+
+  /** Returns null when no items failed. The parser is positioned at the start of the array. */
+  @Nullable static RuntimeException[] readItemErrors(JsonParser parser) throws IOException {
+    List<RuntimeException> result = new ArrayList<>();
+    boolean anyError = false;
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      RuntimeException error = null;
+      // Each item is an object keyed by the action, ex. {"index":{"status":201...}}
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+          error = readItemError(parser);
         } else {
-          toThrow = new RuntimeException(message);
+          parser.skipChildren();
         }
+      }
+      if (error != null) anyError = true;
+      result.add(error);
+    }
+    return anyError ? result.toArray(new RuntimeException[0]) : null;
+  }
+
+  @Nullable static RuntimeException readItemError(JsonParser parser) throws IOException {
+    int status = 0;
+    String[] error = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if ("status".equals(field) && value.isNumeric()) {
+        status = parser.getIntValue();
+      } else if ("error".equals(field) && value == JsonToken.START_OBJECT) {
+        error = readTypeAndReason(parser);
+      } else if ("error".equals(field) && value == JsonToken.VALUE_STRING) {
+        error = new String[] {null, parser.getText()};
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (error == null) return null;
+    return bulkError(status, error[0], error[1] != null ? error[1] : "status " + status);
+  }
 
-      } catch (RuntimeException | IOException possiblyParseException) { // All use of jackson throws
+  /**
+   * Returns the type of the error and the first reason in document order, which is the most
+   * specific one when there's a "root_cause". The parser is positioned at the start of the error.
+   */
+  static String[] readTypeAndReason(JsonParser parser) throws IOException {
+    String type = null, reason = null;
+    for (int depth = 1; depth > 0; ) {
+      JsonToken token = parser.nextToken();
+      if (token == null) break; // truncated
+      if (token.isStructStart()) {
+        depth++;
+      } else if (token.isStructEnd()) {
+        depth--;
+      } else if (token == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (value.isStructStart()) {
+          depth++;
+        } else if (depth == 1 && "type".equals(field)) {
+          type = parser.getText();
+        } else if (reason == null && "reason".equals(field)) {
+          reason = parser.getText();
+        }
       }
-      if (toThrow != null) throw toThrow;
-      return null;
     }
+    return new String[] {type, reason};
+  }
 
-    @Override public String toString() {
-      return "CheckForErrors";
+  /** Maps rejections to {@link RejectedExecutionException}, so that callers can back off. */
+  static RuntimeException bulkError(int status, @Nullable String type, String message) {
+    if (status == 429 || "es_rejected_execution_exception".equals(type)) {
+      return new RejectedExecutionException(message);
     }
-  };
+    return new RuntimeException(message);
+  }
 
   final String tag;
   final boolean shouldAddType;
   final HttpCall.Factory http;
   final String pipeline;
   final boolean waitForRefresh;
+  final int maxRetries;
+  final BulkMetrics metrics;
 
   // Mutated for each call to index
   final List<IndexEntry<?>> entries = new ArrayList<>();
@@ -90,6 +182,8 @@ public final class BulkCallBuilder {
     http = Internal.instance.http(es);
     pipeline = es.pipeline();
     waitForRefresh = es.flushOnWrites();
+    maxRetries = es.bulkMaxRetries();
+    metrics = Internal.instance.bulkMetrics(es);
   }
 
   static <T> IndexEntry<T> newIndexEntry(String index, String typeName, T input,
@@ -111,23 +205,33 @@ public final class BulkCallBuilder {
     entries.add(newIndexEntry(index, typeName, input, writer));
   }
 
-  /** Creates a bulk request when there is more than one object to store */
-  public HttpCall<Void> build() {
-    QueryStringEncoder urlBuilder = new QueryStringEncoder("/_bulk");
-    if (pipeline != null) urlBuilder.addParam("pipeline", pipeline);
-    if (waitForRefresh) urlBuilder.addParam("refresh", "wait_for");
+  /**
+   * Creates a bulk request when there is more than one object to store. Items rejected due to
+   * load are sent again, up to {@link ElasticsearchStorage#bulkMaxRetries()} times.
+   */
+  public Call<Void> build() {
+    return new RetryingBulkCall(this::newHttpCall, entries, maxRetries, metrics);
+  }
 
+  HttpCall<RuntimeException[]> newHttpCall(List<IndexEntry<?>> entries) {
     ByteBufAllocator alloc = RequestContext.mapCurrent(
       RequestContext::alloc, () -> PooledByteBufAllocator.DEFAULT);
 
     HttpCall.RequestSupplier request = new BulkRequestSupplier(
       entries,
       shouldAddType,
-      RequestHeaders.of(
-        HttpMethod.POST, urlBuilder.toString(),
-        HttpHeaderNames.CONTENT_TYPE, MediaType.JSON_UTF_8),
+      bulkRequestHeaders(pipeline, waitForRefresh),
       alloc);
-    return http.newCall(request, CHECK_FOR_ERRORS, tag);
+    return http.newCall(request, ITEM_ERRORS, tag);
+  }
+
+  static RequestHeaders bulkRequestHeaders(@Nullable String pipeline, boolean waitForRefresh) {
+    QueryStringEncoder urlBuilder = new QueryStringEncoder("/_bulk");
+    if (pipeline != null) urlBuilder.addParam("pipeline", pipeline);
+    if (waitForRefresh) urlBuilder.addParam("refresh", "wait_for");
+    return RequestHeaders.of(
+      HttpMethod.POST, urlBuilder.toString(),
+      HttpHeaderNames.CONTENT_TYPE, MediaType.JSON_UTF_8);
   }
 
   static class BulkRequestSupplier implements HttpCall.RequestSupplier {
@@ -160,42 +264,6 @@ public final class BulkCallBuilder {
 
   static <T> ByteBuf serialize(ByteBufAllocator alloc, IndexEntry<T> entry,
     boolean shouldAddType) {
-    // Fuzzily assume a general small span is 600 bytes to reduce resizing while building up the
-    // JSON. Any extra bytes will be released back after serializing the document.
-    ByteBuf document = alloc.heapBuffer(600);
-    ByteBuf metadata = alloc.heapBuffer(200);
-    try {
-      String id = entry.writer().writeDocument(entry.input(), new ByteBufOutputStream(document));
-      writeIndexMetadata(new ByteBufOutputStream(metadata), entry, id, shouldAddType);
-
-      ByteBuf payload = alloc.ioBuffer(document.readableBytes() + metadata.readableBytes() + 2);
-      try {
-        payload.writeBytes(metadata).writeByte('\n').writeBytes(document).writeByte('\n');
-      } catch (Throwable t) {
-        payload.release();
-        propagateIfFatal(t);
-        Exceptions.throwUnsafely(t);
-      }
-      return payload;
-    } finally {
-      document.release();
-      metadata.release();
-    }
-  }
-
-  static <T> void writeIndexMetadata(ByteBufOutputStream sink, IndexEntry<T> entry, String id,
-    boolean shouldAddType) {
-    try (JsonGenerator writer = JsonSerializers.jsonGenerator(sink)) {
-      writer.writeStartObject();
-      writer.writeObjectFieldStart("index");
-      writer.writeStringField("_index", entry.index());
-      // the _type parameter is needed for Elasticsearch < 6.x
-      if (shouldAddType) writer.writeStringField("_type", entry.typeName());
-      writer.writeStringField("_id", id);
-      writer.writeEndObject();
-      writer.writeEndObject();
-    } catch (IOException e) {
-      throw new AssertionError(e); // No I/O writing to a Buffer.
-    }
+    return entry.writer().writeBulkItem(alloc, entry, shouldAddType);
   }
 }
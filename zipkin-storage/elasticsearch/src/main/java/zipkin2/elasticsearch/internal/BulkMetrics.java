@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Counts the outcome of each bulk item, as opposed to each request, as Elasticsearch can accept
+ * some items of a request and reject others.
+ *
+ * <p>Follows the same naming convention as {@code zipkin2.collector.CollectorMetrics}
+ */
+public final class BulkMetrics {
+  static final String NAME = "zipkin_storage.elasticsearch.bulk_items";
+
+  final Counter succeeded, retried, rejected, failed;
+
+  public BulkMetrics(MeterRegistry registry) {
+    succeeded = Counter.builder(NAME)
+      .description("cumulative amount of bulk items indexed")
+      .tag("result", "succeeded")
+      .register(registry);
+    retried = Counter.builder(NAME)
+      .description("cumulative amount of bulk items sent again after being rejected due to load")
+      .tag("result", "retried")
+      .register(registry);
+    rejected = Counter.builder(NAME)
+      .description("cumulative amount of bulk items dropped due to load, after any retries")
+      .tag("result", "rejected")
+      .register(registry);
+    failed = Counter.builder(NAME)
+      .description("cumulative amount of bulk items dropped not due to load")
+      .tag("result", "failed")
+      .register(registry);
+  }
+}
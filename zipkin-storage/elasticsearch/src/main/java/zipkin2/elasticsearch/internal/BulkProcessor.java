@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import com.linecorp.armeria.common.CommonPools;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.RequestHeaders;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.elasticsearch.ElasticsearchStorage;
+import zipkin2.elasticsearch.internal.BulkCallBuilder.IndexEntry;
+import zipkin2.elasticsearch.internal.client.HttpCall;
+import zipkin2.internal.BlockingCallback;
+
+import static zipkin2.Call.propagateIfFatal;
+import static zipkin2.elasticsearch.internal.BulkCallBuilder.ITEM_ERRORS;
+import static zipkin2.elasticsearch.internal.BulkCallBuilder.bulkRequestHeaders;
+import static zipkin2.elasticsearch.internal.BulkCallBuilder.serialize;
+
+/**
+ * Merges the entries of many {@link BulkCallBuilder bulk calls} into fewer bulk requests, which
+ * reduces per-request overhead in Elasticsearch when there are many small reporter messages.
+ *
+ * <p>A request is sent when the pending entries reach the maximum count or bytes, or when the
+ * first of them has waited the linger time. Entries of one call are never split across requests.
+ * Each caller completes when its own items are acknowledged: a caller sees an error only when one
+ * of its items failed, or the request as a whole failed.
+ *
+ * <p>Entries are serialized when a call is enqueued, so canceling a call after that has no
+ * effect on what's sent.
+ */
+public final class BulkProcessor implements Closeable {
+  final HttpCall.Factory http;
+  final RequestHeaders headers;
+  final boolean shouldAddType;
+  final String tag;
+  final int maxItems, maxBytes, lingerMillis, maxRetries;
+  final BulkMetrics metrics;
+  final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+
+  Batch pending; // guarded by this
+  boolean closed; // guarded by this
+
+  public BulkProcessor(ElasticsearchStorage es, float esVersion, String tag, int maxItems,
+    int maxBytes, int lingerMillis) {
+    if (maxItems <= 0) throw new IllegalArgumentException("maxItems <= 0");
+    if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+    if (lingerMillis <= 0) throw new IllegalArgumentException("lingerMillis <= 0");
+    this.http = Internal.instance.http(es);
+    this.headers = bulkRequestHeaders(es.pipeline(), es.flushOnWrites());
+    this.shouldAddType = esVersion < 7.0f;
+    this.tag = tag;
+    this.maxItems = maxItems;
+    this.maxBytes = maxBytes;
+    this.lingerMillis = lingerMillis;
+    this.maxRetries = es.bulkMaxRetries();
+    this.metrics = Internal.instance.bulkMetrics(es);
+  }
+
+  /**
+   * Returns a call which adds the entries of the builder to the next bulk request when invoked.
+   * Entries rejected due to load are added again, as described in {@link RetryingBulkCall}.
+   */
+  public Call<Void> newCall(BulkCallBuilder builder) {
+    return new RetryingBulkCall(entries -> new BufferedCall(this, entries),
+      new ArrayList<>(builder.entries), maxRetries, metrics);
+  }
+
+  void add(List<IndexEntry<?>> entries, Callback<RuntimeException[]> callback) {
+    if (entries.isEmpty()) {
+      callback.onSuccess(null);
+      return;
+    }
+
+    List<ByteBuf> payloads = new ArrayList<>(entries.size());
+    int bytes = 0;
+    try {
+      for (IndexEntry<?> entry : entries) {
+        ByteBuf payload = serialize(alloc, entry, shouldAddType);
+        payloads.add(payload);
+        bytes += payload.readableBytes();
+      }
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      release(payloads, 0);
+      callback.onError(t);
+      return;
+    }
+
+    Batch toSend = null, full = null;
+    synchronized (this) {
+      if (closed) {
+        release(payloads, 0);
+        callback.onError(new IllegalStateException("closed"));
+        return;
+      }
+      if (pending != null && (pending.payloads.size() + payloads.size() > maxItems
+        || pending.bytes + bytes > maxBytes)) {
+        toSend = pending; // adding these entries would exceed a limit
+        pending = null;
+      }
+      if (pending == null) pending = new Batch();
+      pending.add(payloads, bytes, callback);
+      if (pending.payloads.size() >= maxItems || pending.bytes >= maxBytes) {
+        full = pending;
+        pending = null;
+      } else if (pending.lingerTimeout == null) {
+        Batch lingering = pending;
+        lingering.lingerTimeout = CommonPools.workerGroup().next()
+          .schedule(() -> sendIfPending(lingering), lingerMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (toSend != null) send(toSend);
+    if (full != null) send(full);
+  }
+
+  void sendIfPending(Batch batch) {
+    synchronized (this) {
+      if (pending != batch) return; // already sent because it filled up
+      pending = null;
+    }
+    send(batch);
+  }
+
+  void send(Batch batch) {
+    if (batch.lingerTimeout != null) batch.lingerTimeout.cancel(false);
+    HttpCall<RuntimeException[]> call =
+      http.newCall(new BatchRequestSupplier(headers, batch.payloads), ITEM_ERRORS, tag);
+    try {
+      call.enqueue(batch);
+    } catch (Throwable t) { // edge case: error during enqueue!
+      propagateIfFatal(t);
+      batch.onError(t);
+    }
+  }
+
+  /** Sends any pending entries, waiting for the result, and rejects subsequent calls. */
+  @Override public void close() {
+    Batch batch;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      batch = pending;
+      pending = null;
+    }
+    if (batch == null) return;
+    if (batch.lingerTimeout != null) batch.lingerTimeout.cancel(false);
+    try {
+      batch.onSuccess(
+        http.newCall(new BatchRequestSupplier(headers, batch.payloads), ITEM_ERRORS, tag)
+          .execute());
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      batch.onError(t);
+    }
+  }
+
+  @Override public String toString() {
+    return "BulkProcessor{maxItems=" + maxItems + ", maxBytes=" + maxBytes + ", lingerMillis="
+      + lingerMillis + "}";
+  }
+
+  static void release(List<ByteBuf> payloads, int fromIndex) {
+    for (int i = fromIndex, length = payloads.size(); i < length; i++) {
+      payloads.get(i).release();
+    }
+  }
+
+  /** Entries of one or more callers, which complete together. */
+  static final class Batch implements Callback<RuntimeException[]> {
+    final List<ByteBuf> payloads = new ArrayList<>();
+    final List<Callback<RuntimeException[]>> callbacks = new ArrayList<>();
+    final List<Integer> itemCounts = new ArrayList<>();
+    int bytes;
+    ScheduledFuture<?> lingerTimeout;
+
+    void add(List<ByteBuf> payloads, int bytes, Callback<RuntimeException[]> callback) {
+      this.payloads.addAll(payloads);
+      this.bytes += bytes;
+      callbacks.add(callback);
+      itemCounts.add(payloads.size());
+    }
+
+    /** Signals each caller with the errors of its own items, or null if there were none. */
+    @Override public void onSuccess(RuntimeException[] itemErrors) {
+      int offset = 0;
+      for (int i = 0, length = callbacks.size(); i < length; i++) {
+        int itemCount = itemCounts.get(i);
+        RuntimeException[] callerErrors = null;
+        for (int j = offset, end = itemErrors != null ? Math.min(offset + itemCount,
+          itemErrors.length) : 0; j < end; j++) {
+          if (itemErrors[j] == null) continue;
+          if (callerErrors == null) callerErrors = new RuntimeException[itemCount];
+          callerErrors[j - offset] = itemErrors[j];
+        }
+        offset += itemCount;
+        callbacks.get(i).onSuccess(callerErrors);
+      }
+    }
+
+    @Override public void onError(Throwable t) {
+      for (Callback<RuntimeException[]> callback : callbacks) callback.onError(t);
+    }
+  }
+
+  static final class BatchRequestSupplier implements HttpCall.RequestSupplier {
+    final RequestHeaders headers;
+    final List<ByteBuf> payloads;
+
+    BatchRequestSupplier(RequestHeaders headers, List<ByteBuf> payloads) {
+      this.headers = headers;
+      this.payloads = payloads;
+    }
+
+    @Override public RequestHeaders headers() {
+      return headers;
+    }
+
+    @Override public void writeBody(HttpCall.RequestStream requestStream) {
+      for (int i = 0, length = payloads.size(); i < length; i++) {
+        // The stream releases the payload written, whether or not it succeeds.
+        if (!requestStream.tryWrite(HttpData.wrap(payloads.get(i)))) {
+          release(payloads, i + 1); // Stream aborted, so release what wasn't written.
+          return;
+        }
+      }
+    }
+
+    @Override public String toString() {
+      return "BatchRequest{items=" + payloads.size() + "}";
+    }
+  }
+
+  static final class BufferedCall extends Call.Base<RuntimeException[]> {
+    final BulkProcessor processor;
+    final List<IndexEntry<?>> entries;
+
+    BufferedCall(BulkProcessor processor, List<IndexEntry<?>> entries) {
+      this.processor = processor;
+      this.entries = entries;
+    }
+
+    @Override protected RuntimeException[] doExecute() throws IOException {
+      BlockingCallback<RuntimeException[]> callback = new BlockingCallback<>();
+      processor.add(entries, callback);
+      return callback.await();
+    }
+
+    @Override protected void doEnqueue(Callback<RuntimeException[]> callback) {
+      processor.add(entries, callback);
+    }
+
+    @Override public Call<RuntimeException[]> clone() {
+      return new BufferedCall(processor, entries);
+    }
+
+    @Override public String toString() {
+      return "BufferedCall{items=" + entries.size() + ", processor=" + processor + "}";
+    }
+  }
+}
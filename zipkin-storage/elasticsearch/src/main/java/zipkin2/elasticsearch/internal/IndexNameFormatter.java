@@ -16,17 +16,13 @@ package zipkin2.elasticsearch.internal;
 import com.google.auto.value.AutoValue;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.TimeZone;
-import zipkin2.internal.DateUtil;
+import java.util.concurrent.TimeUnit;
 import zipkin2.internal.Nullable;
 
-import static java.lang.String.format;
-
 /**
  * <h3>Index-Prefix/type delimiter</h3>
  * When Elasticsearch dropped support for multiple type indexes, we introduced a delimited naming
@@ -45,6 +41,11 @@ import static java.lang.String.format;
  *   <li>ES v7: zipkin-span-2019-05-03 zipkin-dependency-2019-05-03 zipkin-autocomplete-2019-05-03</li>
  * </ul>
  *
+ * <p>When {@link #hourly() hourly}, the hour of day is appended, for example
+ * zipkin-span-2019-05-03-13. This leaves 3 fewer bytes for the index prefix. Reads of whole days
+ * use a pattern, for example zipkin-span-2019-05-03*, and partial days list the daily index
+ * before their hours. This way, reads include daily indices written before switching to hourly.
+ *
  * <p>We can allow an index prefix of up to 231 UTF-8 encoded bytes, subject to the index naming
  * constraints. This is the normal 255 limit minus the longest suffix (ex. -autocomplete-2019-05-03).
  *
@@ -68,17 +69,26 @@ import static java.lang.String.format;
 @AutoValue
 public abstract class IndexNameFormatter {
   public static Builder newBuilder() {
-    return new AutoValue_IndexNameFormatter.Builder();
+    return new AutoValue_IndexNameFormatter.Builder().hourly(false);
   }
 
   public abstract Builder toBuilder();
 
   private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+  static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  // Racy access is safe as entries are immutable. The length must be a power of two.
+  final InsertIndex[] insertIndexes = new InsertIndex[8];
+  volatile IndexRange lastRange;
 
   public abstract String index();
 
   abstract char dateSeparator();
 
+  /** True when indices are per hour instead of per day. */
+  public abstract boolean hourly();
+
   abstract ThreadLocal<SimpleDateFormat> dateFormat(); // SimpleDateFormat isn't thread-safe
 
   @AutoValue.Builder
@@ -87,13 +97,19 @@ public abstract class IndexNameFormatter {
 
     public abstract Builder dateSeparator(char dateSeparator);
 
+    /** When true, indices are per hour instead of per day. Defaults to false. */
+    public abstract Builder hourly(boolean hourly);
+
     abstract Builder dateFormat(ThreadLocal<SimpleDateFormat> dateFormat);
 
     abstract char dateSeparator();
 
+    abstract boolean hourly();
+
     public final IndexNameFormatter build() {
       char separator = dateSeparator();
-      String format = separator == 0 ? "yyyyMMdd" : "yyyy-MM-dd".replace('-', separator);
+      String pattern = hourly() ? "yyyy-MM-dd-HH" : "yyyy-MM-dd";
+      String format = separator == 0 ? pattern.replace("-", "") : pattern.replace('-', separator);
       return dateFormat(ThreadLocal.withInitial(() -> {
         SimpleDateFormat result = new SimpleDateFormat(format);
         result.setTimeZone(UTC);
@@ -110,87 +126,203 @@ public abstract class IndexNameFormatter {
    *
    * <p>For example, if {@code beginMillis} is 2016-11-30 and {@code endMillis} is 2017-01-02, the
    * result will be 2016-11-30, 2016-12-*, 2017-01-01 and 2017-01-02.
+   *
+   * <p>When {@link #hourly()}, partial days at either end of the range are listed by hour, after
+   * their daily index. For example, if {@code beginMillis} is 2016-11-29T22:15 and {@code
+   * endMillis} is 2016-11-30T23:59, the result will be 2016-11-29, 2016-11-29-22, 2016-11-29-23
+   * and 2016-11-30*.
    */
   public List<String> formatTypeAndRange(@Nullable String type, long beginMillis, long endMillis) {
-    GregorianCalendar current = midnightUTC(beginMillis);
-    GregorianCalendar end = midnightUTC(endMillis);
+    long begin = bucket(beginMillis), end = bucket(endMillis);
+    IndexRange range = lastRange;
+    if (range == null || !range.matches(type, begin, end)) {
+      String prefix = prefix(type);
+      List<String> indices = hourly()
+        ? doFormatTypeAndHourRange(prefix, begin, end)
+        : doFormatTypeAndRange(prefix, begin, end);
+      lastRange = range = new IndexRange(type, begin, end, indices);
+    }
+    return new ArrayList<>(range.indices); // callers can mutate their result
+  }
+
+  List<String> doFormatTypeAndHourRange(String prefix, long beginHour, long endHour) {
+    List<String> indices = new ArrayList<>();
+    long hour = beginHour;
+    if (Math.floorMod(hour, 24L) != 0L) addDay(indices, prefix, hour);
+    while (hour <= endHour && Math.floorMod(hour, 24L) != 0L) { // hours before the first whole day
+      indices.add(prefix + '-' + formatHour(hour++));
+    }
+    long firstWholeDay = Math.floorDiv(hour, 24L);
+    long lastWholeDay = Math.floorDiv(endHour + 1, 24L) - 1;
+    if (firstWholeDay <= lastWholeDay) {
+      for (String day : doFormatTypeAndRange(prefix, firstWholeDay, lastWholeDay)) {
+        // A day index name becomes a pattern matching itself and its hours
+        indices.add(day.endsWith("*") ? day : day + '*');
+      }
+      hour = (lastWholeDay + 1) * 24L;
+    }
+    if (hour <= endHour) addDay(indices, prefix, hour);
+    while (hour <= endHour) { // hours after the last whole day
+      indices.add(prefix + '-' + formatHour(hour++));
+    }
+    return indices;
+  }
 
-    String prefix = prefix(type);
+  /** Adds the daily index of a partial day, which may have been written before hourly ones. */
+  void addDay(List<String> indices, String prefix, long epochHour) {
+    indices.add(prefix + '-' + formatDate(Math.floorDiv(epochHour, 24L)));
+  }
+
+  List<String> doFormatTypeAndRange(String prefix, long beginDay, long endDay) {
+    LocalDate current = LocalDate.ofEpochDay(beginDay), end = LocalDate.ofEpochDay(endDay);
     List<String> indices = new ArrayList<>();
-    while (current.compareTo(end) <= 0) {
-      if (current.get(Calendar.MONTH) == 0 && current.get(Calendar.DAY_OF_MONTH) == 1) {
+    while (!current.isAfter(end)) {
+      int dayOfMonth = current.getDayOfMonth();
+      boolean firstOfYear = current.getDayOfYear() == 1;
+      if (firstOfYear) {
         // attempt to compress a year
-        current.set(Calendar.DAY_OF_YEAR, current.getActualMaximum(Calendar.DAY_OF_YEAR));
-        if (current.compareTo(end) <= 0) {
-          indices.add(format("%s-%s%c*", prefix, current.get(Calendar.YEAR), dateSeparator()));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to next year
+        LocalDate last = current.withDayOfYear(current.lengthOfYear());
+        if (!last.isAfter(end)) {
+          StringBuilder pattern = new StringBuilder(prefix).append('-').append(current.getYear());
+          indices.add(appendSeparator(pattern).append('*').toString());
+          current = last.plusDays(1); // rollover to next year
           continue;
-        } else {
-          current.set(Calendar.DAY_OF_YEAR, 1); // rollback to first of the year
         }
-      } else if (current.get(Calendar.DAY_OF_MONTH) == 1) {
+      } else if (dayOfMonth == 1) {
         // attempt to compress a month
-        current.set(Calendar.DAY_OF_MONTH, current.getActualMaximum(Calendar.DAY_OF_MONTH));
-        if (current.compareTo(end) <= 0) {
-          indices.add(formatIndexPattern("%s-%s%c%02d%c*", current, prefix));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to next month
-          continue;
-        }
-        current.set(Calendar.DAY_OF_MONTH, 9); // try to compress days 0-9
-        if (current.compareTo(end) <= 0) {
-          indices.add(formatIndexPattern("%s-%s%c%02d%c0*", current, prefix));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to day 10
+        LocalDate last = current.withDayOfMonth(current.lengthOfMonth());
+        if (!last.isAfter(end)) {
+          indices.add(formatIndexPattern(prefix, current, ""));
+          current = last.plusDays(1); // rollover to next month
           continue;
         }
-        current.set(Calendar.DAY_OF_MONTH, 1); // set back to day 1
-      } else if (current.get(Calendar.DAY_OF_MONTH) == 10) {
-        current.set(Calendar.DAY_OF_MONTH, 19); // try to compress days 10-19
-        if (current.compareTo(end) <= 0) {
-          indices.add(formatIndexPattern("%s-%s%c%02d%c1*", current, prefix));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to day 20
-          continue;
-        }
-        current.set(Calendar.DAY_OF_MONTH, 10); // set back to day 10
-      } else if (current.get(Calendar.DAY_OF_MONTH) == 20) {
-        current.set(Calendar.DAY_OF_MONTH, 29); // try to compress days 20-29
-        if (current.compareTo(end) <= 0) {
-          indices.add(formatIndexPattern("%s-%s%c%02d%c2*", current, prefix));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to day 30
+      }
+      if ((dayOfMonth == 1 && !firstOfYear) || dayOfMonth == 10 || dayOfMonth == 20) {
+        // attempt to compress days 1-9, 10-19 or 20-29
+        int lastDayOfMonth = Math.min(dayOfMonth / 10 * 10 + 9, current.lengthOfMonth());
+        LocalDate last = current.withDayOfMonth(lastDayOfMonth);
+        if (!last.isAfter(end)) {
+          indices.add(formatIndexPattern(prefix, current, String.valueOf(dayOfMonth / 10)));
+          current = last.plusDays(1);
           continue;
         }
-        current.set(Calendar.DAY_OF_MONTH, 20); // set back to day 20
       }
-      indices.add(formatTypeAndTimestamp(type, current.getTimeInMillis()));
-      current.add(Calendar.DAY_OF_MONTH, 1);
+      indices.add(prefix + '-' + formatDate(current.toEpochDay()));
+      current = current.plusDays(1);
     }
     return indices;
   }
 
-  String formatIndexPattern(String format, GregorianCalendar current, String prefix) {
-    return format(
-      format,
-      prefix,
-      current.get(Calendar.YEAR),
-      dateSeparator(),
-      current.get(Calendar.MONTH) + 1,
-      dateSeparator());
-  }
-
-  static GregorianCalendar midnightUTC(long epochMillis) {
-    GregorianCalendar result = new GregorianCalendar(UTC);
-    result.setTimeInMillis(DateUtil.midnightUTC(epochMillis));
-    return result;
+  String formatIndexPattern(String prefix, LocalDate current, String dayPrefix) {
+    StringBuilder result = new StringBuilder(prefix).append('-').append(current.getYear());
+    appendSeparator(result);
+    appendTwoDigits(result, current.getMonthValue());
+    return appendSeparator(result).append(dayPrefix).append('*').toString();
   }
 
   /** On insert, require a version-specific index-type delimiter as ES 7+ dropped colons */
   public String formatTypeAndTimestampForInsert(String type, char indexTypeDelimiter,
     long timestampMillis) {
-    return index() + indexTypeDelimiter + type + '-' + dateFormat().get()
-      .format(new Date(timestampMillis));
+    long bucket = bucket(timestampMillis);
+    // The slot doesn't depend on the day, so that today's index replaces yesterday's
+    int slot = (type.hashCode() * 31 + indexTypeDelimiter) & (insertIndexes.length - 1);
+    InsertIndex cached = insertIndexes[slot];
+    if (cached != null && cached.matches(type, indexTypeDelimiter, bucket)) return cached.name;
+
+    String name = index() + indexTypeDelimiter + type + '-' + formatBucket(bucket);
+    insertIndexes[slot] = new InsertIndex(type, indexTypeDelimiter, bucket, name);
+    return name;
   }
 
   public String formatTypeAndTimestamp(@Nullable String type, long timestampMillis) {
-    return prefix(type) + "-" + dateFormat().get().format(new Date(timestampMillis));
+    return prefix(type) + "-" + formatBucket(bucket(timestampMillis));
+  }
+
+  /** Returns the index, or pattern of daily and hourly indices, which includes the whole day. */
+  public String formatTypeAndDay(@Nullable String type, long epochDay) {
+    String result = prefix(type) + '-' + formatDate(epochDay);
+    return hourly() ? result + '*' : result;
+  }
+
+  static long epochDay(long epochMillis) {
+    return Math.floorDiv(epochMillis, DAY_MILLIS);
+  }
+
+  /** Returns the epoch hour when {@link #hourly()}, otherwise the epoch day. */
+  long bucket(long epochMillis) {
+    return Math.floorDiv(epochMillis, hourly() ? HOUR_MILLIS : DAY_MILLIS);
+  }
+
+  String formatBucket(long bucket) {
+    return hourly() ? formatHour(bucket) : formatDate(bucket);
+  }
+
+  String formatHour(long epochHour) {
+    StringBuilder result = new StringBuilder(13).append(formatDate(Math.floorDiv(epochHour, 24L)));
+    appendTwoDigits(appendSeparator(result), (int) Math.floorMod(epochHour, 24L));
+    return result.toString();
+  }
+
+  /** Formats the day the same as {@link #dateFormat()}, but without allocating a date. */
+  String formatDate(long epochDay) {
+    LocalDate date = LocalDate.ofEpochDay(epochDay);
+    StringBuilder result = new StringBuilder(10);
+    int year = date.getYear();
+    for (int i = 1000; i > 1 && year < i; i /= 10) result.append('0'); // yyyy
+    result.append(year);
+    appendSeparator(result);
+    appendTwoDigits(result, date.getMonthValue());
+    appendSeparator(result);
+    appendTwoDigits(result, date.getDayOfMonth());
+    return result.toString();
+  }
+
+  StringBuilder appendSeparator(StringBuilder result) {
+    char separator = dateSeparator();
+    return separator != 0 ? result.append(separator) : result;
+  }
+
+  static void appendTwoDigits(StringBuilder result, int value) {
+    result.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+  }
+
+  /** An index name for insert, cached as almost all spans in a request are for the same day. */
+  static final class InsertIndex {
+    final String type;
+    final char indexTypeDelimiter;
+    final long bucket; // epoch day or hour
+    final String name;
+
+    InsertIndex(String type, char indexTypeDelimiter, long bucket, String name) {
+      this.type = type;
+      this.indexTypeDelimiter = indexTypeDelimiter;
+      this.bucket = bucket;
+      this.name = name;
+    }
+
+    boolean matches(String type, char indexTypeDelimiter, long bucket) {
+      return this.bucket == bucket && this.indexTypeDelimiter == indexTypeDelimiter
+        && this.type.equals(type);
+    }
+  }
+
+  /** Index patterns of a query, cached as the UI usually repeats the same lookback. */
+  static final class IndexRange {
+    @Nullable final String type;
+    final long begin, end; // epoch days or hours
+    final List<String> indices;
+
+    IndexRange(@Nullable String type, long begin, long end, List<String> indices) {
+      this.type = type;
+      this.begin = begin;
+      this.end = end;
+      this.indices = indices;
+    }
+
+    boolean matches(@Nullable String type, long begin, long end) {
+      return this.begin == begin && this.end == end
+        && (this.type == null ? type == null : this.type.equals(type));
+    }
   }
 
   private String prefix(@Nullable String type) {
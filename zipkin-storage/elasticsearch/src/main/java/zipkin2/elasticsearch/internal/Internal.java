@@ -26,4 +26,6 @@ public abstract class Internal {
   public static Internal instance;
 
   public abstract HttpCall.Factory http(ElasticsearchStorage storage);
+
+  public abstract BulkMetrics bulkMetrics(ElasticsearchStorage storage);
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import com.linecorp.armeria.common.CommonPools;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.elasticsearch.internal.BulkCallBuilder.IndexEntry;
+import zipkin2.internal.BlockingCallback;
+import zipkin2.internal.Nullable;
+
+import static zipkin2.Call.propagateIfFatal;
+
+/**
+ * Sends bulk items, then sends again only those rejected due to load, after a jittered backoff.
+ * Items which were indexed are never sent again, so retries don't duplicate work in Elasticsearch.
+ *
+ * <p>The call fails with the first item error which isn't a rejection, or the last rejection when
+ * retries are exhausted. This means the caller sees a {@link RejectedExecutionException} only when
+ * Elasticsearch is still overloaded, so that it can back off.
+ */
+final class RetryingBulkCall extends Call.Base<Void> {
+  static final long INITIAL_BACKOFF_MILLIS = 100L;
+
+  final Function<List<IndexEntry<?>>, Call<RuntimeException[]>> sender;
+  final List<IndexEntry<?>> entries;
+  final int maxRetries;
+  final BulkMetrics metrics;
+
+  volatile Call<RuntimeException[]> inFlight;
+  volatile ScheduledFuture<?> pendingRetry;
+
+  /** @param sender returns a call which completes with errors by position, or null if none */
+  RetryingBulkCall(Function<List<IndexEntry<?>>, Call<RuntimeException[]>> sender,
+    List<IndexEntry<?>> entries, int maxRetries, BulkMetrics metrics) {
+    this.sender = sender;
+    this.entries = entries;
+    this.maxRetries = maxRetries;
+    this.metrics = metrics;
+  }
+
+  @Override protected Void doExecute() throws IOException {
+    BlockingCallback<Void> callback = new BlockingCallback<>();
+    doEnqueue(callback);
+    return callback.await();
+  }
+
+  @Override protected void doEnqueue(Callback<Void> callback) {
+    send(entries, 0, null, callback);
+  }
+
+  void send(List<IndexEntry<?>> entries, int retry, @Nullable RuntimeException failure,
+    Callback<Void> callback) {
+    if (isCanceled()) {
+      callback.onError(new IOException("Canceled"));
+      return;
+    }
+    Call<RuntimeException[]> call = sender.apply(entries);
+    inFlight = call;
+    try {
+      call.enqueue(new Callback<RuntimeException[]>() {
+        @Override public void onSuccess(RuntimeException[] itemErrors) {
+          onResponse(entries, itemErrors, retry, failure, callback);
+        }
+
+        @Override public void onError(Throwable t) {
+          metrics.failed.increment(entries.size());
+          callback.onError(t);
+        }
+      });
+    } catch (Throwable t) { // edge case: error during enqueue!
+      propagateIfFatal(t);
+      metrics.failed.increment(entries.size());
+      callback.onError(t);
+    }
+  }
+
+  void onResponse(List<IndexEntry<?>> entries, @Nullable RuntimeException[] itemErrors,
+    int retry, @Nullable RuntimeException failure, Callback<Void> callback) {
+    List<IndexEntry<?>> rejected = null;
+    RuntimeException rejection = null;
+    int failed = 0;
+    if (itemErrors != null) {
+      for (int i = 0, length = Math.min(itemErrors.length, entries.size()); i < length; i++) {
+        RuntimeException error = itemErrors[i];
+        if (error == null) continue;
+        if (error instanceof RejectedExecutionException) {
+          if (rejected == null) rejected = new ArrayList<>();
+          rejected.add(entries.get(i));
+          rejection = error;
+        } else {
+          failed++;
+          if (failure == null) failure = error;
+        }
+      }
+    }
+    int rejectedCount = rejected != null ? rejected.size() : 0;
+    metrics.succeeded.increment(entries.size() - failed - rejectedCount);
+    if (failed > 0) metrics.failed.increment(failed);
+
+    if (rejected == null) {
+      if (failure != null) {
+        callback.onError(failure);
+      } else {
+        callback.onSuccess(null);
+      }
+    } else if (retry < maxRetries && !isCanceled()) {
+      metrics.retried.increment(rejectedCount);
+      List<IndexEntry<?>> toRetry = rejected;
+      RuntimeException failureSoFar = failure;
+      pendingRetry = CommonPools.workerGroup().next().schedule(
+        () -> send(toRetry, retry + 1, failureSoFar, callback),
+        backoffMillis(retry), TimeUnit.MILLISECONDS);
+    } else {
+      metrics.rejected.increment(rejectedCount);
+      callback.onError(failure != null ? failure : rejection);
+    }
+  }
+
+  /** Exponential backoff with "equal jitter", so that rejected writers don't retry in lockstep. */
+  static long backoffMillis(int retry) {
+    long backoff = INITIAL_BACKOFF_MILLIS << Math.min(retry, 10);
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  @Override protected void doCancel() {
+    ScheduledFuture<?> pendingRetry = this.pendingRetry;
+    if (pendingRetry != null) pendingRetry.cancel(false);
+    Call<RuntimeException[]> inFlight = this.inFlight;
+    if (inFlight != null) inFlight.cancel();
+  }
+
+  @Override public Call<Void> clone() {
+    return new RetryingBulkCall(sender, entries, maxRetries, metrics);
+  }
+
+  @Override public String toString() {
+    return "RetryingBulkCall{items=" + entries.size() + ", maxRetries=" + maxRetries + "}";
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import com.linecorp.armeria.common.util.Exceptions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import zipkin2.Annotation;
+import zipkin2.Span;
+import zipkin2.elasticsearch.internal.BulkCallBuilder.IndexEntry;
+import zipkin2.internal.V2SpanWriter;
+import zipkin2.internal.WriteBuffer;
+
+import static zipkin2.Call.propagateIfFatal;
+import static zipkin2.internal.JsonEscaper.jsonEscape;
+import static zipkin2.internal.JsonEscaper.jsonEscapedSizeInBytes;
+import static zipkin2.internal.Platform.SHORT_STRING_LENGTH;
+
+/**
+ * Writes span documents with the same encoder as {@link zipkin2.codec.SpanBytesEncoder#JSON_V2}.
+ * As the size of the document is known in advance, a bulk item is written into a single buffer of
+ * the exact size, without intermediate buffers or strings.
+ *
+ * <p>In order to allow systems like Kibana to search by timestamp, we add a field
+ * "timestamp_millis" when storing. The cheapest way to do this without changing the codec is
+ * prefixing it to the json. For example. {"traceId":"... becomes
+ * {"timestamp_millis":12345,"traceId":"...
+ *
+ * <p>Tags are stored as a dictionary. Since some tag names will include inconsistent number of
+ * dots (ex "error" and perhaps "error.message"), we cannot index them naturally with
+ * elasticsearch. Instead, we add an index-only (non-source) field of {@code _q} which includes
+ * valid search queries. For example, the tag {@code error -> 500} results in {@code
+ * "_q":["error", "error=500"]}. This matches the input query syntax, and can be checked manually
+ * with curl.
+ *
+ * <p>Ex {@code curl -s localhost:9200/zipkin:span-2017-08-11/_search?q=_q:error=500}
+ */
+final class SpanWriter extends BulkIndexWriter<Span> {
+  static final V2SpanWriter V2_SPAN_WRITER = new V2SpanWriter();
+  static final int MD5_HEX_LENGTH = 32;
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  final boolean searchEnabled;
+  // Most spans in a bulk request are for the same index, so we only cache the last action prefix.
+  volatile ActionPrefix lastActionPrefix;
+
+  /** @param searchEnabled encodes timestamp_millis and _q when non-empty */
+  SpanWriter(boolean searchEnabled) {
+    this.searchEnabled = searchEnabled;
+  }
+
+  @Override public String writeDocument(Span input, ByteBufOutputStream sink) {
+    ByteBuf buffer = sink.buffer();
+    int sizeInBytes = documentSizeInBytes(input);
+    buffer.ensureWritable(sizeInBytes);
+    int writerIndex = buffer.writerIndex();
+    if (buffer.hasArray()) {
+      String id = writeDocument(input, buffer.array(), buffer.arrayOffset() + writerIndex);
+      buffer.writerIndex(writerIndex + sizeInBytes);
+      return id;
+    }
+    byte[] document = new byte[sizeInBytes];
+    String id = writeDocument(input, document, 0);
+    buffer.writeBytes(document);
+    return id;
+  }
+
+  /** Writes the action line, then the document, patching the ID into the action line after. */
+  @Override
+  ByteBuf writeBulkItem(ByteBufAllocator alloc, IndexEntry<Span> entry, boolean shouldAddType) {
+    Span span = entry.input();
+    byte[] actionPrefix = actionPrefix(entry.index(), entry.typeName(), shouldAddType);
+    int idLength = span.traceId().length() + 1 + MD5_HEX_LENGTH;
+    int documentSize = documentSizeInBytes(span);
+    // {"index":{..."_id":"<id>"}}\n<document>\n
+    int size = actionPrefix.length + idLength + 4 + documentSize + 1;
+
+    ByteBuf result = alloc.heapBuffer(size, size);
+    try {
+      byte[] array = result.array();
+      int pos = result.arrayOffset();
+      System.arraycopy(actionPrefix, 0, array, pos, actionPrefix.length);
+      int idPos = pos + actionPrefix.length;
+      pos = idPos + idLength;
+      array[pos++] = '"';
+      array[pos++] = '}';
+      array[pos++] = '}';
+      array[pos++] = '\n';
+      String id = writeDocument(span, array, pos);
+      array[pos + documentSize] = '\n';
+      for (int i = 0; i < idLength; i++) array[idPos + i] = (byte) id.charAt(i); // ID is ASCII
+      result.writerIndex(size);
+      return result;
+    } catch (Throwable t) {
+      result.release();
+      propagateIfFatal(t);
+      Exceptions.throwUnsafely(t);
+      return null; // unreachable
+    }
+  }
+
+  /** Returns the ID of the document, which is the trace ID and a hash of the document. */
+  String writeDocument(Span span, byte[] array, int offset) {
+    WriteBuffer buffer = WriteBuffer.wrap(array, offset);
+    int prefixSize = 0;
+    if (searchEnabled && hasSearchFields(span)) {
+      prefixSize = writeSearchFields(span, buffer);
+      buffer = WriteBuffer.wrap(array, offset + prefixSize);
+    }
+    V2_SPAN_WRITER.write(span, buffer);
+    if (prefixSize > 0) array[offset + prefixSize] = ','; // join the search fields and the span
+
+    MessageDigest md5 = md5();
+    md5.update(array, offset, prefixSize + V2_SPAN_WRITER.sizeInBytes(span));
+    byte[] digest = md5.digest();
+    char[] id = new char[span.traceId().length() + 1 + MD5_HEX_LENGTH];
+    span.traceId().getChars(0, span.traceId().length(), id, 0);
+    int pos = span.traceId().length();
+    id[pos++] = '-';
+    for (byte b : digest) {
+      id[pos++] = HEX_DIGITS[(b >> 4) & 0xf];
+      id[pos++] = HEX_DIGITS[b & 0xf];
+    }
+    return new String(id);
+  }
+
+  int documentSizeInBytes(Span span) {
+    int sizeInBytes = V2_SPAN_WRITER.sizeInBytes(span);
+    if (searchEnabled && hasSearchFields(span)) sizeInBytes += searchFieldsSizeInBytes(span);
+    return sizeInBytes;
+  }
+
+  static boolean hasSearchFields(Span span) {
+    return span.timestampAsLong() / 1000L != 0L
+      || !span.tags().isEmpty() || !span.annotations().isEmpty();
+  }
+
+  /** Size of the search fields, including the open brace, but not the comma after them. */
+  static int searchFieldsSizeInBytes(Span span) {
+    int sizeInBytes = 1; // {
+    long timestampMillis = span.timestampAsLong() / 1000L;
+    if (timestampMillis != 0L) {
+      sizeInBytes += 19; // "timestamp_millis":
+      sizeInBytes += WriteBuffer.asciiSizeInBytes(timestampMillis);
+    }
+    if (!span.tags().isEmpty() || !span.annotations().isEmpty()) {
+      if (timestampMillis != 0L) sizeInBytes++; // ,
+      sizeInBytes += 7; // "_q":[]
+      int count = 0;
+      for (Annotation a : span.annotations()) {
+        if (a.value().length() > SHORT_STRING_LENGTH) continue;
+        sizeInBytes += 2 + jsonEscapedSizeInBytes(a.value()); // ""
+        count++;
+      }
+      for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+        int length = tag.getKey().length() + tag.getValue().length() + 1;
+        if (length > SHORT_STRING_LENGTH) continue;
+        int keySize = jsonEscapedSizeInBytes(tag.getKey());
+        sizeInBytes += 2 + keySize; // "key"
+        sizeInBytes += 3 + keySize + jsonEscapedSizeInBytes(tag.getValue()); // "key=value"
+        count += 2;
+      }
+      if (count > 1) sizeInBytes += count - 1; // comma to join elements
+    }
+    return sizeInBytes;
+  }
+
+  /** Writes the search fields, returning the amount of bytes written. */
+  static int writeSearchFields(Span span, WriteBuffer b) {
+    int sizeInBytes = searchFieldsSizeInBytes(span);
+    b.writeByte('{');
+    long timestampMillis = span.timestampAsLong() / 1000L;
+    if (timestampMillis != 0L) {
+      b.writeAscii("\"timestamp_millis\":");
+      b.writeAscii(timestampMillis);
+    }
+    if (!span.tags().isEmpty() || !span.annotations().isEmpty()) {
+      if (timestampMillis != 0L) b.writeByte(',');
+      b.writeAscii("\"_q\":[");
+      boolean first = true;
+      for (Annotation a : span.annotations()) {
+        if (a.value().length() > SHORT_STRING_LENGTH) continue;
+        if (!first) b.writeByte(',');
+        first = false;
+        b.writeByte('"');
+        b.writeUtf8(jsonEscape(a.value()));
+        b.writeByte('"');
+      }
+      for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+        int length = tag.getKey().length() + tag.getValue().length() + 1;
+        if (length > SHORT_STRING_LENGTH) continue;
+        if (!first) b.writeByte(',');
+        first = false;
+        CharSequence key = jsonEscape(tag.getKey());
+        b.writeByte('"');
+        b.writeUtf8(key); // search is possible by key alone
+        b.writeAscii("\",\"");
+        b.writeUtf8(key);
+        b.writeByte('=');
+        b.writeUtf8(jsonEscape(tag.getValue()));
+        b.writeByte('"');
+      }
+      b.writeByte(']');
+    }
+    return sizeInBytes;
+  }
+
+  byte[] actionPrefix(String index, String typeName, boolean shouldAddType) {
+    ActionPrefix actionPrefix = lastActionPrefix;
+    if (actionPrefix == null || !actionPrefix.matches(index, typeName, shouldAddType)) {
+      lastActionPrefix = actionPrefix = new ActionPrefix(index, typeName, shouldAddType);
+    }
+    return actionPrefix.bytes;
+  }
+
+  /** The action line of a bulk item up to the value of the "_id" field. */
+  static final class ActionPrefix {
+    final String index, typeName;
+    final boolean shouldAddType;
+    final byte[] bytes;
+
+    ActionPrefix(String index, String typeName, boolean shouldAddType) {
+      this.index = index;
+      this.typeName = typeName;
+      this.shouldAddType = shouldAddType;
+      StringBuilder result = new StringBuilder("{\"index\":{\"_index\":\"");
+      result.append(jsonEscape(index));
+      // the _type parameter is needed for Elasticsearch < 6.x
+      if (shouldAddType) result.append("\",\"_type\":\"").append(jsonEscape(typeName));
+      this.bytes = result.append("\",\"_id\":\"").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    boolean matches(String index, String typeName, boolean shouldAddType) {
+      return this.index.equals(index) && this.typeName.equals(typeName)
+        && this.shouldAddType == shouldAddType;
+    }
+  }
+}
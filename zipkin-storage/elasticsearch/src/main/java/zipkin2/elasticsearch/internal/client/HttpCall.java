@@ -44,7 +44,9 @@ import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
 import zipkin2.Call;
 import zipkin2.Callback;
+import zipkin2.internal.Nullable;
 
+import static com.linecorp.armeria.common.stream.SubscriptionOption.WITH_POOLED_OBJECTS;
 import static zipkin2.elasticsearch.internal.JsonSerializers.JSON_FACTORY;
 import static zipkin2.elasticsearch.internal.JsonSerializers.OBJECT_MAPPER;
 
@@ -119,20 +121,27 @@ public final class HttpCall<V> extends Call.Base<V> {
 
   public static class Factory {
     final WebClient httpClient;
+    @Nullable final RequestCompression compression;
 
     public Factory(WebClient httpClient) {
+      this(httpClient, null);
+    }
+
+    /** @param compression when non-null, compresses the body of bulk and search requests */
+    public Factory(WebClient httpClient, @Nullable RequestCompression compression) {
       this.httpClient = httpClient;
+      this.compression = compression;
     }
 
     public <V> HttpCall<V> newCall(
       AggregatedHttpRequest request, BodyConverter<V> bodyConverter, String name) {
       return new HttpCall<>(
-        httpClient, new AggregatedRequestSupplier(request), bodyConverter, name);
+        httpClient, compression, new AggregatedRequestSupplier(request), bodyConverter, name);
     }
 
     public <V> HttpCall<V> newCall(
       RequestSupplier request, BodyConverter<V> bodyConverter, String name) {
-      return new HttpCall<>(httpClient, request, bodyConverter, name);
+      return new HttpCall<>(httpClient, compression, request, bodyConverter, name);
     }
   }
 
@@ -142,12 +151,14 @@ public final class HttpCall<V> extends Call.Base<V> {
   final String name;
 
   final WebClient httpClient;
+  @Nullable final RequestCompression compression;
 
-  volatile CompletableFuture<AggregatedHttpResponse> responseFuture;
+  volatile CompletableFuture<?> responseFuture;
 
-  HttpCall(WebClient httpClient, RequestSupplier request, BodyConverter<V> bodyConverter,
-    String name) {
+  HttpCall(WebClient httpClient, @Nullable RequestCompression compression,
+    RequestSupplier request, BodyConverter<V> bodyConverter, String name) {
     this.httpClient = httpClient;
+    this.compression = compression;
     this.name = name;
     this.request = request;
 
@@ -162,6 +173,15 @@ public final class HttpCall<V> extends Call.Base<V> {
           + "Either use doEnqueue() or run this in a separate thread.");
       }
     }
+    if (bodyConverter instanceof StreamingBodyConverter) {
+      try {
+        return sendStreamingRequest((StreamingBodyConverter<V>) bodyConverter).join();
+      } catch (CompletionException e) {
+        propagateIfFatal(e);
+        Exceptions.throwUnsafely(e.getCause());
+        return null;  // Unreachable
+      }
+    }
     final AggregatedHttpResponse response;
     try {
       response = sendRequest().join();
@@ -177,6 +197,17 @@ public final class HttpCall<V> extends Call.Base<V> {
   // TODO: errorprone wants us to check this future before returning, but what would be a sensible
   // check? Say it is somehow canceled, would we take action? Would callback.onError() be redundant?
   @Override protected void doEnqueue(Callback<V> callback) {
+    if (bodyConverter instanceof StreamingBodyConverter) {
+      sendStreamingRequest((StreamingBodyConverter<V>) bodyConverter).handle((value, t) -> {
+        if (t != null) {
+          callback.onError(t);
+        } else {
+          callback.onSuccess(value);
+        }
+        return null;
+      });
+      return;
+    }
     sendRequest().handle((response, t) -> {
       if (t != null) {
         callback.onError(t);
@@ -194,14 +225,14 @@ public final class HttpCall<V> extends Call.Base<V> {
   }
 
   @Override protected void doCancel() {
-    CompletableFuture<AggregatedHttpResponse> responseFuture = this.responseFuture;
+    CompletableFuture<?> responseFuture = this.responseFuture;
     if (responseFuture != null) {
       responseFuture.cancel(false);
     }
   }
 
   @Override public HttpCall<V> clone() {
-    return new HttpCall<>(httpClient, request, bodyConverter, name);
+    return new HttpCall<>(httpClient, compression, request, bodyConverter, name);
   }
 
   @Override public String toString() {
@@ -209,38 +240,64 @@ public final class HttpCall<V> extends Call.Base<V> {
   }
 
   CompletableFuture<AggregatedHttpResponse> sendRequest() {
-    final HttpResponse response;
-    try (SafeCloseable ignored =
-           Clients.withContextCustomizer(ctx -> ctx.logBuilder().name(name))) {
-      HttpRequestWriter httpRequest = HttpRequest.streaming(request.headers());
-      response = httpClient.execute(httpRequest);
-      request.writeBody(httpRequest::tryWrite);
-      httpRequest.close();
-    }
+    HttpResponse response = writeRequest();
     CompletableFuture<AggregatedHttpResponse> responseFuture =
       RequestContext.mapCurrent(
         ctx -> response.aggregateWithPooledObjects(ctx.eventLoop(), ctx.alloc()),
         // This should never be used in practice since the module runs in an Armeria server.
         response::aggregate);
     responseFuture = responseFuture.exceptionally(t -> {
-      if (t instanceof UnprocessedRequestException) {
-        Throwable cause = t.getCause();
-        // Go ahead and reduce the output in logs since this is usually a configuration or
-        // infrastructure issue and the Armeria stack trace won't help debugging that.
-        Exceptions.clearTrace(cause);
-
-        String message = cause.getMessage();
-        if (message == null) message = cause.getClass().getSimpleName();
-        throw new RejectedExecutionException(message, cause);
-      } else {
-        Exceptions.throwUnsafely(t);
-      }
+      Exceptions.throwUnsafely(maybeRejectedExecution(t));
       return null;
     });
     this.responseFuture = responseFuture;
     return responseFuture;
   }
 
+  CompletableFuture<V> sendStreamingRequest(StreamingBodyConverter<V> converter) {
+    HttpResponse response = writeRequest();
+    StreamingResponse<V> responseFuture = new StreamingResponse<>(this, converter);
+    RequestContext ctx = RequestContext.currentOrNull();
+    if (ctx != null) {
+      response.subscribe(responseFuture, ctx.eventLoop(), WITH_POOLED_OBJECTS);
+    } else { // This should never be used in practice since the module runs in an Armeria server.
+      response.subscribe(responseFuture, WITH_POOLED_OBJECTS);
+    }
+    this.responseFuture = responseFuture;
+    return responseFuture;
+  }
+
+  HttpResponse writeRequest() {
+    try (SafeCloseable ignored =
+           Clients.withContextCustomizer(ctx -> ctx.logBuilder().name(name))) {
+      RequestHeaders headers = request.headers();
+      if (compression != null && compression.shouldCompress(headers)) {
+        HttpRequestWriter httpRequest = HttpRequest.streaming(compression.headers(headers));
+        HttpResponse response = httpClient.execute(httpRequest);
+        compression.writeBody(request, httpRequest::tryWrite);
+        httpRequest.close();
+        return response;
+      }
+      HttpRequestWriter httpRequest = HttpRequest.streaming(headers);
+      HttpResponse response = httpClient.execute(httpRequest);
+      request.writeBody(httpRequest::tryWrite);
+      httpRequest.close();
+      return response;
+    }
+  }
+
+  static Throwable maybeRejectedExecution(Throwable t) {
+    if (!(t instanceof UnprocessedRequestException)) return t;
+    Throwable cause = t.getCause();
+    // Go ahead and reduce the output in logs since this is usually a configuration or
+    // infrastructure issue and the Armeria stack trace won't help debugging that.
+    Exceptions.clearTrace(cause);
+
+    String message = cause.getMessage();
+    if (message == null) message = cause.getClass().getSimpleName();
+    return new RejectedExecutionException(message, cause);
+  }
+
   V parseResponse(AggregatedHttpResponse response, BodyConverter<V> bodyConverter)
     throws IOException {
     // Handle the case where there is no content, as that means we have no resources to release.
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal.client;
+
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.RequestContext;
+import com.linecorp.armeria.common.RequestHeaders;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import zipkin2.elasticsearch.internal.client.HttpCall.RequestStream;
+import zipkin2.elasticsearch.internal.client.HttpCall.RequestSupplier;
+
+/**
+ * Gzips the body of bulk and search requests as it is written, which reduces network transfer of
+ * span json considerably. Compression happens on the thread writing the request into pooled
+ * buffers, which are sent as soon as they fill up.
+ *
+ * <p>Deflaters hold native memory, so they are pooled instead of allocated per request.
+ *
+ * <p>Follows the same naming convention as {@code zipkin2.collector.CollectorMetrics}
+ */
+public final class RequestCompression {
+  static final String NAME = "zipkin_storage.elasticsearch.request_compression";
+  static final int CHUNK_SIZE = 8192;
+  static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, -1};
+
+  final int level;
+  final BlockingQueue<Deflater> deflaters; // idle deflaters, bounded to not hoard native memory
+  final Counter savedBytes;
+  final Timer time;
+
+  /** @param level gzip compression level from 1 (fastest) to 9 (smallest) */
+  public RequestCompression(int level, MeterRegistry registry) {
+    if (level < 1 || level > 9) throw new IllegalArgumentException("level must be 1-9");
+    this.level = level;
+    this.deflaters = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+    savedBytes = Counter.builder(NAME + ".saved_bytes")
+      .description("cumulative amount of request body bytes not sent due to compression")
+      .baseUnit("bytes")
+      .register(registry);
+    time = Timer.builder(NAME + ".time")
+      .description("time spent compressing request bodies, on the thread writing the request")
+      .register(registry);
+  }
+
+  /** Only requests that have a body are compressed. */
+  boolean shouldCompress(RequestHeaders headers) {
+    return headers.method() == HttpMethod.POST;
+  }
+
+  RequestHeaders headers(RequestHeaders headers) {
+    return headers.toBuilder()
+      .removeAndThen(HttpHeaderNames.CONTENT_LENGTH)
+      .set(HttpHeaderNames.CONTENT_ENCODING, "gzip")
+      .build();
+  }
+
+  /** Writes the gzipped body of the request into the stream. */
+  void writeBody(RequestSupplier request, RequestStream requestStream) {
+    GzipRequestStream gzip = new GzipRequestStream(requestStream);
+    try {
+      request.writeBody(gzip);
+      gzip.finish();
+    } finally {
+      gzip.close();
+    }
+  }
+
+  Deflater acquireDeflater() {
+    Deflater result = deflaters.poll();
+    return result != null ? result : new Deflater(level, true); // nowrap as we write gzip framing
+  }
+
+  void releaseDeflater(Deflater deflater) {
+    deflater.reset();
+    if (!deflaters.offer(deflater)) deflater.end();
+  }
+
+  @Override public String toString() {
+    return "RequestCompression{gzip, level=" + level + "}";
+  }
+
+  final class GzipRequestStream implements RequestStream {
+    final RequestStream delegate;
+    final ByteBufAllocator alloc =
+      RequestContext.mapCurrent(RequestContext::alloc, () -> PooledByteBufAllocator.DEFAULT);
+    final CRC32 crc32 = new CRC32();
+    Deflater deflater = acquireDeflater();
+    ByteBuf out; // a chunk of compressed output, not yet written
+    long inputBytes, outputBytes, nanos;
+    boolean aborted;
+
+    GzipRequestStream(RequestStream delegate) {
+      this.delegate = delegate;
+      out = alloc.heapBuffer(CHUNK_SIZE, CHUNK_SIZE);
+      out.writeBytes(GZIP_HEADER);
+    }
+
+    @Override public boolean tryWrite(HttpData data) {
+      try {
+        if (aborted) return false;
+        long start = System.nanoTime();
+        ByteBuf buf = data instanceof ByteBufHolder ? ((ByteBufHolder) data).content() : null;
+        if (buf != null && buf.hasArray()) {
+          deflate(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+        } else {
+          deflate(data.array(), 0, data.length());
+        }
+        nanos += System.nanoTime() - start;
+        return !aborted;
+      } finally {
+        ReferenceCountUtil.safeRelease(data);
+      }
+    }
+
+    void deflate(byte[] array, int offset, int length) {
+      inputBytes += length;
+      crc32.update(array, offset, length);
+      deflater.setInput(array, offset, length);
+      while (!aborted && !deflater.needsInput()) drainDeflater();
+    }
+
+    /** Writes the remaining compressed data and the gzip trailer. */
+    void finish() {
+      if (aborted) return;
+      long start = System.nanoTime();
+      deflater.finish();
+      while (!aborted && !deflater.finished()) drainDeflater();
+      if (aborted) return;
+      if (out.writableBytes() < 8) flush();
+      out.writeIntLE((int) crc32.getValue());
+      out.writeIntLE((int) inputBytes);
+      nanos += System.nanoTime() - start;
+      flush();
+
+      time.record(nanos, TimeUnit.NANOSECONDS);
+      if (inputBytes > outputBytes) savedBytes.increment(inputBytes - outputBytes);
+    }
+
+    void drainDeflater() {
+      int length = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(),
+        out.writableBytes(), Deflater.NO_FLUSH);
+      out.writerIndex(out.writerIndex() + length);
+      if (!out.isWritable()) flush();
+    }
+
+    void flush() {
+      ByteBuf chunk = out;
+      out = null;
+      outputBytes += chunk.readableBytes();
+      if (!delegate.tryWrite(HttpData.wrap(chunk))) { // releases the chunk
+        aborted = true;
+        return;
+      }
+      out = alloc.heapBuffer(CHUNK_SIZE, CHUNK_SIZE);
+    }
+
+    void close() {
+      if (out != null) out.release();
+      out = null;
+      if (deflater != null) releaseDeflater(deflater);
+      deflater = null;
+    }
+  }
+}
@@ -15,6 +15,7 @@ package zipkin2.elasticsearch.internal.client;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -45,9 +46,11 @@ public final class SearchRequest {
   @Nullable transient final String type;
 
   Integer size = MAX_RESULT_WINDOW;
-  Boolean _source;
+  Object _source;
   Object query;
   Map<String, Aggregation> aggs;
+  Map<String, String> collapse;
+  List<Map<String, String>> sort;
 
   SearchRequest(List<String> indices, @Nullable String type) {
     this.indices = indices;
@@ -86,11 +89,39 @@ public final class SearchRequest {
     return this;
   }
 
+  /**
+   * Returns only the first hit for each value of the field, instead of documents.
+   *
+   * <p>See https://www.elastic.co/guide/en/elasticsearch/reference/current/search-request-collapse.html
+   */
+  public SearchRequest collapse(String field) {
+    _source = false; // the collapsed value is returned in fields
+    collapse = Collections.singletonMap("field", field);
+    return this;
+  }
+
+  public SearchRequest sort(String field, String order) {
+    if (sort == null) sort = new ArrayList<>();
+    sort.add(Collections.singletonMap(field, order));
+    return this;
+  }
+
+  public SearchRequest size(int size) {
+    this.size = size;
+    return this;
+  }
+
+  /** Excludes fields from the documents returned, when they aren't needed by the caller. */
+  public SearchRequest sourceExcludes(String... fields) {
+    _source = Collections.singletonMap("excludes", Arrays.asList(fields));
+    return this;
+  }
+
   public Integer getSize() {
     return size;
   }
 
-  public Boolean get_source() {
+  public Object get_source() {
     return _source;
   }
 
@@ -102,6 +133,14 @@ public final class SearchRequest {
     return aggs;
   }
 
+  public Map<String, String> getCollapse() {
+    return collapse;
+  }
+
+  public List<Map<String, String>> getSort() {
+    return sort;
+  }
+
   String tag() {
     return aggs != null ? "aggregation" : "search";
   }
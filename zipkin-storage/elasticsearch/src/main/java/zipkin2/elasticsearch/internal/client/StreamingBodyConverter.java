@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * Converts a successful response body as its bytes arrive, as opposed to after the whole response
+ * is aggregated. This avoids holding the raw response and its conversion in memory at the same
+ * time, which matters for large search results.
+ *
+ * <p>Error responses are still aggregated, and handled the same as other calls.
+ */
+public interface StreamingBodyConverter<V> extends HttpCall.BodyConverter<V> {
+  /** Returns a new decoder for one response body. */
+  Decoder<V> newDecoder();
+
+  interface Decoder<V> {
+    /** Called for each token of the body, with the parser positioned on it. */
+    void onToken(JsonParser parser) throws IOException;
+
+    /** Called after the last token of the body. */
+    V result();
+  }
+
+  /** Drives a decoder from an aggregated response, which is the case when testing. */
+  @Override default V convert(JsonParser parser, Supplier<String> contentString)
+    throws IOException {
+    Decoder<V> decoder = newDecoder();
+    while (parser.nextToken() != null) decoder.onToken(parser);
+    return decoder.result();
+  }
+}
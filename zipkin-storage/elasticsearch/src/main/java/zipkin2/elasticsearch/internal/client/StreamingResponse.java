@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.linecorp.armeria.common.AggregatedHttpResponse;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpObject;
+import com.linecorp.armeria.common.HttpStatusClass;
+import com.linecorp.armeria.common.ResponseHeaders;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.util.ReferenceCountUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import zipkin2.elasticsearch.internal.client.StreamingBodyConverter.Decoder;
+
+import static zipkin2.Call.propagateIfFatal;
+import static zipkin2.elasticsearch.internal.JsonSerializers.JSON_FACTORY;
+
+/**
+ * Feeds a successful response body to a {@link StreamingBodyConverter} as it arrives, releasing
+ * each chunk as soon as it is parsed. Error responses are aggregated, so that they are handled the
+ * same as other calls.
+ */
+final class StreamingResponse<V> extends CompletableFuture<V> implements Subscriber<HttpObject> {
+  final HttpCall<V> call;
+  final StreamingBodyConverter<V> converter;
+  Subscription subscription;
+  ResponseHeaders headers;
+  ByteArrayOutputStream errorBody; // non-null when the status is not success
+  JsonParser parser; // lazy as we don't need it when the body is empty
+  Decoder<V> decoder;
+
+  StreamingResponse(HttpCall<V> call, StreamingBodyConverter<V> converter) {
+    this.call = call;
+    this.converter = converter;
+  }
+
+  @Override public void onSubscribe(Subscription subscription) {
+    this.subscription = subscription;
+    subscription.request(Long.MAX_VALUE); // chunks are parsed synchronously
+  }
+
+  @Override public void onNext(HttpObject object) {
+    try {
+      if (isDone()) { // canceled or failed
+        subscription.cancel();
+      } else if (object instanceof ResponseHeaders) {
+        onHeaders((ResponseHeaders) object);
+      } else if (object instanceof HttpData && headers != null) {
+        onData((HttpData) object);
+      } // ignore trailers
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      subscription.cancel();
+      completeExceptionally(t);
+    } finally {
+      ReferenceCountUtil.safeRelease(object);
+    }
+  }
+
+  void onHeaders(ResponseHeaders headers) {
+    HttpStatusClass statusClass = headers.status().codeClass();
+    if (statusClass == HttpStatusClass.INFORMATIONAL) return;
+    this.headers = headers;
+    if (statusClass != HttpStatusClass.SUCCESS) errorBody = new ByteArrayOutputStream();
+  }
+
+  void onData(HttpData data) throws IOException {
+    if (data.isEmpty()) return;
+    ByteBuf buf = data instanceof ByteBufHolder ? ((ByteBufHolder) data).content() : null;
+    if (errorBody != null) {
+      if (buf != null) {
+        buf.getBytes(buf.readerIndex(), errorBody, buf.readableBytes());
+      } else {
+        errorBody.write(data.array(), 0, data.length());
+      }
+      return;
+    }
+
+    if (parser == null) {
+      parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+      decoder = converter.newDecoder();
+    }
+    ByteArrayFeeder feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    if (buf != null && buf.hasArray()) {
+      int offset = buf.arrayOffset() + buf.readerIndex();
+      feeder.feedInput(buf.array(), offset, offset + buf.readableBytes());
+    } else {
+      feeder.feedInput(data.array(), 0, data.length());
+    }
+    parseAvailableTokens(); // after which the input is no longer referenced, so can be released
+  }
+
+  void parseAvailableTokens() throws IOException {
+    JsonToken token;
+    while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+      decoder.onToken(parser);
+    }
+  }
+
+  @Override public void onComplete() {
+    if (isDone()) return;
+    try {
+      if (headers == null) throw new IOException("response completed without headers");
+      if (errorBody != null) { // throws the same exception as a non-streaming call
+        HttpData content = HttpData.wrap(errorBody.toByteArray());
+        complete(call.parseResponse(AggregatedHttpResponse.of(headers, content), converter));
+      } else if (parser == null) { // empty body
+        complete(call.parseResponse(AggregatedHttpResponse.of(headers), converter));
+      } else {
+        ((ByteArrayFeeder) parser.getNonBlockingInputFeeder()).endOfInput();
+        parseAvailableTokens();
+        parser.close();
+        complete(decoder.result());
+      }
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      completeExceptionally(t);
+    }
+  }
+
+  @Override public void onError(Throwable t) {
+    completeExceptionally(HttpCall.maybeRejectedExecution(t));
+  }
+}
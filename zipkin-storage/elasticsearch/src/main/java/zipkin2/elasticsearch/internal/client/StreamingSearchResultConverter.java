@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import zipkin2.elasticsearch.internal.JsonSerializers.ObjectParser;
+
+/**
+ * Like {@link SearchResultConverter}, except each hit is parsed and collected as soon as its
+ * {@code _source} is complete. Only the tokens of the current {@code _source} are buffered, and
+ * other fields of hits, such as {@code _index} and {@code _score}, are discarded as they arrive.
+ *
+ * <p>The collector allows results to be organized as they are parsed, for example grouping spans
+ * by trace ID, instead of in a separate pass.
+ */
+public final class StreamingSearchResultConverter<T, A, V> implements StreamingBodyConverter<V> {
+  public static <T, A, V> StreamingSearchResultConverter<T, A, V> create(ObjectParser<T> adapter,
+    Collector<T, A, V> collector) {
+    return new StreamingSearchResultConverter<>(adapter, collector);
+  }
+
+  final ObjectParser<T> adapter;
+  final Collector<T, A, V> collector;
+
+  StreamingSearchResultConverter(ObjectParser<T> adapter, Collector<T, A, V> collector) {
+    this.adapter = adapter;
+    this.collector = collector;
+  }
+
+  @Override public Decoder<V> newDecoder() {
+    return new HitsDecoder();
+  }
+
+  @Override public String toString() {
+    return "StreamingSearchResultConverter{" + adapter + "}";
+  }
+
+  // Depths of the path hits.hits[]._source, where the root object is depth 1
+  static final int HITS_OBJECT = 2, HITS_ARRAY = 3, HIT = 4, SOURCE = 5;
+
+  final class HitsDecoder implements Decoder<V> {
+    final BiConsumer<A, T> accumulator = collector.accumulator();
+    final Function<A, V> finisher = collector.finisher();
+    final A container = collector.supplier().get();
+    final String[] fieldNames = new String[HIT + 1]; // field names of the path to a source
+    int depth;
+    TokenBuffer source; // non-null while reading a source
+    int sourceDepth;
+
+    @Override public void onToken(JsonParser parser) throws IOException {
+      JsonToken token = parser.currentToken();
+      if (source != null) {
+        source.copyCurrentEvent(parser);
+        if (token.isStructStart()) {
+          sourceDepth++;
+        } else if (token.isStructEnd() && --sourceDepth == 0) {
+          onSource();
+        }
+        return;
+      }
+
+      if (token == JsonToken.FIELD_NAME) {
+        if (depth < fieldNames.length) fieldNames[depth] = parser.getCurrentName();
+      } else if (token.isStructStart()) {
+        depth++;
+        if (depth < fieldNames.length) fieldNames[depth] = null;
+        if (depth == SOURCE && token == JsonToken.START_OBJECT && isSourcePath()) {
+          source = new TokenBuffer(parser);
+          source.copyCurrentEvent(parser);
+          sourceDepth = 1;
+        }
+      } else if (token.isStructEnd()) {
+        depth--;
+      }
+    }
+
+    /** Returns true when the current object is hits.hits[]._source */
+    boolean isSourcePath() {
+      return "hits".equals(fieldNames[1]) && "hits".equals(fieldNames[HITS_OBJECT])
+        && fieldNames[HITS_ARRAY] == null && "_source".equals(fieldNames[HIT]);
+    }
+
+    void onSource() throws IOException {
+      TokenBuffer source = this.source;
+      this.source = null;
+      depth--; // the source object ended
+      try (JsonParser sourceParser = source.asParser()) {
+        sourceParser.nextToken();
+        accumulator.accept(container, adapter.parse(sourceParser));
+      }
+    }
+
+    @Override public V result() {
+      return finisher.apply(container);
+    }
+  }
+}
@@ -22,6 +22,9 @@ import com.linecorp.armeria.common.MediaType;
 import com.linecorp.armeria.common.ResponseHeaders;
 import com.linecorp.armeria.testing.junit.server.mock.MockWebServerExtension;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -50,6 +53,7 @@ class ElasticsearchSpanConsumerTest {
 
   ElasticsearchStorage storage;
   SpanConsumer spanConsumer;
+  ExecutorService executor = Executors.newCachedThreadPool();
 
   @BeforeEach void setUp() throws Exception {
     storage = ElasticsearchStorage.newBuilder(() -> WebClient.of(server.httpUri()))
@@ -60,6 +64,7 @@ class ElasticsearchSpanConsumerTest {
   }
 
   @AfterEach void tearDown() throws IOException {
+    executor.shutdownNow();
     storage.close();
   }
 
@@ -175,6 +180,24 @@ class ElasticsearchSpanConsumerTest {
       .startsWith("{\"index\":{\"_index\":\"zipkin:span-1971-01-01\",\"_type\":\"span\"");
   }
 
+  @Test void hourlySpanIndices_onlyAppliesToSpans() throws Exception {
+    storage.close();
+    storage = ElasticsearchStorage.newBuilder(() -> WebClient.of(server.httpUri()))
+      .autocompleteKeys(asList("environment"))
+      .hourlySpanIndices(true)
+      .build();
+    ensureIndexTemplate();
+
+    server.enqueue(SUCCESS_RESPONSE);
+
+    accept(Span.newBuilder().traceId("1").id("1").timestamp(TimeUnit.HOURS.toMicros(13))
+      .putTag("environment", "A").build());
+
+    assertThat(server.takeRequest().request().contentUtf8())
+      .startsWith("{\"index\":{\"_index\":\"zipkin:span-1970-01-01-13\",\"_type\":\"span\"")
+      .contains("{\"index\":{\"_index\":\"zipkin:autocomplete-1970-01-01\"");
+  }
+
   /** Much simpler template which doesn't write the timestamp_millis field */
   @Test void searchDisabled_simplerIndexTemplate() throws Exception {
     storage.close();
@@ -282,6 +305,30 @@ class ElasticsearchSpanConsumerTest {
       .isEqualTo(server.takeRequest().request().contentUtf8());
   }
 
+  @Test void bulkLinger_mergesAccepts() throws Exception {
+    storage.close();
+    storage = ElasticsearchStorage.newBuilder(() -> WebClient.of(server.httpUri()))
+      .bulkLinger(50)
+      .build();
+    ensureIndexTemplate();
+    server.enqueue(SUCCESS_RESPONSE);
+
+    Span s = Span.newBuilder().traceId("1").id("1").timestamp(1).build();
+    Future<?> first = executor.submit(() -> {
+      accept(s);
+      return null;
+    });
+    Future<?> second = executor.submit(() -> {
+      accept(s.toBuilder().id(2).build());
+      return null;
+    });
+    first.get(1, TimeUnit.SECONDS);
+    second.get(1, TimeUnit.SECONDS);
+
+    assertThat(server.takeRequest().request().contentUtf8())
+      .contains("\"id\":\"0000000000000001\"", "\"id\":\"0000000000000002\"");
+  }
+
   void accept(Span... spans) throws Exception {
     spanConsumer.accept(asList(spans)).execute();
   }
@@ -30,6 +30,7 @@ import org.junit.jupiter.api.extension.RegisterExtension;
 import zipkin2.TestObjects;
 import zipkin2.storage.QueryRequest;
 
+import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static zipkin2.TestObjects.DAY;
 import static zipkin2.TestObjects.TODAY;
@@ -38,6 +39,8 @@ import static zipkin2.elasticsearch.VersionSpecificTemplates.TYPE_SPAN;
 class ElasticsearchSpanStoreTest {
   static final AggregatedHttpResponse EMPTY_RESPONSE =
     AggregatedHttpResponse.of(ResponseHeaders.of(HttpStatus.OK), HttpData.empty());
+  static final AggregatedHttpResponse NO_HITS =
+    AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, "{\"hits\":{\"hits\":[]}}");
 
   @RegisterExtension static MockWebServerExtension server = new MockWebServerExtension();
 
@@ -106,6 +109,111 @@ class ElasticsearchSpanStoreTest {
     assertThat(server.takeRequest(100, TimeUnit.MILLISECONDS)).isNull();
   }
 
+  @Test void collapseTraceIds_readsSpansFromDaysFound() throws Exception {
+    storage.close();
+    storage = storage.toBuilder().collapseTraceIds(true).build();
+    server.enqueue(AggregatedHttpResponse.of(
+      HttpStatus.OK, MediaType.JSON_UTF_8, "{\"version\":{\"number\":\"6.7.0\"}}"));
+    spanStore = new ElasticsearchSpanStore(storage);
+    server.takeRequest(); // version
+
+    long threeDaysAgo = TODAY - 3 * DAY;
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, "{\"hits\":"
+      + "{\"hits\":[{\"_index\":\"zipkin-span\",\"fields\":{\"traceId\":[\"a\"]},\"sort\":["
+      + (threeDaysAgo + 1000L) + "]}]}}"));
+    server.enqueue(NO_HITS);
+
+    QueryRequest request =
+      QueryRequest.newBuilder().endTs(TODAY).lookback(7 * DAY).limit(10).build();
+    spanStore.getTraces(request).execute();
+
+    assertThat(server.takeRequest().request().contentUtf8())
+      .contains("\"collapse\":{\"field\":\"traceId\"}")
+      .contains("\"sort\":[{\"timestamp_millis\":\"desc\"}]")
+      .contains("\"size\":10")
+      .doesNotContain("aggs");
+
+    String indexesToSearch = ""
+      + storage.indexNameFormatter().formatTypeAndTimestamp(TYPE_SPAN, threeDaysAgo - DAY)
+      + ","
+      + storage.indexNameFormatter().formatTypeAndTimestamp(TYPE_SPAN, threeDaysAgo)
+      + ","
+      + storage.indexNameFormatter().formatTypeAndTimestamp(TYPE_SPAN, threeDaysAgo + DAY);
+    AggregatedHttpRequest getSpans = server.takeRequest().request();
+    assertThat(getSpans.path()).startsWith("/" + indexesToSearch + "/_search");
+    assertThat(getSpans.contentUtf8()).contains("\"terms\":{\"traceId\":[\"a\"]}");
+  }
+
+  @Test void collapseTraceIds_ignoredBeforeElasticsearch5_3() throws Exception {
+    storage.close();
+    storage = storage.toBuilder().collapseTraceIds(true).build();
+    server.enqueue(AggregatedHttpResponse.of(
+      HttpStatus.OK, MediaType.JSON_UTF_8, "{\"version\":{\"number\":\"5.2.0\"}}"));
+    spanStore = new ElasticsearchSpanStore(storage);
+    server.takeRequest(); // version
+
+    server.enqueue(AggregatedHttpResponse.of(
+      HttpStatus.OK, MediaType.JSON_UTF_8, "{\"aggregations\":{}}"));
+    QueryRequest request = QueryRequest.newBuilder().endTs(TODAY).lookback(DAY).limit(10).build();
+    spanStore.getTraces(request).execute();
+
+    assertThat(server.takeRequest().request().contentUtf8())
+      .contains("aggs")
+      .doesNotContain("collapse");
+  }
+
+  @Test void traceIdHints_readsHintedIndices() throws Exception {
+    storage.close();
+    storage = storage.toBuilder().traceIdHintDays(3).build();
+    spanStore = new ElasticsearchSpanStore(storage);
+    storage.traceIdDayHints().record("48fec942f3e78b893041d36dc43227fd", TODAY);
+
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, "{\"hits\":"
+      + "{\"hits\":[{\"_source\":{\"traceId\":\"48fec942f3e78b893041d36dc43227fd\","
+      + "\"id\":\"1\"}}]}}"));
+    assertThat(spanStore.getTrace("48fec942f3e78b893041d36dc43227fd").execute()).hasSize(1);
+
+    String indexesToSearch = ""
+      + storage.indexNameFormatter().formatTypeAndTimestamp(TYPE_SPAN, TODAY - DAY)
+      + ","
+      + storage.indexNameFormatter().formatTypeAndTimestamp(TYPE_SPAN, TODAY)
+      + ","
+      + storage.indexNameFormatter().formatTypeAndTimestamp(TYPE_SPAN, TODAY + DAY);
+    assertThat(server.takeRequest().request().path()).startsWith("/" + indexesToSearch + "/");
+    assertThat(server.takeRequest(100, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test void traceIdHints_readsAllIndicesWhenNotFound() throws Exception {
+    storage.close();
+    storage = storage.toBuilder().traceIdHintDays(3).build();
+    spanStore = new ElasticsearchSpanStore(storage);
+    storage.traceIdDayHints().record("48fec942f3e78b893041d36dc43227fd", TODAY);
+
+    server.enqueue(NO_HITS);
+    server.enqueue(NO_HITS);
+    assertThat(spanStore.getTraces(asList("48fec942f3e78b893041d36dc43227fd")).execute())
+      .isEmpty();
+
+    String allIndices = storage.indexNameFormatter().formatType(TYPE_SPAN);
+    assertThat(server.takeRequest().request().path()).doesNotStartWith("/" + allIndices + "/");
+    assertThat(server.takeRequest().request().path()).startsWith("/" + allIndices + "/");
+  }
+
+  @Test void traceIdHints_recordsTracesRead() throws Exception {
+    storage.close();
+    storage = storage.toBuilder().traceIdHintDays(3).build();
+    spanStore = new ElasticsearchSpanStore(storage);
+
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, "{\"hits\":"
+      + "{\"hits\":[{\"_source\":{\"traceId\":\"3041d36dc43227fd\",\"id\":\"1\","
+      + "\"timestamp\":" + TODAY * 1000L + "}}]}}"));
+    spanStore.getTrace("3041d36dc43227fd").execute();
+    server.takeRequest();
+
+    assertThat(storage.traceIdDayHints().indices(asList("3041d36dc43227fd")))
+      .contains(storage.indexNameFormatter().formatTypeAndTimestamp(TYPE_SPAN, TODAY));
+  }
+
   void requestLimitedTo2DaysOfIndices_singleTypeIndex() {
     long today = TestObjects.midnightUTC(System.currentTimeMillis());
     long yesterday = today - TimeUnit.DAYS.toMillis(1);
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch; // to access package private stuff
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+import zipkin2.Span;
+import zipkin2.elasticsearch.internal.JsonSerializers;
+import zipkin2.elasticsearch.internal.client.SearchResultConverter;
+import zipkin2.elasticsearch.internal.client.StreamingBodyConverter;
+import zipkin2.elasticsearch.internal.client.StreamingSearchResultConverter;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.UTF_8;
+import static zipkin2.elasticsearch.TestResponses.SPANS;
+import static zipkin2.elasticsearch.internal.JsonSerializers.JSON_FACTORY;
+
+public class StreamingSearchResultConverterTest {
+  StreamingSearchResultConverter<Span, ?, List<Span>> converter =
+    StreamingSearchResultConverter.create(JsonSerializers.SPAN_PARSER, Collectors.toList());
+
+  @Test public void convert_sameAsSearchResultConverter() throws IOException {
+    assertThat(converter.convert(JSON_FACTORY.createParser(SPANS), Assertions::fail))
+      .containsExactlyElementsOf(SearchResultConverter.create(JsonSerializers.SPAN_PARSER)
+        .convert(JSON_FACTORY.createParser(SPANS), Assertions::fail));
+  }
+
+  @Test public void convert_noHits() throws IOException {
+    assertThat(converter.convert(JSON_FACTORY.createParser("{}"), Assertions::fail))
+      .isEmpty();
+  }
+
+  @Test public void convert_hitsHitsButEmpty() throws IOException {
+    assertThat(
+      converter.convert(JSON_FACTORY.createParser("{\"hits\":{\"hits\":[]}}"), Assertions::fail))
+      .isEmpty();
+  }
+
+  @Test public void convert_hitsHitsButNoSource() throws IOException {
+    assertThat(
+      converter.convert(JSON_FACTORY.createParser("{\"hits\":{\"hits\":[{}]}}"), Assertions::fail))
+      .isEmpty();
+  }
+
+  @Test public void convert_ignoresSourceOutsideHits() throws IOException {
+    String json = "{\"_source\":{\"traceId\":\"1\",\"id\":\"1\"},"
+      + "\"hits\":{\"_source\":{\"traceId\":\"2\",\"id\":\"2\"},"
+      + "\"hits\":[{\"_source\":{\"traceId\":\"3\",\"id\":\"3\"}}]}}";
+
+    assertThat(converter.convert(JSON_FACTORY.createParser(json), Assertions::fail))
+      .extracting(Span::id)
+      .containsExactly("0000000000000003");
+  }
+
+  @Test public void convert_incrementally() throws IOException {
+    byte[] json = SPANS.getBytes(UTF_8);
+    StreamingBodyConverter.Decoder<List<Span>> decoder = converter.newDecoder();
+    try (JsonParser parser = JSON_FACTORY.createNonBlockingByteArrayParser()) {
+      ByteArrayFeeder feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+      for (int i = 0; i < json.length; i++) { // worst case: one byte at a time
+        feeder.feedInput(json, i, i + 1);
+        decodeAvailable(parser, decoder);
+      }
+      feeder.endOfInput();
+      decodeAvailable(parser, decoder);
+    }
+
+    assertThat(decoder.result())
+      .containsExactlyElementsOf(converter.convert(JSON_FACTORY.createParser(SPANS), null));
+  }
+
+  @Test public void traces_groupsByTraceId() throws IOException {
+    String json = "{\"hits\":{\"hits\":["
+      + "{\"_source\":{\"traceId\":\"0000000000000001\",\"id\":\"1\"}},"
+      + "{\"_source\":{\"traceId\":\"0000000000000002\",\"id\":\"2\"}},"
+      + "{\"_source\":{\"traceId\":\"00000000000000030000000000000001\",\"id\":\"3\"}}"
+      + "]}}";
+
+    assertThat(BodyConverters.traces(false).convert(JSON_FACTORY.createParser(json), null))
+      .extracting(trace -> trace.stream().map(Span::id).collect(Collectors.toList()))
+      .containsExactly(
+        asList("0000000000000001", "0000000000000003"), asList("0000000000000002"));
+
+    assertThat(BodyConverters.traces(true).convert(JSON_FACTORY.createParser(json), null))
+      .hasSize(3);
+  }
+
+  static void decodeAvailable(JsonParser parser, StreamingBodyConverter.Decoder<?> decoder)
+    throws IOException {
+    JsonToken token;
+    while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+      decoder.onToken(parser);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.elasticsearch.internal.IndexNameFormatter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.DAY;
+import static zipkin2.TestObjects.TODAY;
+import static zipkin2.elasticsearch.VersionSpecificTemplates.TYPE_SPAN;
+
+public class TraceIdDayHintsTest {
+  IndexNameFormatter indexNameFormatter =
+    IndexNameFormatter.newBuilder().index("zipkin").dateSeparator('-').build();
+  TraceIdDayHints hints = new TraceIdDayHints(indexNameFormatter, 3);
+
+  @Test public void dayCountMustBePositive() {
+    assertThatThrownBy(() -> new TraceIdDayHints(indexNameFormatter, 0))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void indices_emptyWhenNotRecorded() {
+    assertThat(indices("463ac35c9f6413ad")).isEmpty();
+  }
+
+  @Test public void indices_includesAdjacentDays() {
+    hints.record("463ac35c9f6413ad", TODAY + 1000L);
+
+    assertThat(indices("463ac35c9f6413ad"))
+      .containsExactly(index(TODAY - DAY), index(TODAY), index(TODAY + DAY));
+  }
+
+  @Test public void indices_unionOfDays() {
+    hints.record("463ac35c9f6413ad", TODAY - DAY);
+    hints.record("463ac35c9f6413ad", TODAY);
+
+    assertThat(indices("463ac35c9f6413ad")).containsExactly(
+      index(TODAY - 2 * DAY), index(TODAY - DAY), index(TODAY), index(TODAY + DAY));
+  }
+
+  @Test public void indices_emptyWhenAnyTraceIdNotRecorded() {
+    hints.record("463ac35c9f6413ad", TODAY);
+
+    assertThat(indices("463ac35c9f6413ad", "d3d200866a77cc59")).isEmpty();
+  }
+
+  @Test public void indices_matchesLower64Bits() {
+    hints.record("48485a3953bb6124463ac35c9f6413ad", TODAY);
+
+    assertThat(indices("463ac35c9f6413ad")).contains(index(TODAY));
+  }
+
+  @Test public void record_spans() {
+    hints.record(Arrays.asList(
+      Span.newBuilder().traceId("1").id("1").timestamp(TODAY * 1000L).build(),
+      Span.newBuilder().traceId("2").id("2").addAnnotation(TODAY * 1000L, "foo").build(),
+      Span.newBuilder().traceId("3").id("3").build() // no timestamp
+    ));
+
+    assertThat(indices("0000000000000001")).contains(index(TODAY));
+    assertThat(indices("0000000000000002")).contains(index(TODAY));
+    assertThat(indices("0000000000000003")).isEmpty();
+  }
+
+  @Test public void newerDayReplacesOldest() {
+    hints.record("463ac35c9f6413ad", TODAY - 3 * DAY);
+    hints.record("d3d200866a77cc59", TODAY); // same slot as 3 days ago
+
+    assertThat(indices("463ac35c9f6413ad")).isEmpty();
+    assertThat(indices("d3d200866a77cc59")).contains(index(TODAY));
+
+    // Late data for an evicted day is ignored
+    hints.record("463ac35c9f6413ad", TODAY - 3 * DAY);
+    assertThat(indices("463ac35c9f6413ad")).isEmpty();
+  }
+
+  List<String> indices(String... traceIds) {
+    return hints.indices(Arrays.asList(traceIds));
+  }
+
+  String index(long timestampMillis) {
+    return indexNameFormatter.formatTypeAndTimestamp(TYPE_SPAN, timestampMillis);
+  }
+}
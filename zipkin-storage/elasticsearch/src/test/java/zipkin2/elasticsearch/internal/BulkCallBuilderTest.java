@@ -19,20 +19,25 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
-import static zipkin2.elasticsearch.internal.BulkCallBuilder.CHECK_FOR_ERRORS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.elasticsearch.internal.BulkCallBuilder.ITEM_ERRORS;
 import static zipkin2.elasticsearch.internal.JsonSerializers.JSON_FACTORY;
 
 public class BulkCallBuilderTest {
   @Rule public ExpectedException expectedException = ExpectedException.none();
 
-  @Test public void throwsRejectedExecutionExceptionWhenOverCapacity() throws IOException {
+  @Test public void rejectedExecutionExceptionWhenOverCapacity() throws IOException {
     String response =
       "{\"took\":0,\"errors\":true,\"items\":[{\"index\":{\"_index\":\"dev-zipkin:span-2019.04.18\",\"_type\":\"span\",\"_id\":\"2511\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution of org.elasticsearch.transport.TransportService$7@7ec1ea93 on EsThreadPoolExecutor[bulk, queue capacity = 200, org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor@621571ba[Running, pool size = 4, active threads = 4, queued tasks = 200, completed tasks = 3838534]]\"}}}]}";
 
-    expectedException.expect(RejectedExecutionException.class);
-    expectedException.expectMessage(
-      "rejected execution of org.elasticsearch.transport.TransportService$7@7ec1ea93 on EsThreadPoolExecutor[bulk, queue capacity = 200, org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor@621571ba[Running, pool size = 4, active threads = 4, queued tasks = 200, completed tasks = 3838534]]");
-    CHECK_FOR_ERRORS.convert(JSON_FACTORY.createParser(response), () -> response);
+    RuntimeException[] errors =
+      ITEM_ERRORS.convert(JSON_FACTORY.createParser(response), () -> response);
+
+    assertThat(errors).hasSize(1);
+    assertThat(errors[0])
+      .isInstanceOf(RejectedExecutionException.class)
+      .hasMessage(
+        "rejected execution of org.elasticsearch.transport.TransportService$7@7ec1ea93 on EsThreadPoolExecutor[bulk, queue capacity = 200, org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor@621571ba[Running, pool size = 4, active threads = 4, queued tasks = 200, completed tasks = 3838534]]");
   }
 
   @Test public void throwsRuntimeExceptionAsReasonWhenPresent() throws IOException {
@@ -42,6 +47,40 @@ public class BulkCallBuilderTest {
     expectedException.expect(RuntimeException.class);
     expectedException.expectMessage(
       "Fielddata is disabled on text fields by default. Set fielddata=true on [spanName] in order to load fielddata in memory by uninverting the inverted index. Note that this can however use significant memory. Alternatively use a keyword field instead.");
-    CHECK_FOR_ERRORS.convert(JSON_FACTORY.createParser(response), () -> response);
+    ITEM_ERRORS.convert(JSON_FACTORY.createParser(response), () -> response);
+  }
+
+  @Test public void nullWhenNoErrors() throws IOException {
+    String response =
+      "{\"took\":0,\"errors\":false,\"items\":[{\"index\":{\"_id\":\"1\",\"status\":201}}]}";
+
+    assertThat(ITEM_ERRORS.convert(JSON_FACTORY.createParser(response), () -> response))
+      .isNull();
+  }
+
+  @Test public void nullWhenEmpty() throws IOException {
+    assertThat(ITEM_ERRORS.convert(JSON_FACTORY.createParser(""), () -> "")).isNull();
+  }
+
+  @Test public void errorsByPosition() throws IOException {
+    String response = "{\"took\":0,\"errors\":true,\"items\":["
+      + "{\"index\":{\"_id\":\"1\",\"status\":201,\"result\":\"created\"}},"
+      + "{\"index\":{\"_id\":\"2\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\","
+      + "\"reason\":\"failed to parse\",\"caused_by\":{\"reason\":\"nested\"}}}},"
+      + "{\"index\":{\"_id\":\"3\",\"error\":{\"type\":\"es_rejected_execution_exception\","
+      + "\"reason\":\"rejected execution\"},\"status\":503}}"
+      + "]}";
+
+    RuntimeException[] errors =
+      ITEM_ERRORS.convert(JSON_FACTORY.createParser(response), () -> response);
+
+    assertThat(errors).hasSize(3);
+    assertThat(errors[0]).isNull();
+    assertThat(errors[1])
+      .isExactlyInstanceOf(RuntimeException.class)
+      .hasMessage("failed to parse");
+    assertThat(errors[2]) // rejected by type, even when the status isn't 429
+      .isInstanceOf(RejectedExecutionException.class)
+      .hasMessage("rejected execution");
   }
 }
@@ -13,8 +13,10 @@
  */
 package zipkin2.elasticsearch.internal;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import java.nio.charset.StandardCharsets;
 import org.junit.Before;
@@ -22,8 +24,11 @@ import org.junit.Test;
 import zipkin2.Span;
 import zipkin2.Span.Kind;
 import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.elasticsearch.internal.BulkCallBuilder.IndexEntry;
 
+import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.elasticsearch.internal.BulkCallBuilder.newIndexEntry;
 import static zipkin2.TestObjects.CLIENT_SPAN;
 import static zipkin2.TestObjects.FRONTEND;
 import static zipkin2.TestObjects.TODAY;
@@ -137,4 +142,53 @@ public class BulkIndexWriterTest {
     assertThat(buffer.buffer().toString(StandardCharsets.UTF_8))
       .startsWith("{\"traceId\":\"");
   }
+
+  @Test public void spanSearchFields_emptyWhenAllValuesTooLong() {
+    String tooLong = new String(new char[300]).replace('\0', 'a');
+    Span span = Span.newBuilder().traceId("20").id("22").putTag("foo", tooLong).build();
+
+    BulkIndexWriter.SPAN.writeDocument(span, buffer);
+
+    assertThat(buffer.buffer().toString(StandardCharsets.UTF_8))
+      .startsWith("{\"_q\":[],\"traceId");
+  }
+
+  @Test public void span_writeBulkItem_sameAsDocumentAndMetadata() {
+    BulkIndexWriter<Span> generic = new BulkIndexWriter<Span>() {
+      @Override public String writeDocument(Span input, ByteBufOutputStream sink) {
+        return BulkIndexWriter.SPAN.writeDocument(input, sink);
+      }
+    };
+
+    Span escaped = CLIENT_SPAN.toBuilder().putTag("\"", "\u00fc").build();
+    for (Span span : asList(STABLE_SPAN, CLIENT_SPAN, escaped)) {
+      for (boolean shouldAddType : asList(true, false)) {
+        IndexEntry<Span> entry = newIndexEntry("zipkin:span-2016-10-01", "span", span,
+          BulkIndexWriter.SPAN);
+        assertThat(writeBulkItem(BulkIndexWriter.SPAN, entry, shouldAddType))
+          .isEqualTo(writeBulkItem(generic, entry, shouldAddType));
+      }
+    }
+  }
+
+  @Test public void span_writeBulkItem_actionLinePerIndex() {
+    SpanWriter writer = new SpanWriter(true);
+
+    assertThat(writeBulkItem(writer,
+      newIndexEntry("zipkin:span-2016-10-01", "span", CLIENT_SPAN, writer), false))
+      .startsWith("{\"index\":{\"_index\":\"zipkin:span-2016-10-01\",\"_id\":\"");
+    assertThat(writeBulkItem(writer,
+      newIndexEntry("zipkin:span-2016-10-02", "span", CLIENT_SPAN, writer), true))
+      .startsWith("{\"index\":{\"_index\":\"zipkin:span-2016-10-02\",\"_type\":\"span\",");
+  }
+
+  static String writeBulkItem(BulkIndexWriter<Span> writer, IndexEntry<Span> entry,
+    boolean shouldAddType) {
+    ByteBuf item = writer.writeBulkItem(PooledByteBufAllocator.DEFAULT, entry, shouldAddType);
+    try {
+      return item.toString(StandardCharsets.UTF_8);
+    } finally {
+      item.release();
+    }
+  }
 }
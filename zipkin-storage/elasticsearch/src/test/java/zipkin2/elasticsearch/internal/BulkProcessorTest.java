@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.AggregatedHttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.testing.junit.server.mock.MockWebServerExtension;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.elasticsearch.ElasticsearchStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+class BulkProcessorTest {
+  static final AggregatedHttpResponse SUCCESS_RESPONSE = AggregatedHttpResponse.of(
+    HttpStatus.OK, MediaType.JSON_UTF_8, "{\"took\":0,\"errors\":false,\"items\":[]}");
+
+  @RegisterExtension static MockWebServerExtension server = new MockWebServerExtension();
+
+  ElasticsearchStorage storage = ElasticsearchStorage.newBuilder(
+    () -> WebClient.of(server.httpUri())).bulkMaxRetries(0).build();
+  BulkProcessor processor;
+
+  @AfterEach void close() {
+    if (processor != null) processor.close();
+    storage.close();
+  }
+
+  @Test void mergesCallsIntoOneRequest() throws Throwable {
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 1000, 1 << 20, 50);
+    server.enqueue(SUCCESS_RESPONSE);
+
+    TestCallback first = new TestCallback(), second = new TestCallback();
+    newCall("1").enqueue(first);
+    newCall("2").enqueue(second);
+
+    String body = server.takeRequest().request().contentUtf8();
+    assertThat(body.split("\n")).hasSize(4); // two action and document lines
+    assertThat(body).contains("\"id\":\"0000000000000001\"", "\"id\":\"0000000000000002\"");
+
+    first.await();
+    second.await();
+  }
+
+  @Test void sendsImmediatelyWhenMaxItems() throws Throwable {
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 2, 1 << 20, 60_000);
+    server.enqueue(SUCCESS_RESPONSE);
+
+    TestCallback first = new TestCallback(), second = new TestCallback();
+    newCall("1").enqueue(first);
+    newCall("2").enqueue(second);
+
+    assertThat(server.takeRequest(1, TimeUnit.SECONDS)).isNotNull();
+    first.await();
+    second.await();
+  }
+
+  @Test void doesntSplitCallAcrossRequests() throws Throwable {
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 2, 1 << 20, 60_000);
+    server.enqueue(SUCCESS_RESPONSE);
+    server.enqueue(SUCCESS_RESPONSE);
+
+    newCall("1").enqueue(new TestCallback());
+    newCall("2", "3").enqueue(new TestCallback()); // would exceed max items
+
+    assertThat(server.takeRequest(1, TimeUnit.SECONDS).request().contentUtf8().split("\n"))
+      .hasSize(2);
+    assertThat(server.takeRequest(1, TimeUnit.SECONDS).request().contentUtf8().split("\n"))
+      .hasSize(4);
+  }
+
+  @Test void itemErrorOnlyFailsItsCaller() throws Throwable {
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 3, 1 << 20, 60_000);
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, "{"
+      + "\"took\":0,\"errors\":true,\"items\":["
+      + "{\"index\":{\"_id\":\"1\",\"status\":201}},"
+      + "{\"index\":{\"_id\":\"2\",\"status\":201}},"
+      + "{\"index\":{\"_id\":\"3\",\"status\":429,\"error\":"
+      + "{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution\"}}}"
+      + "]}"));
+
+    TestCallback first = new TestCallback(), second = new TestCallback();
+    newCall("1").enqueue(first);
+    newCall("2", "3").enqueue(second);
+
+    first.await();
+    assertThatThrownBy(second::await)
+      .isInstanceOf(RejectedExecutionException.class)
+      .hasMessage("rejected execution");
+  }
+
+  @Test void retriesRejectedItemsInLaterRequest() throws Throwable {
+    storage.close();
+    storage = ElasticsearchStorage.newBuilder(() -> WebClient.of(server.httpUri()))
+      .bulkMaxRetries(1).build();
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 2, 1 << 20, 60_000);
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, "{"
+      + "\"took\":0,\"errors\":true,\"items\":["
+      + "{\"index\":{\"_id\":\"1\",\"status\":201}},"
+      + "{\"index\":{\"_id\":\"2\",\"status\":429,\"error\":"
+      + "{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution\"}}}"
+      + "]}"));
+    server.enqueue(SUCCESS_RESPONSE);
+    server.enqueue(SUCCESS_RESPONSE);
+
+    TestCallback first = new TestCallback(), second = new TestCallback();
+    newCall("1").enqueue(first);
+    newCall("2").enqueue(second);
+    first.await();
+
+    server.takeRequest();
+    newCall("3").enqueue(new TestCallback()); // the retry shares a request with new calls
+
+    String retry = server.takeRequest(1, TimeUnit.SECONDS).request().contentUtf8();
+    assertThat(retry).contains("\"id\":\"0000000000000002\"", "\"id\":\"0000000000000003\"")
+      .doesNotContain("\"id\":\"0000000000000001\"");
+    second.await();
+  }
+
+  @Test void requestErrorFailsAllCallers() throws Throwable {
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 2, 1 << 20, 60_000);
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.INTERNAL_SERVER_ERROR));
+
+    TestCallback first = new TestCallback(), second = new TestCallback();
+    newCall("1").enqueue(first);
+    newCall("2").enqueue(second);
+
+    assertThatThrownBy(first::await).isInstanceOf(RuntimeException.class);
+    assertThatThrownBy(second::await).isInstanceOf(RuntimeException.class);
+  }
+
+  @Test void execute_waitsForAcknowledgement() throws Throwable {
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 1000, 1 << 20, 10);
+    server.enqueue(SUCCESS_RESPONSE);
+
+    newCall("1").execute();
+
+    assertThat(server.takeRequest(1, TimeUnit.SECONDS)).isNotNull();
+  }
+
+  @Test void close_sendsPending() throws Throwable {
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 1000, 1 << 20, 60_000);
+    server.enqueue(SUCCESS_RESPONSE);
+
+    TestCallback callback = new TestCallback();
+    newCall("1").enqueue(callback);
+    processor.close();
+
+    callback.await();
+    assertThat(server.takeRequest(1, TimeUnit.SECONDS)).isNotNull();
+  }
+
+  @Test void rejectsCallsAfterClose() {
+    processor = new BulkProcessor(storage, 6.0f, "index-span", 1000, 1 << 20, 60_000);
+    processor.close();
+
+    assertThatThrownBy(newCall("1")::execute)
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("closed");
+  }
+
+  Call<Void> newCall(String... ids) {
+    BulkCallBuilder builder = new BulkCallBuilder(storage, 6.0f, "index-span");
+    for (String id : ids) {
+      builder.index("zipkin-span-2019-07-25", "span", CLIENT_SPAN.toBuilder().id(id).build(),
+        BulkIndexWriter.SPAN);
+    }
+    return processor.newCall(builder);
+  }
+
+  static final class TestCallback implements Callback<Void> {
+    final CountDownLatch latch = new CountDownLatch(1);
+    Throwable throwable;
+
+    @Override public void onSuccess(Void value) {
+      latch.countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      this.throwable = t;
+      latch.countDown();
+    }
+
+    void await() throws Throwable {
+      assertThat(latch.await(1, TimeUnit.SECONDS)).isTrue();
+      if (throwable != null) throw throwable;
+    }
+  }
+}
@@ -281,4 +281,147 @@ public class IndexNameFormatterTest {
     assertThat(formatter.formatTypeAndRange("span", start, end))
       .containsExactly("zipkin*span-2016.06.*");
   }
+
+  @Test
+  public void indexNameForTimestampRange_compressesTens_februaryNotLeapYear() throws ParseException {
+    long start = iso8601.parse("2017-02-20T01:01:01Z").getTime();
+    long end = iso8601.parse("2017-03-01T01:01:01Z").getTime();
+
+    assertThat(formatter.formatTypeAndRange("span", start, end))
+      .containsExactly("zipkin*span-2017-02-2*", "zipkin*span-2017-03-01");
+  }
+
+  @Test
+  public void indexNameForTimestampRange_noSeparator() throws ParseException {
+    formatter = formatter.toBuilder().dateSeparator('\0').build();
+    long start = iso8601.parse("2016-10-01T01:01:01Z").getTime();
+    long end = iso8601.parse("2017-12-31T01:01:01Z").getTime();
+
+    assertThat(formatter.formatTypeAndRange("span", start, end))
+      .containsExactly("zipkin*span-201610*", "zipkin*span-201611*", "zipkin*span-201612*",
+        "zipkin*span-2017*");
+  }
+
+  @Test
+  public void indexNameForTimestampRange_resultIsMutable() throws ParseException {
+    long start = iso8601.parse("2016-11-01T01:01:01Z").getTime();
+
+    formatter.formatTypeAndRange("span", start, start).clear();
+
+    assertThat(formatter.formatTypeAndRange("span", start, start))
+      .containsExactly("zipkin*span-2016-11-01");
+  }
+
+  @Test
+  public void indexNameForTimestampRange_differentType() throws ParseException {
+    long start = iso8601.parse("2016-11-01T01:01:01Z").getTime();
+
+    assertThat(formatter.formatTypeAndRange("span", start, start))
+      .containsExactly("zipkin*span-2016-11-01");
+    assertThat(formatter.formatTypeAndRange(null, start, start))
+      .containsExactly("zipkin-2016-11-01");
+  }
+
+  @Test
+  public void formatTypeAndTimestampForInsert() throws ParseException {
+    long timestamp = iso8601.parse("2016-11-01T01:01:01Z").getTime();
+
+    assertThat(formatter.formatTypeAndTimestampForInsert("span", ':', timestamp))
+      .isEqualTo("zipkin:span-2016-11-01");
+    assertThat(formatter.formatTypeAndTimestampForInsert("span", '-', timestamp))
+      .isEqualTo("zipkin-span-2016-11-01");
+    assertThat(formatter.formatTypeAndTimestampForInsert("autocomplete", '-', timestamp))
+      .isEqualTo("zipkin-autocomplete-2016-11-01");
+  }
+
+  @Test
+  public void formatTypeAndTimestampForInsert_cachesByDay() throws ParseException {
+    long timestamp = iso8601.parse("2016-11-01T01:01:01Z").getTime();
+    String index = formatter.formatTypeAndTimestampForInsert("span", '-', timestamp);
+
+    assertThat(formatter.formatTypeAndTimestampForInsert("span", '-', timestamp + 1000L))
+      .isSameAs(index);
+    assertThat(formatter.formatTypeAndTimestampForInsert("span", '-', timestamp - 2 * 3600_000L))
+      .isEqualTo("zipkin-span-2016-10-31");
+  }
+
+  @Test
+  public void formatTypeAndTimestamp_beforeEpoch() throws ParseException {
+    long timestamp = iso8601.parse("1969-12-31T23:59:59Z").getTime();
+
+    assertThat(formatter.formatTypeAndTimestamp("span", timestamp))
+      .isEqualTo("zipkin*span-1969-12-31");
+  }
+
+  @Test
+  public void hourly_formatTypeAndTimestampForInsert() throws ParseException {
+    long timestamp = iso8601.parse("2016-11-01T13:01:01Z").getTime();
+
+    assertThat(hourly().formatTypeAndTimestampForInsert("span", '-', timestamp))
+      .isEqualTo("zipkin-span-2016-11-01-13");
+    assertThat(hourly().formatTypeAndTimestampForInsert("span", '-', timestamp - 3600_000L))
+      .isEqualTo("zipkin-span-2016-11-01-12");
+  }
+
+  @Test
+  public void hourly_noDateSeparator() throws ParseException {
+    IndexNameFormatter formatter = hourly().toBuilder().dateSeparator('\0').build();
+    long timestamp = iso8601.parse("2016-11-01T13:01:01Z").getTime();
+
+    assertThat(formatter.formatTypeAndTimestamp("span", timestamp))
+      .isEqualTo("zipkin*span-2016110113");
+    assertThat(formatter.parseDate("2016110113")).isEqualTo(timestamp - 61_000L);
+  }
+
+  @Test
+  public void hourly_formatTypeAndRange_sameHour() throws ParseException {
+    long start = iso8601.parse("2016-11-01T13:01:01Z").getTime();
+    long end = iso8601.parse("2016-11-01T13:16:01Z").getTime();
+
+    assertThat(hourly().formatTypeAndRange("span", start, end))
+      .containsExactly("zipkin*span-2016-11-01", "zipkin*span-2016-11-01-13");
+  }
+
+  @Test
+  public void hourly_formatTypeAndRange_hoursAcrossMidnight() throws ParseException {
+    long start = iso8601.parse("2016-11-01T22:15:00Z").getTime();
+    long end = iso8601.parse("2016-11-02T01:15:00Z").getTime();
+
+    assertThat(hourly().formatTypeAndRange("span", start, end)).containsExactly(
+      "zipkin*span-2016-11-01", "zipkin*span-2016-11-01-22", "zipkin*span-2016-11-01-23",
+      "zipkin*span-2016-11-02", "zipkin*span-2016-11-02-00", "zipkin*span-2016-11-02-01");
+  }
+
+  @Test
+  public void hourly_formatTypeAndRange_wholeDaysArePatterns() throws ParseException {
+    long start = iso8601.parse("2016-10-31T23:15:00Z").getTime();
+    long end = iso8601.parse("2016-11-02T23:59:59Z").getTime();
+
+    assertThat(hourly().formatTypeAndRange("span", start, end)).containsExactly(
+      "zipkin*span-2016-10-31", "zipkin*span-2016-10-31-23",
+      "zipkin*span-2016-11-01*", "zipkin*span-2016-11-02*");
+  }
+
+  @Test
+  public void hourly_formatTypeAndRange_compressesMonths() throws ParseException {
+    long start = iso8601.parse("2016-10-31T23:15:00Z").getTime();
+    long end = iso8601.parse("2016-12-01T00:15:00Z").getTime();
+
+    assertThat(hourly().formatTypeAndRange("span", start, end)).containsExactly(
+      "zipkin*span-2016-10-31", "zipkin*span-2016-10-31-23",
+      "zipkin*span-2016-11-*",
+      "zipkin*span-2016-12-01", "zipkin*span-2016-12-01-00");
+  }
+
+  @Test
+  public void formatTypeAndDay() {
+    long epochDay = 17106L; // 2016-11-01
+
+    assertThat(formatter.formatTypeAndDay("span", epochDay)).isEqualTo("zipkin*span-2016-11-01");
+    assertThat(hourly().formatTypeAndDay("span", epochDay)).isEqualTo("zipkin*span-2016-11-01*");
+  }
+
+  IndexNameFormatter hourly() {
+    return formatter.toBuilder().hourly(true).build();
+  }
 }
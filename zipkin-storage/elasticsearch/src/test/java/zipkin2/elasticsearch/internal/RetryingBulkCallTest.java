@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.elasticsearch.internal.BulkCallBuilder.IndexEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+public class RetryingBulkCallTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  BulkMetrics metrics = new BulkMetrics(registry);
+  List<List<IndexEntry<?>>> sent = new ArrayList<>();
+  Deque<RuntimeException[]> responses = new LinkedList<>(); // null means no errors
+
+  @Test public void succeeds_sendsOnce() throws Exception {
+    responses.add(new RuntimeException[0]);
+
+    newCall(3, entries("1", "2")).execute();
+
+    assertThat(sent).hasSize(1);
+    assertThat(count("succeeded")).isEqualTo(2);
+  }
+
+  @Test public void retriesOnlyRejectedItems() throws Exception {
+    responses.add(new RuntimeException[] {null, rejected(), null, rejected()});
+    responses.add(null);
+
+    List<IndexEntry<?>> entries = entries("1", "2", "3", "4");
+    newCall(3, entries).execute();
+
+    assertThat(sent).containsExactly(entries, Arrays.asList(entries.get(1), entries.get(3)));
+    assertThat(count("succeeded")).isEqualTo(4);
+    assertThat(count("retried")).isEqualTo(2);
+    assertThat(count("rejected")).isZero();
+  }
+
+  @Test public void failsWithRejection_whenRetriesExhausted() {
+    RejectedExecutionException rejection = rejected();
+    responses.add(new RuntimeException[] {null, rejected()});
+    responses.add(new RuntimeException[] {rejection});
+
+    assertThatThrownBy(newCall(1, entries("1", "2"))::execute).isSameAs(rejection);
+
+    assertThat(sent).hasSize(2);
+    assertThat(count("succeeded")).isEqualTo(1);
+    assertThat(count("retried")).isEqualTo(1);
+    assertThat(count("rejected")).isEqualTo(1);
+  }
+
+  @Test public void doesntRetryOtherErrors() {
+    RuntimeException error = new RuntimeException("failed to parse");
+    responses.add(new RuntimeException[] {error, null});
+
+    assertThatThrownBy(newCall(3, entries("1", "2"))::execute).isSameAs(error);
+
+    assertThat(sent).hasSize(1);
+    assertThat(count("succeeded")).isEqualTo(1);
+    assertThat(count("failed")).isEqualTo(1);
+  }
+
+  @Test public void failsWithOtherError_evenWhenRetrySucceeds() {
+    RuntimeException error = new RuntimeException("failed to parse");
+    responses.add(new RuntimeException[] {error, rejected()});
+    responses.add(null);
+
+    assertThatThrownBy(newCall(3, entries("1", "2"))::execute).isSameAs(error);
+
+    assertThat(sent).hasSize(2);
+    assertThat(count("succeeded")).isEqualTo(1);
+  }
+
+  @Test public void requestError_countsAllItemsFailed() {
+    assertThatThrownBy(newCall(3, entries("1", "2"))::execute) // no response enqueued
+      .hasMessage("connection refused");
+
+    assertThat(count("failed")).isEqualTo(2);
+  }
+
+  @Test public void backoff_isJitteredAndExponential() {
+    for (int retry = 0; retry < 3; retry++) {
+      long max = RetryingBulkCall.INITIAL_BACKOFF_MILLIS << retry;
+      assertThat(RetryingBulkCall.backoffMillis(retry)).isBetween(max / 2, max);
+    }
+  }
+
+  RetryingBulkCall newCall(int maxRetries, List<IndexEntry<?>> entries) {
+    return new RetryingBulkCall(toSend -> {
+      sent.add(toSend);
+      if (responses.isEmpty()) {
+        return new FakeCall(null, new IllegalStateException("connection refused"));
+      }
+      return new FakeCall(responses.pop(), null);
+    }, entries, maxRetries, metrics);
+  }
+
+  double count(String result) {
+    return registry.get(BulkMetrics.NAME).tag("result", result).counter().count();
+  }
+
+  static RejectedExecutionException rejected() {
+    return new RejectedExecutionException("rejected execution");
+  }
+
+  static List<IndexEntry<?>> entries(String... ids) {
+    List<IndexEntry<?>> result = new ArrayList<>();
+    for (String id : ids) {
+      Span span = CLIENT_SPAN.toBuilder().id(id).build();
+      result.add(BulkCallBuilder.newIndexEntry("zipkin-span-2019-07-25", "span", span,
+        BulkIndexWriter.SPAN));
+    }
+    return result;
+  }
+
+  static final class FakeCall extends Call.Base<RuntimeException[]> {
+    final RuntimeException[] itemErrors;
+    final RuntimeException error;
+
+    FakeCall(RuntimeException[] itemErrors, RuntimeException error) {
+      this.itemErrors = itemErrors;
+      this.error = error;
+    }
+
+    @Override protected RuntimeException[] doExecute() {
+      throw new AssertionError("unexpected");
+    }
+
+    @Override protected void doEnqueue(Callback<RuntimeException[]> callback) {
+      if (error != null) {
+        callback.onError(error);
+      } else {
+        callback.onSuccess(itemErrors);
+      }
+    }
+
+    @Override public Call<RuntimeException[]> clone() {
+      return new FakeCall(itemErrors, error);
+    }
+  }
+}
@@ -13,6 +13,9 @@
  */
 package zipkin2.elasticsearch.internal.client; // to access package-private stuff
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.SimpleTimeLimiter;
 import com.linecorp.armeria.client.UnprocessedRequestException;
 import com.linecorp.armeria.client.WebClient;
@@ -20,6 +23,7 @@ import com.linecorp.armeria.client.endpoint.EndpointGroupException;
 import com.linecorp.armeria.common.AggregatedHttpRequest;
 import com.linecorp.armeria.common.AggregatedHttpResponse;
 import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpHeaderNames;
 import com.linecorp.armeria.common.HttpMethod;
 import com.linecorp.armeria.common.HttpStatus;
 import com.linecorp.armeria.common.MediaType;
@@ -28,10 +32,14 @@ import com.linecorp.armeria.common.ResponseHeaders;
 import com.linecorp.armeria.common.logging.RequestLog;
 import com.linecorp.armeria.testing.junit.server.mock.MockWebServerExtension;
 import com.linecorp.armeria.unsafe.ByteBufHttpData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
@@ -41,6 +49,7 @@ import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
@@ -293,6 +302,91 @@ class HttpCallTest {
     assertThat(request.contentUtf8()).isEqualTo("hello world");
   }
 
+  @Test void streamingContent_compressed() throws Exception {
+    server.enqueue(SUCCESS_RESPONSE);
+    http = new HttpCall.Factory(WebClient.of(server.httpUri()),
+      new RequestCompression(6, new SimpleMeterRegistry()));
+
+    HttpCall.RequestSupplier supplier = new HttpCall.RequestSupplier() {
+      @Override public RequestHeaders headers() {
+        return RequestHeaders.of(HttpMethod.POST, "/");
+      }
+
+      @Override public void writeBody(HttpCall.RequestStream requestStream) {
+        requestStream.tryWrite(HttpData.ofUtf8("hello"));
+        requestStream.tryWrite(HttpData.ofUtf8(" world"));
+      }
+    };
+
+    http.newCall(supplier, NULL, "test").execute();
+
+    AggregatedHttpRequest request = server.takeRequest().request();
+    assertThat(request.headers().get(HttpHeaderNames.CONTENT_ENCODING)).isEqualTo("gzip");
+    try (GZIPInputStream gzip = new GZIPInputStream(request.content().toInputStream())) {
+      assertThat(new String(ByteStreams.toByteArray(gzip), UTF_8)).isEqualTo("hello world");
+    }
+  }
+
+  @Test void compressionSkipsRequestsWithoutBody() throws Exception {
+    server.enqueue(SUCCESS_RESPONSE);
+    http = new HttpCall.Factory(WebClient.of(server.httpUri()),
+      new RequestCompression(6, new SimpleMeterRegistry()));
+
+    http.newCall(REQUEST, NULL, "test").execute();
+
+    AggregatedHttpRequest request = server.takeRequest().request();
+    assertThat(request.headers().contains(HttpHeaderNames.CONTENT_ENCODING)).isFalse();
+    assertThat(request.content().isEmpty()).isTrue();
+  }
+
+  /** Collects field names as they are decoded, to show the stream was parsed. */
+  static final StreamingBodyConverter<List<String>> FIELD_NAMES = () ->
+    new StreamingBodyConverter.Decoder<List<String>>() {
+      final List<String> fieldNames = new ArrayList<>();
+
+      @Override public void onToken(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.FIELD_NAME) fieldNames.add(parser.getCurrentName());
+      }
+
+      @Override public List<String> result() {
+        return fieldNames;
+      }
+    };
+
+  @Test void streamingResponse() throws Exception {
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+      "{\"hits\":{\"total\":1,\"hits\":[]}}"));
+
+    assertThat(http.newCall(REQUEST, FIELD_NAMES, "test").execute())
+      .containsExactly("hits", "total", "hits");
+
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, "{\"a\":1}"));
+    CompletableCallback<List<String>> future = new CompletableCallback<>();
+    http.newCall(REQUEST, FIELD_NAMES, "test").enqueue(future);
+    assertThat(future.join()).containsExactly("a");
+  }
+
+  @Test void streamingResponse_emptyContent() throws Exception {
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.OK, MediaType.PLAIN_TEXT_UTF_8, ""));
+
+    assertThat(http.newCall(REQUEST, FIELD_NAMES, "test").execute()).isNull();
+  }
+
+  @Test void streamingResponse_error() {
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.FORBIDDEN, MediaType.JSON_UTF_8,
+      "{\"Message\":\"User: anonymous is not authorized to perform: es:ESHttpGet\"}"));
+
+    assertThatThrownBy(() -> http.newCall(REQUEST, FIELD_NAMES, "test").execute())
+      .hasMessage("User: anonymous is not authorized to perform: es:ESHttpGet");
+  }
+
+  @Test void streamingResponse_404() {
+    server.enqueue(AggregatedHttpResponse.of(HttpStatus.NOT_FOUND));
+
+    assertThatThrownBy(() -> http.newCall(REQUEST, FIELD_NAMES, "test").execute())
+      .isInstanceOf(FileNotFoundException.class);
+  }
+
   // TODO(adriancole): Find a home for this generic conversion between Call and Java 8.
   static final class CompletableCallback<T> extends CompletableFuture<T> implements Callback<T> {
 
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal.client;
+
+import com.google.common.io.ByteStreams;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.RequestHeaders;
+import com.linecorp.armeria.unsafe.ByteBufHttpData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+public class RequestCompressionTest {
+  static final byte[] SPAN_JSON = SpanBytesEncoder.JSON_V2.encode(CLIENT_SPAN);
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  RequestCompression compression = new RequestCompression(6, registry);
+  List<ByteBuf> sent = new ArrayList<>();
+  int compressedSize;
+
+  @Test public void invalidLevel() {
+    assertThatThrownBy(() -> new RequestCompression(0, registry))
+      .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new RequestCompression(10, registry))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void headers() {
+    RequestHeaders headers = compression.headers(RequestHeaders.of(HttpMethod.POST, "/_bulk",
+      "content-length", "100"));
+
+    assertThat(headers.get("content-encoding")).isEqualTo("gzip");
+    assertThat(headers.contains("content-length")).isFalse();
+  }
+
+  @Test public void shouldCompress_onlyPost() {
+    assertThat(compression.shouldCompress(RequestHeaders.of(HttpMethod.POST, "/_bulk"))).isTrue();
+    assertThat(compression.shouldCompress(RequestHeaders.of(HttpMethod.GET, "/"))).isFalse();
+  }
+
+  @Test public void writeBody_gzipsAcrossChunks() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    List<ByteBuf> inputs = new ArrayList<>();
+    compression.writeBody(supplier(requestStream -> {
+      for (int i = 0; i < 1000; i++) {
+        ByteBuf input = input(i);
+        inputs.add(input);
+        expected.write(input.array(), input.arrayOffset(), input.readableBytes());
+        requestStream.tryWrite(new ByteBufHttpData(input, false));
+      }
+      requestStream.tryWrite(HttpData.ofUtf8("\n"));
+      expected.write('\n');
+    }), this::capture);
+
+    assertThat(sent).hasSizeGreaterThan(1); // streamed in chunks
+    assertThat(gunzip()).isEqualTo(expected.toByteArray());
+    assertThat(inputs).allSatisfy(input -> assertThat(input.refCnt()).isZero());
+    assertThat(registry.get(RequestCompression.NAME + ".saved_bytes").counter().count())
+      .isEqualTo(expected.size() - compressedSize);
+    assertThat(registry.get(RequestCompression.NAME + ".time").timer().count()).isOne();
+  }
+
+  @Test public void writeBody_reusesDeflater() throws IOException {
+    compression.writeBody(supplier(s -> s.tryWrite(HttpData.wrap(SPAN_JSON))), this::capture);
+    assertThat(compression.deflaters).hasSize(1);
+    assertThat(gunzip()).isEqualTo(SPAN_JSON);
+
+    compression.writeBody(supplier(s -> s.tryWrite(HttpData.wrap(SPAN_JSON))), this::capture);
+    assertThat(compression.deflaters).hasSize(1);
+    assertThat(gunzip()).isEqualTo(SPAN_JSON);
+  }
+
+  @Test public void writeBody_stopsWhenAborted() {
+    List<Boolean> results = new ArrayList<>();
+    List<ByteBuf> inputs = new ArrayList<>();
+    compression.writeBody(supplier(requestStream -> {
+      for (int i = 0; i < 1000; i++) {
+        ByteBuf input = input(i);
+        inputs.add(input);
+        results.add(requestStream.tryWrite(new ByteBufHttpData(input, false)));
+      }
+    }), data -> {
+      ((ByteBufHolder) data).release(); // like an aborted stream
+      return false;
+    });
+
+    assertThat(results).endsWith(false);
+    assertThat(inputs).allSatisfy(input -> assertThat(input.refCnt()).isZero());
+    assertThat(compression.deflaters).hasSize(1); // returned to the pool
+    assertThat(registry.get(RequestCompression.NAME + ".time").timer().count()).isZero();
+  }
+
+  /** Span json followed by random bytes, so that the compressed output spans several chunks. */
+  static ByteBuf input(int seed) {
+    byte[] random = new byte[64];
+    new Random(seed).nextBytes(random);
+    return PooledByteBufAllocator.DEFAULT.heapBuffer().writeBytes(SPAN_JSON).writeBytes(random);
+  }
+
+  boolean capture(HttpData data) {
+    ByteBuf buf = ((ByteBufHolder) data).content();
+    sent.add(buf);
+    return true;
+  }
+
+  /** Releases the buffers sent so far, returning their content decompressed. */
+  byte[] gunzip() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    for (ByteBuf buf : sent) {
+      buf.getBytes(buf.readerIndex(), compressed, buf.readableBytes());
+      buf.release();
+    }
+    sent.clear();
+    compressedSize = compressed.size();
+    try (GZIPInputStream gzip =
+           new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+      return ByteStreams.toByteArray(gzip);
+    }
+  }
+
+  static HttpCall.RequestSupplier supplier(BodyWriter writer) {
+    return new HttpCall.RequestSupplier() {
+      @Override public RequestHeaders headers() {
+        return RequestHeaders.of(HttpMethod.POST, "/_bulk");
+      }
+
+      @Override public void writeBody(HttpCall.RequestStream requestStream) {
+        writer.writeBody(requestStream);
+      }
+    };
+  }
+
+  interface BodyWriter {
+    void writeBody(HttpCall.RequestStream requestStream);
+  }
+}
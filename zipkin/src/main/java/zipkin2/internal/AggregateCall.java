@@ -16,8 +16,6 @@ package zipkin2.internal;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import zipkin2.Call;
@@ -27,6 +25,12 @@ import zipkin2.Callback;
  * A call that blocks on others to complete before invoking a callback or returning from {@link
  * #execute()}. The first error will be returned upstream, later ones will be suppressed.
  *
+ * <h3>Partial results</h3>
+ * Subclasses can opt into returning partial results by overriding {@link #isSkippable(Throwable)},
+ * for example to skip calls that exceeded their deadline. When an error is skipped, or any input
+ * was itself a {@link PartialResult}, the output is passed to {@link #partial(Object)}. The
+ * aggregate still fails if every call failed.
+ *
  * @param <I> the type of returned from {@link Call#execute()}
  * @param <O> the type representing the aggregate success value
  */
@@ -82,23 +86,50 @@ public abstract class AggregateCall<I, O> extends Call.Base<O> {
     return output;
   }
 
+  /**
+   * Returns true if an error from one of the calls should be skipped, returning the output of the
+   * others instead. Defaults to false. {@link Error}s are never skipped.
+   */
+  protected boolean isSkippable(Throwable error) {
+    return false;
+  }
+
+  /**
+   * Marks the finished output as incomplete, for example using {@link
+   * PartialResult#map(java.util.Map)}. Defaults to return the input.
+   */
+  protected O partial(O output) {
+    return output;
+  }
+
   @Override protected O doExecute() throws IOException {
     int length = calls.size();
-    Throwable firstError = null;
+    Throwable firstError = null, firstSkipped = null;
+    boolean partial = false, succeeded = false;
     O result = newOutput();
     for (int i = 0; i < length; i++) {
       Call<I> call = calls.get(i);
       try {
-        append(call.execute(), result);
+        I input = call.execute();
+        partial |= PartialResult.isPartial(input);
+        append(input, result);
+        succeeded = true;
       } catch (IOException | RuntimeException | Error e) {
-        if (firstError == null) {
+        if (!(e instanceof Error) && isSkippable(e)) {
+          if (firstSkipped == null) firstSkipped = e;
+          if (log.isLoggable(Level.INFO)) log.log(Level.INFO, "skipped error from " + call, e);
+        } else if (firstError == null) {
           firstError = e;
         } else if (log.isLoggable(Level.INFO)) {
           log.log(Level.INFO, "error from " + call, e);
         }
       }
     }
-    if (firstError == null) return finish(result);
+    if (firstError == null && !succeeded) firstError = firstSkipped;
+    if (firstError == null) {
+      O finished = finish(result);
+      return partial || firstSkipped != null ? partial(finished) : finished;
+    }
     if (firstError instanceof Error) throw (Error) firstError;
     if (firstError instanceof RuntimeException) throw (RuntimeException) firstError;
     throw (IOException) firstError;
@@ -106,12 +137,10 @@ public abstract class AggregateCall<I, O> extends Call.Base<O> {
 
   @Override protected void doEnqueue(Callback<O> callback) {
     int length = calls.size();
-    AtomicInteger remaining = new AtomicInteger(length);
-    AtomicReference firstError = new AtomicReference();
-    O result = newOutput();
+    CountdownState<O> state = new CountdownState<>(length, newOutput(), callback);
     for (int i = 0; i < length; i++) {
       Call<I> call = calls.get(i);
-      call.enqueue(new CountdownCallback(call, remaining, firstError, result, callback));
+      call.enqueue(new CountdownCallback(call, state));
     }
   }
 
@@ -121,45 +150,65 @@ public abstract class AggregateCall<I, O> extends Call.Base<O> {
     }
   }
 
-  class CountdownCallback implements Callback<I> {
-    final Call<I> call;
-    final AtomicInteger remaining;
-    final AtomicReference<Throwable> firstError;
-    @Nullable final O result;
+  /** State shared by all callbacks of one invocation. Guarded by the callback. */
+  static final class CountdownState<O> {
+    final O result;
     final Callback<O> callback;
+    int remaining;
+    Throwable firstError, firstSkipped;
+    boolean partial, succeeded;
 
-    CountdownCallback(Call<I> call, AtomicInteger remaining, AtomicReference<Throwable> firstError,
-      O result,
-      Callback<O> callback) {
-      this.call = call;
+    CountdownState(int remaining, O result, Callback<O> callback) {
       this.remaining = remaining;
-      this.firstError = firstError;
       this.result = result;
       this.callback = callback;
     }
+  }
+
+  class CountdownCallback implements Callback<I> {
+    final Call<I> call;
+    final CountdownState<O> state;
+
+    CountdownCallback(Call<I> call, CountdownState<O> state) {
+      this.call = call;
+      this.state = state;
+    }
 
     @Override public void onSuccess(I value) {
-      synchronized (callback) {
-        append(value, result);
-        if (remaining.decrementAndGet() > 0) return;
-        Throwable error = firstError.get();
-        if (error != null) {
-          callback.onError(error);
-        } else {
-          callback.onSuccess(finish(result));
-        }
+      synchronized (state.callback) {
+        state.partial |= PartialResult.isPartial(value);
+        append(value, state.result);
+        state.succeeded = true;
+        countdown();
       }
     }
 
-    @Override public synchronized void onError(Throwable throwable) {
+    @Override public void onError(Throwable throwable) {
+      boolean skip = !(throwable instanceof Error) && isSkippable(throwable);
       if (log.isLoggable(Level.INFO)) {
-        log.log(Level.INFO, "error from " + call, throwable);
+        log.log(Level.INFO, (skip ? "skipped error from " : "error from ") + call, throwable);
+      }
+      synchronized (state.callback) {
+        if (skip) {
+          if (state.firstSkipped == null) state.firstSkipped = throwable;
+        } else if (state.firstError == null) {
+          state.firstError = throwable;
+        }
+        countdown();
       }
-      synchronized (callback) {
-        firstError.compareAndSet(null, throwable);
-        if (remaining.decrementAndGet() > 0) return;
-        callback.onError(firstError.get());
+    }
+
+    void countdown() {
+      if (--state.remaining > 0) return;
+      Throwable error = state.firstError;
+      if (error == null && !state.succeeded) error = state.firstSkipped;
+      if (error != null) {
+        state.callback.onError(error);
+        return;
       }
+      O finished = finish(state.result);
+      state.callback.onSuccess(
+        state.partial || state.firstSkipped != null ? partial(finished) : finished);
     }
   }
 
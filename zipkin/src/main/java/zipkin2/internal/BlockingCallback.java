@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import zipkin2.Callback;
+
+/**
+ * Used to implement {@link zipkin2.Call#execute()} in terms of enqueue, when there is no delegate
+ * call to execute on the calling thread.
+ */
+public final class BlockingCallback<V> implements Callback<V> {
+  final CountDownLatch latch = new CountDownLatch(1);
+  V value; // thread visibility guaranteed by the countdown latch
+  Throwable throwable; // thread visibility guaranteed by the countdown latch
+
+  @Override public void onSuccess(V value) {
+    this.value = value;
+    latch.countDown();
+  }
+
+  @Override public void onError(Throwable t) {
+    this.throwable = t;
+    latch.countDown();
+  }
+
+  /** Blocks until signaled, rethrowing any error as {@link zipkin2.Call#execute()} would. */
+  public V await() throws IOException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+
+    // Coerce the throwable to the signature of Call.execute()
+    Throwable t = this.throwable;
+    if (t == null) return value;
+    if (t instanceof Error) throw (Error) t;
+    if (t instanceof IOException) throw (IOException) t;
+    if (t instanceof RuntimeException) throw (RuntimeException) t;
+    throw new RuntimeException(t);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import zipkin2.internal.DelayLimiter.Ticker;
+
+/**
+ * Like {@link DelayLimiter}, except suppressions are held in a fixed-size, lock-free hash table
+ * instead of a map plus a delay queue.
+ *
+ * <p>Each context can only be suppressed in a small neighborhood of slots. When that neighborhood
+ * is full, the suppression expiring soonest is replaced. This means there's no global eviction
+ * order to maintain, and memory is allocated once: at most the next power of two of {@link
+ * Builder#cardinality(int) cardinality} suppressions are held, and expired ones are simply
+ * overwritten.
+ *
+ * <p>Rarely, racing callers can both be told to invoke the same context. This is fine for
+ * idempotent work, such as writing autocomplete values.
+ */
+public final class HashedDelayLimiter<C> {
+  static final int PROBES = 8;
+
+  public static <C> HashedDelayLimiter<C> create() {
+    return new Builder().build();
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    Ticker ticker = new Ticker();
+    long ttlNanos = TimeUnit.HOURS.toNanos(1); // legacy default from cassandra
+    int cardinality = 5 * 4000; // Ex. 5 site tags with cardinality 4000 each
+
+    /**
+     * When {@link #shouldInvoke(Object)} returns true, it will return false until this duration
+     * expires.
+     */
+    public Builder ttl(int ttl) {
+      if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0");
+      this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+      return this;
+    }
+
+    /**
+     * This bounds suppressions, useful because contexts can be accidentally unlimited cardinality.
+     */
+    public Builder cardinality(int cardinality) {
+      if (cardinality <= 0) throw new IllegalArgumentException("cardinality <= 0");
+      this.cardinality = cardinality;
+      return this;
+    }
+
+    Builder ticker(Ticker ticker) { // do not expose public: only for tests
+      this.ticker = ticker;
+      return this;
+    }
+
+    public <C> HashedDelayLimiter<C> build() {
+      return new HashedDelayLimiter<>(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final Ticker ticker;
+  final long ttlNanos;
+  final AtomicReferenceArray<Suppression<C>> table;
+  final int mask;
+
+  HashedDelayLimiter(Builder builder) {
+    ticker = builder.ticker;
+    ttlNanos = builder.ttlNanos;
+    int cardinality = Math.min(builder.cardinality, 1 << 30);
+    int size = Math.max(PROBES, Integer.highestOneBit(cardinality - 1) << 1);
+    table = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+  }
+
+  /** Returns true if a given context should be invoked. */
+  public boolean shouldInvoke(C context) {
+    int start = spread(context.hashCode());
+    while (true) {
+      long now = ticker.read();
+      int victim = -1;
+      Suppression<C> replaced = null;
+      boolean victimIsFree = false;
+      for (int i = 0; i < PROBES; i++) {
+        int slot = (start + i) & mask;
+        Suppression<C> suppression = table.get(slot);
+        if (suppression == null || suppression.expiration - now <= 0) {
+          if (!victimIsFree) { // the first free slot wins, so racing callers pick the same one
+            victim = slot;
+            replaced = suppression;
+            victimIsFree = true;
+          }
+          continue;
+        }
+        if (suppression.context.equals(context)) return false;
+        if (!victimIsFree && (replaced == null || suppression.expiration - replaced.expiration < 0)) {
+          victim = slot;
+          replaced = suppression;
+        }
+      }
+
+      Suppression<C> suppression = new Suppression<>(context, now + ttlNanos);
+      if (table.compareAndSet(victim, replaced, suppression)) return true;
+      // lost a race: look again, as the winner may have suppressed this context
+    }
+  }
+
+  public void invalidate(C context) {
+    int start = spread(context.hashCode());
+    for (int i = 0; i < PROBES; i++) {
+      int slot = (start + i) & mask;
+      Suppression<C> suppression = table.get(slot);
+      if (suppression != null && suppression.context.equals(context)) {
+        table.compareAndSet(slot, suppression, null);
+      }
+    }
+  }
+
+  public void clear() {
+    for (int i = 0, length = table.length(); i < length; i++) {
+      table.set(i, null);
+    }
+  }
+
+  /** Mixes the hash code as sequential ones, such as small numbers, would otherwise cluster. */
+  int spread(int hashCode) {
+    int h = hashCode * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  static final class Suppression<C> {
+    final C context;
+    final long expiration;
+
+    Suppression(C context, long expiration) {
+      this.context = context;
+      this.expiration = expiration;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Marks results that may be missing some values, as part of the backend calls that produced them
+ * failed or exceeded their deadline. For example, when one of many index reads in a trace search
+ * timed out, the traces found by the others are still returned, marked as partial.
+ *
+ * <p>Only use this for results that are still correct, just incomplete. For example, it is fine to
+ * skip one day of a multi-day search, but not one of the conditions of an intersection.
+ */
+public final class PartialResult {
+  /** Returns true if the input is a partial result, so that a caller can flag it upstream. */
+  public static boolean isPartial(@Nullable Object result) {
+    return result instanceof Marker;
+  }
+
+  public static <E> List<E> list(Collection<E> values) {
+    return new PartialList<>(values);
+  }
+
+  public static <E> Set<E> set(Collection<E> values) {
+    return new PartialSet<>(values);
+  }
+
+  public static <K, V> Map<K, V> map(Map<K, V> values) {
+    return new PartialMap<>(values);
+  }
+
+  interface Marker {
+  }
+
+  static final class PartialList<E> extends ArrayList<E> implements Marker {
+    PartialList(Collection<E> values) {
+      super(values);
+    }
+  }
+
+  static final class PartialSet<E> extends LinkedHashSet<E> implements Marker {
+    PartialSet(Collection<E> values) {
+      super(values);
+    }
+  }
+
+  static final class PartialMap<K, V> extends LinkedHashMap<K, V> implements Marker {
+    PartialMap(Map<K, V> values) {
+      super(values);
+    }
+  }
+
+  PartialResult() {
+  }
+}
@@ -13,7 +13,9 @@
  */
 package zipkin2.storage;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -33,6 +35,17 @@ import zipkin2.internal.Nullable;
  * <p>Time units of {@link #endTs} and {@link #lookback} are milliseconds as opposed to
  * microseconds, the grain of {@link Span#timestamp()}. Milliseconds is a more familiar and
  * supported granularity for query, index and windowing functions.
+ *
+ * <h3>Continuing a search</h3>
+ * To see more results than the {@link #limit}, pass the {@link #nextCursor(List) next cursor} of a
+ * page into the following request. The cursor narrows {@link #endTs} and {@link #lookback} to the
+ * part of the window that can hold traces not yet returned. As all backends search by time, each
+ * page then costs a search of that remainder, instead of the whole window with a larger limit.
+ *
+ * <p>Backends match a trace by the timestamp of any matching span or index row, which isn't
+ * necessarily its root span timestamp. So, the cursor is the oldest of the newest span timestamps
+ * in the page: no trace left out of the page can have matched later than that. Traces in the page
+ * with spans before the cursor can match again, so their IDs are carried in the cursor and skipped.
  */
 public final class QueryRequest {
   /**
@@ -107,11 +120,27 @@ public final class QueryRequest {
     return lookback;
   }
 
-  /** Maximum number of traces to return. Defaults to 10 */
+  /**
+   * Maximum number of traces to return. Defaults to 10
+   *
+   * <p>When there's a {@link #cursor()}, this includes any traces in the narrowed window that were
+   * already returned. This allows {@link #page(List)} to skip them without shortening the page.
+   */
   public int limit() {
     return limit;
   }
 
+  /**
+   * When present, only include traces not returned in prior pages of this search.
+   *
+   * <p>This is an opaque value from {@link #nextCursor(List)}. As it contains the position of the
+   * last page, {@link #endTs()} and {@link #lookback()} are narrowed to the part of the window
+   * before it.
+   */
+  @Nullable public String cursor() {
+    return cursor;
+  }
+
   /**
    * Corresponds to query parameter "annotationQuery". Ex. "http.method=GET and error"
    *
@@ -140,7 +169,7 @@ public final class QueryRequest {
   }
 
   public static final class Builder {
-    String serviceName, remoteServiceName, spanName;
+    String serviceName, remoteServiceName, spanName, cursor;
     Map<String, String> annotationQuery = Collections.emptyMap();
     Long minDuration, maxDuration;
     long endTs, lookback;
@@ -155,7 +184,8 @@ public final class QueryRequest {
       maxDuration = source.maxDuration;
       endTs = source.endTs;
       lookback = source.lookback;
-      limit = source.limit;
+      limit = source.limit - source.cursorTraceIds.size(); // build() adds these back
+      cursor = source.cursor;
     }
 
     /** @see QueryRequest#serviceName() */
@@ -242,6 +272,12 @@ public final class QueryRequest {
       return this;
     }
 
+    /** @see QueryRequest#cursor() */
+    public Builder cursor(@Nullable String cursor) {
+      this.cursor = cursor;
+      return this;
+    }
+
     public final QueryRequest build() {
       // coerce service and span names to lowercase
       if (serviceName != null) serviceName = serviceName.toLowerCase(Locale.ROOT);
@@ -253,6 +289,7 @@ public final class QueryRequest {
       if ("".equals(serviceName)) serviceName = null;
       if ("".equals(remoteServiceName)) remoteServiceName = null;
       if ("".equals(spanName) || "all".equals(spanName)) spanName = null;
+      if ("".equals(cursor)) cursor = null;
 
       if (endTs <= 0) throw new IllegalArgumentException("endTs <= 0");
       if (limit <= 0) throw new IllegalArgumentException("limit <= 0");
@@ -266,6 +303,24 @@ public final class QueryRequest {
         throw new IllegalArgumentException("maxDuration is only valid with minDuration");
       }
 
+      Map<String, Long> cursorTraceIds = Collections.emptyMap();
+      long endTs = this.endTs, lookback = this.lookback;
+      int limit = this.limit;
+      if (cursor != null) {
+        cursorTraceIds = new LinkedHashMap<>();
+        long cursorTimestamp = parseCursor(cursor, cursorTraceIds);
+
+        // Narrow the window to end at the cursor, rounding up as endTs is in milliseconds.
+        long startTs = endTs - lookback;
+        endTs = Math.min(endTs, (cursorTimestamp + 999) / 1000);
+        if (endTs <= startTs) { // no later page would be issued for this window
+          throw new IllegalArgumentException("cursor is at or before the start of the window");
+        }
+        lookback = endTs - startTs;
+        // Traces already returned in the narrowed window will be skipped, so fetch that many more.
+        limit += cursorTraceIds.size();
+      }
+
       return new QueryRequest(
         serviceName,
         remoteServiceName,
@@ -275,7 +330,9 @@ public final class QueryRequest {
         maxDuration,
         endTs,
         lookback,
-        limit
+        limit,
+        cursor,
+        cursorTraceIds
       );
     }
 
@@ -284,12 +341,123 @@ public final class QueryRequest {
   }
 
   /**
-   * Tests the supplied trace against the current request.
+   * Returns the traces in this page of results, skipping any returned by prior pages, and limited
+   * to the page size requested.
    *
-   * <p>This is used when the backend cannot fully refine a trace query.
+   * <p>This is used when the backend cannot fully refine a continued search, as it may return
+   * traces already returned. When more traces remain than the page size, the newest are kept, so
+   * that those cut are still in the window of the {@link #nextCursor(List) next cursor}.
    */
-  public boolean test(List<Span> spans) {
-    // v2 returns raw spans in any order, get the root's timestamp or the first timestamp
+  public List<List<Span>> page(List<List<Span>> traces) {
+    if (cursor == null) return traces;
+    int pageSize = limit - cursorTraceIds.size();
+    List<List<Span>> result = new ArrayList<>(traces.size());
+    for (List<Span> trace : traces) {
+      if (!returnedBefore(trace)) result.add(trace);
+    }
+    if (result.size() <= pageSize) return result;
+    // Sort newest first, as backends don't return traces in the order they rank them.
+    Collections.sort(result, new Comparator<List<Span>>() {
+      @Override public int compare(List<Span> left, List<Span> right) {
+        long leftTimestamp = newestTimestamp(left), rightTimestamp = newestTimestamp(right);
+        return leftTimestamp > rightTimestamp ? -1 : leftTimestamp == rightTimestamp ? 0 : 1;
+      }
+    });
+    return new ArrayList<>(result.subList(0, pageSize));
+  }
+
+  /**
+   * Returns a {@link #cursor()} to continue this search after the given page, or null if the page
+   * is empty or the search can't continue within the window.
+   *
+   * <p>The cursor is the oldest of the {@link #newestTimestamp(List) newest timestamps} of traces
+   * in the page. Any trace the backend left out of the page matched at or before it, so is in the
+   * window of the next search. The cursor also holds the IDs of traces returned so far that have
+   * spans in that window, so they are neither repeated nor counted against the next page.
+   *
+   * @param page the traces returned by {@link #page(List)}
+   */
+  @Nullable public String nextCursor(List<List<Span>> page) {
+    long timestamp = 0L;
+    for (List<Span> trace : page) {
+      long newestTimestamp = newestTimestamp(trace);
+      if (newestTimestamp == 0L) continue;
+      if (timestamp == 0L || newestTimestamp < timestamp) timestamp = newestTimestamp;
+    }
+    if (timestamp == 0L) return null;
+    // A cursor in the first millisecond of the window would leave nothing to search.
+    if ((timestamp + 999) / 1000 <= endTs - lookback) return null;
+
+    // The next search includes spans up to the end of the millisecond holding the cursor.
+    long nextEndTs = ((timestamp + 999) / 1000 + 1) * 1000;
+    StringBuilder result = new StringBuilder().append(Long.toHexString(timestamp));
+    for (Map.Entry<String, Long> entry : cursorTraceIds.entrySet()) {
+      if (entry.getValue() >= nextEndTs) continue; // can't match the next search
+      appendTraceId(result, entry.getKey(), entry.getValue());
+    }
+    for (List<Span> trace : page) {
+      long oldestTimestamp = oldestTimestamp(trace);
+      if (oldestTimestamp == 0L || oldestTimestamp >= nextEndTs) continue;
+      String traceId = trace.get(0).traceId();
+      if (cursorTraceIds.containsKey(traceId)) continue;
+      appendTraceId(result, traceId, oldestTimestamp);
+    }
+    return result.toString();
+  }
+
+  static void appendTraceId(StringBuilder result, String traceId, long oldestTimestamp) {
+    result.append('-').append(traceId).append('.').append(Long.toHexString(oldestTimestamp));
+  }
+
+  /** Parses the cursor timestamp, adding trace IDs and their oldest timestamp to the map. */
+  static long parseCursor(String cursor, Map<String, Long> traceIds) {
+    String[] parts = cursor.split("-", -1);
+    long timestamp;
+    try {
+      timestamp = Long.parseLong(parts[0], 16);
+      for (int i = 1; i < parts.length; i++) {
+        int dot = parts[i].indexOf('.');
+        String traceId = Span.normalizeTraceId(parts[i].substring(0, dot));
+        traceIds.put(traceId, Long.parseLong(parts[i].substring(dot + 1), 16));
+      }
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("malformed cursor: " + cursor);
+    }
+    if (timestamp <= 0L) throw new IllegalArgumentException("malformed cursor: " + cursor);
+    return timestamp;
+  }
+
+  /** Returns true if this trace was returned in a prior page, per the {@link #cursor()}. */
+  boolean returnedBefore(List<Span> spans) {
+    if (cursor == null || spans.isEmpty()) return false;
+    return cursorTraceIds.containsKey(spans.get(0).traceId());
+  }
+
+  /**
+   * Returns the latest span timestamp in this request's window, as backends can't have matched
+   * the trace after that. This is at least the timestamp the backend ranked the trace by.
+   */
+  long newestTimestamp(List<Span> spans) {
+    long timestamp = 0L;
+    for (Span span : spans) {
+      timestamp = Math.max(timestamp, span.timestampAsLong());
+    }
+    return Math.min(timestamp, endTs * 1000 + 999);
+  }
+
+  static long oldestTimestamp(List<Span> spans) {
+    long timestamp = 0L;
+    for (Span span : spans) {
+      if (span.timestampAsLong() == 0L) continue;
+      if (timestamp == 0L || timestamp > span.timestampAsLong()) {
+        timestamp = span.timestampAsLong();
+      }
+    }
+    return timestamp;
+  }
+
+  /** v2 returns raw spans in any order, get the root's timestamp or the first timestamp */
+  static long traceTimestamp(List<Span> spans) {
     long timestamp = 0L;
     for (Span span : spans) {
       if (span.timestampAsLong() == 0L) continue;
@@ -301,11 +469,22 @@ public final class QueryRequest {
         timestamp = span.timestampAsLong();
       }
     }
+    return timestamp;
+  }
+
+  /**
+   * Tests the supplied trace against the current request.
+   *
+   * <p>This is used when the backend cannot fully refine a trace query.
+   */
+  public boolean test(List<Span> spans) {
+    long timestamp = traceTimestamp(spans);
     if (timestamp == 0L ||
       timestamp < (endTs() - lookback()) * 1000 ||
       timestamp > endTs() * 1000) {
       return false;
     }
+    if (returnedBefore(spans)) return false;
     boolean testedDuration = minDuration() == null && maxDuration() == null;
 
     String serviceNameToMatch = serviceName();
@@ -360,6 +539,8 @@ public final class QueryRequest {
   final Long minDuration, maxDuration;
   final long endTs, lookback;
   final int limit;
+  final String cursor;
+  final Map<String, Long> cursorTraceIds; // trace ID to its oldest span timestamp
 
   QueryRequest(
     @Nullable String serviceName,
@@ -370,7 +551,9 @@ public final class QueryRequest {
     @Nullable Long maxDuration,
     long endTs,
     long lookback,
-    int limit) {
+    int limit,
+    @Nullable String cursor,
+    Map<String, Long> cursorTraceIds) {
     this.serviceName = serviceName;
     this.remoteServiceName = remoteServiceName;
     this.spanName = spanName;
@@ -380,6 +563,8 @@ public final class QueryRequest {
     this.endTs = endTs;
     this.lookback = lookback;
     this.limit = limit;
+    this.cursor = cursor;
+    this.cursorTraceIds = cursorTraceIds;
   }
 
   @Override
@@ -394,6 +579,7 @@ public final class QueryRequest {
       + "endTs=" + endTs + ", "
       + "lookback=" + lookback + ", "
       + "limit=" + limit
+      + (cursor != null ? ", cursor=" + cursor : "")
       + "}";
   }
 }
@@ -266,6 +266,110 @@ public class AggregateCallTest {
       .onSuccess(asList(DependencyLink.newBuilder().parent("a").child("b").callCount(4).build()));
   }
 
+  @Test public void execute_skipsError_partial() throws Exception {
+    Call<List<String>> call = new AggregateStrings(asList(
+      Call.create(asList("a")), Call.<String>emptyList().map(skippableError())
+    ));
+
+    List<String> result = call.execute();
+    assertThat(result).containsExactly("a");
+    assertThat(PartialResult.isPartial(result)).isTrue();
+  }
+
+  @Test public void enqueue_skipsError_partial() {
+    Call<List<String>> call = new AggregateStrings(asList(
+      Call.create(asList("a")), Call.<String>emptyList().map(skippableError())
+    ));
+
+    AtomicReference<List<String>> result = new AtomicReference<>();
+    call.enqueue(new Callback<List<String>>() {
+      @Override public void onSuccess(List<String> value) {
+        result.set(value);
+      }
+
+      @Override public void onError(Throwable t) {
+        throw new AssertionError(t);
+      }
+    });
+
+    assertThat(result.get()).containsExactly("a");
+    assertThat(PartialResult.isPartial(result.get())).isTrue();
+  }
+
+  @Test public void execute_partialInput_partial() throws Exception {
+    Call<List<String>> call = new AggregateStrings(asList(
+      Call.create(asList("a")), Call.create(PartialResult.list(asList("b")))
+    ));
+
+    assertThat(PartialResult.isPartial(call.execute())).isTrue();
+  }
+
+  @Test public void execute_complete_notPartial() throws Exception {
+    Call<List<String>> call = new AggregateStrings(asList(
+      Call.create(asList("a")), Call.create(asList("b"))
+    ));
+
+    assertThat(PartialResult.isPartial(call.execute())).isFalse();
+  }
+
+  @Test public void execute_allSkipped_fails() {
+    Call<List<String>> call = new AggregateStrings(asList(
+      Call.<String>emptyList().map(skippableError()),
+      Call.<String>emptyList().map(skippableError())
+    ));
+
+    assertThatThrownBy(call::execute).hasMessage("timeout");
+  }
+
+  @Test public void execute_unskippableErrorFails() {
+    Call<List<String>> call = new AggregateStrings(asList(
+      Call.create(asList("a")),
+      Call.<String>emptyList().map(skippableError()),
+      Call.<String>emptyList().map(input -> {
+        throw new IllegalStateException("bug");
+      })
+    ));
+
+    assertThatThrownBy(call::execute).hasMessage("bug");
+  }
+
+  static Call.Mapper<List<String>, List<String>> skippableError() {
+    return input -> {
+      throw new IllegalStateException("timeout");
+    };
+  }
+
+  /** Skips errors with the message "timeout" */
+  static final class AggregateStrings extends AggregateCall<List<String>, List<String>> {
+    AggregateStrings(List<? extends Call<List<String>>> calls) {
+      super(calls);
+    }
+
+    @Override protected List<String> newOutput() {
+      return new ArrayList<>();
+    }
+
+    @Override protected void append(List<String> input, List<String> output) {
+      output.addAll(input);
+    }
+
+    @Override protected boolean isEmpty(List<String> output) {
+      return output.isEmpty();
+    }
+
+    @Override protected boolean isSkippable(Throwable error) {
+      return "timeout".equals(error.getMessage());
+    }
+
+    @Override protected List<String> partial(List<String> output) {
+      return PartialResult.list(output);
+    }
+
+    @Override public AggregateStrings clone() {
+      return new AggregateStrings(cloneCalls());
+    }
+  }
+
   static final class AggregateDependencyLinks
     extends AggregateCall<List<DependencyLink>, List<DependencyLink>> {
     AggregateDependencyLinks(List<? extends Call<List<DependencyLink>>> calls) {
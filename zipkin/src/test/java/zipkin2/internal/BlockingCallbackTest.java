@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BlockingCallbackTest {
+  BlockingCallback<String> callback = new BlockingCallback<>();
+
+  @Test public void await_returnsValue() throws IOException {
+    callback.onSuccess("foo");
+
+    assertThat(callback.await()).isEqualTo("foo");
+  }
+
+  @Test public void await_rethrowsIOException() {
+    IOException error = new IOException();
+    callback.onError(error);
+
+    assertThatThrownBy(callback::await).isSameAs(error);
+  }
+
+  @Test public void await_rethrowsRuntimeException() {
+    IllegalStateException error = new IllegalStateException();
+    callback.onError(error);
+
+    assertThatThrownBy(callback::await).isSameAs(error);
+  }
+
+  @Test public void await_wrapsCheckedException() {
+    Exception error = new Exception();
+    callback.onError(error);
+
+    assertThatThrownBy(callback::await)
+      .isInstanceOf(RuntimeException.class)
+      .hasCause(error);
+  }
+
+  @Test public void await_interrupted() {
+    Thread.currentThread().interrupt();
+
+    assertThatThrownBy(callback::await).isInstanceOf(InterruptedIOException.class);
+    assertThat(Thread.interrupted()).isTrue();
+  }
+}
@@ -14,6 +14,7 @@
 package zipkin2.storage;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import org.junit.Rule;
 import org.junit.Test;
@@ -352,4 +353,125 @@ public class QueryRequestTest {
     assertThat(query.test(asList(fooAndBazAndQux)))
       .isFalse();
   }
+
+  List<Span> trace1 = asList(span.toBuilder().traceId("1").timestamp(TestObjects.TODAY * 1000 - 3000).build());
+  List<Span> trace2 = asList(span.toBuilder().traceId("2").timestamp(TestObjects.TODAY * 1000 - 5500).build());
+  List<Span> trace3 = asList(span.toBuilder().traceId("3").timestamp(TestObjects.TODAY * 1000 - 5500).build());
+  List<Span> trace4 = asList(span.toBuilder().traceId("4").timestamp(TestObjects.TODAY * 1000 - 9000).build());
+
+  @Test public void cursor_coercesEmptyToNull() {
+    assertThat(queryBuilder.cursor("").build().cursor())
+      .isNull();
+  }
+
+  @Test public void cursor_malformed() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("malformed cursor: cafe-zz");
+
+    queryBuilder.cursor("cafe-zz").build();
+  }
+
+  @Test public void cursor_narrowsWindow() {
+    QueryRequest request = queryBuilder.limit(2).build();
+    String cursor = request.nextCursor(asList(trace1, trace2));
+
+    QueryRequest next = queryBuilder.cursor(cursor).build();
+    assertThat(next.endTs()) // rounds up to include the whole millisecond
+      .isEqualTo(TestObjects.TODAY - 5);
+    assertThat(next.endTs() - next.lookback())
+      .isEqualTo(request.endTs() - request.lookback());
+    assertThat(next.limit()) // includes trace2, which was already returned
+      .isEqualTo(3);
+  }
+
+  @Test public void cursor_atStartOfWindow() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("cursor is at or before the start of the window");
+
+    long startTs = TestObjects.TODAY - 60;
+    queryBuilder.cursor(Long.toHexString(startTs * 1000)).build();
+  }
+
+  @Test public void cursor_narrowsWindowToLastMillisecond() {
+    long startTs = TestObjects.TODAY - 60;
+    QueryRequest next = queryBuilder.cursor(Long.toHexString(startTs * 1000 + 1)).build();
+
+    assertThat(next.endTs()).isEqualTo(startTs + 1);
+    assertThat(next.lookback()).isEqualTo(1L);
+  }
+
+  @Test public void cursor_toBuilderDoesntAccumulateLimit() {
+    QueryRequest request = queryBuilder.limit(2).build();
+    String cursor = request.nextCursor(asList(trace1, trace2));
+
+    QueryRequest next = queryBuilder.cursor(cursor).build();
+    assertThat(next.toBuilder().build().limit())
+      .isEqualTo(next.limit());
+  }
+
+  @Test public void nextCursor_emptyPage() {
+    assertThat(queryBuilder.build().nextCursor(asList()))
+      .isNull();
+  }
+
+  @Test public void nextCursor_nullWhenNothingLeftInWindow() {
+    List<Span> oldest = asList(span.toBuilder().traceId("5")
+      .timestamp((TestObjects.TODAY - 60) * 1000).build());
+
+    assertThat(queryBuilder.limit(1).build().nextCursor(asList(oldest)))
+      .isNull();
+  }
+
+  /** Traces that share a timestamp must not be skipped or repeated across pages. */
+  @Test public void page_continuesAtSameTimestamp() {
+    QueryRequest request = queryBuilder.limit(2).build();
+    List<List<Span>> page1 = asList(trace1, trace2);
+    String cursor = request.nextCursor(page1);
+
+    QueryRequest next = queryBuilder.cursor(cursor).build();
+    // a backend which can't fully refine could return trace 2 again
+    List<List<Span>> page2 = next.page(asList(trace2, trace3, trace4));
+    assertThat(page2).containsExactly(trace3, trace4);
+
+    assertThat(next.test(trace2)).isFalse();
+    assertThat(next.test(trace3)).isTrue();
+  }
+
+  /** Backends match a trace by any span, so the cursor can't be its root span timestamp. */
+  @Test public void nextCursor_keepsTraceMatchedBeforeChildSpanOfPriorPage() {
+    long now = TestObjects.TODAY * 1000;
+    List<Span> traceA = asList(
+      span.toBuilder().traceId("a").id("1").timestamp(now - 9000).build(),
+      span.toBuilder().traceId("a").parentId("1").id("2").timestamp(now - 1000).build());
+    List<Span> traceB = asList(span.toBuilder().traceId("b").timestamp(now - 5000).build());
+
+    // trace A is returned first, as its child span matched later than any span of trace B
+    String cursor = queryBuilder.limit(1).build().nextCursor(asList(traceA));
+
+    QueryRequest next = queryBuilder.cursor(cursor).build();
+    assertThat(next.endTs() * 1000).isGreaterThan(now - 5000);
+    assertThat(next.test(traceB)).isTrue();
+    // trace A also matches the next search, by its root span
+    assertThat(next.page(asList(traceA, traceB))).containsExactly(traceB);
+  }
+
+  /** Traces cut from a page must be older than those kept, so the next cursor includes them. */
+  @Test public void page_keepsNewestTraces() {
+    String cursor = queryBuilder.limit(1).build().nextCursor(asList(trace1));
+
+    QueryRequest next = queryBuilder.cursor(cursor).build();
+    assertThat(next.page(asList(trace4, trace1, trace2))).containsExactly(trace2);
+  }
+
+  @Test public void nextCursor_carriesTraceIdsWhenStuckAtSameTimestamp() {
+    QueryRequest request = queryBuilder.limit(1).build();
+    String cursor = request.nextCursor(asList(trace2));
+
+    QueryRequest next = queryBuilder.cursor(cursor).build();
+    List<List<Span>> page2 = next.page(asList(trace2, trace3));
+    assertThat(page2).containsExactly(trace3);
+
+    QueryRequest last = queryBuilder.cursor(next.nextCursor(page2)).build();
+    assertThat(last.page(asList(trace2, trace3, trace4))).containsExactly(trace4);
+  }
 }